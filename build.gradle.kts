@@ -15,6 +15,14 @@ repositories {
     jcenter()
 }
 
+// Benchmarks are run by hand, see the benchmark task
+sourceSets {
+    create("benchmark") {
+        compileClasspath += sourceSets.main.get().output + configurations.runtimeClasspath.get()
+        runtimeClasspath += output + compileClasspath
+    }
+}
+
 dependencies {
     // Checks
     errorprone("com.google.errorprone:error_prone_core:2.3.3")
@@ -46,6 +54,13 @@ tasks {
         maxHeapSize = "256m"
         useJUnitPlatform()
     }
+
+    register<JavaExec>("benchmark") {
+        description = "Compares transports between nodes of a local cluster"
+        classpath = sourceSets["benchmark"].runtimeClasspath
+        main = "ru.mail.polis.shkalev.TransportBenchmark"
+        maxHeapSize = "256m"
+    }
 }
 
 application {
@@ -66,4 +81,8 @@ tasks.withType<JavaCompile> {
 // Error prone options
 tasks.named<JavaCompile>("compileTestJava") {
     options.errorprone.isEnabled.set(false)
+}
+
+tasks.named<JavaCompile>("compileBenchmarkJava") {
+    options.errorprone.isEnabled.set(false)
 }
\ No newline at end of file
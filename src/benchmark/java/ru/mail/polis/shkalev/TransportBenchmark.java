@@ -0,0 +1,168 @@
+package ru.mail.polis.shkalev;
+
+import one.nio.http.HttpClient;
+import one.nio.http.Response;
+import one.nio.net.ConnectionString;
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.Files;
+import ru.mail.polis.dao.DAO;
+import ru.mail.polis.dao.DAOFactory;
+import ru.mail.polis.service.shkalev.Ring;
+import ru.mail.polis.service.shkalev.ShardedService;
+import ru.mail.polis.service.shkalev.TransportConfig;
+import ru.mail.polis.service.shkalev.TransportType;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Compares transports between nodes. Starts a local cluster of three nodes for every
+ * transport and measures throughput and latency of replicated PUT and GET requests
+ * sent to one node with {@code replicas=3/3}, so every request makes two remote calls.
+ *
+ * <p>Arguments: number of requests of each kind, number of client threads and number of
+ * pooled connections to every node of {@link TransportType#ONE_NIO_HTTP}.
+ */
+public final class TransportBenchmark {
+    private static final int NODES = 3;
+    private static final int VALUE_LEN = 256;
+    private static final String REPLICAS = "&replicas=3/3";
+
+    private TransportBenchmark() {
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final int requests = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        final int threads = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        final int poolSize = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+        for (final TransportType transport : TransportType.values()) {
+            run(TransportConfig.builder(transport).poolSize(poolSize).build(), transport, requests, threads);
+        }
+        System.exit(0);
+    }
+
+    private static void run(@NotNull final TransportConfig config,
+                            @NotNull final TransportType transport,
+                            final int requests,
+                            final int threads) throws Exception {
+        final int[] ports = new int[NODES];
+        final Set<String> topology = new LinkedHashSet<>();
+        for (int i = 0; i < NODES; i++) {
+            ports[i] = freePort();
+            topology.add("http://localhost:" + ports[i] + "?rpc=" + freePort());
+        }
+        final List<File> dirs = new ArrayList<>();
+        final List<DAO> daos = new ArrayList<>();
+        final List<ShardedService> services = new ArrayList<>();
+        final List<ExecutorService> workers = new ArrayList<>();
+        try {
+            for (int i = 0; i < NODES; i++) {
+                final File dir = java.nio.file.Files.createTempDirectory("bench").toFile();
+                dirs.add(dir);
+                final DAO dao = DAOFactory.create(dir);
+                daos.add(dao);
+                final ExecutorService worker = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+                workers.add(worker);
+                final ShardedService service = new ShardedService(ports[i], dao, worker,
+                        new Ring(topology, "http://localhost:" + ports[i], NODES), config, true);
+                service.start();
+                services.add(service);
+            }
+            phase(ports[0], requests / 10, threads, true);
+            System.out.println(transport + " PUT " + report(phase(ports[0], requests, threads, true)));
+            System.out.println(transport + " GET " + report(phase(ports[0], requests, threads, false)));
+        } finally {
+            for (final ShardedService service : services) {
+                service.stop();
+            }
+            for (final ExecutorService worker : workers) {
+                worker.shutdown();
+            }
+            for (final DAO dao : daos) {
+                dao.close();
+            }
+            for (final File dir : dirs) {
+                Files.recursiveDelete(dir);
+            }
+        }
+    }
+
+    /**
+     * Sends requests from several clients.
+     *
+     * @return total time of the phase followed by latencies of the requests, in nanoseconds
+     */
+    private static long[] phase(final int port,
+                                final int requests,
+                                final int threads,
+                                final boolean put) throws Exception {
+        final long[] latencies = new long[requests + 1];
+        final ExecutorService clients = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            final long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                final int thread = t;
+                futures.add(clients.submit(() -> {
+                    final HttpClient client = new HttpClient(new ConnectionString("http://localhost:" + port));
+                    final byte[] value = new byte[VALUE_LEN];
+                    try {
+                        for (int i = thread; i < requests; i += threads) {
+                            ThreadLocalRandom.current().nextBytes(value);
+                            final String uri = "/v0/entity?id=" + Integer.toHexString(i) + REPLICAS;
+                            final long begin = System.nanoTime();
+                            final Response response = put ? client.put(uri, value) : client.get(uri);
+                            latencies[i + 1] = System.nanoTime() - begin;
+                            if (response.getStatus() >= 500) {
+                                throw new IllegalStateException("Status " + response.getStatus());
+                            }
+                        }
+                    } finally {
+                        client.close();
+                    }
+                    return null;
+                }));
+            }
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+            latencies[0] = System.nanoTime() - start;
+        } finally {
+            clients.shutdown();
+        }
+        return latencies;
+    }
+
+    private static String report(@NotNull final long[] latencies) {
+        final long total = latencies[0];
+        final long[] sorted = Arrays.copyOfRange(latencies, 1, latencies.length);
+        Arrays.sort(sorted);
+        return String.format("%.0f req/s p50=%.2fms p99=%.2fms p999=%.2fms",
+                sorted.length * 1e9 / total,
+                percentile(sorted, 0.5),
+                percentile(sorted, 0.99),
+                percentile(sorted, 0.999));
+    }
+
+    private static double percentile(@NotNull final long[] sorted, final double p) {
+        return sorted[(int) Math.min(sorted.length - 1, sorted.length * p)] / 1e6;
+    }
+
+    private static int freePort() throws Exception {
+        try (ServerSocket socket = new ServerSocket()) {
+            socket.setReuseAddress(true);
+            socket.bind(new InetSocketAddress(0));
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -36,6 +36,7 @@ import java.util.Set;
  */
 public final class Cluster {
     private static final int[] PORTS = {8080, 8081, 8082};
+    private static final int[] RPC_PORTS = {9080, 9081, 9082};
     private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
 
     private Cluster() {
@@ -51,8 +52,8 @@ public final class Cluster {
     public static void main(final String[] args) throws IOException {
         // Fill the topology
         final Set<String> topology = new HashSet<>(3);
-        for (final int port : PORTS) {
-            topology.add("http://localhost:" + port);
+        for (int i = 0; i < PORTS.length; i++) {
+            topology.add("http://localhost:" + PORTS[i] + "?rpc=" + RPC_PORTS[i]);
         }
 
         // Start nodes
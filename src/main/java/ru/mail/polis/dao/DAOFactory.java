@@ -29,6 +29,7 @@ import java.io.IOException;
  */
 public final class DAOFactory {
     static final long MAX_HEAP = 256 * 1024 * 1024;
+    private static final long MEMTABLE_SIZE = 8 * 1024 * 1024;
 
     private DAOFactory() {
         // Not instantiatable
@@ -54,6 +55,6 @@ public final class DAOFactory {
             throw new IllegalArgumentException("Path is not a directory: " + data);
         }
 
-        return new MySuperDAO(1024 * 1024, data);
+        return new MySuperDAO(MEMTABLE_SIZE, data);
     }
 }
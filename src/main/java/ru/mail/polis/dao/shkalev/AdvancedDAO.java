@@ -1,11 +1,54 @@
 package ru.mail.polis.dao.shkalev;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import ru.mail.polis.dao.DAO;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Map;
 
 public interface AdvancedDAO extends DAO {
+    /**
+     * Point lookup of the latest row (possibly a tombstone) by given key.
+     *
+     * @throws java.util.NoSuchElementException if the key was never written
+     */
     Row getRow(@NotNull final ByteBuffer key) throws IOException;
+
+    /**
+     * Inserts or updates value which reads as removed after given time.
+     *
+     * @param key       key of the value
+     * @param value     value
+     * @param ttlMillis time to live of the value in milliseconds
+     */
+    void upsert(@NotNull ByteBuffer key, @NotNull ByteBuffer value, long ttlMillis) throws IOException;
+
+    /**
+     * Applies upserts and removals of a batch in one pass, the batch is durable
+     * after one sync of the commit log.
+     *
+     * @param batch mutations of different keys
+     */
+    void apply(@NotNull Collection<Mutation> batch) throws IOException;
+
+    /**
+     * Removes all keys from {@code from} inclusive to {@code to} exclusive with
+     * a single range tombstone.
+     *
+     * @param from first removed key
+     * @param to   key after the last removed one or null to remove all keys from {@code from}
+     */
+    void removeRange(@NotNull ByteBuffer from, @Nullable ByteBuffer to) throws IOException;
+
+    /**
+     * Current values of the storage metrics: flush queue depth, row cache hits
+     * and misses and bytes of mapped tables.
+     *
+     * @return metric values by their names
+     */
+    @NotNull
+    Map<String, Long> stats();
 }
@@ -0,0 +1,99 @@
+package ru.mail.polis.dao.shkalev;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * LRU cache of uncompressed blocks which tables beyond the {@link MappedBudget}
+ * read from their files. A block is keyed by the id of its table, unique among
+ * opened tables, and its index in the table.
+ *
+ * <p>The cache is split into {@link #SEGMENTS} segments by key, each an LRU of
+ * its share of the bytes with its own lock, so readers of different blocks
+ * rarely contend. A block larger than a segment is not cached.
+ */
+final class BlockCache {
+    static final int SEGMENTS = 16;
+    private static final int ENTRY_OVERHEAD = 64;
+    private static final AtomicInteger TABLE_IDS = new AtomicInteger();
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    private static final class Segment {
+        private final long maxBytes;
+        private final Map<Long, ByteBuffer> blocks = new LinkedHashMap<>(16, 0.75f, true);
+        private long bytes;
+
+        private Segment(final long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        @Nullable
+        private synchronized ByteBuffer get(final long key) {
+            final ByteBuffer block = blocks.get(key);
+            return block == null ? null : block.duplicate();
+        }
+
+        private synchronized void put(final long key, @NotNull final ByteBuffer block) {
+            final int weight = block.remaining() + ENTRY_OVERHEAD;
+            if (weight > maxBytes) {
+                return;
+            }
+            final ByteBuffer previous = blocks.put(key, block.duplicate());
+            if (previous != null) {
+                bytes -= previous.remaining() + ENTRY_OVERHEAD;
+            }
+            bytes += weight;
+            final Iterator<ByteBuffer> eldest = blocks.values().iterator();
+            while (bytes > maxBytes) {
+                bytes -= eldest.next().remaining() + ENTRY_OVERHEAD;
+                eldest.remove();
+            }
+        }
+
+        private synchronized long bytes() {
+            return bytes;
+        }
+    }
+
+    BlockCache(final long maxBytes) {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(maxBytes / SEGMENTS);
+        }
+    }
+
+    static int newTableId() {
+        return TABLE_IDS.getAndIncrement();
+    }
+
+    static long key(final int tableId, final int block) {
+        return (long) tableId << 32 | block;
+    }
+
+    @Nullable
+    ByteBuffer get(final long key) {
+        return segment(key).get(key);
+    }
+
+    void put(final long key, @NotNull final ByteBuffer block) {
+        segment(key).put(key, block);
+    }
+
+    long sizeInBytes() {
+        long bytes = 0;
+        for (final Segment segment : segments) {
+            bytes += segment.bytes();
+        }
+        return bytes;
+    }
+
+    private Segment segment(final long key) {
+        final long hash = key * 0x9E3779B97F4A7C15L;
+        return segments[(int) (hash >>> 32) & (SEGMENTS - 1)];
+    }
+}
@@ -0,0 +1,54 @@
+package ru.mail.polis.dao.shkalev;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Compression codec of data blocks. Codec id is stored in the file footer.
+ */
+public interface BlockCodec {
+    int NONE = 0;
+    int DEFLATE = 1;
+
+    int id();
+
+    /**
+     * Compresses block.
+     *
+     * @param block block to compress
+     * @return compressed block or the block itself if it can't be compressed
+     */
+    @NotNull
+    ByteBuffer compress(@NotNull ByteBuffer block);
+
+    /**
+     * Restores block compressed by {@link #compress(ByteBuffer)}.
+     *
+     * @param block     compressed block
+     * @param rawLength length of the uncompressed block
+     * @return uncompressed block
+     * @throws IOException if the block is corrupted
+     */
+    @NotNull
+    ByteBuffer decompress(@NotNull ByteBuffer block, int rawLength) throws IOException;
+
+    /**
+     * Gets codec by id from the file footer.
+     *
+     * @param id codec id
+     * @return codec
+     * @throws IOException if codec is unknown
+     */
+    static BlockCodec of(final int id) throws IOException {
+        switch (id) {
+            case NONE:
+                return IdentityCodec.INSTANCE;
+            case DEFLATE:
+                return DeflateCodec.INSTANCE;
+            default:
+                throw new IOException("Unknown block codec " + id);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package ru.mail.polis.dao.shkalev;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads rows of one uncompressed data block.
+ *
+ * <p>A row is a flags byte, varint length of the prefix shared with the previous
+ * key and varint length of the rest of the key, the rest of the key, varint value
+ * length and value unless the row is dead, and zigzag varint difference between
+ * the timestamp and the base timestamp of the file. A row with {@link #FLAG_EXPIRING}
+ * ends with zigzag varint difference between its expiration time and timestamp.
+ *
+ * <p>Every {@link FileTableWriter#RESTART_INTERVAL}-th row is a restart point
+ * storing the whole key, and the block ends with offsets of the restart points
+ * and their count, so a search can jump to the right restart point and decode
+ * a few rows from there.
+ */
+final class BlockReader {
+    static final int FLAG_DEAD = 1;
+    static final int FLAG_EXPIRING = 2;
+    private final ByteBuffer rows;
+    private final ByteBuffer restarts;
+    private final int fileIndex;
+    private final long baseTime;
+    private ByteBuffer lastKey = MySuperDAO.LEAST_KEY;
+
+    BlockReader(@NotNull final ByteBuffer block,
+                final int fileIndex,
+                final long baseTime) {
+        this.fileIndex = fileIndex;
+        this.baseTime = baseTime;
+        final int restartCount = block.getInt(block.limit() - Integer.BYTES);
+        final int restartsOffset = block.limit() - Integer.BYTES * (restartCount + 1);
+        this.restarts = block.duplicate()
+                .position(restartsOffset)
+                .limit(block.limit() - Integer.BYTES)
+                .slice();
+        this.rows = block.duplicate()
+                .limit(restartsOffset)
+                .slice();
+    }
+
+    boolean hasNext() {
+        return rows.hasRemaining();
+    }
+
+    /**
+     * Jumps to the last restart point with key less than given one, so that
+     * the first row not less than the key is reached by reading rows from there.
+     */
+    void seek(@NotNull final ByteBuffer key) {
+        int left = 0;
+        int right = restarts.limit() / Integer.BYTES - 1;
+        int found = 0;
+        while (left <= right) {
+            final int middle = left + (right - left) / 2;
+            if (restartKey(middle).compareTo(key) < 0) {
+                found = middle;
+                left = middle + 1;
+            } else {
+                right = middle - 1;
+            }
+        }
+        if (found > 0) {
+            rows.position(restarts.getInt(found * Integer.BYTES));
+            lastKey = MySuperDAO.LEAST_KEY;
+        }
+    }
+
+    Row next() {
+        final int flags = rows.get();
+        final int shared = Varints.getInt(rows);
+        final ByteBuffer key = key(shared, Varints.getInt(rows));
+        final boolean dead = (flags & FLAG_DEAD) != 0;
+        final ByteBuffer value = dead ? MySuperDAO.TOMBSTONE : slice(rows, Varints.getInt(rows));
+        final long time = baseTime + Varints.unzigzag(Varints.getLong(rows));
+        if (dead) {
+            return Row.of(fileIndex, key, value, MySuperDAO.DEAD, time);
+        }
+        final long expiresAt = (flags & FLAG_EXPIRING) == 0
+                ? Row.NEVER
+                : time + Varints.unzigzag(Varints.getLong(rows));
+        return Row.expiring(fileIndex, key, value, time, expiresAt);
+    }
+
+    private ByteBuffer key(final int shared, final int unshared) {
+        final ByteBuffer key;
+        if (shared == 0) {
+            key = slice(rows, unshared);
+        } else {
+            final byte[] bytes = new byte[shared + unshared];
+            lastKey.duplicate().get(bytes, 0, shared);
+            rows.get(bytes, shared, unshared);
+            key = ByteBuffer.wrap(bytes);
+        }
+        lastKey = key;
+        return key;
+    }
+
+    private ByteBuffer restartKey(final int restart) {
+        final ByteBuffer row = rows.duplicate().position(restarts.getInt(restart * Integer.BYTES));
+        row.get();
+        Varints.getInt(row);
+        return slice(row, Varints.getInt(row));
+    }
+
+    private static ByteBuffer slice(@NotNull final ByteBuffer buffer, final int size) {
+        final int position = buffer.position();
+        final ByteBuffer result = buffer.duplicate()
+                .limit(position + size)
+                .slice();
+        buffer.position(position + size);
+        return result;
+    }
+}
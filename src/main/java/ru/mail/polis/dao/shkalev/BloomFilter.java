@@ -0,0 +1,102 @@
+package ru.mail.polis.dao.shkalev;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+
+final class BloomFilter {
+    static final int MAGIC = 0xB10F11E5;
+    private static final int BITS_PER_KEY = 10;
+    private static final int HASH_COUNT = 7;
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+    private final LongBuffer bits;
+    private final long bitSize;
+    private final int hashCount;
+
+    private BloomFilter(@NotNull final LongBuffer bits, final int hashCount) {
+        this.bits = bits;
+        this.bitSize = (long) bits.limit() * Long.SIZE;
+        this.hashCount = hashCount;
+    }
+
+    /**
+     * Creates a filter sized for the given key hashes.
+     *
+     * @param keyHashes hashes of all keys of the table, see {@link #hash(ByteBuffer)}
+     * @param count     number of hashes used from the array
+     * @return filter containing every given key
+     */
+    static BloomFilter of(@NotNull final long[] keyHashes, final int count) {
+        final long bitCount = Math.max(Long.SIZE, (long) count * BITS_PER_KEY);
+        final int words = (int) ((bitCount + Long.SIZE - 1) / Long.SIZE);
+        final BloomFilter filter = new BloomFilter(LongBuffer.allocate(words), HASH_COUNT);
+        for (int i = 0; i < count; i++) {
+            filter.put(keyHashes[i]);
+        }
+        return filter;
+    }
+
+    /**
+     * Wraps serialized filter words without copying them.
+     *
+     * @param words     filter words, e.g. a slice of the mapped file
+     * @param hashCount number of hash functions the filter was built with
+     * @return filter over given words
+     */
+    static BloomFilter read(@NotNull final ByteBuffer words, final int hashCount) {
+        return new BloomFilter(words.asLongBuffer(), hashCount);
+    }
+
+    static long hash(@NotNull final ByteBuffer key) {
+        return HASH_FUNCTION.hashBytes(key.duplicate()).asLong();
+    }
+
+    boolean mightContain(@NotNull final ByteBuffer key) {
+        final long keyHash = hash(key);
+        final int hash1 = (int) keyHash;
+        final int hash2 = (int) (keyHash >>> 32);
+        for (int i = 1; i <= hashCount; i++) {
+            final long bit = bitIndex(hash1 + i * hash2);
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Serializes filter words.
+     *
+     * @return buffer with filter words ready to be written
+     */
+    ByteBuffer toByteBuffer() {
+        final ByteBuffer buffer = ByteBuffer.allocate(bits.limit() * Long.BYTES);
+        buffer.asLongBuffer().put(bits.duplicate().rewind());
+        return buffer;
+    }
+
+    int words() {
+        return bits.limit();
+    }
+
+    int hashCount() {
+        return hashCount;
+    }
+
+    private void put(final long keyHash) {
+        final int hash1 = (int) keyHash;
+        final int hash2 = (int) (keyHash >>> 32);
+        for (int i = 1; i <= hashCount; i++) {
+            final long bit = bitIndex(hash1 + i * hash2);
+            final int word = (int) (bit >>> 6);
+            bits.put(word, bits.get(word) | (1L << bit));
+        }
+    }
+
+    private long bitIndex(final int combinedHash) {
+        return (combinedHash & Integer.MAX_VALUE) % bitSize;
+    }
+}
@@ -0,0 +1,12 @@
+package ru.mail.polis.dao.shkalev;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * Iterator holding resources of the storage until it is exhausted or closed.
+ */
+public interface CloseableIterator<T> extends Iterator<T>, Closeable {
+    @Override
+    void close();
+}
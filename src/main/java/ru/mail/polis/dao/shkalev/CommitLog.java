@@ -0,0 +1,433 @@
+package ru.mail.polis.dao.shkalev;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log of the memory tables. The log is split into segments, a new
+ * segment is started every time a memory table is sent to flush, and segments
+ * are deleted once all the memory tables written to them are on disk.
+ */
+public class CommitLog implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(CommitLog.class);
+    static final String PREFIX = "CL";
+    static final String SUFFIX = ".log";
+    private static final int HEADER_SIZE = Integer.BYTES * 2;
+    private static final int RANGE = 2;
+    private static final int EXPIRING = 3;
+    private static final int UNBOUNDED = -1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long PERIOD_MILLIS = 1000;
+    private final File rootDir;
+    private final FsyncPolicy policy;
+    private final Object lock = new Object();
+    private final Object io = new Object();
+    private final Syncer syncer;
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer pending = ByteBuffer.allocate(BUFFER_SIZE);
+    private ByteBuffer spare = ByteBuffer.allocate(BUFFER_SIZE);
+    private long appended;
+    private long synced;
+    private boolean closed;
+    private IOException failure;
+    private long segment;
+    private FileChannel channel;
+
+    /**
+     * When appended rows are forced to disk.
+     */
+    public enum FsyncPolicy {
+        /**
+         * Every write waits for its own fsync.
+         */
+        ALWAYS,
+        /**
+         * Writes wait for fsync, but writes arrived during the previous fsync share the next one.
+         */
+        BATCH,
+        /**
+         * Writes don't wait, the log is forced in the background every second.
+         */
+        PERIODIC
+    }
+
+    /**
+     * Starts a new log segment.
+     *
+     * @param rootDir the folder of the storage
+     * @param segment id of the first segment, greater than ids of all existing segments
+     * @param policy  fsync policy
+     * @throws IOException if the segment can't be created
+     */
+    CommitLog(@NotNull final File rootDir,
+              final long segment,
+              @NotNull final FsyncPolicy policy) throws IOException {
+        this.rootDir = rootDir;
+        this.policy = policy;
+        this.segment = segment;
+        this.channel = openSegment(segment);
+        if (policy == FsyncPolicy.ALWAYS) {
+            this.syncer = null;
+        } else {
+            this.syncer = new Syncer();
+            this.syncer.start();
+        }
+    }
+
+    class Syncer extends Thread {
+
+        Syncer() {
+            super("CommitLog-Sync");
+        }
+
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
+                try {
+                    synchronized (lock) {
+                        if (policy == FsyncPolicy.PERIODIC) {
+                            lock.wait(PERIOD_MILLIS);
+                        } else {
+                            while (!closed && pending.position() == 0) {
+                                lock.wait();
+                            }
+                        }
+                        if (closed) {
+                            return;
+                        }
+                    }
+                    sync();
+                } catch (InterruptedException e) {
+                    log.error("InterruptedException during commit log sync", e);
+                    interrupt();
+                } catch (IOException e) {
+                    log.error("IOException during commit log sync", e);
+                    synchronized (lock) {
+                        failure = e;
+                        lock.notifyAll();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Appends row to the log. Row is durable after {@link #sync(long)} with the returned position.
+     * Expiring rows are written with {@link #EXPIRING} status and the expiration time after the timestamp.
+     *
+     * @param row row to append
+     * @return position of the row in the log
+     */
+    long append(@NotNull final Row row) {
+        final int status;
+        if (row.isDead()) {
+            status = MySuperDAO.DEAD;
+        } else {
+            status = row.isExpiring() ? EXPIRING : MySuperDAO.ALIVE;
+        }
+        return append(row.getKey(), status, row.getValue(), row.getTime(), row.getExpiresAt());
+    }
+
+    /**
+     * Appends range tombstone to the log. It is written as a row with {@link #RANGE} status,
+     * the first key as the key and the end of the range as the value, absent for an unbounded range.
+     *
+     * @param tombstone range tombstone to append
+     * @return position of the tombstone in the log
+     */
+    long append(@NotNull final RangeTombstone tombstone) {
+        return append(tombstone.getFrom(), RANGE, tombstone.getTo(), tombstone.getTime(), Row.NEVER);
+    }
+
+    private long append(@NotNull final ByteBuffer key,
+                        final int status,
+                        @Nullable final ByteBuffer value,
+                        final long time,
+                        final long expiresAt) {
+        final int size = Integer.BYTES + key.remaining()
+                + Integer.BYTES
+                + Integer.BYTES + (value == null ? 0 : value.remaining())
+                + Long.BYTES
+                + (status == EXPIRING ? Long.BYTES : 0);
+        synchronized (lock) {
+            if (closed) {
+                throw new IllegalStateException("Already stopped");
+            }
+            if (pending.remaining() < HEADER_SIZE + size) {
+                final ByteBuffer grown = ByteBuffer.allocate(Math.max(pending.capacity() * 2,
+                        pending.position() + HEADER_SIZE + size));
+                pending = grown.put(pending.flip());
+            }
+            final int start = pending.position() + HEADER_SIZE;
+            pending.position(start);
+            pending.putInt(key.remaining()).put(key.duplicate())
+                    .putInt(status);
+            if (value == null) {
+                pending.putInt(UNBOUNDED);
+            } else {
+                pending.putInt(value.remaining()).put(value.duplicate());
+            }
+            pending.putLong(time);
+            if (status == EXPIRING) {
+                pending.putLong(expiresAt);
+            }
+            crc.reset();
+            crc.update(pending.duplicate().position(start).limit(start + size));
+            pending.putInt(start - HEADER_SIZE, size);
+            pending.putInt(start - Integer.BYTES, (int) crc.getValue());
+            appended++;
+            if (policy == FsyncPolicy.BATCH || pending.position() >= BUFFER_SIZE) {
+                lock.notifyAll();
+            }
+            return appended;
+        }
+    }
+
+    /**
+     * Waits until the row appended at given position is durable according to the policy.
+     *
+     * @param position position returned by {@link #append(Row)}
+     * @throws IOException if the log can't be forced
+     */
+    void sync(final long position) throws IOException {
+        switch (policy) {
+            case ALWAYS:
+                synchronized (io) {
+                    if (synced() < position) {
+                        drain();
+                    }
+                }
+                break;
+            case BATCH:
+                synchronized (lock) {
+                    while (synced < position) {
+                        if (failure != null) {
+                            throw new IOException("Commit log sync failed", failure);
+                        }
+                        try {
+                            lock.wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException("Interrupted during commit log sync");
+                        }
+                    }
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Closes current segment and starts the next one. Must not run concurrently with appends.
+     *
+     * @return id of the closed segment
+     * @throws IOException if the segment can't be forced or the next one can't be created
+     */
+    long roll() throws IOException {
+        synchronized (io) {
+            drain();
+            channel.close();
+            final long rolled = segment;
+            segment++;
+            channel = openSegment(segment);
+            return rolled;
+        }
+    }
+
+    /**
+     * Deletes segments which rows are all flushed.
+     *
+     * @param flushed id of the last segment which rows are flushed
+     */
+    void release(final long flushed) {
+        final File[] files = rootDir.listFiles((dir, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+        if (files == null) {
+            return;
+        }
+        final long current;
+        synchronized (io) {
+            current = channel.isOpen() ? segment : Long.MAX_VALUE;
+        }
+        for (final File file : files) {
+            final long id = segmentOf(file);
+            if (id <= flushed && id < current) {
+                try {
+                    Files.delete(file.toPath());
+                } catch (IOException e) {
+                    log.error("IOException during deletion of commit log segment " + id, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes the log forcing all appended rows.
+     *
+     * @return id of the last segment
+     * @throws IOException if the log can't be forced
+     */
+    long closeLog() throws IOException {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        if (syncer != null) {
+            try {
+                syncer.join();
+            } catch (InterruptedException e) {
+                log.error("InterruptedException during commit log close", e);
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (io) {
+            if (channel.isOpen()) {
+                drain();
+                channel.close();
+            }
+            return segment;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeLog();
+    }
+
+    /**
+     * Reads rows and range tombstones of all segments in the order they were
+     * appended. A torn row at the end of a segment is skipped.
+     *
+     * @param rootDir the folder of the storage
+     * @param index   index of the replayed rows
+     * @param rows    consumer of the rows
+     * @param ranges  consumer of the range tombstones
+     * @return id of the last segment or -1 if there are no segments
+     * @throws IOException if a segment can't be read
+     */
+    static long replay(@NotNull final File rootDir,
+                       final int index,
+                       @NotNull final Consumer<Row> rows,
+                       @NotNull final Consumer<RangeTombstone> ranges) throws IOException {
+        final File[] files = rootDir.listFiles((dir, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+        if (files == null || files.length == 0) {
+            return -1;
+        }
+        Arrays.sort(files, (a, b) -> Long.compare(segmentOf(a), segmentOf(b)));
+        final CRC32 checksum = new CRC32();
+        for (final File file : files) {
+            final ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+            while (data.remaining() >= HEADER_SIZE) {
+                final int size = data.getInt();
+                final int expected = data.getInt();
+                if (size < 0 || data.remaining() < size) {
+                    log.warn("Truncated row in commit log segment " + file);
+                    break;
+                }
+                final ByteBuffer payload = data.duplicate().limit(data.position() + size).slice();
+                data.position(data.position() + size);
+                checksum.reset();
+                checksum.update(payload.duplicate());
+                if ((int) checksum.getValue() != expected) {
+                    log.warn("Corrupted row in commit log segment " + file);
+                    break;
+                }
+                if (payload.getInt(Integer.BYTES + payload.getInt(0)) == RANGE) {
+                    ranges.accept(readRange(payload));
+                } else {
+                    rows.accept(readRow(payload, index));
+                }
+            }
+        }
+        return segmentOf(files[files.length - 1]);
+    }
+
+    private static Row readRow(@NotNull final ByteBuffer payload, final int index) {
+        final ByteBuffer key = slice(payload, payload.getInt());
+        final int status = payload.getInt();
+        final ByteBuffer value = slice(payload, payload.getInt());
+        final long time = payload.getLong();
+        if (status == EXPIRING) {
+            return Row.expiring(index, key, value, time, payload.getLong());
+        }
+        return Row.of(index, key, status == MySuperDAO.DEAD ? MySuperDAO.TOMBSTONE : value, status, time);
+    }
+
+    private static RangeTombstone readRange(@NotNull final ByteBuffer payload) {
+        final ByteBuffer from = slice(payload, payload.getInt());
+        payload.getInt();
+        final int toSize = payload.getInt();
+        final ByteBuffer to = toSize == UNBOUNDED ? null : slice(payload, toSize);
+        return RangeTombstone.of(from, to, payload.getLong());
+    }
+
+    private static ByteBuffer slice(@NotNull final ByteBuffer buffer, final int size) {
+        final ByteBuffer result = buffer.duplicate().limit(buffer.position() + size).slice();
+        buffer.position(buffer.position() + size);
+        return result;
+    }
+
+    private static long segmentOf(@NotNull final File file) {
+        final String name = file.getName();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    private long synced() {
+        synchronized (lock) {
+            return synced;
+        }
+    }
+
+    private FileChannel openSegment(final long id) throws IOException {
+        return FileChannel.open(new File(rootDir, PREFIX + id + SUFFIX).toPath(),
+                StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE);
+    }
+
+    private void sync() throws IOException {
+        synchronized (io) {
+            drain();
+        }
+    }
+
+    /**
+     * Writes and forces pending rows. Caller must hold io monitor.
+     */
+    private void drain() throws IOException {
+        final ByteBuffer batch;
+        final long position;
+        synchronized (lock) {
+            if (pending.position() == 0) {
+                return;
+            }
+            batch = pending;
+            pending = spare;
+            position = appended;
+        }
+        batch.flip();
+        while (batch.hasRemaining()) {
+            channel.write(batch);
+        }
+        channel.force(false);
+        batch.clear();
+        synchronized (lock) {
+            spare = batch;
+            synced = position;
+            lock.notifyAll();
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package ru.mail.polis.dao.shkalev;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.NavigableMap;
+
+public interface CompactionStrategy {
+    /**
+     * Selects tables to merge. Selected generations must be adjacent, so that
+     * the merged table can take the place of the newest of them.
+     *
+     * @param tables file tables by generation
+     * @return generations to compact or empty list if nothing to do
+     */
+    @NotNull
+    List<Integer> select(@NotNull NavigableMap<Integer, Table> tables);
+}
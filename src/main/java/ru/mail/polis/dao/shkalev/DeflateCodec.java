@@ -0,0 +1,64 @@
+package ru.mail.polis.dao.shkalev;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate with the fastest level, JDK only.
+ */
+final class DeflateCodec implements BlockCodec {
+    static final BlockCodec INSTANCE = new DeflateCodec();
+    private final ThreadLocal<Deflater> deflaters =
+            ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+
+    private DeflateCodec() {
+        // Use INSTANCE
+    }
+
+    @Override
+    public int id() {
+        return DEFLATE;
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer compress(@NotNull final ByteBuffer block) {
+        final Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(block.duplicate());
+        deflater.finish();
+        final ByteBuffer compressed = ByteBuffer.allocate(block.remaining());
+        while (!deflater.finished()) {
+            if (!compressed.hasRemaining()) {
+                return block;
+            }
+            deflater.deflate(compressed);
+        }
+        return compressed.flip();
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer decompress(@NotNull final ByteBuffer block, final int rawLength) throws IOException {
+        final Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(block.duplicate());
+        final ByteBuffer raw = ByteBuffer.allocate(rawLength);
+        try {
+            while (!inflater.finished() && raw.hasRemaining()) {
+                if (inflater.inflate(raw) == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated deflate block");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted deflate block", e);
+        }
+        return raw.flip();
+    }
+}
@@ -2,52 +2,218 @@ package ru.mail.polis.dao.shkalev;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Table over a block file. Rows are grouped into data blocks of about
+ * {@link FileTableWriter#BLOCK_SIZE} bytes and the index of first keys of the
+ * blocks is searched in place, so a lookup costs one index search plus one block
+ * scan without copying the keys, which may be large, to the heap.
+ *
+ * <p>Offsets of blocks are 64-bit. A mapped file is mapped in segments of at
+ * most {@link #MAX_SEGMENT} bytes which never split a block, so files over
+ * 2 GB are supported as long as their index and bloom filter fit in 2 GB.
+ * A block larger than a segment, possible only with the smaller segments of
+ * tests, gets a segment of its own.
+ */
 class FileTable implements Table {
+    static final int MAGIC = 0x55AB1E00;
+    static final int VERSION = 7;
+    static final int FOOTER_SIZE = Integer.BYTES * 8 + Long.BYTES * 2;
+    static final int UNBOUNDED = -1;
+    static final long MAX_SEGMENT = Integer.MAX_VALUE;
     private static final Logger log = LoggerFactory.getLogger(FileTable.class);
-    private final int count;
     private final int fileIndex;
-    private final ByteBuffer rows;
-    private final IntBuffer offsets;
+    private final int count;
+    private final long size;
+    private final long reserved;
+    private final List<MappedByteBuffer> mappings = new ArrayList<>();
+    private final MappedByteBuffer[] segments;
+    private final long[] segmentOffsets;
+    private final long maxSegment;
+    private final FileChannel channel;
+    private final ByteBuffer[] blockKeys;
+    private final long[] blockOffsets;
+    private final int[] blockLengths;
+    private final int[] rawLengths;
+    private final BlockCodec codec;
+    private final long baseTime;
+    private final RangeTombstones ranges;
+    private final BloomFilter bloomFilter;
     private final File file;
+    private final MappedBudget budget;
+    private final BlockCache cache;
+    private final int tableId = BlockCache.newTableId();
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /**
+     * Creates table over the file, demoting least recently used tables if it does not fit
+     * into the budget, see {@link #FileTable(File, int, MappedBudget, BlockCache, boolean)}.
+     */
+    FileTable(@NotNull final File file,
+              final int generation,
+              @NotNull final MappedBudget budget,
+              @NotNull final BlockCache cache) throws IOException {
+        this(file, generation, budget, cache, true);
+    }
 
     /**
-     * Creates an object that is a file on disk, with the ability to create an iterator on this file.
+     * Creates an object that is a block file on disk, with the ability to create an iterator on this file.
+     * The file is mapped if it fits into the budget, otherwise blocks are read from the file channel
+     * and kept in the block cache.
      *
-     * @param file file for which you need to get a table
+     * @param file       file for which you need to get a table
+     * @param generation generation of the table, the index of its rows
+     * @param budget     budget of mapped bytes
+     * @param cache      cache of blocks of tables beyond the budget
+     * @param evict      whether least recently used tables are demoted to make room for the file
      * @throws IOException if an I/O error is thrown by a read method
      */
-    FileTable(@NotNull final File file) throws IOException {
+    FileTable(@NotNull final File file,
+              final int generation,
+              @NotNull final MappedBudget budget,
+              @NotNull final BlockCache cache,
+              final boolean evict) throws IOException {
+        this(file, generation, budget, cache, evict, MAX_SEGMENT);
+    }
+
+    /**
+     * Creates table over the file mapped in segments of given size, which lets tests
+     * cover files of many segments without writing gigabytes.
+     */
+    FileTable(@NotNull final File file,
+              final int generation,
+              @NotNull final MappedBudget budget,
+              @NotNull final BlockCache cache,
+              final boolean evict,
+              final long maxSegment) throws IOException {
         this.file = file;
-        this.fileIndex = Integer.parseInt(file
-                .getName()
-                .substring(MySuperDAO.PREFIX.length(), file.getName().length() - MySuperDAO.SUFFIX.length()));
+        this.maxSegment = maxSegment;
+        this.fileIndex = generation;
+        this.budget = budget;
+        this.cache = cache;
+        final FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        boolean opened = false;
+        boolean keepChannel = false;
+        try {
+            this.size = fc.size();
+            final int version = read(fc, size - Integer.BYTES * 2, Integer.BYTES).getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported file version " + version + " in " + file);
+            }
+            final ByteBuffer footer = read(fc, size - FOOTER_SIZE, FOOTER_SIZE);
+            final long indexOffset = footer.getLong();
+            final int blockCount = footer.getInt();
+            this.count = footer.getInt();
+            final int hashCount = footer.getInt();
+            final int words = footer.getInt();
+            this.codec = BlockCodec.of(footer.getInt());
+            this.baseTime = footer.getLong();
+            final int rangeCount = footer.getInt();
+
+            this.reserved = (evict ? budget.reserve(size) : budget.tryReserve(size)) ? size : 0;
+            keepChannel = reserved == 0;
+            this.channel = keepChannel ? fc : null;
+            final long metaSize = size - FOOTER_SIZE - indexOffset;
+            if (metaSize > MAX_SEGMENT) {
+                throw new IOException("Index and bloom filter of " + file + " exceed 2 GB");
+            }
+            final ByteBuffer meta = keepChannel
+                    ? read(fc, indexOffset, (int) metaSize)
+                    : map(fc, indexOffset, metaSize);
+            final int bloomOffset = meta.limit() - Long.BYTES * words;
+            this.bloomFilter = BloomFilter.read(meta.duplicate()
+                    .position(bloomOffset)
+                    .slice(), hashCount);
+
+            this.blockKeys = new ByteBuffer[blockCount];
+            this.blockOffsets = new long[blockCount];
+            this.blockLengths = new int[blockCount];
+            this.rawLengths = new int[blockCount];
+            final ByteBuffer index = meta.duplicate().limit(bloomOffset);
+            for (int i = 0; i < blockCount; i++) {
+                final int keyLength = index.getInt();
+                blockKeys[i] = index.slice().limit(keyLength);
+                index.position(index.position() + keyLength);
+                blockOffsets[i] = index.getLong();
+                blockLengths[i] = index.getInt();
+                rawLengths[i] = index.getInt();
+            }
+            this.ranges = readRanges(index, rangeCount);
+            this.segmentOffsets = keepChannel ? null : segmentOffsets();
+            this.segments = keepChannel ? null : mapSegments(fc, indexOffset);
+            opened = true;
+        } finally {
+            if (!opened) {
+                close();
+            }
+            if (!opened || !keepChannel) {
+                fc.close();
+            }
+        }
+    }
+
+    /**
+     * Opens a file table demoting least recently used tables if it does not fit into
+     * the budget, see {@link #open(File, int, MappedBudget, BlockCache, boolean)}.
+     */
+    static Table open(@NotNull final File file,
+                      final int generation,
+                      @NotNull final MappedBudget budget,
+                      @NotNull final BlockCache cache) throws IOException {
+        return open(file, generation, budget, cache, true);
+    }
+
+    /**
+     * Opens a file table of the block format or of the format before it.
+     *
+     * @param file       file for which you need to get a table
+     * @param generation generation of the table, the index of its rows
+     * @param budget     budget of mapped bytes
+     * @param cache      cache of blocks of tables beyond the budget
+     * @param evict      whether least recently used tables are demoted to make room for the file
+     * @return table over the file
+     * @throws IOException if an I/O error is thrown by a read method
+     */
+    static Table open(@NotNull final File file,
+                      final int generation,
+                      @NotNull final MappedBudget budget,
+                      @NotNull final BlockCache cache,
+                      final boolean evict) throws IOException {
+        final ByteBuffer magic = ByteBuffer.allocate(Integer.BYTES);
         try (FileChannel fc = FileChannel.open(file.toPath(),
                 StandardOpenOption.READ)) {
-            final var mapped = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size())
-                    .order(ByteOrder.BIG_ENDIAN);
-            this.count = mapped.getInt(mapped.limit() - Integer.BYTES);
-            final var offsetsBuffer = mapped.duplicate()
-                    .position(mapped.limit() - Integer.BYTES - Integer.BYTES * count)
-                    .limit(mapped.limit() - Integer.BYTES);
-            this.offsets = offsetsBuffer.slice().asIntBuffer();
-
-            this.rows = mapped.asReadOnlyBuffer()
-                    .limit(offsetsBuffer.position())
-                    .slice();
+            if (fc.size() >= Integer.BYTES) {
+                fc.read(magic, fc.size() - Integer.BYTES);
+            }
         }
+        if (magic.getInt(0) == MAGIC) {
+            return new FileTable(file, generation, budget, cache, evict);
+        }
+        return new LegacyFileTable(file, generation);
+    }
+
+    static int indexOf(@NotNull final File file) {
+        return Integer.parseInt(file
+                .getName()
+                .substring(MySuperDAO.PREFIX.length(), file.getName().length() - MySuperDAO.SUFFIX.length()));
     }
 
     /**
@@ -55,48 +221,121 @@ class FileTable implements Table {
      *
      * @param from the key from which the iterator will begin
      * @return file iterator
-     * @throws IOException if an I/O error is thrown by a read method
      */
     @Override
     @NotNull
-    public Iterator<Row> iterator(@NotNull final ByteBuffer from) throws IOException {
+    public Iterator<Row> iterator(@NotNull final ByteBuffer from) {
         return new Iterator<>() {
-            int index = getOffsetsIndex(from);
+            int blockIndex = Math.max(blockFor(from), 0);
+            BlockReader block = blockCount() == 0 ? null : reader(blockUnchecked(blockIndex), from);
+            Row next = seek();
+
+            private Row seek() {
+                Row row = advance();
+                while (row != null && row.getKey().compareTo(from) < 0) {
+                    row = advance();
+                }
+                return row;
+            }
+
+            private Row advance() {
+                if (block == null) {
+                    return null;
+                }
+                while (!block.hasNext()) {
+                    if (blockIndex + 1 >= blockCount()) {
+                        return null;
+                    }
+                    block = new BlockReader(blockUnchecked(++blockIndex), fileIndex, baseTime);
+                }
+                return block.next();
+            }
 
             @Override
             public boolean hasNext() {
-                return index < count;
+                return next != null;
             }
 
             @Override
             public Row next() {
-                assert hasNext();
-                Row row = null;
-                try {
-                    row = getRowAt(index++);
-                } catch (IOException e) {
-                    log.error("IOException in fileIndex: " + fileIndex, e);
+                if (!hasNext()) {
+                    throw new NoSuchElementException("Next on exhausted file iterator");
                 }
-                return row;
+                final Row result = next;
+                next = advance();
+                return result;
             }
         };
     }
 
+    @Nullable
+    @Override
+    public Row get(@NotNull final ByteBuffer key) throws IOException {
+        if (!mightContain(key)) {
+            return null;
+        }
+        final int blockIndex = blockFor(key);
+        if (blockIndex < 0) {
+            return null;
+        }
+        final BlockReader block = reader(block(blockIndex), key);
+        while (block.hasNext()) {
+            final Row row = block.next();
+            final int cmp = row.getKey().compareTo(key);
+            if (cmp == 0) {
+                return row;
+            }
+            if (cmp > 0) {
+                break;
+            }
+        }
+        return null;
+    }
+
     @Override
     public void upsert(@NotNull final ByteBuffer key,
                        @NotNull final ByteBuffer value,
-                       @NotNull final AtomicInteger fileIndex) throws IOException {
+                       @NotNull final AtomicInteger fileIndex) {
         throw new UnsupportedOperationException();
     }
 
     @Override
     public void remove(@NotNull final ByteBuffer key,
-                       @NotNull final AtomicInteger fileIndex) throws IOException {
+                       @NotNull final AtomicInteger fileIndex) {
         throw new UnsupportedOperationException();
     }
 
+    @Override
+    public boolean mightContain(@NotNull final ByteBuffer key) {
+        return bloomFilter.mightContain(key);
+    }
+
+    /**
+     * Unmaps the file or closes its channel. Rows read from decoded blocks or
+     * from the channel stay valid, rows read from a mapped block are valid only
+     * if they were detached, and the table must not be read anymore.
+     */
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        for (final MappedByteBuffer mapping : mappings) {
+            Utils.unmap(mapping);
+        }
+        budget.free(reserved);
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.error("IOException during closing of fileIndex: " + fileIndex, e);
+            }
+        }
+    }
+
     @Override
     public void clear() {
+        close();
         try {
             Files.delete(file.toPath());
         } catch (IOException e) {
@@ -104,17 +343,44 @@ class FileTable implements Table {
         }
     }
 
+    @NotNull
+    @Override
+    public RangeTombstones rangeTombstones() {
+        return ranges;
+    }
+
     @Override
     public long sizeInBytes() {
-        return file.length();
+        return size;
     }
 
-    private int getOffsetsIndex(@NotNull final ByteBuffer from) throws IOException {
+    boolean isMapped() {
+        return channel == null;
+    }
+
+    int rowCount() {
+        return count;
+    }
+
+    int segmentCount() {
+        return segments == null ? 0 : segments.length;
+    }
+
+    private int blockCount() {
+        return blockKeys.length;
+    }
+
+    /**
+     * Finds the last block whose first key is not greater than given key.
+     *
+     * @return block index or -1 if the key is less than any key of the table
+     */
+    private int blockFor(@NotNull final ByteBuffer key) {
         int left = 0;
-        int right = count - 1;
+        int right = blockKeys.length - 1;
         while (left <= right) {
             final int middle = left + (right - left) / 2;
-            final int resCmp = from.compareTo(getKeyAt(middle));
+            final int resCmp = key.compareTo(blockKeys[middle]);
             if (resCmp < 0) {
                 right = middle - 1;
             } else if (resCmp > 0) {
@@ -123,40 +389,125 @@ class FileTable implements Table {
                 return middle;
             }
         }
-        return left;
+        return right;
     }
 
-    private ByteBuffer getKeyAt(final int i) throws IOException {
-        assert 0 <= i && i < count;
-        final int offset = offsets.get(i);
-        final int keySize = rows.getInt(offset);
-        return rows.duplicate().position(offset + Integer.BYTES).limit(offset + Integer.BYTES + keySize).slice();
+    /**
+     * Reads block of rows. An uncompressed block of a mapped file is a read-only
+     * slice of the mapping, so rows leaving the storage must be detached from it,
+     * see {@link Row#detached()}. Other blocks are read or decoded on the heap and
+     * kept in the block cache.
+     */
+    private ByteBuffer block(final int i) throws IOException {
+        final boolean compressed = blockLengths[i] != rawLengths[i];
+        if (channel == null && !compressed) {
+            return stored(i).slice().asReadOnlyBuffer();
+        }
+        final long key = BlockCache.key(tableId, i);
+        final ByteBuffer cached = cache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        final ByteBuffer stored = channel == null
+                ? stored(i).slice()
+                : read(channel, blockOffsets[i], blockLengths[i]);
+        final ByteBuffer block = compressed ? codec.decompress(stored, rawLengths[i]) : stored;
+        cache.put(key, block);
+        return block;
+    }
+
+    private ByteBuffer stored(final int i) {
+        final int segment = segmentOffsets.length == 1 ? 0 : segmentOf(blockOffsets[i]);
+        final int offset = (int) (blockOffsets[i] - segmentOffsets[segment]);
+        return segments[segment].duplicate()
+                .position(offset)
+                .limit(offset + blockLengths[i]);
+    }
+
+    /**
+     * Splits data blocks into segments of at most {@link #maxSegment} bytes.
+     *
+     * @return offsets of the segments in the file
+     */
+    private long[] segmentOffsets() {
+        final List<Long> offsets = new ArrayList<>();
+        long start = 0;
+        for (int i = 0; i < blockOffsets.length; i++) {
+            if (blockOffsets[i] + blockLengths[i] - start > maxSegment && blockOffsets[i] > start) {
+                offsets.add(start);
+                start = blockOffsets[i];
+            }
+        }
+        offsets.add(start);
+        return offsets.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    private MappedByteBuffer[] mapSegments(@NotNull final FileChannel fc, final long dataSize) throws IOException {
+        final MappedByteBuffer[] result = new MappedByteBuffer[segmentOffsets.length];
+        for (int i = 0; i < result.length; i++) {
+            final long end = i + 1 < result.length ? segmentOffsets[i + 1] : dataSize;
+            result[i] = map(fc, segmentOffsets[i], end - segmentOffsets[i]);
+        }
+        return result;
+    }
+
+    private int segmentOf(final long offset) {
+        final int found = Arrays.binarySearch(segmentOffsets, offset);
+        return found >= 0 ? found : -found - 2;
     }
 
-    private Row getRowAt(final int i) throws IOException {
-        assert 0 <= i && i < count;
-        int offset = offsets.get(i);
+    private MappedByteBuffer map(@NotNull final FileChannel fc,
+                                 final long position,
+                                 final long length) throws IOException {
+        final MappedByteBuffer mapping = fc.map(FileChannel.MapMode.READ_ONLY, position, length);
+        mappings.add(mapping);
+        return mapping;
+    }
 
-        //Key
-        final ByteBuffer keyBB = getKeyAt(i);
-        offset += Integer.BYTES + keyBB.remaining();
+    private static ByteBuffer read(@NotNull final FileChannel fc,
+                                   final long position,
+                                   final int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (fc.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file at " + (position + buffer.position()));
+            }
+        }
+        return buffer.flip();
+    }
+
+    private ByteBuffer blockUnchecked(final int i) {
+        try {
+            return block(i);
+        } catch (IOException e) {
+            log.error("IOException while reading block " + i + " in fileIndex: " + fileIndex, e);
+            throw new UncheckedIOException(e);
+        }
+    }
 
-        //Status
-        final int status = rows.getInt(offset);
-        offset += Integer.BYTES;
+    private BlockReader reader(@NotNull final ByteBuffer block, @NotNull final ByteBuffer from) {
+        final BlockReader reader = new BlockReader(block, fileIndex, baseTime);
+        reader.seek(from);
+        return reader;
+    }
 
-        ByteBuffer valueBB;
-        if (status == MySuperDAO.DEAD) {
-            valueBB = MySuperDAO.TOMBSTONE;
-        } else {
-            //Value
-            final int valueSize = rows.getInt(offset);
-            valueBB = rows.duplicate().position(offset + Integer.BYTES)
-                    .limit(offset + Integer.BYTES + valueSize)
-                    .slice();
-            offset += valueSize;
+    private static RangeTombstones readRanges(@NotNull final ByteBuffer index, final int count) {
+        if (count == 0) {
+            return RangeTombstones.EMPTY;
         }
-        final long time = rows.getLong(offset);
-        return Row.of(fileIndex, keyBB, valueBB, status, time);
+        final List<RangeTombstone> ranges = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final ByteBuffer from = copy(index, index.getInt());
+            final int toLength = index.getInt();
+            final ByteBuffer to = toLength == UNBOUNDED ? null : copy(index, toLength);
+            ranges.add(RangeTombstone.of(from, to, index.getLong()));
+        }
+        return RangeTombstones.of(ranges);
+    }
+
+    private static ByteBuffer copy(@NotNull final ByteBuffer buffer, final int length) {
+        final byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return ByteBuffer.wrap(bytes);
     }
 }
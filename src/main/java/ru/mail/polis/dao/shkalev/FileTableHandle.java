@@ -0,0 +1,318 @@
+package ru.mail.polis.dao.shkalev;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Live file table of the storage. A table listed in the {@link Manifest} on
+ * start is opened on first access, so the storage starts without mapping its
+ * files, and its size is known from the manifest.
+ *
+ * <p>The handle counts references: one is held by the set of live tables and
+ * one by every reader which pinned the table with {@link #retain()}. Clearing
+ * or closing the table drops the reference of the set, and the file is deleted
+ * or just unmapped when the last reader releases the table.
+ *
+ * <p>A mapped table nobody but the set references may be demoted by the
+ * {@link MappedBudget}: it is unmapped and opened again on the next access with
+ * positional reads. Such a table is mapped again on access once the budget has
+ * room and the accessing reader is the only one. Readers must pin the table
+ * before reading it, so that neither happens under them.
+ */
+final class FileTableHandle implements Table, MappedBudget.Demotable {
+    private static final Logger log = LoggerFactory.getLogger(FileTableHandle.class);
+    private final File file;
+    private final int generation;
+    private final long size;
+    private final AtomicInteger references = new AtomicInteger(1);
+    private final AtomicBoolean dropped = new AtomicBoolean();
+    private final MappedBudget budget;
+    private final BlockCache cache;
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile boolean deleted;
+    private volatile boolean demoted;
+    private volatile boolean promotable;
+    private volatile long lastAccess = System.nanoTime();
+    private volatile Table table;
+
+    /**
+     * Creates handle of a table listed in the manifest.
+     *
+     * @param file       file of the table
+     * @param generation generation of the table, the index of its rows
+     * @param size       size of the file
+     * @param budget     budget of mapped bytes
+     * @param cache      cache of blocks of tables beyond the budget
+     */
+    FileTableHandle(@NotNull final File file,
+                    final int generation,
+                    final long size,
+                    @NotNull final MappedBudget budget,
+                    @NotNull final BlockCache cache) {
+        this.file = file;
+        this.generation = generation;
+        this.size = size;
+        this.budget = budget;
+        this.cache = cache;
+    }
+
+    /**
+     * Creates handle of a table which is just written and opened.
+     *
+     * @param file       file of the table
+     * @param generation generation of the table, the index of its rows
+     * @param table      opened table
+     * @param budget     budget of mapped bytes
+     * @param cache      cache of blocks of tables beyond the budget
+     */
+    FileTableHandle(@NotNull final File file,
+                    final int generation,
+                    @NotNull final Table table,
+                    @NotNull final MappedBudget budget,
+                    @NotNull final BlockCache cache) {
+        this(file, generation, table.sizeInBytes(), budget, cache);
+        opened(table);
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Row> iterator(@NotNull final ByteBuffer from) throws IOException {
+        return table().iterator(from);
+    }
+
+    @Nullable
+    @Override
+    public Row get(@NotNull final ByteBuffer key) throws IOException {
+        return table().get(key);
+    }
+
+    @Override
+    public void upsert(@NotNull final ByteBuffer key,
+                       @NotNull final ByteBuffer value,
+                       @NotNull final AtomicInteger fileIndex) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void remove(@NotNull final ByteBuffer key,
+                       @NotNull final AtomicInteger fileIndex) {
+        throw new UnsupportedOperationException();
+    }
+
+    @NotNull
+    @Override
+    public RangeTombstones rangeTombstones() {
+        try {
+            return table().rangeTombstones();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public boolean mightContain(@NotNull final ByteBuffer key) {
+        try {
+            return table().mightContain(key);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public boolean retain() {
+        int current = references.get();
+        while (current > 0) {
+            if (references.compareAndSet(current, current + 1)) {
+                return true;
+            }
+            current = references.get();
+        }
+        return false;
+    }
+
+    @Override
+    public void release() {
+        if (references.decrementAndGet() == 0) {
+            if (deleted) {
+                delete();
+            } else {
+                closeTable();
+            }
+        }
+    }
+
+    /**
+     * Closes the table keeping its file. The file is unmapped now or, if the
+     * table is pinned by readers, when the last of them releases it.
+     */
+    @Override
+    public void close() {
+        if (dropped.compareAndSet(false, true)) {
+            release();
+        }
+    }
+
+    /**
+     * Removes the table from the storage. The file is deleted now or, if the
+     * table is pinned by readers, when the last of them releases it.
+     */
+    @Override
+    public void clear() {
+        deleted = true;
+        close();
+    }
+
+    @Override
+    public long sizeInBytes() {
+        return size;
+    }
+
+    boolean isMapped() {
+        final Table opened = table;
+        return opened instanceof FileTable && ((FileTable) opened).isMapped();
+    }
+
+    @Override
+    public long lastAccess() {
+        return lastAccess;
+    }
+
+    /**
+     * Unmaps the table if only the set of live tables references it. The table is
+     * hidden before the references are counted, so a reader pinning it meanwhile
+     * waits for the lock and opens the table again.
+     */
+    @Override
+    public boolean demote() {
+        if (!lock.tryLock()) {
+            return false;
+        }
+        try {
+            final Table current = table;
+            if (current == null || promotable) {
+                return false;
+            }
+            table = null;
+            if (references.get() != 1 || dropped.get()) {
+                table = current;
+                return false;
+            }
+            budget.unregister(this);
+            demoted = true;
+            closeQuietly(current);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void delete() {
+        lock.lock();
+        try {
+            budget.unregister(this);
+            final Table opened = table;
+            if (opened != null) {
+                opened.clear();
+                return;
+            }
+            try {
+                Files.delete(file.toPath());
+            } catch (IOException e) {
+                log.error("IOException during deletion of " + file, e);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void closeTable() {
+        lock.lock();
+        try {
+            budget.unregister(this);
+            final Table opened = table;
+            if (opened != null) {
+                closeQuietly(opened);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void closeQuietly(@NotNull final Table opened) {
+        try {
+            opened.close();
+        } catch (IOException e) {
+            log.error("IOException during closing of " + file, e);
+        }
+    }
+
+    private Table table() throws IOException {
+        lastAccess = System.nanoTime();
+        final Table opened = table;
+        if (opened == null) {
+            lock.lock();
+            try {
+                final Table current = table;
+                if (current != null) {
+                    return current;
+                }
+                // A demoted table doesn't take the mapping of others back
+                return opened(FileTable.open(file, generation, budget, cache, !demoted));
+            } finally {
+                lock.unlock();
+            }
+        }
+        if (promotable && budget.fits(size) && lock.tryLock()) {
+            try {
+                return promote();
+            } finally {
+                lock.unlock();
+            }
+        }
+        return opened;
+    }
+
+    /**
+     * Maps the table read with positional reads if the caller, which pinned the
+     * table, is its only reader.
+     */
+    private Table promote() throws IOException {
+        final Table current = table;
+        if (current == null) {
+            return opened(FileTable.open(file, generation, budget, cache, false));
+        }
+        if (!promotable) {
+            return current;
+        }
+        table = null;
+        if (references.get() != 2 || dropped.get()) {
+            table = current;
+            return current;
+        }
+        closeQuietly(current);
+        return opened(FileTable.open(file, generation, budget, cache, false));
+    }
+
+    private Table opened(@NotNull final Table opened) {
+        final boolean blocks = opened instanceof FileTable;
+        final boolean mapped = blocks && ((FileTable) opened).isMapped();
+        promotable = blocks && !mapped;
+        table = opened;
+        if (mapped) {
+            budget.register(this);
+        }
+        return opened;
+    }
+}
@@ -0,0 +1,282 @@
+package ru.mail.polis.dao.shkalev;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Writes rows in the block format read by {@link FileTable}. Blocks, index and
+ * footer are collected in a reusable direct buffer which goes to the channel in
+ * {@link #OUTPUT_SIZE} chunks.
+ */
+final class FileTableWriter {
+    static final int BLOCK_SIZE = 4 * 1024;
+    static final int RESTART_INTERVAL = 16;
+    private static final int OUTPUT_SIZE = 1024 * 1024;
+    private static final int INITIAL_CAPACITY = 256;
+    private static final ThreadLocal<ByteBuffer> OUTPUT =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(OUTPUT_SIZE));
+    private final FileChannel fc;
+    private final BlockCodec codec;
+    private final ByteBuffer out;
+    private final List<ByteBuffer> blockKeys = new ArrayList<>();
+    private long[] blockOffsets = new long[INITIAL_CAPACITY];
+    private int[] blockLengths = new int[INITIAL_CAPACITY];
+    private int[] rawLengths = new int[INITIAL_CAPACITY];
+    private long[] keyHashes = new long[INITIAL_CAPACITY];
+    private int rowCount;
+    private int[] restarts = new int[BLOCK_SIZE / RESTART_INTERVAL];
+    private int blockRows;
+    private ByteBuffer lastKey = MySuperDAO.LEAST_KEY;
+    private long baseTime;
+    private ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE * 2);
+    private long offset;
+
+    private FileTableWriter(@NotNull final FileChannel fc,
+                            @NotNull final BlockCodec codec) {
+        this.fc = fc;
+        this.codec = codec;
+        this.out = OUTPUT.get().clear();
+    }
+
+    /**
+     * Writes data to file. First writes data blocks, each of them is a sequence of rows:
+     * flags (dead or not), length of the prefix shared with the previous key, length of
+     * the rest of the key, the rest of the key, value length and value of alive rows,
+     * difference between the timestamp and the timestamp of the first row, all lengths
+     * and the difference are varints, difference between the expiration time and the
+     * timestamp of expiring rows, followed by offsets of restart points and their
+     * count, see {@link BlockReader}. Blocks are compressed by the codec, blocks that
+     * don't shrink are stored as is. Then writes block index (first key length, first key,
+     * block offset, block length, uncompressed block length for every block), range
+     * tombstones (first key length, first key, end key length or -1 for an unbounded range,
+     * end key, timestamp), bloom filter words and the footer: index offset, amount of blocks,
+     * amount of rows, amount of filter hash functions, amount of filter words, codec id, base
+     * timestamp, amount of range tombstones, format version and magic number. The file
+     * is forced to disk before it is closed, syncing its directory is up to the caller.
+     *
+     * @param to     file being recorded
+     * @param rows   strings to be written to file
+     * @param ranges range tombstones to be written to file
+     * @param codec  block compression codec
+     * @throws IOException if an I/O error is thrown by a write method
+     */
+    static void write(@NotNull final File to,
+                      @NotNull final Iterator<Row> rows,
+                      @NotNull final RangeTombstones ranges,
+                      @NotNull final BlockCodec codec) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(to.toPath(),
+                StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE)) {
+            final FileTableWriter writer = new FileTableWriter(fileChannel, codec);
+            while (rows.hasNext()) {
+                writer.append(rows.next());
+            }
+            writer.finish(ranges);
+            fileChannel.force(true);
+        }
+    }
+
+    private void append(@NotNull final Row row) throws IOException {
+        final ByteBuffer key = row.getKey();
+        final ByteBuffer value = row.getValue();
+        final boolean restart = blockRows % RESTART_INTERVAL == 0;
+        final int shared = restart ? 0 : sharedPrefix(lastKey, key);
+        if (rowCount == 0) {
+            baseTime = row.getTime();
+        }
+        final long time = Varints.zigzag(row.getTime() - baseTime);
+        final boolean expiring = !row.isDead() && row.isExpiring();
+        final long ttl = expiring ? Varints.zigzag(row.getExpiresAt() - row.getTime()) : 0;
+        final int unshared = key.remaining() - shared;
+        final int rowSize = Byte.BYTES
+                + Varints.size(shared) + Varints.size(unshared) + unshared
+                + (row.isDead() ? 0 : Varints.size(value.remaining()) + value.remaining())
+                + Varints.size(time)
+                + (expiring ? Varints.size(ttl) : 0);
+        if (block.remaining() < rowSize + restartsSize() && block.position() > 0) {
+            flushBlock();
+            append(row);
+            return;
+        }
+        if (block.remaining() < rowSize + restartsSize()) {
+            block = ByteBuffer.allocate(rowSize + restartsSize());
+        }
+        if (block.position() == 0) {
+            blockKeys.add(copy(key));
+        }
+        if (rowCount == keyHashes.length) {
+            keyHashes = Arrays.copyOf(keyHashes, rowCount * 2);
+        }
+        keyHashes[rowCount++] = BloomFilter.hash(key);
+        if (restart) {
+            if (blockRows / RESTART_INTERVAL == restarts.length) {
+                restarts = Arrays.copyOf(restarts, restarts.length * 2);
+            }
+            restarts[blockRows / RESTART_INTERVAL] = block.position();
+        }
+        blockRows++;
+        lastKey = key;
+
+        //Flags
+        int flags = row.isDead() ? BlockReader.FLAG_DEAD : 0;
+        if (expiring) {
+            flags |= BlockReader.FLAG_EXPIRING;
+        }
+        block.put((byte) flags);
+
+        //Key
+        Varints.put(block, shared);
+        Varints.put(block, unshared);
+        block.put(key.duplicate().position(key.position() + shared));
+
+        //Value
+        if (!row.isDead()) {
+            Varints.put(block, value.remaining());
+            block.put(value.duplicate());
+        }
+        Varints.put(block, time);
+        if (expiring) {
+            Varints.put(block, ttl);
+        }
+
+        if (block.position() >= BLOCK_SIZE) {
+            flushBlock();
+        }
+    }
+
+    private void flushBlock() throws IOException {
+        final int restartCount = (blockRows + RESTART_INTERVAL - 1) / RESTART_INTERVAL;
+        for (int i = 0; i < restartCount; i++) {
+            block.putInt(restarts[i]);
+        }
+        block.putInt(restartCount);
+        blockRows = 0;
+        block.flip();
+        final int rawLength = block.remaining();
+        ByteBuffer stored = codec.compress(block);
+        if (stored.remaining() >= rawLength) {
+            stored = block;
+        }
+        final int blockIndex = blockKeys.size() - 1;
+        if (blockIndex == blockOffsets.length) {
+            blockOffsets = Arrays.copyOf(blockOffsets, blockIndex * 2);
+            blockLengths = Arrays.copyOf(blockLengths, blockIndex * 2);
+            rawLengths = Arrays.copyOf(rawLengths, blockIndex * 2);
+        }
+        blockOffsets[blockIndex] = offset;
+        blockLengths[blockIndex] = stored.remaining();
+        rawLengths[blockIndex] = rawLength;
+        offset += stored.remaining();
+        put(stored);
+        block.clear();
+    }
+
+    private void finish(@NotNull final RangeTombstones ranges) throws IOException {
+        if (block.position() > 0) {
+            flushBlock();
+        }
+        final long indexOffset = offset;
+        for (int i = 0; i < blockKeys.size(); i++) {
+            final ByteBuffer key = blockKeys.get(i);
+            reserve(Integer.BYTES);
+            out.putInt(key.remaining());
+            put(key);
+            reserve(Long.BYTES + Integer.BYTES + Integer.BYTES);
+            out.putLong(blockOffsets[i])
+                    .putInt(blockLengths[i])
+                    .putInt(rawLengths[i]);
+        }
+        for (final RangeTombstone range : ranges) {
+            final ByteBuffer from = range.getFrom();
+            final ByteBuffer until = range.getTo();
+            reserve(Integer.BYTES);
+            out.putInt(from.remaining());
+            put(from);
+            reserve(Integer.BYTES);
+            out.putInt(until == null ? FileTable.UNBOUNDED : until.remaining());
+            if (until != null) {
+                put(until);
+            }
+            reserve(Long.BYTES);
+            out.putLong(range.getTime());
+        }
+        final BloomFilter bloomFilter = BloomFilter.of(keyHashes, rowCount);
+        put(bloomFilter.toByteBuffer());
+
+        reserve(FileTable.FOOTER_SIZE);
+        out.putLong(indexOffset)
+                .putInt(blockKeys.size())
+                .putInt(rowCount)
+                .putInt(bloomFilter.hashCount())
+                .putInt(bloomFilter.words())
+                .putInt(codec.id())
+                .putLong(baseTime)
+                .putInt(ranges.size())
+                .putInt(FileTable.VERSION)
+                .putInt(FileTable.MAGIC);
+        drain();
+    }
+
+    /**
+     * Copies bytes to the output buffer, buffers larger than it are written directly.
+     */
+    private void put(@NotNull final ByteBuffer bytes) throws IOException {
+        if (bytes.remaining() > out.capacity()) {
+            drain();
+            writeFully(bytes);
+            return;
+        }
+        reserve(bytes.remaining());
+        out.put(bytes);
+    }
+
+    private void reserve(final int size) throws IOException {
+        if (out.remaining() < size) {
+            drain();
+        }
+    }
+
+    private void drain() throws IOException {
+        out.flip();
+        writeFully(out);
+        out.clear();
+    }
+
+    private void writeFully(@NotNull final ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            fc.write(bytes);
+        }
+    }
+
+    /**
+     * Space taken by the restart points of the block after one more row.
+     */
+    private int restartsSize() {
+        return Integer.BYTES * (blockRows / RESTART_INTERVAL + 2);
+    }
+
+    private static int sharedPrefix(@NotNull final ByteBuffer left, @NotNull final ByteBuffer right) {
+        final int length = Math.min(left.remaining(), right.remaining());
+        for (int i = 0; i < length; i++) {
+            if (left.get(left.position() + i) != right.get(right.position() + i)) {
+                return i;
+            }
+        }
+        return length;
+    }
+
+    private static ByteBuffer copy(@NotNull final ByteBuffer buffer) {
+        final ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+        copy.put(buffer.duplicate()).flip();
+        return copy;
+    }
+}
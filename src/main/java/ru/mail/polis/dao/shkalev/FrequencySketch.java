@@ -0,0 +1,96 @@
+package ru.mail.polis.dao.shkalev;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Count-min sketch estimating how often keys were requested recently (TinyLFU).
+ * Counters are 4 bits packed sixteen to a long, and the four counters of a key
+ * lie in four longs, one of every group of four counters of the long. Counters
+ * saturate at 15 and are halved once the number of recorded requests reaches
+ * ten times the number of expected keys, so old popularity fades away. Updates
+ * are not atomic, a lost increment only makes the estimate a bit lower.
+ */
+final class FrequencySketch {
+    private static final int DEPTH = 4;
+    private static final long MAX_COUNT = 0xFL;
+    private static final long RESET_MASK = 0x7777_7777_7777_7777L;
+    private static final long[] SEEDS = {
+            0xC3A5C85C97CB3127L, 0xB492B66FBE98F273L, 0x9AE16A3B2F90404FL, 0xCBF29CE484222325L
+    };
+    private static final int MAX_EXPECTED_KEYS = 1 << 30;
+    private final long[] table;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * Creates sketch of a long per expected key.
+     *
+     * @param expectedKeys approximate number of keys to tell apart, the number of cached entries
+     */
+    FrequencySketch(final int expectedKeys) {
+        final int keys = Math.min(Math.max(expectedKeys, 16), MAX_EXPECTED_KEYS);
+        final int length = Integer.highestOneBit(keys - 1) << 1;
+        this.table = new long[length];
+        this.mask = length - 1;
+        this.sampleSize = (int) Math.min(Integer.MAX_VALUE, 10L * keys);
+    }
+
+    void increment(@NotNull final Object key) {
+        final int hash = spread(key.hashCode());
+        final int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < DEPTH; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    int frequency(@NotNull final Object key) {
+        final int hash = spread(key.hashCode());
+        final int start = (hash & 3) << 2;
+        long frequency = MAX_COUNT;
+        for (int i = 0; i < DEPTH; i++) {
+            final int offset = (start + i) << 2;
+            frequency = Math.min(frequency, (table[indexOf(hash, i)] >>> offset) & MAX_COUNT);
+        }
+        return (int) frequency;
+    }
+
+    /**
+     * Increments the counter of the long unless it is saturated.
+     *
+     * @param i       index of the long
+     * @param counter index of the counter in the long
+     * @return whether the counter is incremented
+     */
+    private boolean incrementAt(final int i, final int counter) {
+        final int offset = counter << 2;
+        final long counterMask = MAX_COUNT << offset;
+        if ((table[i] & counterMask) == counterMask) {
+            return false;
+        }
+        table[i] += 1L << offset;
+        return true;
+    }
+
+    private int indexOf(final int hash, final int row) {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        h += h >>> 32;
+        return (int) h & mask;
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions /= 2;
+    }
+
+    private static int spread(final int hash) {
+        final int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,30 @@
+package ru.mail.polis.dao.shkalev;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+
+final class IdentityCodec implements BlockCodec {
+    static final BlockCodec INSTANCE = new IdentityCodec();
+
+    private IdentityCodec() {
+        // Use INSTANCE
+    }
+
+    @Override
+    public int id() {
+        return NONE;
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer compress(@NotNull final ByteBuffer block) {
+        return block;
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer decompress(@NotNull final ByteBuffer block, final int rawLength) {
+        return block;
+    }
+}
@@ -0,0 +1,219 @@
+package ru.mail.polis.dao.shkalev;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Table over files written before the block format: a row per offset in the
+ * trailing offsets array, optionally followed by a bloom filter. Such files are
+ * always mapped, regardless of the {@link MappedBudget}, until they are compacted.
+ */
+class LegacyFileTable implements Table {
+    private static final Logger log = LoggerFactory.getLogger(LegacyFileTable.class);
+    private final int count;
+    private final int fileIndex;
+    private final ByteBuffer rows;
+    private final IntBuffer offsets;
+    private final BloomFilter bloomFilter;
+    private final File file;
+    private final MappedByteBuffer mapped;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /**
+     * Creates an object that is a file on disk, with the ability to create an iterator on this file.
+     *
+     * @param file       file for which you need to get a table
+     * @param generation generation of the table, the index of its rows
+     * @throws IOException if an I/O error is thrown by a read method
+     */
+    LegacyFileTable(@NotNull final File file, final int generation) throws IOException {
+        this.file = file;
+        this.fileIndex = generation;
+        try (FileChannel fc = FileChannel.open(file.toPath(),
+                StandardOpenOption.READ)) {
+            this.mapped = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+            int offsetsEnd = mapped.limit() - Integer.BYTES;
+            if (mapped.getInt(offsetsEnd) == BloomFilter.MAGIC) {
+                offsetsEnd -= Integer.BYTES;
+                this.count = mapped.getInt(offsetsEnd);
+                offsetsEnd -= Integer.BYTES;
+                final int hashCount = mapped.getInt(offsetsEnd);
+                offsetsEnd -= Integer.BYTES;
+                final int words = mapped.getInt(offsetsEnd);
+                final var bloomBuffer = mapped.duplicate()
+                        .position(offsetsEnd - Long.BYTES * words)
+                        .limit(offsetsEnd);
+                this.bloomFilter = BloomFilter.read(bloomBuffer.slice(), hashCount);
+                offsetsEnd = bloomBuffer.position();
+            } else {
+                this.count = mapped.getInt(offsetsEnd);
+                this.bloomFilter = null;
+            }
+            final var offsetsBuffer = mapped.duplicate()
+                    .position(offsetsEnd - Integer.BYTES * count)
+                    .limit(offsetsEnd);
+            this.offsets = offsetsBuffer.slice().asIntBuffer();
+
+            this.rows = mapped.asReadOnlyBuffer()
+                    .limit(offsetsBuffer.position())
+                    .slice();
+        }
+    }
+
+    /**
+     * Creates file iterator.
+     *
+     * @param from the key from which the iterator will begin
+     * @return file iterator
+     * @throws IOException if an I/O error is thrown by a read method
+     */
+    @Override
+    @NotNull
+    public Iterator<Row> iterator(@NotNull final ByteBuffer from) throws IOException {
+        return new Iterator<>() {
+            int index = getOffsetsIndex(from);
+
+            @Override
+            public boolean hasNext() {
+                return index < count;
+            }
+
+            @Override
+            public Row next() {
+                assert hasNext();
+                Row row = null;
+                try {
+                    row = getRowAt(index++);
+                } catch (IOException e) {
+                    log.error("IOException in fileIndex: " + fileIndex, e);
+                }
+                return row;
+            }
+        };
+    }
+
+    @Nullable
+    @Override
+    public Row get(@NotNull final ByteBuffer key) throws IOException {
+        if (!mightContain(key)) {
+            return null;
+        }
+        final int index = getOffsetsIndex(key);
+        if (index < count && getKeyAt(index).equals(key)) {
+            return getRowAt(index);
+        }
+        return null;
+    }
+
+    @Override
+    public void upsert(@NotNull final ByteBuffer key,
+                       @NotNull final ByteBuffer value,
+                       @NotNull final AtomicInteger fileIndex) throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void remove(@NotNull final ByteBuffer key,
+                       @NotNull final AtomicInteger fileIndex) throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean mightContain(@NotNull final ByteBuffer key) {
+        return bloomFilter == null || bloomFilter.mightContain(key);
+    }
+
+    /**
+     * Unmaps the file. Rows read before are copied to the heap and stay valid.
+     */
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            Utils.unmap(mapped);
+        }
+    }
+
+    @Override
+    public void clear() {
+        close();
+        try {
+            Files.delete(file.toPath());
+        } catch (IOException e) {
+            log.error("IOException during deletion in fileIndex: " + fileIndex, e);
+        }
+    }
+
+    @Override
+    public long sizeInBytes() {
+        return file.length();
+    }
+
+    private int getOffsetsIndex(@NotNull final ByteBuffer from) throws IOException {
+        int left = 0;
+        int right = count - 1;
+        while (left <= right) {
+            final int middle = left + (right - left) / 2;
+            final int resCmp = from.compareTo(getKeyAt(middle));
+            if (resCmp < 0) {
+                right = middle - 1;
+            } else if (resCmp > 0) {
+                left = middle + 1;
+            } else {
+                return middle;
+            }
+        }
+        return left;
+    }
+
+    private static ByteBuffer copy(@NotNull final ByteBuffer buffer) {
+        return ByteBuffer.allocate(buffer.remaining()).put(buffer.duplicate()).flip();
+    }
+
+    private ByteBuffer getKeyAt(final int i) throws IOException {
+        assert 0 <= i && i < count;
+        final int offset = offsets.get(i);
+        final int keySize = rows.getInt(offset);
+        return rows.duplicate().position(offset + Integer.BYTES).limit(offset + Integer.BYTES + keySize).slice();
+    }
+
+    private Row getRowAt(final int i) throws IOException {
+        assert 0 <= i && i < count;
+        int offset = offsets.get(i);
+
+        //Key
+        final ByteBuffer keyBB = getKeyAt(i);
+        offset += Integer.BYTES + keyBB.remaining();
+
+        //Status
+        final int status = rows.getInt(offset);
+        offset += Integer.BYTES;
+
+        ByteBuffer valueBB;
+        if (status == MySuperDAO.DEAD) {
+            valueBB = MySuperDAO.TOMBSTONE;
+        } else {
+            //Value
+            final int valueSize = rows.getInt(offset);
+            valueBB = rows.duplicate().position(offset + Integer.BYTES)
+                    .limit(offset + Integer.BYTES + valueSize)
+                    .slice();
+            offset += Integer.BYTES + valueSize;
+        }
+        final long time = rows.getLong(offset);
+        return Row.of(fileIndex, copy(keyBB), copy(valueBB), status, time);
+    }
+}
@@ -0,0 +1,209 @@
+package ru.mail.polis.dao.shkalev;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * List of live file tables: generation, number of the file and its size. The
+ * whole list is rewritten to a temporary file and atomically moved over the
+ * manifest on every change, so the manifest on disk is always a complete
+ * snapshot and the storage can start without opening the tables.
+ *
+ * <p>Generation orders the tables and is the index of their rows, while the
+ * file number only names the file. A compacted table takes the generation of
+ * the newest merged table but is written to a new file, so committing the
+ * manifest is the only step that replaces the merged tables, and a crash
+ * before or after it leaves either the old or the new set of live files.
+ */
+final class Manifest {
+    static final String NAME = "MANIFEST";
+    private static final String TMP = ".tmp";
+    private static final int MAGIC = 0x3A41F35D;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = Integer.BYTES * 3;
+    private static final int ENTRY_SIZE = Integer.BYTES * 2 + Long.BYTES;
+    private static final Logger log = LoggerFactory.getLogger(Manifest.class);
+    private final File rootDir;
+    private final NavigableMap<Integer, Entry> entries;
+
+    static final class Entry {
+        private final int file;
+        private final long size;
+
+        Entry(final int file, final long size) {
+            this.file = file;
+            this.size = size;
+        }
+
+        int getFile() {
+            return file;
+        }
+
+        long getSize() {
+            return size;
+        }
+    }
+
+    private Manifest(@NotNull final File rootDir, @NotNull final NavigableMap<Integer, Entry> entries) {
+        this.rootDir = rootDir;
+        this.entries = entries;
+    }
+
+    /**
+     * Reads the manifest of the storage. A storage written before manifests were
+     * introduced is listed once, ordering the tables by generations in file names.
+     * Table files which are not in the manifest are left by a flush or a compaction
+     * interrupted before its commit or by a compaction interrupted after it. Rows of
+     * such a flush are still in the commit log, rows of such a compaction are still
+     * in the live tables, so these files are deleted along with temporary files.
+     *
+     * @param rootDir the folder of the storage
+     * @return manifest of the storage
+     * @throws IOException if the manifest can't be read or written
+     */
+    static Manifest open(@NotNull final File rootDir) throws IOException {
+        final File file = new File(rootDir, NAME);
+        final NavigableMap<Integer, Entry> entries = new TreeMap<>();
+        final File[] tables = rootDir.listFiles((dir, name) ->
+                name.startsWith(MySuperDAO.PREFIX) && name.endsWith(MySuperDAO.SUFFIX));
+        final File[] temporary = rootDir.listFiles((dir, name) -> name.endsWith(TMP));
+        if (temporary != null) {
+            for (final File tmp : temporary) {
+                log.warn("Deleting temporary file " + tmp);
+                Files.delete(tmp.toPath());
+            }
+        }
+        if (file.exists()) {
+            read(file, entries);
+            final Set<Integer> live = new HashSet<>();
+            for (final Entry entry : entries.values()) {
+                live.add(entry.getFile());
+            }
+            if (tables != null) {
+                for (final File table : tables) {
+                    if (!live.contains(FileTable.indexOf(table))) {
+                        log.warn("Deleting table " + table + " missing from the manifest");
+                        Files.delete(table.toPath());
+                    }
+                }
+            }
+            return new Manifest(rootDir, entries);
+        }
+        if (tables != null) {
+            for (final File table : tables) {
+                final int number = FileTable.indexOf(table);
+                entries.put(number, new Entry(number, table.length()));
+            }
+        }
+        final Manifest manifest = new Manifest(rootDir, entries);
+        manifest.write();
+        return manifest;
+    }
+
+    static File file(@NotNull final File rootDir, final int number) {
+        return new File(rootDir, MySuperDAO.PREFIX + number + MySuperDAO.SUFFIX);
+    }
+
+    /**
+     * Live tables ordered by generation.
+     *
+     * @return files of the tables by generation
+     */
+    synchronized NavigableMap<Integer, Entry> tables() {
+        return Collections.unmodifiableNavigableMap(new TreeMap<>(entries));
+    }
+
+    /**
+     * Atomically replaces given tables with the added ones.
+     *
+     * @param added   files of new tables by generation
+     * @param removed generations of tables which are not live anymore
+     * @throws IOException if the manifest can't be written
+     */
+    synchronized void commit(@NotNull final Map<Integer, Entry> added,
+                             @NotNull final Collection<Integer> removed) throws IOException {
+        final NavigableMap<Integer, Entry> previous = new TreeMap<>(entries);
+        for (final Integer generation : removed) {
+            entries.remove(generation);
+        }
+        entries.putAll(added);
+        try {
+            write();
+        } catch (IOException e) {
+            entries.clear();
+            entries.putAll(previous);
+            throw e;
+        }
+    }
+
+    private void write() throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + ENTRY_SIZE * entries.size() + Integer.BYTES);
+        buffer.putInt(MAGIC)
+                .putInt(VERSION)
+                .putInt(entries.size());
+        for (final Map.Entry<Integer, Entry> entry : entries.entrySet()) {
+            buffer.putInt(entry.getKey())
+                    .putInt(entry.getValue().getFile())
+                    .putLong(entry.getValue().getSize());
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(buffer.duplicate().flip());
+        buffer.putInt((int) crc.getValue())
+                .flip();
+        final File tmp = new File(rootDir, NAME + TMP);
+        try (FileChannel fc = FileChannel.open(tmp.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                fc.write(buffer);
+            }
+            fc.force(true);
+        }
+        Files.move(tmp.toPath(), new File(rootDir, NAME).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        Utils.syncDirectory(rootDir);
+    }
+
+    private static void read(@NotNull final File file,
+                             @NotNull final NavigableMap<Integer, Entry> entries) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        if (buffer.remaining() < HEADER_SIZE + Integer.BYTES || buffer.getInt() != MAGIC) {
+            throw new IOException("Corrupted manifest " + file);
+        }
+        final int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported manifest version " + version + " in " + file);
+        }
+        final int count = buffer.getInt();
+        if (buffer.remaining() != ENTRY_SIZE * count + Integer.BYTES) {
+            throw new IOException("Corrupted manifest " + file);
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(buffer.duplicate().position(0).limit(buffer.limit() - Integer.BYTES));
+        if ((int) crc.getValue() != buffer.getInt(buffer.limit() - Integer.BYTES)) {
+            throw new IOException("Corrupted manifest " + file);
+        }
+        for (int i = 0; i < count; i++) {
+            final int generation = buffer.getInt();
+            final int number = buffer.getInt();
+            entries.put(generation, new Entry(number, buffer.getLong()));
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package ru.mail.polis.dao.shkalev;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limit of bytes of file tables mapped into memory at once. A table which does
+ * not fit into the budget reads its blocks with positional reads through the
+ * {@link BlockCache} instead.
+ *
+ * <p>Mapped tables which may give their mapping up register themselves. When a
+ * new table does not fit, the least recently used of them which no reader pins
+ * are demoted to positional reads until it fits. A demoted table is mapped again
+ * only when the budget has room without demoting others, so two hot tables
+ * don't take the mapping from each other on every read.
+ */
+final class MappedBudget {
+    private final long maxBytes;
+    private final AtomicLong mapped = new AtomicLong();
+    private final Set<Demotable> demotables = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Mapped table which can be unmapped while no reader uses it.
+     */
+    interface Demotable {
+        /**
+         * Time of the last access as given by {@link System#nanoTime()}.
+         */
+        long lastAccess();
+
+        /**
+         * Unmaps the table and frees its bytes if no reader pins it.
+         *
+         * @return whether the table is unmapped
+         */
+        boolean demote();
+    }
+
+    MappedBudget(final long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Reserves bytes for a new mapping, demoting least recently used tables
+     * if the mapping does not fit.
+     *
+     * @param bytes size of the mapping
+     * @return false if the mapping does not fit into the budget
+     */
+    boolean reserve(final long bytes) {
+        if (tryReserve(bytes)) {
+            return true;
+        }
+        if (bytes > maxBytes) {
+            return false;
+        }
+        final List<Demotable> candidates = new ArrayList<>(demotables);
+        candidates.sort(Comparator.comparingLong(Demotable::lastAccess));
+        for (final Demotable candidate : candidates) {
+            if (candidate.demote() && tryReserve(bytes)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reserves bytes for a new mapping without demoting other tables.
+     *
+     * @param bytes size of the mapping
+     * @return false if the mapping does not fit into the budget
+     */
+    boolean tryReserve(final long bytes) {
+        long current = mapped.get();
+        while (current + bytes <= maxBytes) {
+            if (mapped.compareAndSet(current, current + bytes)) {
+                return true;
+            }
+            current = mapped.get();
+        }
+        return false;
+    }
+
+    boolean fits(final long bytes) {
+        return mapped.get() + bytes <= maxBytes;
+    }
+
+    void free(final long bytes) {
+        mapped.addAndGet(-bytes);
+    }
+
+    void register(@NotNull final Demotable table) {
+        demotables.add(table);
+    }
+
+    void unregister(@NotNull final Demotable table) {
+        demotables.remove(table);
+    }
+
+    long mappedBytes() {
+        return mapped.get();
+    }
+}
@@ -1,6 +1,7 @@
 package ru.mail.polis.dao.shkalev;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -13,6 +14,7 @@ import java.util.concurrent.atomic.AtomicLong;
 public class MemoryTable implements Table {
     private final SortedMap<ByteBuffer, Row> memTable = new ConcurrentSkipListMap<>();
     private final AtomicLong currentHeap = new AtomicLong(0);
+    private volatile RangeTombstones ranges = new RangeTombstones();
 
     @NotNull
     @Override
@@ -20,49 +22,67 @@ public class MemoryTable implements Table {
         return memTable.tailMap(from).values().iterator();
     }
 
+    @Nullable
+    @Override
+    public Row get(@NotNull final ByteBuffer key) {
+        return memTable.get(key);
+    }
+
     @Override
     public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value,
                        @NotNull final AtomicInteger fileIndex) throws IOException {
-        final Row previousRow = memTable.put(key, Row.of(fileIndex.get(), key, value, MySuperDAO.ALIVE));
+        put(Row.of(fileIndex.get(), key, value, MySuperDAO.ALIVE));
+    }
+
+    @Override
+    public void remove(@NotNull final ByteBuffer key,
+                       @NotNull final AtomicInteger fileIndex) throws IOException {
+        put(Row.of(fileIndex.get(), key, MySuperDAO.TOMBSTONE, MySuperDAO.DEAD));
+    }
+
+    /**
+     * Puts row as is, keeping its timestamp.
+     *
+     * @param row alive or dead row
+     */
+    @Override
+    public void put(@NotNull final Row row) {
+        final ByteBuffer key = row.getKey();
+        final Row previousRow = memTable.put(key, row);
         if (previousRow == null) {
             currentHeap.addAndGet(Integer.BYTES
                     + (long) (key.remaining()
                     + MySuperDAO.LINK_SIZE
                     + Integer.BYTES * MySuperDAO.NUMBER_FIELDS_BYTEBUFFER)
-                    + (long) (value.remaining()
+                    + (long) (row.getValue().remaining()
                     + MySuperDAO.LINK_SIZE
                     + Integer.BYTES * MySuperDAO.NUMBER_FIELDS_BYTEBUFFER)
                     + Integer.BYTES);
         } else {
-            currentHeap.addAndGet(value.remaining() - previousRow.getValue().remaining());
+            currentHeap.addAndGet(row.getValue().remaining() - previousRow.getValue().remaining());
         }
     }
 
     @Override
-    public void remove(@NotNull final ByteBuffer key,
-                       @NotNull final AtomicInteger fileIndex) throws IOException {
-        final Row removedRow = memTable.put(key, Row.of(fileIndex.get(), key, MySuperDAO.TOMBSTONE, MySuperDAO.DEAD));
-        if (removedRow == null) {
-            currentHeap.addAndGet(Integer.BYTES
-                    + (long) (key.remaining()
-                    + MySuperDAO.LINK_SIZE
-                    + Integer.BYTES * MySuperDAO.NUMBER_FIELDS_BYTEBUFFER)
-                    + (long) (MySuperDAO.LINK_SIZE
-                    + Integer.BYTES * MySuperDAO.NUMBER_FIELDS_BYTEBUFFER)
-                    + Integer.BYTES);
-        } else if (!removedRow.isDead()) {
-            currentHeap.addAndGet(-removedRow.getValue().remaining());
-        }
+    public void putRange(@NotNull final RangeTombstone tombstone) {
+        ranges.add(tombstone);
+    }
+
+    @NotNull
+    @Override
+    public RangeTombstones rangeTombstones() {
+        return ranges;
     }
 
     @Override
     public void clear() {
         memTable.clear();
+        ranges = new RangeTombstones();
         currentHeap.set(0);
     }
 
     @Override
     public long sizeInBytes() {
-        return currentHeap.get();
+        return currentHeap.get() + ranges.sizeInBytes();
     }
 }
@@ -1,54 +1,113 @@
 package ru.mail.polis.dao.shkalev;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
+import java.util.TreeMap;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
 
 public class MemoryTablePool implements Table, Closeable {
     private static final Logger log = LoggerFactory.getLogger(MemoryTablePool.class);
     private final ReadWriteLock lock = new ReentrantReadWriteLock();
     private final long maxHeap;
     private final NavigableMap<Integer, Table> tableForFlush;
-    private volatile MemoryTable current;
+    private final Supplier<Table> memTables;
+    private volatile Table current;
     private final BlockingQueue<TableToFlush> flushQueue;
     private final AtomicBoolean stop = new AtomicBoolean(false);
     private final AtomicBoolean compacting = new AtomicBoolean(false);
     private final AtomicInteger fileIndex;
+    private final CommitLog commitLog;
 
-    MemoryTablePool(final long maxHeap, @NotNull final AtomicInteger fileIndex) {
+    MemoryTablePool(final long maxHeap,
+                    @NotNull final AtomicInteger fileIndex,
+                    @NotNull final CommitLog commitLog,
+                    final int flushers,
+                    @NotNull final Supplier<Table> memTables) {
         this.maxHeap = maxHeap;
-        this.current = new MemoryTable();
+        this.commitLog = commitLog;
+        this.memTables = memTables;
+        this.current = memTables.get();
         this.tableForFlush = new ConcurrentSkipListMap<>();
-        this.flushQueue = new ArrayBlockingQueue<>(2);
+        this.flushQueue = new ArrayBlockingQueue<>(Math.max(2, flushers));
         this.fileIndex = fileIndex;
     }
 
+    /**
+     * Rows of the memory tables are read lazily, so the tables must outlive the
+     * iterator, iterate over tables pinned with {@link #pin()} instead.
+     */
     @NotNull
     @Override
-    public Iterator<Row> iterator(@NotNull final ByteBuffer from) throws IOException {
-        final List<Iterator<Row>> iteratorList;
+    public Iterator<Row> iterator(@NotNull final ByteBuffer from) {
+        throw new UnsupportedOperationException("Iterate over pinned memory tables");
+    }
+
+    /**
+     * Pins the current memory table and the ones waiting for flush, so that
+     * slabs of a table flushed meanwhile are not freed under the reader.
+     *
+     * @return pinned memory tables by generation, the current one is the newest
+     */
+    TableSnapshot pin() {
+        return TableSnapshot.pin(this::tables);
+    }
+
+    private NavigableMap<Integer, Table> tables() {
         lock.readLock().lock();
         try {
-            iteratorList = Utils.getListIterators(tableForFlush, current, from);
+            final NavigableMap<Integer, Table> tables = new TreeMap<>(tableForFlush);
+            if (!tableForFlush.containsValue(current)) {
+                tables.put(Integer.MAX_VALUE, current);
+            }
+            return tables;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the latest row of the key. The row is detached from the memory
+     * table, which may be freed as soon as the lock is released.
+     */
+    @Nullable
+    @Override
+    public Row get(@NotNull final ByteBuffer key) throws IOException {
+        lock.readLock().lock();
+        try {
+            final Row row = current.get(key);
+            if (row != null) {
+                return row.detached();
+            }
+            for (final Table table : tableForFlush.descendingMap().values()) {
+                final Row flushingRow = table.get(key);
+                if (flushingRow != null) {
+                    return flushingRow.detached();
+                }
+            }
+            return null;
         } finally {
             lock.readLock().unlock();
         }
-        return Utils.getActualRowIterator(iteratorList);
     }
 
     @Override
@@ -58,9 +117,31 @@ public class MemoryTablePool implements Table, Closeable {
         if (stop.get()) {
             throw new IllegalStateException("Already stopped");
         }
-        current.upsert(key, value, fileIndex);
+        write(Row.of(fileIndex.get(), key, value, MySuperDAO.ALIVE));
         enqueueFlush(fileIndex);
+    }
 
+    /**
+     * Inserts or updates value which expires after given time.
+     *
+     * @param key       key of the value
+     * @param value     value
+     * @param ttlMillis time to live of the value in milliseconds
+     * @param fileIndex index of the next file table
+     * @throws IOException if the write can't be logged
+     */
+    void upsert(@NotNull final ByteBuffer key,
+                @NotNull final ByteBuffer value,
+                final long ttlMillis,
+                @NotNull final AtomicInteger fileIndex) throws IOException {
+        if (stop.get()) {
+            throw new IllegalStateException("Already stopped");
+        }
+        final long time = Utils.currentTimeNanos();
+        final long ttl = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        final long expiresAt = ttl >= Row.NEVER - time ? Row.NEVER : time + ttl;
+        write(Row.expiring(fileIndex.get(), key, value, time, expiresAt));
+        enqueueFlush(fileIndex);
     }
 
     @Override
@@ -69,10 +150,142 @@ public class MemoryTablePool implements Table, Closeable {
         if (stop.get()) {
             throw new IllegalStateException("Already stopped");
         }
-        current.remove(key, fileIndex);
+        write(Row.of(fileIndex.get(), key, MySuperDAO.TOMBSTONE, MySuperDAO.DEAD));
+        enqueueFlush(fileIndex);
+    }
+
+    /**
+     * Writes all mutations of a batch under one lock and waits for one sync of the log.
+     *
+     * @param batch     mutations to write
+     * @param fileIndex index of the next file table
+     * @throws IOException if the batch can't be logged
+     */
+    void write(@NotNull final Collection<Mutation> batch,
+               @NotNull final AtomicInteger fileIndex) throws IOException {
+        if (stop.get()) {
+            throw new IllegalStateException("Already stopped");
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        long position = 0;
+        lock.readLock().lock();
+        try {
+            for (final Mutation mutation : batch) {
+                final Row row = Row.of(fileIndex.get(),
+                        mutation.getKey(),
+                        mutation.getValue(),
+                        mutation.isRemove() ? MySuperDAO.DEAD : MySuperDAO.ALIVE);
+                position = commitLog.append(row);
+                current.put(row);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        commitLog.sync(position);
+        enqueueFlush(fileIndex);
+    }
+
+    /**
+     * Deletes keys from {@code from} inclusive to {@code to} exclusive.
+     *
+     * @param from first deleted key
+     * @param to   key after the last deleted one or null to delete all keys from {@code from}
+     * @param fileIndex index of the next file table
+     * @throws IOException if the deletion can't be logged
+     */
+    void removeRange(@NotNull final ByteBuffer from,
+                     @Nullable final ByteBuffer to,
+                     @NotNull final AtomicInteger fileIndex) throws IOException {
+        if (stop.get()) {
+            throw new IllegalStateException("Already stopped");
+        }
+        // Bounds become keys of the range tombstone set, so they must not change with the caller's buffers
+        final RangeTombstone tombstone = RangeTombstone.of(copyOf(from),
+                to == null ? null : copyOf(to),
+                Utils.currentTimeNanos());
+        final long position;
+        lock.readLock().lock();
+        try {
+            position = commitLog.append(tombstone);
+            current.putRange(tombstone);
+        } finally {
+            lock.readLock().unlock();
+        }
+        commitLog.sync(position);
         enqueueFlush(fileIndex);
     }
 
+    private static ByteBuffer copyOf(@NotNull final ByteBuffer buffer) {
+        final ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+        copy.put(buffer.duplicate()).flip();
+        return copy.asReadOnlyBuffer();
+    }
+
+    /**
+     * Puts row replayed from the commit log, the row is not logged again.
+     *
+     * @param row replayed row
+     */
+    void replay(@NotNull final Row row) {
+        current.put(row);
+    }
+
+    /**
+     * Puts range tombstone replayed from the commit log, the tombstone is not logged again.
+     *
+     * @param tombstone replayed range tombstone
+     */
+    void replayRange(@NotNull final RangeTombstone tombstone) {
+        current.putRange(tombstone);
+    }
+
+    @NotNull
+    @Override
+    public RangeTombstones rangeTombstones() {
+        lock.readLock().lock();
+        try {
+            if (tableForFlush.isEmpty()) {
+                return current.rangeTombstones();
+            }
+            final List<RangeTombstones> ranges = new ArrayList<>();
+            ranges.add(current.rangeTombstones());
+            for (final Table table : tableForFlush.values()) {
+                ranges.add(table.rangeTombstones());
+            }
+            return RangeTombstones.merge(ranges);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long deletedAt(@NotNull final ByteBuffer key) {
+        lock.readLock().lock();
+        try {
+            long deletedAt = current.deletedAt(key);
+            for (final Table table : tableForFlush.values()) {
+                deletedAt = Math.max(deletedAt, table.deletedAt(key));
+            }
+            return deletedAt;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void write(@NotNull final Row row) throws IOException {
+        final long position;
+        lock.readLock().lock();
+        try {
+            position = commitLog.append(row);
+            current.put(row);
+        } finally {
+            lock.readLock().unlock();
+        }
+        commitLog.sync(position);
+    }
+
     @Override
     public void clear() {
         throw new UnsupportedOperationException();
@@ -101,7 +314,8 @@ public class MemoryTablePool implements Table, Closeable {
         TableToFlush table;
         lock.writeLock().lock();
         try {
-            table = new TableToFlush(current, fileIndex.get(), true);
+            table = new TableToFlush(current, fileIndex.getAndAdd(1), commitLog.closeLog(), true);
+            tableForFlush.put(table.getFileIndex(), table.getTable());
         } finally {
             lock.writeLock().unlock();
         }
@@ -113,16 +327,16 @@ public class MemoryTablePool implements Table, Closeable {
         }
     }
 
-    void compact() {
+    void compact() throws IOException {
         if (!compacting.compareAndSet(false, true)) {
             return;
         }
         TableToFlush table;
         lock.writeLock().lock();
         try {
-            table = new TableToFlush(current, fileIndex.getAndAdd(1), false, true);
+            table = new TableToFlush(current, fileIndex.getAndAdd(1), commitLog.roll(), false, true);
             tableForFlush.put(table.getFileIndex(), table.getTable());
-            current = new MemoryTable();
+            current = memTables.get();
         } finally {
             lock.writeLock().unlock();
         }
@@ -138,7 +352,7 @@ public class MemoryTablePool implements Table, Closeable {
         compacting.set(false);
     }
 
-    private void enqueueFlush(@NotNull final AtomicInteger fileIndex) {
+    private void enqueueFlush(@NotNull final AtomicInteger fileIndex) throws IOException {
         if (current.sizeInBytes() >= maxHeap) {
             TableToFlush table = null;
             int index = 0;
@@ -146,9 +360,9 @@ public class MemoryTablePool implements Table, Closeable {
             try {
                 if (current.sizeInBytes() >= maxHeap) {
                     index = fileIndex.getAndAdd(1);
-                    table = new TableToFlush(current, index);
+                    table = new TableToFlush(current, index, commitLog.roll());
                     tableForFlush.put(index, current);
-                    current = new MemoryTable();
+                    current = memTables.get();
                 }
             } finally {
                 lock.writeLock().unlock();
@@ -168,12 +382,46 @@ public class MemoryTablePool implements Table, Closeable {
         return flushQueue.take();
     }
 
+    /**
+     * Generation of the oldest memory table which is not flushed yet.
+     *
+     * @return generation or null if all tables are flushed
+     */
+    @Nullable
+    Integer oldestToFlush() {
+        lock.readLock().lock();
+        try {
+            return tableForFlush.isEmpty() ? null : tableForFlush.firstKey();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    int flushQueueDepth() {
+        return tableForFlush.size();
+    }
+
+    /**
+     * Drops the flushed table, its memory is released once readers release it.
+     *
+     * @param generation generation of the flushed table
+     */
     void flushed(final int generation) {
+        final Table table;
         lock.writeLock().lock();
         try {
-            tableForFlush.remove(generation);
+            table = tableForFlush.remove(generation);
+            if (table == current) {
+                // The last table is flushed on close, reads after close find nothing
+                current = new MemoryTable();
+            }
         } finally {
             lock.writeLock().unlock();
         }
+        try {
+            table.close();
+        } catch (IOException e) {
+            log.error("IOException during closing of flushed table " + generation, e);
+        }
     }
 }
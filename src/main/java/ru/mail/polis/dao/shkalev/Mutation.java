@@ -0,0 +1,44 @@
+package ru.mail.polis.dao.shkalev;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Upsert or removal of one key of a batch, see {@link AdvancedDAO#apply(java.util.Collection)}.
+ */
+public final class Mutation {
+    private final ByteBuffer key;
+    private final ByteBuffer value;
+
+    private Mutation(@NotNull final ByteBuffer key, @Nullable final ByteBuffer value) {
+        this.key = key;
+        this.value = value;
+    }
+
+    public static Mutation upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) {
+        return new Mutation(key, value);
+    }
+
+    public static Mutation remove(@NotNull final ByteBuffer key) {
+        return new Mutation(key, null);
+    }
+
+    public boolean isRemove() {
+        return value == null;
+    }
+
+    public ByteBuffer getKey() {
+        return key.asReadOnlyBuffer();
+    }
+
+    /**
+     * Value of the upsert.
+     *
+     * @return value or {@link MySuperDAO#TOMBSTONE} for a removal
+     */
+    public ByteBuffer getValue() {
+        return value == null ? MySuperDAO.TOMBSTONE : value.asReadOnlyBuffer();
+    }
+}
@@ -3,27 +3,35 @@ package ru.mail.polis.dao.shkalev;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.file.FileVisitOption;
-import java.nio.file.FileVisitResult;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.SimpleFileVisitor;
-import java.nio.file.attribute.BasicFileAttributes;
-import java.util.EnumSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.NavigableMap;
 import java.util.List;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.checkerframework.checker.nullness.qual.NonNull;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import com.google.common.base.Throwables;
 import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.mail.polis.Record;
+import ru.mail.polis.dao.Iters;
 
 public class MySuperDAO implements AdvancedDAO {
     private static final int MODEL = Integer.parseInt(System.getProperty("sun.arch.data.model"));
@@ -31,8 +39,27 @@ public class MySuperDAO implements AdvancedDAO {
     private final MemoryTablePool memoryTable;
     private final File rootDir;
     private final AtomicInteger fileIndex = new AtomicInteger(0);
-    private final NavigableMap<Integer, Table> tables;
-    private final Worker worker;
+    private final Object tablesLock = new Object();
+    private volatile NavigableMap<Integer, Table> tables;
+    private final List<Worker> workers;
+    private final Object publishLock = new Object();
+    private final NavigableMap<Integer, TableToFlush> written = new TreeMap<>();
+    private final Map<Integer, Table> writtenTables = new TreeMap<>();
+    private final CountDownLatch lastFlushed = new CountDownLatch(1);
+    private final AtomicReference<Throwable> flushFailure = new AtomicReference<>();
+    private final AtomicInteger liveWorkers = new AtomicInteger();
+    private volatile boolean lastDumped;
+    private volatile boolean stopping;
+    private final BlockCodec codec;
+    private final CommitLog commitLog;
+    private final CompactionStrategy strategy;
+    private final RateLimiter compactionLimiter;
+    private final ExecutorService compactor;
+    private final RowCache rowCache;
+    private final Manifest manifest;
+    private final MappedBudget mappedBudget;
+    private final BlockCache blockCache;
+    private final long gcGraceMillis;
 
     static final ByteBuffer TOMBSTONE = ByteBuffer.allocate(0);
     static final int ALIVE = 1;
@@ -42,6 +69,7 @@ public class MySuperDAO implements AdvancedDAO {
     static final ByteBuffer LEAST_KEY = ByteBuffer.allocate(0);
     static final String PREFIX = "FT";
     static final String SUFFIX = ".mydb";
+    private static final double COMPACTION_BYTES_PER_SECOND = 32 * 1024 * 1024;
 
     @Override
     public Row getRow(@NotNull final ByteBuffer key) throws IOException {
@@ -52,115 +80,490 @@ public class MySuperDAO implements AdvancedDAO {
         return row;
     }
 
+    @NotNull
+    @Override
+    public ByteBuffer get(@NotNull final ByteBuffer key) throws IOException {
+        final Row row = rowBy(key);
+        if (row == null || row.isDead()) {
+            throw new NoSuchElementExceptionLite("Not found");
+        }
+        return row.getValue();
+    }
+
+    /**
+     * Latest row of the key as seen now, an expired value reads as a tombstone.
+     */
     private Row rowBy(@NonNull final ByteBuffer key) throws IOException {
-        final Iterator<Row> iter = rowIterator(key);
-        Row row = null;
-        if (iter.hasNext()) {
-            row = iter.next();
-            row = row.getKey().equals(key) ? row : null;
+        final Row row = cachedRowBy(key);
+        return row == null ? null : row.at(Utils.currentTime());
+    }
+
+    private Row cachedRowBy(@NonNull final ByteBuffer key) throws IOException {
+        if (rowCache == null) {
+            return lookup(key);
+        }
+        final Row cached = rowCache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        final long version = rowCache.version(key);
+        final Row row = lookup(key);
+        if (row != null) {
+            rowCache.put(row, version);
         }
         return row;
     }
 
+    /**
+     * Point lookup: probes the memory tables first and then pinned file tables
+     * from the newest to the oldest, stopping at the first hit. Range tombstones
+     * of the probed tables shadow the found row, a key deleted only by a range
+     * is returned as a tombstone of the range deletion time.
+     */
+    private Row lookup(@NonNull final ByteBuffer key) throws IOException {
+        long deletedAt = memoryTable.deletedAt(key);
+        final Row row = memoryTable.get(key);
+        if (row != null) {
+            return shadow(key, row, deletedAt);
+        }
+        final TableSnapshot snapshot = TableSnapshot.pin(() -> tables);
+        try {
+            for (final Table table : snapshot.tables().descendingMap().values()) {
+                deletedAt = Math.max(deletedAt, table.deletedAt(key));
+                final Row fileRow = table.get(key);
+                if (fileRow != null) {
+                    return shadow(key, fileRow.detached(), deletedAt);
+                }
+            }
+            return shadow(key, null, deletedAt);
+        } finally {
+            snapshot.release();
+        }
+    }
+
+    @Nullable
+    private Row shadow(@NotNull final ByteBuffer key, @Nullable final Row row, final long deletedAt) {
+        if (deletedAt == Long.MIN_VALUE || row != null && row.getTime() > deletedAt) {
+            return row;
+        }
+        return Row.of(row == null ? fileIndex.get() : row.getIndex(), key, TOMBSTONE, DEAD, deletedAt);
+    }
+
+    /**
+     * Flushes tables until the storage is closed. A table which fails to flush
+     * is never published, and neither are the newer ones, so once the last table
+     * is dumped or the last flusher exits, close is released and reports the
+     * failure. Rows of the unpublished tables stay in the commit log and are
+     * replayed on start.
+     */
     class Worker extends Thread {
 
         Worker(final int number) {
             super("Flusher-" + number);
+            liveWorkers.incrementAndGet();
         }
 
         @Override
         public void run() {
-            boolean poisoned = false;
-            boolean compacting = false;
-            while (!poisoned && !isInterrupted()) {
+            try {
+                flushAll();
+            } finally {
+                if (!stopping) {
+                    failed(new IllegalStateException(getName() + " stopped before the storage was closed"));
+                }
+                if (liveWorkers.decrementAndGet() == 0) {
+                    lastFlushed.countDown();
+                }
+            }
+        }
+
+        private void flushAll() {
+            while (!isInterrupted()) {
+                final TableToFlush table;
                 try {
-                    final TableToFlush table = memoryTable.takeToFlush();
-                    dump(table.getTable(), table.getFileIndex());
-                    compacting = table.isCompacting();
-                    if (compacting) {
-                        final Table compactingTable = Utils.compactFiles(rootDir, tables);
-                        tables.clear();
-                        fileIndex.set(Utils.START_FILE_INDEX + 1);
-                        tables.put(fileIndex.get(), compactingTable);
-                        memoryTable.compacted();
-                    }
-                    poisoned = table.isPoisonPill();
-                    memoryTable.flushed(table.getFileIndex());
+                    table = memoryTable.takeToFlush();
                 } catch (InterruptedException e) {
-                    log.error("InterruptedException during flushing file", e);
+                    if (!stopping) {
+                        log.error("InterruptedException during flushing file", e);
+                    }
                     interrupt();
-                } catch (IOException e) {
-                    log.error("IOException during flushing file", e);
+                    continue;
+                }
+                try {
+                    publish(table, dump(table.getTable(), table.getFileIndex()));
+                } catch (Throwable e) {
+                    log.error("Exception during flushing file", e);
+                    failed(e);
                 }
+                if (table.isPoisonPill()) {
+                    lastDumped = true;
+                }
+                if (lastDumped && flushFailure.get() != null) {
+                    lastFlushed.countDown();
+                }
+            }
+        }
+    }
+
+    private void failed(@NotNull final Throwable e) {
+        if (!flushFailure.compareAndSet(null, e) && flushFailure.get() != e) {
+            flushFailure.get().addSuppressed(e);
+        }
+    }
+
+    /**
+     * Publishes flushed tables strictly in generation order: a table written
+     * ahead of an older one waits until the older one is written too.
+     */
+    private void publish(@NotNull final TableToFlush flushed, @NotNull final Table fileTable) throws IOException {
+        synchronized (publishLock) {
+            written.put(flushed.getFileIndex(), flushed);
+            writtenTables.put(flushed.getFileIndex(), fileTable);
+            Integer oldest = memoryTable.oldestToFlush();
+            while (oldest != null && written.containsKey(oldest)) {
+                manifest.commit(Map.of(oldest, new Manifest.Entry(oldest, writtenTables.get(oldest).sizeInBytes())),
+                        List.of());
+                final TableToFlush table = written.remove(oldest);
+                replaceTables(Map.of(oldest, writtenTables.remove(oldest)), List.of());
+                memoryTable.flushed(oldest);
+                commitLog.release(table.getLogSegment());
+                scheduleCompaction(table.isCompacting());
+                if (table.isPoisonPill()) {
+                    lastFlushed.countDown();
+                }
+                oldest = memoryTable.oldestToFlush();
+            }
+        }
+    }
+
+    /**
+     * Publishes a new immutable set of live tables, so that readers always see
+     * either the tables before a change or after it.
+     */
+    private void replaceTables(@NotNull final Map<Integer, Table> added,
+                               @NotNull final Collection<Integer> removed) {
+        synchronized (tablesLock) {
+            final NavigableMap<Integer, Table> next = new TreeMap<>(tables);
+            next.keySet().removeAll(removed);
+            next.putAll(added);
+            tables = Collections.unmodifiableNavigableMap(next);
+        }
+    }
+
+    private void scheduleCompaction(final boolean major) {
+        compactor.execute(() -> {
+            try {
+                if (major) {
+                    compactTables(new TreeMap<>(tables), null, true);
+                }
+                List<Integer> selected = strategy.select(new TreeMap<>(tables));
+                while (!selected.isEmpty()) {
+                    final NavigableMap<Integer, Table> current = tables;
+                    final NavigableMap<Integer, Table> run = new TreeMap<>();
+                    for (final Integer generation : selected) {
+                        run.put(generation, current.get(generation));
+                    }
+                    compactTables(run, compactionLimiter, false);
+                    selected = strategy.select(new TreeMap<>(tables));
+                }
+            } catch (IOException e) {
+                log.error("IOException during compaction", e);
+            } finally {
+                if (major) {
+                    memoryTable.compacted();
+                }
+            }
+        });
+    }
+
+    /**
+     * Merges adjacent tables into a new file which takes generation of the newest
+     * of them, commits the replacement to the manifest and clears the merged tables.
+     * Their files are deleted once readers pinning them are done.
+     *
+     * <p>Tombstones older than the gc grace period are purged only if the run
+     * starts with the oldest table: there is no older row left for them to
+     * shadow. A major compaction rewrites even a single table to purge them.
+     */
+    private void compactTables(@NotNull final NavigableMap<Integer, Table> run,
+                               @Nullable final RateLimiter limiter,
+                               final boolean major) throws IOException {
+        if (run.isEmpty() || run.size() < 2 && !major) {
+            return;
+        }
+        final boolean oldest = run.firstKey().equals(tables.firstKey());
+        final long gcBefore = oldest
+                ? Utils.currentTime() - TimeUnit.MILLISECONDS.toNanos(gcGraceMillis)
+                : Long.MIN_VALUE;
+        final int number = fileIndex.getAndIncrement();
+        // Pinned, so that the budget does not unmap the tables being merged
+        final TableSnapshot snapshot = TableSnapshot.pin(() -> run);
+        try {
+            final File file = Utils.compactFiles(rootDir, run, number, codec, limiter, gcBefore);
+            final Table compacted = open(file, run.lastKey());
+            final NavigableMap<Integer, Table> merged = run.headMap(run.lastKey(), false);
+            try {
+                manifest.commit(Map.of(run.lastKey(), new Manifest.Entry(number, compacted.sizeInBytes())),
+                        merged.keySet());
+            } catch (IOException e) {
+                compacted.clear();
+                throw e;
+            }
+            replaceTables(Map.of(run.lastKey(), compacted), merged.keySet());
+            for (final Table table : run.values()) {
+                table.clear();
             }
+        } finally {
+            snapshot.release();
         }
     }
 
     /**
-     * Creates LSM storage.
+     * Creates LSM storage with default settings, see {@link StorageConfig}.
      *
      * @param maxHeap threshold of size of the memTable
      * @param rootDir the folder in which files will be written and read
      * @throws IOException if an I/O error is thrown by a File walker
      */
     public MySuperDAO(final long maxHeap, @NotNull final File rootDir) throws IOException {
+        this(rootDir, StorageConfig.builder(maxHeap).build());
+    }
+
+    /**
+     * Creates LSM storage. Rows of the commit log left by the previous run are
+     * replayed into the memTable.
+     *
+     * @param rootDir the folder in which files will be written and read
+     * @param config  settings of the storage
+     * @throws IOException if an I/O error is thrown by a File walker
+     */
+    public MySuperDAO(@NotNull final File rootDir, @NotNull final StorageConfig config) throws IOException {
+        final long maxHeap = config.maxHeap();
+        final int flushers = config.flushers();
+        this.rowCache = config.rowCacheBytes() > 0 ? new RowCache(config.rowCacheBytes()) : null;
+        this.mappedBudget = new MappedBudget(config.mappedBytes());
+        this.blockCache = new BlockCache(config.blockCacheBytes());
+        this.gcGraceMillis = config.gcGraceMillis();
         this.rootDir = rootDir;
-        this.tables = new ConcurrentSkipListMap<>();
-        final EnumSet<FileVisitOption> options = EnumSet.of(FileVisitOption.FOLLOW_LINKS);
-        final int maxDeep = 1;
-        Files.walkFileTree(rootDir.toPath(), options, maxDeep, new SimpleFileVisitor<>() {
-            @Override
-            public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
-                if (file.getFileName().toString().startsWith(PREFIX)
-                        && file.getFileName().toString().endsWith(SUFFIX)) {
-                    final Table fileTable = new FileTable(new File(rootDir, file.getFileName().toString()));
-                    tables.put(fileIndex.getAndAdd(1), fileTable);
-                }
-                return FileVisitResult.CONTINUE;
-            }
-        });
-        this.memoryTable = new MemoryTablePool(maxHeap, fileIndex);
-        this.worker = new Worker(1);
-        this.worker.start();
+        this.codec = config.codec();
+        this.strategy = new SizeTieredStrategy(maxHeap);
+        this.compactionLimiter = RateLimiter.create(COMPACTION_BYTES_PER_SECOND);
+        this.compactor = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("Compactor-%d").build());
+        this.manifest = Manifest.open(rootDir);
+        final NavigableMap<Integer, Table> live = new TreeMap<>();
+        int lastNumber = -1;
+        for (final Map.Entry<Integer, Manifest.Entry> table : manifest.tables().entrySet()) {
+            final Manifest.Entry entry = table.getValue();
+            final File file = Manifest.file(rootDir, entry.getFile());
+            live.put(table.getKey(),
+                    new FileTableHandle(file, table.getKey(), entry.getSize(), mappedBudget, blockCache));
+            lastNumber = Math.max(lastNumber, Math.max(table.getKey(), entry.getFile()));
+        }
+        this.tables = Collections.unmodifiableNavigableMap(live);
+        fileIndex.set(lastNumber + 1);
+        final List<Row> replayed = new ArrayList<>();
+        final List<RangeTombstone> replayedRanges = new ArrayList<>();
+        final long lastSegment = CommitLog.replay(rootDir, fileIndex.get(), replayed::add, replayedRanges::add);
+        this.commitLog = new CommitLog(rootDir, lastSegment + 1, config.fsyncPolicy());
+        this.memoryTable = new MemoryTablePool(maxHeap, fileIndex, commitLog, flushers,
+                config.offHeap() ? OffHeapMemoryTable::new : MemoryTable::new);
+        for (final Row row : replayed) {
+            memoryTable.replay(row);
+        }
+        for (final RangeTombstone tombstone : replayedRanges) {
+            memoryTable.replayRange(tombstone);
+        }
+        this.workers = new ArrayList<>(flushers);
+        for (int i = 1; i <= flushers; i++) {
+            final Worker worker = new Worker(i);
+            workers.add(worker);
+            worker.start();
+        }
     }
 
     @NotNull
     @Override
-    public Iterator<Record> iterator(@NotNull final ByteBuffer from) throws IOException {
-        return Iterators.transform(Utils.aliveRowIterators(rowIterator(from)), Row::getRecord);
+    public CloseableIterator<Record> iterator(@NotNull final ByteBuffer from) throws IOException {
+        return range(from, null);
     }
 
-    private Iterator<Row> rowIterator(@NotNull final ByteBuffer from) throws IOException {
-        final List<Iterator<Row>> iteratorList = Utils.getListIterators(tables, memoryTable, from);
-        return Utils.getActualRowIterator(iteratorList);
+    /**
+     * Iterates over live records of a snapshot of the storage. Tables of the
+     * snapshot are pinned until the iterator is exhausted or closed, so
+     * compactions finished meanwhile do not delete their files and flushes do
+     * not free memory tables. Rows shadowed
+     * by range tombstones of any table and expired values are skipped.
+     */
+    @NotNull
+    @Override
+    public CloseableIterator<Record> range(@NotNull final ByteBuffer from,
+                                           @Nullable final ByteBuffer to) throws IOException {
+        // Memory tables go first: a table flushed meanwhile is then seen at least once
+        final TableSnapshot memory = memoryTable.pin();
+        final TableSnapshot snapshot = TableSnapshot.pin(() -> tables, memory);
+        try {
+            final List<Iterator<Row>> iteratorList = new ArrayList<>();
+            final List<RangeTombstones> ranges = new ArrayList<>();
+            for (final Table table : memory.tables().descendingMap().values()) {
+                iteratorList.add(table.iterator(from));
+                ranges.add(table.rangeTombstones());
+            }
+            for (final Table table : snapshot.tables().descendingMap().values()) {
+                iteratorList.add(table.iterator(from));
+                ranges.add(table.rangeTombstones());
+            }
+            final Iterator<Row> actual = Utils.getActualRowIterator(iteratorList);
+            final long now = Utils.currentTime();
+            final Iterator<Row> rows = Utils.aliveRowIterators(
+                    Iterators.transform(RangeTombstones.merge(ranges).apply(actual), row -> row.at(now)));
+            final Iterator<Record> records = Iterators.transform(rows, row -> row.detached().getRecord());
+            return snapshot.iterator(to == null ? records : Iters.until(records, Record.of(to, TOMBSTONE)));
+        } catch (IOException | RuntimeException e) {
+            snapshot.release();
+            throw e;
+        }
     }
 
     @Override
     public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) throws IOException {
         memoryTable.upsert(key, value, fileIndex);
+        if (rowCache != null) {
+            rowCache.invalidate(key);
+        }
+    }
+
+    /**
+     * Writes the table to a durable file, so it is safe to commit it to the manifest
+     * and release its segment of the commit log.
+     */
+    private Table dump(@NotNull final Table table, final int fileIndex) throws IOException {
+        final File file = Manifest.file(rootDir, fileIndex);
+        Utils.write(file, table.iterator(LEAST_KEY), table.rangeTombstones(), codec);
+        Utils.syncDirectory(rootDir);
+        return open(file, fileIndex);
     }
 
-    private void dump(@NotNull final Table table, final int fileIndex) throws IOException {
-        final String fileTableName = PREFIX + fileIndex + SUFFIX;
-        final File file = new File(rootDir, fileTableName);
-        Utils.write(file, table.iterator(LEAST_KEY));
-        tables.put(fileIndex, new FileTable(file));
+    private Table open(@NotNull final File file, final int generation) throws IOException {
+        final Table table = new FileTable(file, generation, mappedBudget, blockCache);
+        return new FileTableHandle(file, generation, table, mappedBudget, blockCache);
+    }
+
+    /**
+     * Number of memory tables waiting for flush or being flushed.
+     *
+     * @return flush queue depth
+     */
+    int flushQueueDepth() {
+        return memoryTable.flushQueueDepth();
+    }
+
+    /**
+     * Number of point lookups served by the row cache.
+     *
+     * @return cache hits or 0 if the cache is disabled
+     */
+    long rowCacheHits() {
+        return rowCache == null ? 0 : rowCache.hits();
+    }
+
+    /**
+     * Number of point lookups that went to the tables.
+     *
+     * @return cache misses or 0 if the cache is disabled
+     */
+    long rowCacheMisses() {
+        return rowCache == null ? 0 : rowCache.misses();
+    }
+
+    /**
+     * Number of bytes of file tables mapped into memory.
+     *
+     * @return mapped bytes
+     */
+    long mappedBytes() {
+        return mappedBudget.mappedBytes();
+    }
+
+    @NotNull
+    @Override
+    public Map<String, Long> stats() {
+        final Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("flushQueueDepth", (long) flushQueueDepth());
+        stats.put("rowCacheHits", rowCacheHits());
+        stats.put("rowCacheMisses", rowCacheMisses());
+        stats.put("mappedBytes", mappedBytes());
+        return stats;
+    }
+
+    @Override
+    public void upsert(@NotNull final ByteBuffer key,
+                       @NotNull final ByteBuffer value,
+                       final long ttlMillis) throws IOException {
+        memoryTable.upsert(key, value, ttlMillis, fileIndex);
+        if (rowCache != null) {
+            rowCache.invalidate(key);
+        }
+    }
+
+    @Override
+    public void apply(@NotNull final Collection<Mutation> batch) throws IOException {
+        memoryTable.write(batch, fileIndex);
+        if (rowCache != null) {
+            for (final Mutation mutation : batch) {
+                rowCache.invalidate(mutation.getKey());
+            }
+        }
     }
 
     @Override
     public void remove(@NotNull final ByteBuffer key) throws IOException {
         memoryTable.remove(key, fileIndex);
+        if (rowCache != null) {
+            rowCache.invalidate(key);
+        }
+    }
+
+    @Override
+    public void removeRange(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) throws IOException {
+        if (to != null && from.compareTo(to) >= 0) {
+            return;
+        }
+        memoryTable.removeRange(from, to, fileIndex);
+        if (rowCache != null) {
+            rowCache.invalidateRange(from, to);
+        }
     }
 
     @Override
     public void close() throws IOException {
         memoryTable.close();
         try {
-            worker.join();
+            lastFlushed.await();
+            stopping = true;
+            for (final Worker worker : workers) {
+                worker.interrupt();
+            }
+            for (final Worker worker : workers) {
+                worker.join();
+            }
+            compactor.shutdown();
+            if (!compactor.awaitTermination(1, TimeUnit.HOURS)) {
+                log.error("Compaction is still running after dao close");
+            }
+            for (final Table table : tables.values()) {
+                table.close();
+            }
         } catch (InterruptedException e) {
             log.error("InterruptedException during dao close", e);
             Thread.currentThread().interrupt();
         }
+        final Throwable failure = flushFailure.get();
+        if (failure != null) {
+            Throwables.throwIfInstanceOf(failure, IOException.class);
+            Throwables.throwIfUnchecked(failure);
+            throw new IOException("Flushing failed", failure);
+        }
     }
 
     /**
@@ -0,0 +1,410 @@
+package ru.mail.polis.dao.shkalev;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Memory table keeping rows off heap. Keys and values are copied into direct
+ * slabs and linked into a lock-free skip list whose nodes live in the same
+ * slabs, so the heap holds only the slab buffers.
+ *
+ * <p>Node layout: record address, height, key length, next addresses, key.
+ * Record layout: index, status, time, expiration time, value length, value. Updates of a key
+ * append a new record and switch the node to it. Space is taken from the current slab by
+ * moving its top with a CAS, only starting a new slab is synchronized.
+ *
+ * <p>{@link #sizeInBytes()} is the exact amount of slab bytes taken, which bounds the memory
+ * the table holds. Records replaced by later updates of their keys, and nodes which lost a
+ * race to link the same key, stay in the slabs until the table is dropped, so with overwrites
+ * the size overstates the live rows and the table is flushed earlier.
+ *
+ * <p>The table counts references like {@link FileTableHandle}: one is held by the pool
+ * and dropped by {@link #close()} once the table is flushed, one by every reader which
+ * pinned the table with {@link #retain()}. Slabs are freed when the last reference is
+ * released, so rows read from the table must be detached before it is released.
+ */
+final class OffHeapMemoryTable implements Table {
+    private static final VarHandle ADDRESS = MethodHandles.byteBufferViewVarHandle(long[].class,
+            ByteOrder.nativeOrder());
+    static final int SLAB_SIZE = 1024 * 1024;
+    private static final int MAX_HEIGHT = 12;
+    private static final int BRANCHING = 4;
+    private static final long HEAD = 0;
+    private static final long NIL = HEAD;
+    private static final int NODE_RECORD = 0;
+    private static final int NODE_HEIGHT = NODE_RECORD + Long.BYTES;
+    private static final int NODE_KEY_LENGTH = NODE_HEIGHT + Integer.BYTES;
+    private static final int NODE_NEXT = NODE_KEY_LENGTH + Integer.BYTES;
+    private static final int RECORD_INDEX = 0;
+    private static final int RECORD_STATUS = RECORD_INDEX + Integer.BYTES;
+    private static final int RECORD_TIME = RECORD_STATUS + Integer.BYTES;
+    private static final int RECORD_EXPIRES = RECORD_TIME + Long.BYTES;
+    private static final int RECORD_VALUE_LENGTH = RECORD_EXPIRES + Long.BYTES;
+    private static final int RECORD_VALUE = RECORD_VALUE_LENGTH + Integer.BYTES;
+    private final AtomicLong top = new AtomicLong();
+    private final AtomicLong allocated = new AtomicLong();
+    private final AtomicInteger references = new AtomicInteger(1);
+    private final AtomicBoolean dropped = new AtomicBoolean();
+    private final List<ByteBuffer> allocations = new ArrayList<>();
+    private volatile ByteBuffer[] slabs;
+    private volatile RangeTombstones ranges;
+
+    OffHeapMemoryTable() {
+        reset();
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Row> iterator(@NotNull final ByteBuffer from) {
+        return new Iterator<>() {
+            long node = ceiling(from);
+
+            @Override
+            public boolean hasNext() {
+                return node != NIL;
+            }
+
+            @Override
+            public Row next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException("Next on exhausted memory table iterator");
+                }
+                final Row row = row(node);
+                node = nextOf(node, 0);
+                return row;
+            }
+        };
+    }
+
+    @Nullable
+    @Override
+    public Row get(@NotNull final ByteBuffer key) {
+        final long node = ceiling(key);
+        if (node == NIL || compare(node, key) != 0) {
+            return null;
+        }
+        return row(node);
+    }
+
+    @Override
+    public void upsert(@NotNull final ByteBuffer key,
+                       @NotNull final ByteBuffer value,
+                       @NotNull final AtomicInteger fileIndex) {
+        put(Row.of(fileIndex.get(), key, value, MySuperDAO.ALIVE));
+    }
+
+    @Override
+    public void remove(@NotNull final ByteBuffer key,
+                       @NotNull final AtomicInteger fileIndex) {
+        put(Row.of(fileIndex.get(), key, MySuperDAO.TOMBSTONE, MySuperDAO.DEAD));
+    }
+
+    @Override
+    public void put(@NotNull final Row row) {
+        final ByteBuffer key = row.getKey();
+        final long record = writeRecord(row);
+        final long[] prev = new long[MAX_HEIGHT];
+        final long[] next = new long[MAX_HEIGHT];
+        long start = HEAD;
+        for (int level = MAX_HEIGHT - 1; level >= 0; level--) {
+            splice(start, key, level, prev, next);
+            start = prev[level];
+        }
+        if (next[0] != NIL && compare(next[0], key) == 0) {
+            setRecord(next[0], record);
+            return;
+        }
+        final int height = randomHeight();
+        final long node = writeNode(key, height, record);
+        for (int level = 0; level < height; level++) {
+            while (true) {
+                setNext(node, level, next[level]);
+                if (casNext(prev[level], level, next[level], node)) {
+                    break;
+                }
+                splice(prev[level], key, level, prev, next);
+                if (level == 0 && next[0] != NIL && compare(next[0], key) == 0) {
+                    // The same key was linked concurrently, the node is left unreachable
+                    setRecord(next[0], record);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Keeps range tombstones on the heap, they are few compared to rows.
+     */
+    @Override
+    public void putRange(@NotNull final RangeTombstone tombstone) {
+        ranges.add(tombstone);
+    }
+
+    @NotNull
+    @Override
+    public RangeTombstones rangeTombstones() {
+        return ranges;
+    }
+
+    @Override
+    public void clear() {
+        reset();
+    }
+
+    @Override
+    public long sizeInBytes() {
+        return allocated.get() + ranges.sizeInBytes();
+    }
+
+    @Override
+    public boolean retain() {
+        int current = references.get();
+        while (current > 0) {
+            if (references.compareAndSet(current, current + 1)) {
+                return true;
+            }
+            current = references.get();
+        }
+        return false;
+    }
+
+    @Override
+    public void release() {
+        if (references.decrementAndGet() == 0) {
+            free();
+        }
+    }
+
+    /**
+     * Drops the reference of the pool. Slabs are freed now or, if the table is
+     * pinned by readers, when the last of them releases it.
+     */
+    @Override
+    public void close() {
+        if (dropped.compareAndSet(false, true)) {
+            release();
+        }
+    }
+
+    private synchronized void free() {
+        slabs = new ByteBuffer[0];
+        for (final ByteBuffer allocation : allocations) {
+            Utils.free(allocation);
+        }
+        allocations.clear();
+    }
+
+    private synchronized void reset() {
+        // Slabs of the cleared rows are left to GC, as rows read before may still refer to them
+        allocations.clear();
+        slabs = new ByteBuffer[]{newSlab(SLAB_SIZE)};
+        top.set(0);
+        allocated.set(0);
+        ranges = new RangeTombstones();
+        final long head = allocate(NODE_NEXT + MAX_HEIGHT * Long.BYTES);
+        assert head == HEAD;
+        final ByteBuffer slab = slab(head);
+        ADDRESS.setVolatile(slab, NODE_RECORD, NIL);
+        slab.putInt(NODE_HEIGHT, MAX_HEIGHT);
+        slab.putInt(NODE_KEY_LENGTH, 0);
+        for (int level = 0; level < MAX_HEIGHT; level++) {
+            ADDRESS.setVolatile(slab, NODE_NEXT + level * Long.BYTES, NIL);
+        }
+    }
+
+    /**
+     * Finds nodes between which the key falls on the level, starting from the node before the key.
+     */
+    private void splice(final long start,
+                        @NotNull final ByteBuffer key,
+                        final int level,
+                        @NotNull final long[] prev,
+                        @NotNull final long[] next) {
+        long before = start;
+        while (true) {
+            final long after = nextOf(before, level);
+            if (after == NIL || compare(after, key) >= 0) {
+                prev[level] = before;
+                next[level] = after;
+                return;
+            }
+            before = after;
+        }
+    }
+
+    /**
+     * Finds the first node with key not less than given one.
+     *
+     * @return node address or {@link #NIL}
+     */
+    private long ceiling(@NotNull final ByteBuffer key) {
+        long before = HEAD;
+        for (int level = MAX_HEIGHT - 1; level >= 0; level--) {
+            long after = nextOf(before, level);
+            while (after != NIL && compare(after, key) < 0) {
+                before = after;
+                after = nextOf(before, level);
+            }
+        }
+        return nextOf(before, 0);
+    }
+
+    private Row row(final long node) {
+        final ByteBuffer nodeSlab = slab(node);
+        final int nodeOffset = offset(node);
+        final int keyOffset = nodeOffset + NODE_NEXT + nodeSlab.getInt(nodeOffset + NODE_HEIGHT) * Long.BYTES;
+        final ByteBuffer key = view(nodeSlab, keyOffset, nodeSlab.getInt(nodeOffset + NODE_KEY_LENGTH));
+
+        final long record = (long) ADDRESS.getVolatile(nodeSlab, nodeOffset + NODE_RECORD);
+        final ByteBuffer recordSlab = slab(record);
+        final int recordOffset = offset(record);
+        final int index = recordSlab.getInt(recordOffset + RECORD_INDEX);
+        final long time = recordSlab.getLong(recordOffset + RECORD_TIME);
+        if (recordSlab.getInt(recordOffset + RECORD_STATUS) == MySuperDAO.DEAD) {
+            return Row.of(index, key, MySuperDAO.TOMBSTONE, MySuperDAO.DEAD, time);
+        }
+        final ByteBuffer value = view(recordSlab,
+                recordOffset + RECORD_VALUE,
+                recordSlab.getInt(recordOffset + RECORD_VALUE_LENGTH));
+        return Row.expiring(index, key, value, time, recordSlab.getLong(recordOffset + RECORD_EXPIRES));
+    }
+
+    /**
+     * Compares key of the node with given key in {@link ByteBuffer#compareTo(ByteBuffer)} order.
+     */
+    private int compare(final long node, @NotNull final ByteBuffer key) {
+        final ByteBuffer slab = slab(node);
+        final int offset = offset(node);
+        final int keyOffset = offset + NODE_NEXT + slab.getInt(offset + NODE_HEIGHT) * Long.BYTES;
+        final int keyLength = slab.getInt(offset + NODE_KEY_LENGTH);
+        final int position = key.position();
+        final int length = Math.min(keyLength, key.remaining());
+        for (int i = 0; i < length; i++) {
+            final int cmp = Byte.compare(slab.get(keyOffset + i), key.get(position + i));
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return keyLength - key.remaining();
+    }
+
+    private long writeRecord(@NotNull final Row row) {
+        final ByteBuffer value = row.isDead() ? MySuperDAO.TOMBSTONE : row.getValue();
+        final long record = allocate(RECORD_VALUE + value.remaining());
+        final ByteBuffer slab = slab(record);
+        final int offset = offset(record);
+        slab.putInt(offset + RECORD_INDEX, row.getIndex());
+        slab.putInt(offset + RECORD_STATUS, row.isDead() ? MySuperDAO.DEAD : MySuperDAO.ALIVE);
+        slab.putLong(offset + RECORD_TIME, row.getTime());
+        slab.putLong(offset + RECORD_EXPIRES, row.getExpiresAt());
+        slab.putInt(offset + RECORD_VALUE_LENGTH, value.remaining());
+        slab.duplicate().position(offset + RECORD_VALUE).put(value.duplicate());
+        return record;
+    }
+
+    private long writeNode(@NotNull final ByteBuffer key, final int height, final long record) {
+        final long node = allocate(NODE_NEXT + height * Long.BYTES + key.remaining());
+        final ByteBuffer slab = slab(node);
+        final int offset = offset(node);
+        ADDRESS.set(slab, offset + NODE_RECORD, record);
+        slab.putInt(offset + NODE_HEIGHT, height);
+        slab.putInt(offset + NODE_KEY_LENGTH, key.remaining());
+        slab.duplicate().position(offset + NODE_NEXT + height * Long.BYTES).put(key.duplicate());
+        return node;
+    }
+
+    private void setRecord(final long node, final long record) {
+        ADDRESS.setVolatile(slab(node), offset(node) + NODE_RECORD, record);
+    }
+
+    private long nextOf(final long node, final int level) {
+        return (long) ADDRESS.getVolatile(slab(node), offset(node) + NODE_NEXT + level * Long.BYTES);
+    }
+
+    private void setNext(final long node, final int level, final long next) {
+        ADDRESS.set(slab(node), offset(node) + NODE_NEXT + level * Long.BYTES, next);
+    }
+
+    private boolean casNext(final long node, final int level, final long expected, final long next) {
+        return ADDRESS.compareAndSet(slab(node), offset(node) + NODE_NEXT + level * Long.BYTES, expected, next);
+    }
+
+    /**
+     * Reserves aligned space in the current slab, starting a new slab if it doesn't fit.
+     * The top is the address of the free space of the current slab, so the space is
+     * reserved by moving the top with a CAS.
+     *
+     * @return address of the space: slab number in the high half and offset in the low one
+     */
+    private long allocate(final int size) {
+        final int aligned = (size + Long.BYTES - 1) & -Long.BYTES;
+        while (true) {
+            final long address = top.get();
+            // The top is moved to a new slab after the slab is published
+            final ByteBuffer[] current = slabs;
+            final int slab = (int) (address >>> Integer.SIZE);
+            if (offset(address) + aligned <= current[slab].capacity()) {
+                if (top.compareAndSet(address, address + aligned)) {
+                    allocated.addAndGet(aligned);
+                    return address;
+                }
+            } else {
+                addSlab(address, aligned);
+            }
+        }
+    }
+
+    private synchronized void addSlab(final long full, final int size) {
+        if (top.get() != full) {
+            return;
+        }
+        final ByteBuffer[] current = Arrays.copyOf(slabs, slabs.length + 1);
+        current[current.length - 1] = newSlab(Math.max(SLAB_SIZE, size));
+        slabs = current;
+        top.set((long) (current.length - 1) << Integer.SIZE);
+    }
+
+    private ByteBuffer slab(final long address) {
+        return slabs[(int) (address >>> Integer.SIZE)];
+    }
+
+    private static int offset(final long address) {
+        return (int) address;
+    }
+
+    private ByteBuffer newSlab(final int size) {
+        final ByteBuffer allocation = ByteBuffer.allocateDirect(size + Long.BYTES);
+        allocations.add(allocation);
+        return allocation.alignedSlice(Long.BYTES);
+    }
+
+    private static ByteBuffer view(@NotNull final ByteBuffer slab, final int offset, final int length) {
+        return slab.duplicate()
+                .position(offset)
+                .limit(offset + length)
+                .slice()
+                .asReadOnlyBuffer();
+    }
+
+    private static int randomHeight() {
+        int height = 1;
+        while (height < MAX_HEIGHT && ThreadLocalRandom.current().nextInt(BRANCHING) == 0) {
+            height++;
+        }
+        return height;
+    }
+}
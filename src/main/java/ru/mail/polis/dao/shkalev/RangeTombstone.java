@@ -0,0 +1,65 @@
+package ru.mail.polis.dao.shkalev;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Deletion of all keys from {@code from} inclusive to {@code to} exclusive
+ * written before {@code time}. A row is shadowed by the tombstone if its key is
+ * in the range and its timestamp is not greater than the time of the tombstone.
+ */
+public final class RangeTombstone {
+    private static final int OVERHEAD = 64;
+    private final ByteBuffer from;
+    private final ByteBuffer to;
+    private final long time;
+
+    private RangeTombstone(@NotNull final ByteBuffer from,
+                           @Nullable final ByteBuffer to,
+                           final long time) {
+        this.from = from;
+        this.to = to;
+        this.time = time;
+    }
+
+    /**
+     * Creates range tombstone.
+     *
+     * @param from first deleted key
+     * @param to   key after the last deleted one or null to delete all keys from {@code from}
+     * @param time time of deletion
+     * @return range tombstone
+     */
+    public static RangeTombstone of(@NotNull final ByteBuffer from,
+                                    @Nullable final ByteBuffer to,
+                                    final long time) {
+        return new RangeTombstone(from, to, time);
+    }
+
+    boolean startsAfter(@NotNull final ByteBuffer key) {
+        return from.compareTo(key) > 0;
+    }
+
+    boolean covers(@NotNull final ByteBuffer key) {
+        return from.compareTo(key) <= 0 && (to == null || key.compareTo(to) < 0);
+    }
+
+    long sizeInBytes() {
+        return OVERHEAD + from.remaining() + (to == null ? 0 : to.remaining());
+    }
+
+    public ByteBuffer getFrom() {
+        return from.asReadOnlyBuffer();
+    }
+
+    @Nullable
+    public ByteBuffer getTo() {
+        return to == null ? null : to.asReadOnlyBuffer();
+    }
+
+    public long getTime() {
+        return time;
+    }
+}
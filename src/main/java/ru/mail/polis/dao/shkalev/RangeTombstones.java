@@ -0,0 +1,205 @@
+package ru.mail.polis.dao.shkalev;
+
+import com.google.common.collect.Iterators;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Set of range tombstones kept as sorted non-overlapping fragments. Every
+ * fragment starts at a boundary key, ends at the next boundary and carries the
+ * latest deletion time of the tombstones covering it, or {@link Long#MIN_VALUE}
+ * if it is a gap between them. The time of a key is the time of the fragment
+ * starting at or before it, so it is found with a single floor lookup.
+ *
+ * <p>Tombstones are added to the set of a memory table in place, a lookup
+ * running concurrently sees every fragment either before or after the addition.
+ * Sets of file tables and merged sets are not changed after they are built.
+ */
+final class RangeTombstones implements Iterable<RangeTombstone> {
+    static final RangeTombstones EMPTY = new RangeTombstones(Collections.emptyNavigableMap());
+    private static final long GAP = Long.MIN_VALUE;
+    private static final int BOUNDARY_OVERHEAD = 64;
+    private final NavigableMap<ByteBuffer, Long> fragments;
+    private final AtomicLong bytes = new AtomicLong();
+
+    RangeTombstones() {
+        this(new ConcurrentSkipListMap<>());
+    }
+
+    private RangeTombstones(@NotNull final NavigableMap<ByteBuffer, Long> fragments) {
+        this.fragments = fragments;
+    }
+
+    static RangeTombstones of(@NotNull final Collection<RangeTombstone> tombstones) {
+        if (tombstones.isEmpty()) {
+            return EMPTY;
+        }
+        final RangeTombstones set = new RangeTombstones();
+        for (final RangeTombstone tombstone : tombstones) {
+            set.add(tombstone);
+        }
+        return set;
+    }
+
+    /**
+     * Merges range tombstones of several tables.
+     *
+     * @param sets range tombstones of the tables
+     * @return all the range tombstones
+     */
+    static RangeTombstones merge(@NotNull final Iterable<RangeTombstones> sets) {
+        final RangeTombstones merged = new RangeTombstones();
+        for (final RangeTombstones set : sets) {
+            for (final RangeTombstone tombstone : set) {
+                merged.add(tombstone);
+            }
+        }
+        return merged.isEmpty() ? EMPTY : merged;
+    }
+
+    /**
+     * Adds the tombstone, splitting the fragments at its bounds and raising
+     * the time of the fragments it covers.
+     *
+     * @param tombstone range tombstone
+     */
+    synchronized void add(@NotNull final RangeTombstone tombstone) {
+        final ByteBuffer from = tombstone.getFrom();
+        final ByteBuffer to = tombstone.getTo();
+        if (to != null && from.compareTo(to) >= 0) {
+            return;
+        }
+        if (to != null) {
+            split(to);
+        }
+        split(from);
+        final NavigableMap<ByteBuffer, Long> covered = to == null
+                ? fragments.tailMap(from, true)
+                : fragments.subMap(from, true, to, false);
+        for (final Map.Entry<ByteBuffer, Long> fragment : covered.entrySet()) {
+            if (fragment.getValue() < tombstone.getTime()) {
+                fragments.put(fragment.getKey(), tombstone.getTime());
+            }
+        }
+    }
+
+    private void split(@NotNull final ByteBuffer key) {
+        if (!fragments.containsKey(key)) {
+            fragments.put(key, deletedAt(key));
+            bytes.addAndGet(BOUNDARY_OVERHEAD + key.remaining());
+        }
+    }
+
+    /**
+     * Drops tombstones which are not needed anymore.
+     *
+     * @param gcBefore tombstones with older timestamps are dropped
+     * @return tombstones written since {@code gcBefore}
+     */
+    RangeTombstones purge(final long gcBefore) {
+        final List<RangeTombstone> kept = new ArrayList<>();
+        boolean purged = false;
+        for (final RangeTombstone tombstone : this) {
+            if (tombstone.getTime() >= gcBefore) {
+                kept.add(tombstone);
+            } else {
+                purged = true;
+            }
+        }
+        return purged ? of(kept) : this;
+    }
+
+    boolean isEmpty() {
+        return fragments.isEmpty();
+    }
+
+    int size() {
+        int size = 0;
+        for (final Long time : fragments.values()) {
+            if (time != GAP) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    long sizeInBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Time of the latest deletion of the key.
+     *
+     * @param key key to check
+     * @return time of the latest range tombstone covering the key or {@link Long#MIN_VALUE}
+     */
+    long deletedAt(@NotNull final ByteBuffer key) {
+        final Map.Entry<ByteBuffer, Long> fragment = fragments.floorEntry(key);
+        return fragment == null ? GAP : fragment.getValue();
+    }
+
+    /**
+     * Replaces rows shadowed by the tombstones with point tombstones of the
+     * deletion time, so that merged rows are filtered as usual.
+     *
+     * @param rows latest rows of keys
+     * @return rows with the shadowed ones deleted
+     */
+    Iterator<Row> apply(@NotNull final Iterator<Row> rows) {
+        if (isEmpty()) {
+            return rows;
+        }
+        return Iterators.transform(rows, row -> {
+            final long deletedAt = deletedAt(row.getKey());
+            if (row.getTime() > deletedAt) {
+                return row;
+            }
+            return Row.of(row.getIndex(), row.getKey(), MySuperDAO.TOMBSTONE, MySuperDAO.DEAD, deletedAt);
+        });
+    }
+
+    /**
+     * Drops rows shadowed by the tombstones, which are kept instead of them.
+     *
+     * @param rows latest rows of keys
+     * @return rows not shadowed by the tombstones
+     */
+    Iterator<Row> drop(@NotNull final Iterator<Row> rows) {
+        if (isEmpty()) {
+            return rows;
+        }
+        return Iterators.filter(rows, row -> row.getTime() > deletedAt(row.getKey()));
+    }
+
+    /**
+     * Fragments covered by the tombstones in the order of their first keys.
+     *
+     * @return non-overlapping range tombstones
+     */
+    @NotNull
+    @Override
+    public Iterator<RangeTombstone> iterator() {
+        final List<RangeTombstone> tombstones = new ArrayList<>();
+        Map.Entry<ByteBuffer, Long> fragment = fragments.firstEntry();
+        while (fragment != null) {
+            final Map.Entry<ByteBuffer, Long> next = fragments.higherEntry(fragment.getKey());
+            if (fragment.getValue() != GAP) {
+                tombstones.add(RangeTombstone.of(fragment.getKey(),
+                        next == null ? null : next.getKey(),
+                        fragment.getValue()));
+            }
+            fragment = next;
+        }
+        return tombstones.iterator();
+    }
+}
@@ -7,11 +7,16 @@ import org.jetbrains.annotations.NotNull;
 import ru.mail.polis.Record;
 
 public final class Row implements Comparable<Row> {
+    /**
+     * Expiration time of values which never expire.
+     */
+    public static final long NEVER = Long.MAX_VALUE;
     private final int index;
     private final ByteBuffer key;
     private final ByteBuffer value;
     private final long time;
     private final int status;
+    private final long expiresAt;
 
     public long getTime() {
         return time;
@@ -21,12 +26,14 @@ public final class Row implements Comparable<Row> {
                 @NotNull final ByteBuffer key,
                 @NotNull final ByteBuffer value,
                 final int status,
-                final long time) {
+                final long time,
+                final long expiresAt) {
         this.index = index;
         this.key = key;
         this.value = value;
         this.status = status;
         this.time = time;
+        this.expiresAt = expiresAt;
     }
 
     public static Row of(final int index,
@@ -34,14 +41,32 @@ public final class Row implements Comparable<Row> {
                          @NotNull final ByteBuffer value,
                          final int status,
                          final long time) {
-        return new Row(index, key, value, status, time);
+        return new Row(index, key, value, status, time, NEVER);
+    }
+
+    /**
+     * Creates alive row which value expires at given time.
+     *
+     * @param index     index of the row
+     * @param key       key of the row
+     * @param value     value of the row
+     * @param time      timestamp of the row
+     * @param expiresAt timestamp after which the value reads as deleted or {@link #NEVER}
+     * @return row
+     */
+    public static Row expiring(final int index,
+                               @NotNull final ByteBuffer key,
+                               @NotNull final ByteBuffer value,
+                               final long time,
+                               final long expiresAt) {
+        return new Row(index, key, value, MySuperDAO.ALIVE, time, expiresAt);
     }
 
     public static Row of(final int index,
                          @NotNull final ByteBuffer key,
                          @NotNull final ByteBuffer value,
                          final int status) {
-        return new Row(index, key, value, status, Utils.currentTimeNanos());
+        return new Row(index, key, value, status, Utils.currentTimeNanos(), NEVER);
     }
 
     /**
@@ -54,7 +79,45 @@ public final class Row implements Comparable<Row> {
                 key.duplicate().asReadOnlyBuffer(),
                 value.duplicate().asReadOnlyBuffer(),
                 status,
-                time);
+                time,
+                expiresAt);
+    }
+
+    /**
+     * The row on the heap. Key and value of a row read from a mapped block or
+     * from an off-heap memory table are copied, so the row stays valid after
+     * the table is unmapped or freed.
+     *
+     * @return this row if it is on the heap already or its copy
+     */
+    public Row detached() {
+        if (!key.isDirect() && !value.isDirect()) {
+            return this;
+        }
+        return new Row(index, heapCopy(key), heapCopy(value), status, time, expiresAt);
+    }
+
+    private static ByteBuffer heapCopy(@NotNull final ByteBuffer buffer) {
+        if (!buffer.isDirect()) {
+            return buffer;
+        }
+        final ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+        copy.put(buffer.duplicate()).flip();
+        return copy;
+    }
+
+    /**
+     * The row as seen at given time: an expired value reads as a tombstone
+     * written at the same time as the value, so older values stay shadowed.
+     *
+     * @param now current timestamp
+     * @return this row or a tombstone if the value has expired
+     */
+    public Row at(final long now) {
+        if (expiresAt > now || isDead()) {
+            return this;
+        }
+        return new Row(index, key, MySuperDAO.TOMBSTONE, MySuperDAO.DEAD, time, NEVER);
     }
 
     /**
@@ -74,6 +137,14 @@ public final class Row implements Comparable<Row> {
         return status == MySuperDAO.DEAD;
     }
 
+    public boolean isExpiring() {
+        return expiresAt != NEVER;
+    }
+
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
     public ByteBuffer getKey() {
         return key.asReadOnlyBuffer();
     }
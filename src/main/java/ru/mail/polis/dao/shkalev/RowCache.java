@@ -0,0 +1,212 @@
+package ru.mail.polis.dao.shkalev;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache of the latest rows of hot keys, tombstones included, bounded by bytes.
+ * Eviction is a CLOCK over the cached rows, and a new row is admitted only if
+ * {@link FrequencySketch} says its key is requested more often than the key of
+ * the row it would evict (TinyLFU).
+ *
+ * <p>Writes must call {@link #invalidate(ByteBuffer)} or
+ * {@link #invalidateRange(ByteBuffer, ByteBuffer)} after the rows are stored.
+ * Readers take {@link #version(ByteBuffer)} before looking the row up, so a
+ * row read before a concurrent write is never left in the cache.
+ */
+final class RowCache {
+    private static final int ENTRY_OVERHEAD = 128;
+    private static final int TYPICAL_ENTRY_SIZE = 512;
+    private static final int STRIPES = 64;
+    private final long maxBytes;
+    private final Map<ByteBuffer, Entry> entries = new ConcurrentHashMap<>();
+    private final Deque<Entry> clock = new ArrayDeque<>();
+    private final FrequencySketch sketch;
+    private final AtomicLongArray versions = new AtomicLongArray(STRIPES);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private long bytes;
+    private int stale;
+
+    private static final class Entry {
+        private final ByteBuffer key;
+        private final Row row;
+        private final int weight;
+        private volatile boolean referenced;
+        private boolean removed;
+
+        private Entry(@NotNull final ByteBuffer key, @NotNull final Row row, final int weight) {
+            this.key = key;
+            this.row = row;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * Creates cache sized for rows of small keys and values of a few hundred bytes.
+     *
+     * @param maxBytes size of the cache
+     */
+    RowCache(final long maxBytes) {
+        this(maxBytes, (int) Math.min(Integer.MAX_VALUE, maxBytes / TYPICAL_ENTRY_SIZE));
+    }
+
+    /**
+     * Creates cache with the frequency sketch sized for the number of rows it holds.
+     *
+     * @param maxBytes        size of the cache
+     * @param expectedEntries number of rows the cache is expected to hold
+     */
+    RowCache(final long maxBytes, final int expectedEntries) {
+        this.maxBytes = maxBytes;
+        this.sketch = new FrequencySketch(expectedEntries);
+    }
+
+    @Nullable
+    Row get(@NotNull final ByteBuffer key) {
+        sketch.increment(key);
+        final Entry entry = entries.get(key);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        entry.referenced = true;
+        hits.increment();
+        return entry.row;
+    }
+
+    long version(@NotNull final ByteBuffer key) {
+        return versions.get(stripe(key));
+    }
+
+    /**
+     * Caches a copy of the row read from the storage if it is worth admission.
+     *
+     * @param row     latest row of the key, may be dead
+     * @param version version of the key taken before the row was read
+     */
+    void put(@NotNull final Row row, final long version) {
+        final ByteBuffer key = copy(row.getKey());
+        final Row copy = row.isDead()
+                ? Row.of(row.getIndex(), key, MySuperDAO.TOMBSTONE, MySuperDAO.DEAD, row.getTime())
+                : Row.expiring(row.getIndex(), key, copy(row.getValue()), row.getTime(), row.getExpiresAt());
+        final Entry candidate = new Entry(key, copy, key.remaining() + copy.getValue().remaining() + ENTRY_OVERHEAD);
+        if (!admit(candidate)) {
+            return;
+        }
+        if (versions.get(stripe(key)) != version) {
+            remove(key);
+        }
+    }
+
+    void invalidate(@NotNull final ByteBuffer key) {
+        versions.incrementAndGet(stripe(key));
+        remove(key);
+    }
+
+    /**
+     * Invalidates all cached keys of the range. Versions of all keys are bumped,
+     * since a reader may be looking up a key of the range which is not cached yet.
+     *
+     * @param from first key of the range
+     * @param to   key after the last one of the range or null for an unbounded range
+     */
+    void invalidateRange(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) {
+        for (int i = 0; i < STRIPES; i++) {
+            versions.incrementAndGet(i);
+        }
+        for (final ByteBuffer key : entries.keySet()) {
+            if (from.compareTo(key) <= 0 && (to == null || key.compareTo(to) < 0)) {
+                remove(key);
+            }
+        }
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    long sizeInBytes() {
+        synchronized (clock) {
+            return bytes;
+        }
+    }
+
+    private boolean admit(@NotNull final Entry candidate) {
+        if (candidate.weight > maxBytes) {
+            return false;
+        }
+        synchronized (clock) {
+            if (entries.containsKey(candidate.key)) {
+                return false;
+            }
+            while (bytes + candidate.weight > maxBytes) {
+                final Entry victim = clock.pollFirst();
+                if (victim.removed) {
+                    stale--;
+                    continue;
+                }
+                if (victim.referenced) {
+                    victim.referenced = false;
+                    clock.addLast(victim);
+                    continue;
+                }
+                if (!frequent(candidate, victim)) {
+                    clock.addFirst(victim);
+                    return false;
+                }
+                entries.remove(victim.key, victim);
+                victim.removed = true;
+                bytes -= victim.weight;
+            }
+            entries.put(candidate.key, candidate);
+            clock.addLast(candidate);
+            bytes += candidate.weight;
+            return true;
+        }
+    }
+
+    private boolean frequent(@NotNull final Entry candidate, @NotNull final Entry victim) {
+        return sketch.frequency(candidate.key) > sketch.frequency(victim.key);
+    }
+
+    private void remove(@NotNull final ByteBuffer key) {
+        final Entry entry = entries.remove(key);
+        if (entry == null) {
+            return;
+        }
+        synchronized (clock) {
+            if (!entry.removed) {
+                entry.removed = true;
+                bytes -= entry.weight;
+                if (++stale > clock.size() / 2) {
+                    clock.removeIf(e -> e.removed);
+                    stale = 0;
+                }
+            }
+        }
+    }
+
+    private static int stripe(@NotNull final ByteBuffer key) {
+        final int hash = key.hashCode();
+        return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+    }
+
+    private static ByteBuffer copy(@NotNull final ByteBuffer buffer) {
+        final ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+        copy.put(buffer.duplicate()).flip();
+        return copy.asReadOnlyBuffer();
+    }
+}
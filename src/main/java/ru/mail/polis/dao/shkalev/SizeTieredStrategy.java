@@ -0,0 +1,71 @@
+package ru.mail.polis.dao.shkalev;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+
+/**
+ * Merges runs of adjacent tables of similar size, so every table takes part
+ * in a logarithmic number of compactions and the amount of tables stays bounded.
+ */
+public class SizeTieredStrategy implements CompactionStrategy {
+    private static final int MIN_THRESHOLD = 4;
+    private static final int MAX_THRESHOLD = 32;
+    private static final double BUCKET_LOW = 0.5;
+    private static final double BUCKET_HIGH = 1.5;
+    private final long minTableSize;
+
+    /**
+     * Size-tiered compaction strategy.
+     *
+     * @param minTableSize tables smaller than that are considered to be of the same size
+     */
+    public SizeTieredStrategy(final long minTableSize) {
+        this.minTableSize = minTableSize;
+    }
+
+    @NotNull
+    @Override
+    public List<Integer> select(@NotNull final NavigableMap<Integer, Table> tables) {
+        List<Integer> best = Collections.emptyList();
+        long bestSize = Long.MAX_VALUE;
+        final List<Integer> run = new ArrayList<>();
+        long runSize = 0;
+        for (final Map.Entry<Integer, Table> entry : tables.entrySet()) {
+            final long size = entry.getValue().sizeInBytes();
+            if (!run.isEmpty() && !similar(size, runSize / run.size())) {
+                if (run.size() >= MIN_THRESHOLD && runSize < bestSize) {
+                    best = new ArrayList<>(run);
+                    bestSize = runSize;
+                }
+                run.clear();
+                runSize = 0;
+            }
+            run.add(entry.getKey());
+            runSize += size;
+            if (run.size() == MAX_THRESHOLD) {
+                if (runSize < bestSize) {
+                    best = new ArrayList<>(run);
+                    bestSize = runSize;
+                }
+                run.clear();
+                runSize = 0;
+            }
+        }
+        if (run.size() >= MIN_THRESHOLD && runSize < bestSize) {
+            best = new ArrayList<>(run);
+        }
+        return best;
+    }
+
+    private boolean similar(final long size, final long average) {
+        if (size < minTableSize && average < minTableSize) {
+            return true;
+        }
+        return size >= average * BUCKET_LOW && size <= average * BUCKET_HIGH;
+    }
+}
@@ -0,0 +1,173 @@
+package ru.mail.polis.dao.shkalev;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Settings of {@link MySuperDAO}. Defaults keep the baseline storage: memTables on
+ * the heap flushed by one thread, no row cache and uncompressed files mapped up to
+ * the default budget, with an 8 MB cache of blocks of files beyond it. Writes don't
+ * wait for the commit log, which is forced periodically, and tombstones are purged
+ * 10 days after deletion.
+ */
+public final class StorageConfig {
+    private static final int MODEL = Integer.parseInt(System.getProperty("sun.arch.data.model"));
+    private final long maxHeap;
+    private final BlockCodec codec;
+    private final CommitLog.FsyncPolicy fsyncPolicy;
+    private final int flushers;
+    private final boolean offHeap;
+    private final long rowCacheBytes;
+    private final long mappedBytes;
+    private final long blockCacheBytes;
+    private final long gcGraceMillis;
+
+    private StorageConfig(@NotNull final Builder builder) {
+        this.maxHeap = builder.maxHeap;
+        this.codec = builder.codec;
+        this.fsyncPolicy = builder.fsyncPolicy;
+        this.flushers = builder.flushers;
+        this.offHeap = builder.offHeap;
+        this.rowCacheBytes = builder.rowCacheBytes;
+        this.mappedBytes = builder.mappedBytes;
+        this.blockCacheBytes = builder.blockCacheBytes;
+        this.gcGraceMillis = builder.gcGraceMillis;
+    }
+
+    /**
+     * Starts settings with defaults.
+     *
+     * @param maxHeap threshold of size of the memTable
+     * @return builder of the settings
+     */
+    public static Builder builder(final long maxHeap) {
+        return new Builder(maxHeap);
+    }
+
+    long maxHeap() {
+        return maxHeap;
+    }
+
+    BlockCodec codec() {
+        return codec;
+    }
+
+    CommitLog.FsyncPolicy fsyncPolicy() {
+        return fsyncPolicy;
+    }
+
+    int flushers() {
+        return flushers;
+    }
+
+    boolean offHeap() {
+        return offHeap;
+    }
+
+    long rowCacheBytes() {
+        return rowCacheBytes;
+    }
+
+    long mappedBytes() {
+        return mappedBytes;
+    }
+
+    long blockCacheBytes() {
+        return blockCacheBytes;
+    }
+
+    long gcGraceMillis() {
+        return gcGraceMillis;
+    }
+
+    public static final class Builder {
+        private final long maxHeap;
+        private BlockCodec codec = IdentityCodec.INSTANCE;
+        private CommitLog.FsyncPolicy fsyncPolicy = CommitLog.FsyncPolicy.PERIODIC;
+        private int flushers = 1;
+        private boolean offHeap;
+        private long rowCacheBytes;
+        private long mappedBytes = MODEL == 64 ? 64L * 1024 * 1024 * 1024 : 256 * 1024 * 1024;
+        private long blockCacheBytes = 8 * 1024 * 1024;
+        private long gcGraceMillis = TimeUnit.DAYS.toMillis(10);
+
+        private Builder(final long maxHeap) {
+            this.maxHeap = maxHeap;
+        }
+
+        /**
+         * Block compression codec of new files.
+         */
+        public Builder codec(@NotNull final BlockCodec codec) {
+            this.codec = codec;
+            return this;
+        }
+
+        /**
+         * When the commit log is forced to disk.
+         */
+        public Builder fsyncPolicy(@NotNull final CommitLog.FsyncPolicy fsyncPolicy) {
+            this.fsyncPolicy = fsyncPolicy;
+            return this;
+        }
+
+        /**
+         * Number of threads flushing memTables concurrently.
+         */
+        public Builder flushers(final int flushers) {
+            if (flushers < 1) {
+                throw new IllegalArgumentException("At least one flusher is needed, got " + flushers);
+            }
+            this.flushers = flushers;
+            return this;
+        }
+
+        /**
+         * Whether memTables keep rows in direct slabs instead of the heap.
+         */
+        public Builder offHeap(final boolean offHeap) {
+            this.offHeap = offHeap;
+            return this;
+        }
+
+        /**
+         * Row cache size in bytes, 0 disables the cache.
+         */
+        public Builder rowCacheBytes(final long rowCacheBytes) {
+            this.rowCacheBytes = rowCacheBytes;
+            return this;
+        }
+
+        /**
+         * Budget of mapped files, files beyond it are read from channels.
+         */
+        public Builder mappedBytes(final long mappedBytes) {
+            this.mappedBytes = mappedBytes;
+            return this;
+        }
+
+        /**
+         * Size in bytes of the cache of blocks read by files beyond the mapped budget,
+         * 0 disables the cache.
+         */
+        public Builder blockCacheBytes(final long blockCacheBytes) {
+            this.blockCacheBytes = blockCacheBytes;
+            return this;
+        }
+
+        /**
+         * How long tombstones are kept after deletion. It must exceed the longest
+         * time a replica can miss writes, otherwise a replica which missed a
+         * deletion brings the deleted value back.
+         */
+        public Builder gcGraceMillis(final long gcGraceMillis) {
+            this.gcGraceMillis = gcGraceMillis;
+            return this;
+        }
+
+        public StorageConfig build() {
+            return new StorageConfig(this);
+        }
+    }
+}
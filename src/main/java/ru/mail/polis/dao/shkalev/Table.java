@@ -1,6 +1,7 @@
 package ru.mail.polis.dao.shkalev;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -11,6 +12,14 @@ public interface Table {
     @NotNull
     Iterator<Row> iterator(@NotNull ByteBuffer from) throws IOException;
 
+    /**
+     * Gets the latest row by given key without merging tables.
+     *
+     * @return row (possibly dead) or null if the table has no such key
+     */
+    @Nullable
+    Row get(@NotNull ByteBuffer key) throws IOException;
+
     /**
      * Inserts or updates value by given key.
      */
@@ -25,6 +34,68 @@ public interface Table {
     void remove(@NotNull ByteBuffer key,
                 @NotNull AtomicInteger fileIndex) throws IOException;
 
+    /**
+     * Puts row as is, keeping its index and timestamp.
+     */
+    default void put(@NotNull final Row row) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Puts range tombstone as is, keeping its timestamp.
+     */
+    default void putRange(@NotNull final RangeTombstone tombstone) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Range tombstones written to the table.
+     */
+    @NotNull
+    default RangeTombstones rangeTombstones() {
+        return RangeTombstones.EMPTY;
+    }
+
+    /**
+     * Time of the latest range tombstone of the table covering given key.
+     *
+     * @return time of deletion or {@link Long#MIN_VALUE} if the key is not deleted by a range
+     */
+    default long deletedAt(@NotNull final ByteBuffer key) {
+        return rangeTombstones().deletedAt(key);
+    }
+
+    /**
+     * Checks whether the table may contain given key.
+     *
+     * @return false if the key is definitely absent
+     */
+    default boolean mightContain(@NotNull final ByteBuffer key) {
+        return true;
+    }
+
+    /**
+     * Pins the table for a reader, so that {@link #clear()} keeps its file
+     * until the reader calls {@link #release()}.
+     *
+     * @return false if the table is cleared and its file is already deleted
+     */
+    default boolean retain() {
+        return true;
+    }
+
+    /**
+     * Unpins the table pinned by {@link #retain()}.
+     */
+    default void release() {
+    }
+
+    /**
+     * Releases resources of the table, such as mapping of its file, keeping the file.
+     */
+    default void close() throws IOException {
+    }
+
     void clear();
 
     long sizeInBytes();
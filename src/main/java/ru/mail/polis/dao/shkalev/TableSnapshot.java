@@ -0,0 +1,126 @@
+package ru.mail.polis.dao.shkalev;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.ref.Cleaner;
+import java.util.Iterator;
+import java.util.NavigableMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * Tables pinned by a reader, so that a compaction replacing file tables does not
+ * delete their files and a flush does not free memory tables under the reader. Released exactly once: explicitly, when
+ * an iterator over the snapshot is exhausted or closed, or by the cleaner when
+ * an abandoned iterator is collected.
+ */
+final class TableSnapshot implements Runnable {
+    private static final Cleaner CLEANER = Cleaner.create();
+    private final NavigableMap<Integer, Table> tables;
+    private final TableSnapshot attached;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    private TableSnapshot(@NotNull final NavigableMap<Integer, Table> tables,
+                          @Nullable final TableSnapshot attached) {
+        this.tables = tables;
+        this.attached = attached;
+    }
+
+    /**
+     * Pins all tables of the current set. A table cleared and released by all
+     * readers after the set was taken means a newer set is already published,
+     * so pinning starts over with that one.
+     *
+     * @param current supplier of the current immutable set of tables
+     * @return pinned snapshot
+     */
+    static TableSnapshot pin(@NotNull final Supplier<NavigableMap<Integer, Table>> current) {
+        return pin(current, null);
+    }
+
+    /**
+     * Pins all tables of the current set, the attached snapshot is released
+     * along with this one.
+     *
+     * @param current  supplier of the current immutable set of tables
+     * @param attached snapshot pinned before or null
+     * @return pinned snapshot
+     */
+    static TableSnapshot pin(@NotNull final Supplier<NavigableMap<Integer, Table>> current,
+                             @Nullable final TableSnapshot attached) {
+        while (true) {
+            final NavigableMap<Integer, Table> tables = current.get();
+            final TableSnapshot snapshot = new TableSnapshot(tables, attached);
+            int pinned = 0;
+            for (final Table table : tables.values()) {
+                if (!table.retain()) {
+                    break;
+                }
+                pinned++;
+            }
+            if (pinned == tables.size()) {
+                return snapshot;
+            }
+            for (final Table table : tables.values()) {
+                if (pinned-- == 0) {
+                    break;
+                }
+                table.release();
+            }
+        }
+    }
+
+    NavigableMap<Integer, Table> tables() {
+        return tables;
+    }
+
+    void release() {
+        if (released.compareAndSet(false, true)) {
+            for (final Table table : tables.values()) {
+                table.release();
+            }
+            if (attached != null) {
+                attached.release();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        release();
+    }
+
+    /**
+     * Wraps an iterator over the snapshot to release the snapshot when the
+     * iterator is exhausted, closed or collected. A closed iterator is empty,
+     * and closing waits for a concurrent step, so no step reads released tables.
+     *
+     * @param iterator iterator over rows of the pinned tables
+     * @return iterator which releases the snapshot
+     */
+    <T> CloseableIterator<T> iterator(@NotNull final Iterator<T> iterator) {
+        final CloseableIterator<T> pinned = new CloseableIterator<>() {
+            @Override
+            public synchronized boolean hasNext() {
+                if (!released.get() && iterator.hasNext()) {
+                    return true;
+                }
+                release();
+                return false;
+            }
+
+            @Override
+            public synchronized T next() {
+                return iterator.next();
+            }
+
+            @Override
+            public synchronized void close() {
+                release();
+            }
+        };
+        CLEANER.register(pinned, this);
+        return pinned;
+    }
+}
@@ -7,18 +7,21 @@ class TableToFlush {
     private final int fileIndex;
     private final boolean poisonPill;
     private final boolean compacting;
+    private final long logSegment;
 
-    TableToFlush(@NotNull final Table table, final int fileIndex) {
-        this(table, fileIndex, false);
+    TableToFlush(@NotNull final Table table, final int fileIndex, final long logSegment) {
+        this(table, fileIndex, logSegment, false);
     }
 
-    TableToFlush(@NotNull final Table table, final int fileIndex, final boolean poisonPill) {
-        this(table, fileIndex, poisonPill, false);
+    TableToFlush(@NotNull final Table table, final int fileIndex, final long logSegment, final boolean poisonPill) {
+        this(table, fileIndex, logSegment, poisonPill, false);
     }
 
-    TableToFlush(@NotNull final Table table, final int fileIndex, final boolean poisonPill, final boolean compacting) {
+    TableToFlush(@NotNull final Table table, final int fileIndex, final long logSegment,
+                 final boolean poisonPill, final boolean compacting) {
         this.table = table;
         this.fileIndex = fileIndex;
+        this.logSegment = logSegment;
         this.poisonPill = poisonPill;
         this.compacting = compacting;
     }
@@ -31,6 +34,13 @@ class TableToFlush {
         return fileIndex;
     }
 
+    /**
+     * Commit log segments up to this one can be released after the table is flushed.
+     */
+    long getLogSegment() {
+        return logSegment;
+    }
+
     boolean isPoisonPill() {
         return poisonPill;
     }
@@ -2,7 +2,12 @@ package ru.mail.polis.dao.shkalev;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
@@ -12,16 +17,20 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.NavigableMap;
-import java.util.Map;
 
 import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.RateLimiter;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import ru.mail.polis.dao.Iters;
 
 final class Utils {
     private static final String TMP = ".tmp";
     private static final ByteBuffer LEAST_KEY = MySuperDAO.LEAST_KEY;
-    static final int START_FILE_INDEX = 0;
+    private static final Logger log = LoggerFactory.getLogger(Utils.class);
+    private static final MethodHandle INVOKE_CLEANER = invokeCleaner();
     private static int timeCounter;
     private static long lastMillis;
 
@@ -32,93 +41,136 @@ final class Utils {
      * Compact files. Since deletions and changes accumulate, we have to collapse
      * all these changes, on the one hand, reducing the search time, on the
      * other - reducing the required storage space. Single file will be created
-     * in which the most relevant data will be stored and the rest will be deleted.
+     * in which the most relevant data will be stored. The table takes generation of
+     * the newest given table, so it keeps its place among other tables, but it is
+     * written to a new file. Replacing the given tables in the manifest and deleting
+     * their files is up to the caller. Range tombstones of the given tables are
+     * kept, since they may shadow rows of older tables, while the rows they
+     * shadow are dropped. Expired values become tombstones of the time they
+     * were written, since they may shadow older values too. Point and range
+     * tombstones written before {@code gcBefore} are purged, the caller passes
+     * it only if no older table is left to shadow. The new file and its directory
+     * are forced to disk before the file is returned.
      *
      * @param rootDir    base directory
-     * @param fileTables list file tables that will collapse
+     * @param fileTables adjacent file tables that will collapse
+     * @param number     number of the new file
+     * @param codec      block compression codec of the compacted file
+     * @param limiter    limiter of written bytes or null to write at full speed
+     * @param gcBefore   tombstones with older timestamps are purged, {@link Long#MIN_VALUE} keeps all
+     * @return file of the table that will replace the given tables
      * @throws IOException if an I/O error is thrown by FileTable.iterator
      */
-    static Table compactFiles(@NotNull final File rootDir,
-                              @NotNull final NavigableMap<Integer, Table> fileTables) throws IOException {
+    static File compactFiles(@NotNull final File rootDir,
+                              @NotNull final NavigableMap<Integer, Table> fileTables,
+                              final int number,
+                              @NotNull final BlockCodec codec,
+                              @Nullable final RateLimiter limiter,
+                              final long gcBefore) throws IOException {
         final List<Iterator<Row>> tableIterators = new ArrayList<>();
+        final List<RangeTombstones> ranges = new ArrayList<>();
         for (final Table fileT : fileTables.values()) {
             tableIterators.add(fileT.iterator(LEAST_KEY));
+            ranges.add(fileT.rangeTombstones());
         }
-        final Iterator<Row> filteredRow = getActualRowIterator(tableIterators);
-        final File compactFileTmp = compact(rootDir, filteredRow);
-        for (final Map.Entry<Integer, Table> entry :
-                fileTables.entrySet()) {
-            entry.getValue().clear();
+        final RangeTombstones merged = RangeTombstones.merge(ranges);
+        final long now = currentTime();
+        final Iterator<Row> actual = Iterators.transform(merged.drop(getActualRowIterator(tableIterators)),
+                row -> row.at(now));
+        final Iterator<Row> filteredRow = Iterators.filter(actual, row -> !row.isDead() || row.getTime() >= gcBefore);
+        final File compactFileTmp = new File(rootDir, MySuperDAO.PREFIX + number + TMP);
+        try {
+            write(compactFileTmp,
+                    limiter == null ? filteredRow : throttled(filteredRow, limiter),
+                    merged.purge(gcBefore),
+                    codec);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(compactFileTmp.toPath());
+            throw e;
         }
-        final String fileDbName = MySuperDAO.PREFIX + START_FILE_INDEX + MySuperDAO.SUFFIX;
-        final File compactFileDb = new File(rootDir, fileDbName);
+        final File compactFileDb = Manifest.file(rootDir, number);
         Files.move(compactFileTmp.toPath(), compactFileDb.toPath(), StandardCopyOption.ATOMIC_MOVE);
-        return new FileTable(compactFileDb);
+        syncDirectory(rootDir);
+        return compactFileDb;
     }
 
-    private static File compact(@NotNull final File rootDir,
-                                @NotNull final Iterator<Row> rows) throws IOException {
-        final String fileTableName = MySuperDAO.PREFIX + START_FILE_INDEX + TMP;
-        final File table = new File(rootDir, fileTableName);
-        Utils.write(table, rows);
-        return table;
+    /**
+     * Unmaps the buffer right away instead of waiting for GC to collect it.
+     * Neither the buffer nor any of its slices may be accessed afterwards.
+     *
+     * @param mapped buffer returned by {@link java.nio.channels.FileChannel#map}
+     */
+    static void unmap(@NotNull final MappedByteBuffer mapped) {
+        free(mapped);
     }
 
     /**
-     * Writes data to file. First writes all row: key length, key, status (DEAD, ALIVE),
-     * value length, value. Then writes offsets array, and then writes amount of row.
+     * Frees memory of the direct buffer right away instead of waiting for GC
+     * to collect it. Neither the buffer nor any of its slices may be accessed afterwards.
      *
-     * @param to   file being recorded
-     * @param rows strings to be written to file
-     * @throws IOException if an I/O error is thrown by a write method
+     * @param direct buffer returned by {@link ByteBuffer#allocateDirect} or mapped
      */
-    static void write(@NotNull final File to,
-                      @NotNull final Iterator<Row> rows) throws IOException {
-        try (FileChannel fileChannel = FileChannel.open(to.toPath(),
-                StandardOpenOption.CREATE_NEW,
-                StandardOpenOption.WRITE)) {
-            final List<Integer> offsets = writeRows(fileChannel, rows);
-            writeOffsets(fileChannel, offsets);
-            fileChannel.write(Bytes.fromInt(offsets.size()));
+    static void free(@NotNull final ByteBuffer direct) {
+        if (INVOKE_CLEANER == null) {
+            return;
+        }
+        try {
+            INVOKE_CLEANER.invokeExact(direct);
+        } catch (Throwable e) {
+            log.error("Exception during freeing of direct buffer", e);
         }
     }
 
-    private static int writeByteBuffer(@NotNull final FileChannel fc,
-                                       @NotNull final ByteBuffer buffer) throws IOException {
-        int offset = 0;
-        offset += fc.write(Bytes.fromInt(buffer.remaining()));
-        offset += fc.write(buffer);
-        return offset;
-    }
-
-    private static void writeOffsets(@NotNull final FileChannel fc,
-                                     @NotNull final List<Integer> offsets) throws IOException {
-        for (final Integer elemOffSets : offsets) {
-            fc.write(Bytes.fromInt(elemOffSets));
+    @Nullable
+    private static MethodHandle invokeCleaner() {
+        try {
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return MethodHandles.lookup()
+                    .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                    .bindTo(theUnsafe.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.warn("Direct buffers can't be freed explicitly and are left to GC", e);
+            return null;
         }
     }
 
-    private static List<Integer> writeRows(@NotNull final FileChannel fc,
-                                           @NotNull final Iterator<Row> rows) throws IOException {
-        final List<Integer> offsets = new ArrayList<>();
-        int offset = 0;
-        while (rows.hasNext()) {
-            offsets.add(offset);
-            final Row row = rows.next();
+    private static Iterator<Row> throttled(@NotNull final Iterator<Row> rows,
+                                           @NotNull final RateLimiter limiter) {
+        return Iterators.transform(rows, row -> {
+            limiter.acquire(row.getKey().remaining() + row.getValue().remaining() + Long.BYTES);
+            return row;
+        });
+    }
 
-            //Key
-            offset += writeByteBuffer(fc, row.getKey());
+    /**
+     * Writes data to file in the block format, see
+     * {@link FileTableWriter#write(File, Iterator, RangeTombstones, BlockCodec)}.
+     *
+     * @param to     file being recorded
+     * @param rows   strings to be written to file
+     * @param ranges range tombstones to be written to file
+     * @param codec  block compression codec
+     * @throws IOException if an I/O error is thrown by a write method
+     */
+    static void write(@NotNull final File to,
+                      @NotNull final Iterator<Row> rows,
+                      @NotNull final RangeTombstones ranges,
+                      @NotNull final BlockCodec codec) throws IOException {
+        FileTableWriter.write(to, rows, ranges, codec);
+    }
 
-            //Value
-            if (row.isDead()) {
-                offset += fc.write(Bytes.fromInt(MySuperDAO.DEAD));
-            } else {
-                offset += fc.write(Bytes.fromInt(MySuperDAO.ALIVE));
-                offset += writeByteBuffer(fc, row.getValue()); // row.getValue().getData()
-            }
-            offset += fc.write(Bytes.fromLong(row.getTime()));
+    /**
+     * Forces the directory to disk, so files created or renamed in it survive a crash.
+     *
+     * @param dir directory
+     * @throws IOException if the directory can't be forced
+     */
+    static void syncDirectory(@NotNull final File dir) throws IOException {
+        try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
         }
-        return offsets;
     }
 
     /**
@@ -136,16 +188,14 @@ final class Utils {
         return Iterators.filter(iterator, row -> !row.isDead());
     }
 
-    static List<Iterator<Row>> getListIterators(@NotNull final NavigableMap<Integer, Table> tables,
-                                                @NotNull final Table memTable,
-                                                @NotNull final ByteBuffer from) throws IOException {
-        final List<Iterator<Row>> tableIterators = new ArrayList<>();
-        for (final Table fileT : tables.descendingMap().values()) {
-            tableIterators.add(fileT.iterator(from));
-        }
-        final Iterator<Row> memTableIterator = memTable.iterator(from);
-        tableIterators.add(memTableIterator);
-        return tableIterators;
+    /**
+     * Current time on the scale of row timestamps. Unlike {@link #currentTimeNanos()}
+     * it doesn't take a unique timestamp, so it is cheap enough for every read.
+     *
+     * @return current time
+     */
+    static long currentTime() {
+        return System.currentTimeMillis() * 1_000_000;
     }
 
     static long currentTimeNanos() {
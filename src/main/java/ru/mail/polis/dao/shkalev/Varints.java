@@ -0,0 +1,60 @@
+package ru.mail.polis.dao.shkalev;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Variable-length encoding of non-negative numbers, seven bits per byte with the
+ * high bit set on all bytes but the last. Signed numbers are zigzag encoded first.
+ */
+final class Varints {
+    private static final int PAYLOAD = 0x7F;
+    private static final int CONTINUATION = 0x80;
+
+    private Varints() {
+    }
+
+    static int size(final long value) {
+        int size = 1;
+        long rest = value >>> 7;
+        while (rest != 0) {
+            size++;
+            rest >>>= 7;
+        }
+        return size;
+    }
+
+    static void put(@NotNull final ByteBuffer buffer, final long value) {
+        long rest = value;
+        while ((rest & ~PAYLOAD) != 0) {
+            buffer.put((byte) (rest & PAYLOAD | CONTINUATION));
+            rest >>>= 7;
+        }
+        buffer.put((byte) rest);
+    }
+
+    static long getLong(@NotNull final ByteBuffer buffer) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            value |= (long) (b & PAYLOAD) << shift;
+            shift += 7;
+        } while ((b & CONTINUATION) != 0);
+        return value;
+    }
+
+    static int getInt(@NotNull final ByteBuffer buffer) {
+        return (int) getLong(buffer);
+    }
+
+    static long zigzag(final long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unzigzag(final long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
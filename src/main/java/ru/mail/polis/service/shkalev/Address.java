@@ -7,24 +7,35 @@ import java.util.Comparator;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+/**
+ * Address of a node, {@code http://host:port} or {@code http://host:port?rpc=port} if the node
+ * serves the internal binary protocol. A node is identified by its HTTP address only.
+ */
 public class Address implements Comparable<Address> {
+    static final int NO_RPC_PORT = -1;
+    private static final String RPC_PORT = "?rpc=";
     private final String host;
     private final int port;
+    private final int rpcPort;
 
     Address(@NotNull final String host, final int port) {
         this.host = host;
         this.port = port;
+        this.rpcPort = NO_RPC_PORT;
     }
 
     Address(@NotNull final String address) {
+        final int rpc = address.indexOf(RPC_PORT);
+        final String http = rpc < 0 ? address : address.substring(0, rpc);
         final String regex = "http.?://.*:";
         final Pattern pattern = Pattern.compile(regex);
-        final Matcher matcher = pattern.matcher(address);
+        final Matcher matcher = pattern.matcher(http);
         if (matcher.find()) {
-            this.host = address.substring(0, matcher.end() - 1);
-            this.port = Integer.parseInt(address.substring(matcher.end()));
+            this.host = http.substring(0, matcher.end() - 1);
+            this.port = Integer.parseInt(http.substring(matcher.end()));
+            this.rpcPort = rpc < 0 ? NO_RPC_PORT : Integer.parseInt(address.substring(rpc + RPC_PORT.length()));
         } else {
-            throw new IllegalArgumentException("Invalid address. (http://host:port)");
+            throw new IllegalArgumentException("Invalid address. (http://host:port or http://host:port?rpc=port)");
         }
     }
 
@@ -36,6 +47,15 @@ public class Address implements Comparable<Address> {
         return port;
     }
 
+    /**
+     * Port of the internal binary protocol of the node.
+     *
+     * @return the port or {@link #NO_RPC_PORT} if the address has none
+     */
+    int getRpcPort() {
+        return rpcPort;
+    }
+
     @Override
     public boolean equals(@NotNull final Object o) {
         if (this == o) return true;
@@ -1,65 +1,210 @@
 package ru.mail.polis.service.shkalev;
 
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import one.nio.http.HttpSession;
 import one.nio.http.Request;
 import one.nio.http.Response;
 import org.checkerframework.checker.nullness.qual.NonNull;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.mail.polis.dao.shkalev.AdvancedDAO;
+import ru.mail.polis.dao.shkalev.Mutation;
 
 import java.io.IOException;
-import java.net.http.HttpClient;
-import java.net.http.HttpResponse;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
-import java.time.Duration;
+import java.nio.charset.StandardCharsets;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.Set;
 import java.util.Comparator;
 import java.util.Map;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Optional;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.concurrent.Executor;
 import java.util.ArrayList;
 import java.util.NoSuchElementException;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Function;
+import java.util.function.IntFunction;
 import java.util.stream.Collectors;
 
 public class AsyncReplicator implements Replicator {
     private static final String IO_EXCEPTION_MSG = "IOException on session send error";
+    private static final int CREATED = 201;
+    private static final int OK = 200;
     private final Logger log = LoggerFactory.getLogger(AsyncReplicator.class);
     private final Topology<Address> topology;
     private final AdvancedDAO dao;
-    private final HttpClient client;
+    private static final double HEDGE_PERCENTILE = 0.95;
+    private final Transport transport;
     private final Executor executor;
-    private static final Duration TIME_OUT = HttpRequestCreator.TIME_OUT;
+    private final boolean hedgedReads;
+    private final LatencyTracker readLatency;
 
     /**
      * Class for replication of request to other nodes.
      *
      * @param executor executor for async working.
      * @param topology topology of cluster.
-     * @param dao      LSMDao.
+     * @param dao       LSMDao.
+     * @param transport   transport of calls to other nodes.
+     * @param hedgedReads whether reads ask other replicas only if first ones are slow, see {@link HedgedRead}.
      */
-    public AsyncReplicator(@NotNull final Executor executor,
-                           @NotNull final Topology<Address> topology,
-                           @NotNull final AdvancedDAO dao) {
+    AsyncReplicator(@NotNull final Executor executor,
+                    @NotNull final Topology<Address> topology,
+                    @NotNull final AdvancedDAO dao,
+                    @NotNull final Transport transport,
+                    final boolean hedgedReads) {
+        this(executor, topology, dao, transport, hedgedReads,
+                new LatencyTracker(HEDGE_PERCENTILE, HttpRequestCreator.TIME_OUT.toNanos()));
+    }
+
+    /**
+     * Class for replication of request to other nodes.
+     *
+     * @param executor    executor for async working.
+     * @param topology    topology of cluster.
+     * @param dao         LSMDao.
+     * @param transport   transport of calls to other nodes.
+     * @param hedgedReads whether reads ask other replicas only if first ones are slow, see {@link HedgedRead}.
+     * @param readLatency latencies of remote reads giving the hedge delay.
+     */
+    AsyncReplicator(@NotNull final Executor executor,
+                    @NotNull final Topology<Address> topology,
+                    @NotNull final AdvancedDAO dao,
+                    @NotNull final Transport transport,
+                    final boolean hedgedReads,
+                    @NotNull final LatencyTracker readLatency) {
         this.topology = topology;
         this.dao = dao;
         this.executor = executor;
-        final Executor clientExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
-                new ThreadFactoryBuilder().setNameFormat("asyncHttpClient").build());
-        this.client = HttpClient.newBuilder()
-                .connectTimeout(TIME_OUT)
-                .executor(clientExecutor)
-                .build();
+        this.transport = transport;
+        this.hedgedReads = hedgedReads;
+        this.readLatency = readLatency;
+    }
+
+    /**
+     * Read which asks {@code ack} replicas, the local one first. The rest of the
+     * replicas are asked if some replica fails, or if the read lasts longer than
+     * the 95th percentile of latencies of recent remote replica reads. Local reads
+     * are not sampled: being much faster, they would make reads hedge too early.
+     */
+    private final class HedgedRead {
+        private final ByteBuffer key;
+        private final List<Address> replicas;
+        private final int ack;
+        private final Collection<Response> responses;
+        private final AtomicInteger asked = new AtomicInteger();
+        private final AtomicInteger errors = new AtomicInteger();
+        private final CompletableFuture<Collection<Response>> result = new CompletableFuture<>();
+
+        private HedgedRead(@NotNull final ByteBuffer key, @NotNull final Replicas rf) {
+            this.key = key;
+            this.replicas = new ArrayList<>(topology.primaryFor(key, rf));
+            this.replicas.sort(Comparator.comparing(address -> !topology.isMe(address)));
+            this.ack = Math.min(rf.getAck(), replicas.size());
+            this.responses = new ArrayList<>(ack);
+        }
+
+        private CompletableFuture<Collection<Response>> start() {
+            for (int i = 0; i < ack; i++) {
+                ask();
+            }
+            if (ack < replicas.size()) {
+                CompletableFuture.delayedExecutor(readLatency.delayNanos(), TimeUnit.NANOSECONDS, executor)
+                        .execute(this::hedge);
+            }
+            return result;
+        }
+
+        private void hedge() {
+            while (!result.isDone() && ask()) {
+                continue;
+            }
+        }
+
+        private boolean ask() {
+            final int index = asked.getAndIncrement();
+            if (index >= replicas.size()) {
+                return false;
+            }
+            final Address address = replicas.get(index);
+            final boolean local = topology.isMe(address);
+            final long start = readLatency.now();
+            final CompletableFuture<Response> future = local
+                    ? CompletableFuture.supplyAsync(() -> get(key), executor)
+                    : transport.send(address, Call.get(key));
+            future.whenCompleteAsync((response, error) -> {
+                if (error != null) {
+                    failed();
+                    return;
+                }
+                if (!local) {
+                    readLatency.recordSince(start);
+                }
+                answered(response);
+            }, executor).exceptionally(e -> {
+                log.error("Hedged read error - ", e);
+                return null;
+            });
+            return true;
+        }
+
+        private void failed() {
+            if (errors.incrementAndGet() > replicas.size() - ack) {
+                result.completeExceptionally(new RejectedExecutionException("Not enough replicas"));
+                return;
+            }
+            ask();
+        }
+
+        private void answered(@NotNull final Response response) {
+            synchronized (responses) {
+                if (responses.size() >= ack) {
+                    return;
+                }
+                responses.add(response);
+                if (responses.size() == ack) {
+                    result.complete(responses);
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies a call of another node locally.
+     *
+     * @param call call
+     * @return response to the call
+     * @throws IllegalArgumentException if the body of the call is malformed
+     */
+    Response handle(@NotNull final Call call) {
+        switch (call.getOp()) {
+            case Call.GET:
+                return get(call.getKey());
+            case Call.PUT:
+                return put(call.getBody(), call.getKey(), call.getTtlSeconds());
+            case Call.DELETE:
+                return delete(call.getKey());
+            case Call.RANGE_DELETE:
+                return deleteRange(call.getKey(), call.getEnd());
+            case Call.BATCH:
+                return apply(Batches.parse(call.getBody()));
+            case Call.MULTI_GET:
+                return versions(MultiGets.parseKeys(call.getBody()));
+            default:
+                throw new IllegalArgumentException("Unknown operation " + call.getOp());
+        }
     }
 
     @Override
@@ -69,9 +214,13 @@ public class AsyncReplicator implements Replicator {
             execGet(session, key);
             return;
         }
+        if (hedgedReads) {
+            sendActualResponse(new HedgedRead(key, rf).start(), session);
+            return;
+        }
         final Collection<CompletableFuture<Response>> futures = replication(() -> get(key),
                 topology.primaryFor(key, rf),
-                new HttpRequestCreator(rf, key.duplicate(), request, request.getMethod()));
+                Call.get(key));
 
         final CompletableFuture<Collection<Response>> future = collect(futures, rf.getAck());
         sendActualResponse(future, session);
@@ -84,14 +233,16 @@ public class AsyncReplicator implements Replicator {
 
     @Override
     public void executePut(@NotNull final HttpSession session, @NotNull final Request request,
-                           @NotNull final ByteBuffer key, final boolean isProxy, @NotNull final Replicas rf) {
+                           @NotNull final ByteBuffer key, final long ttlSeconds, final boolean isProxy,
+                           @NotNull final Replicas rf) {
         if (isProxy) {
-            executeAsync(session, () -> put(request, key));
+            executeAsync(session, () -> put(request.getBody(), key, ttlSeconds));
             return;
         }
-        final Collection<CompletableFuture<Response>> futures = replication(() -> put(request, key),
+        final Collection<CompletableFuture<Response>> futures = replication(
+                () -> put(request.getBody(), key, ttlSeconds),
                 topology.primaryFor(key, rf),
-                new HttpRequestCreator(rf, key.duplicate(), request, request.getMethod()));
+                Call.put(key, request.getBody(), ttlSeconds));
         final CompletableFuture<Collection<Response>> future = collect(futures, rf.getAck());
         sendActualResponse(future, session);
     }
@@ -105,11 +256,180 @@ public class AsyncReplicator implements Replicator {
         }
         final Collection<CompletableFuture<Response>> futures = replication(() -> delete(key),
                 topology.primaryFor(key, rf),
-                new HttpRequestCreator(rf, key.duplicate(), request, request.getMethod()));
+                Call.delete(key));
         final CompletableFuture<Collection<Response>> future = collect(futures, rf.getAck());
         sendActualResponse(future, session);
     }
 
+    /**
+     * Keys of the range belong to all nodes, so the deletion goes to every node.
+     * It succeeds once all but {@code from - ack} nodes applied it, then every
+     * key of the range is deleted on at least {@code ack} of its replicas.
+     */
+    @Override
+    public void executeRangeDelete(@NotNull final HttpSession session, @NotNull final String start,
+                                   @Nullable final String end, final boolean isProxy, @NotNull final Replicas rf) {
+        final ByteBuffer from = ByteBuffer.wrap(start.getBytes(StandardCharsets.UTF_8));
+        final ByteBuffer to = end == null ? null : ByteBuffer.wrap(end.getBytes(StandardCharsets.UTF_8));
+        if (isProxy) {
+            executeAsync(session, () -> deleteRange(from, to));
+            return;
+        }
+        final Set<Address> nodes = topology.all();
+        final Collection<CompletableFuture<Response>> futures = replication(() -> deleteRange(from, to),
+                nodes,
+                Call.rangeDelete(from, to));
+        final int acks = Math.max(1, nodes.size() - rf.getFrom() + rf.getAck());
+        final CompletableFuture<Collection<Response>> future = collect(futures, Math.min(acks, nodes.size()));
+        sendActualResponse(future, session);
+    }
+
+    /**
+     * Groups mutations by replicas of their keys and sends one request per node.
+     * The batch succeeds once every mutation is applied by {@code ack} of its replicas.
+     */
+    @Override
+    public void executeBatch(@NotNull final HttpSession session, @NotNull final List<Mutation> batch,
+                             final boolean isProxy, @NotNull final Replicas rf) {
+        if (isProxy) {
+            executeAsync(session, () -> apply(batch));
+            return;
+        }
+        final Map<Address, List<Integer>> groups = groupByReplicas(batch.size(), i -> batch.get(i).getKey(), rf);
+        if (groups.isEmpty()) {
+            sendResponse(session, new Response(Response.CREATED, Response.EMPTY));
+            return;
+        }
+        final AtomicIntegerArray acks = new AtomicIntegerArray(batch.size());
+        final AtomicInteger unacked = new AtomicInteger(batch.size());
+        final AtomicInteger pending = new AtomicInteger(groups.size());
+        final AtomicBoolean responded = new AtomicBoolean();
+        for (final Map.Entry<Address, List<Integer>> group : groups.entrySet()) {
+            final List<Mutation> mutations = new ArrayList<>(group.getValue().size());
+            for (final Integer index : group.getValue()) {
+                mutations.add(batch.get(index));
+            }
+            final CompletableFuture<Response> future;
+            if (topology.isMe(group.getKey())) {
+                future = CompletableFuture.supplyAsync(() -> apply(mutations), executor);
+            } else {
+                future = transport.send(group.getKey(), Call.batch(Batches.encode(mutations)));
+            }
+            future.whenCompleteAsync((response, error) -> {
+                if (error == null && response.getStatus() == CREATED) {
+                    for (final Integer index : group.getValue()) {
+                        if (acks.incrementAndGet(index) == rf.getAck()
+                                && unacked.decrementAndGet() == 0
+                                && responded.compareAndSet(false, true)) {
+                            sendResponse(session, new Response(Response.CREATED, Response.EMPTY));
+                        }
+                    }
+                }
+                if (pending.decrementAndGet() == 0 && responded.compareAndSet(false, true)) {
+                    sendResponse(session, new Response(ServiceUtils.NOT_ENOUGH_REPLICAS, Response.EMPTY));
+                }
+            }, executor).exceptionally(e -> {
+                log.error("Batch replication error - ", e);
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Sends one request with all keys of a node to every replica, see {@link MultiGetCollector}.
+     */
+    @Override
+    public void executeMultiGet(@NotNull final StorageSession session, @NotNull final List<ByteBuffer> keys,
+                                final boolean isProxy, @NotNull final Replicas rf) {
+        if (isProxy) {
+            executeAsync(session, () -> versions(keys));
+            return;
+        }
+        if (keys.isEmpty()) {
+            try {
+                session.stream(Collections.emptyIterator());
+            } catch (IOException e) {
+                sendError(session, e);
+            }
+            return;
+        }
+        final Map<Address, List<Integer>> groups = groupByReplicas(keys.size(), keys::get, rf);
+        final MultiGetCollector collector = new MultiGetCollector(session, keys, rf.getAck(), groups.size());
+        for (final Map.Entry<Address, List<Integer>> group : groups.entrySet()) {
+            final List<ByteBuffer> groupKeys = new ArrayList<>(group.getValue().size());
+            for (final Integer index : group.getValue()) {
+                groupKeys.add(keys.get(index));
+            }
+            final CompletableFuture<List<MultiGets.Version>> future;
+            if (topology.isMe(group.getKey())) {
+                future = CompletableFuture.supplyAsync(() -> localVersions(groupKeys), executor);
+            } else {
+                future = transport.send(group.getKey(), Call.multiGet(MultiGets.encodeKeys(groupKeys)))
+                        .thenApply(r -> {
+                            if (r.getStatus() != OK) {
+                                throw new IllegalStateException("Multi-get failed with " + r.getStatus());
+                            }
+                            return MultiGets.parseVersions(r.getBody(), groupKeys.size());
+                        });
+            }
+            future.whenCompleteAsync((versions, error) -> {
+                if (error == null) {
+                    collector.answer(group.getValue(), versions);
+                } else {
+                    collector.fail();
+                }
+            }, executor).exceptionally(e -> {
+                log.error("Multi-get replication error - ", e);
+                return null;
+            });
+        }
+    }
+
+    private Map<Address, List<Integer>> groupByReplicas(final int size,
+                                                        @NotNull final IntFunction<ByteBuffer> keys,
+                                                        @NotNull final Replicas rf) {
+        final Map<Address, List<Integer>> groups = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            for (final Address address : topology.primaryFor(keys.apply(i), rf)) {
+                groups.computeIfAbsent(address, a -> new ArrayList<>()).add(i);
+            }
+        }
+        return groups;
+    }
+
+    private Response versions(@NotNull final List<ByteBuffer> keys) {
+        try {
+            return new Response(Response.OK, MultiGets.encodeVersions(localVersions(keys)));
+        } catch (UncheckedIOException e) {
+            log.error("Cant get versions from dao", e);
+            return new Response(Response.INTERNAL_ERROR, Response.EMPTY);
+        }
+    }
+
+    private List<MultiGets.Version> localVersions(@NotNull final List<ByteBuffer> keys) {
+        final List<MultiGets.Version> versions = new ArrayList<>(keys.size());
+        for (final ByteBuffer key : keys) {
+            try {
+                versions.add(MultiGets.Version.of(dao.getRow(key.duplicate())));
+            } catch (NoSuchElementException e) {
+                versions.add(null);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return versions;
+    }
+
+    private Response apply(@NotNull final List<Mutation> batch) {
+        try {
+            dao.apply(batch);
+            return new Response(Response.CREATED, Response.EMPTY);
+        } catch (IOException e) {
+            log.error("Cant apply batch to dao", e);
+            return new Response(Response.INTERNAL_ERROR, Response.EMPTY);
+        }
+    }
+
     private Response get(@NotNull final ByteBuffer key) {
         try {
             return ServiceUtils.responseFromRow(dao.getRow(key));
@@ -121,10 +441,15 @@ public class AsyncReplicator implements Replicator {
         }
     }
 
-    private Response put(@NotNull final Request request,
-                         @NotNull final ByteBuffer key) {
+    private Response put(@NotNull final byte[] body,
+                         @NotNull final ByteBuffer key,
+                         final long ttlSeconds) {
         try {
-            dao.upsert(key, ByteBuffer.wrap(request.getBody()));
+            if (ttlSeconds == ServiceUtils.NO_TTL) {
+                dao.upsert(key, ByteBuffer.wrap(body));
+            } else {
+                dao.upsert(key, ByteBuffer.wrap(body), TimeUnit.SECONDS.toMillis(ttlSeconds));
+            }
             return new Response(Response.CREATED, Response.EMPTY);
         } catch (IOException e) {
             log.error("Cant upsert into dao", e);
@@ -142,6 +467,16 @@ public class AsyncReplicator implements Replicator {
         }
     }
 
+    private Response deleteRange(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) {
+        try {
+            dao.removeRange(from, to);
+            return new Response(Response.ACCEPTED, Response.EMPTY);
+        } catch (IOException e) {
+            log.error("Cant remove range from dao", e);
+            return new Response(Response.INTERNAL_ERROR, Response.EMPTY);
+        }
+    }
+
     private void executeAsync(@NotNull final HttpSession session,
                               @NotNull final Action action) {
         executor.execute(() -> {
@@ -227,15 +562,13 @@ public class AsyncReplicator implements Replicator {
 
     private Collection<CompletableFuture<Response>> replication(@NotNull final Action localAction,
                                                                 @NotNull final Set<Address> addresses,
-                                                                @NotNull final HttpRequestCreator requestCreator) {
+                                                                @NotNull final Call call) {
         final Collection<CompletableFuture<Response>> result = new ArrayList<>();
         for (final Address address : addresses) {
             if (topology.isMe(address)) {
                 result.add(CompletableFuture.supplyAsync(localAction::action));
             } else {
-                result.add(client.sendAsync(requestCreator.create(address),
-                        HttpResponse.BodyHandlers.ofByteArray())
-                        .thenApplyAsync(ServiceUtils::parse));
+                result.add(transport.send(address, call));
             }
         }
         return result;
@@ -0,0 +1,87 @@
+package ru.mail.polis.service.shkalev;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.dao.shkalev.Mutation;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Body of a batch request. Every mutation is an operation byte ({@link #UPSERT}
+ * or {@link #REMOVE}), key length and key, then value length and value of an
+ * upsert. Lengths are 4-byte big-endian ints.
+ */
+final class Batches {
+    static final byte UPSERT = 1;
+    static final byte REMOVE = 0;
+
+    private Batches() {
+    }
+
+    /**
+     * Parses mutations of a batch.
+     *
+     * @param body body of the request or null if it is empty
+     * @return mutations in the order of the body
+     * @throws IllegalArgumentException if the body is malformed
+     */
+    static List<Mutation> parse(@Nullable final byte[] body) {
+        final List<Mutation> batch = new ArrayList<>();
+        if (body == null) {
+            return batch;
+        }
+        final ByteBuffer buffer = ByteBuffer.wrap(body);
+        try {
+            while (buffer.hasRemaining()) {
+                final byte operation = buffer.get();
+                final ByteBuffer key = slice(buffer, buffer.getInt());
+                if (operation == UPSERT) {
+                    batch.add(Mutation.upsert(key, slice(buffer, buffer.getInt())));
+                } else if (operation == REMOVE) {
+                    batch.add(Mutation.remove(key));
+                } else {
+                    throw new IllegalArgumentException("Unknown operation " + operation);
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated batch", e);
+        }
+        return batch;
+    }
+
+    static byte[] encode(@NotNull final Collection<Mutation> batch) {
+        int size = 0;
+        for (final Mutation mutation : batch) {
+            size += Byte.BYTES + Integer.BYTES + mutation.getKey().remaining();
+            if (!mutation.isRemove()) {
+                size += Integer.BYTES + mutation.getValue().remaining();
+            }
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (final Mutation mutation : batch) {
+            final ByteBuffer key = mutation.getKey();
+            buffer.put(mutation.isRemove() ? REMOVE : UPSERT)
+                    .putInt(key.remaining())
+                    .put(key);
+            if (!mutation.isRemove()) {
+                final ByteBuffer value = mutation.getValue();
+                buffer.putInt(value.remaining())
+                        .put(value);
+            }
+        }
+        return buffer.array();
+    }
+
+    private static ByteBuffer slice(@NotNull final ByteBuffer buffer, final int size) {
+        if (size < 0 || size > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        final ByteBuffer result = buffer.duplicate().limit(buffer.position() + size).slice();
+        buffer.position(buffer.position() + size);
+        return result;
+    }
+}
@@ -0,0 +1,165 @@
+package ru.mail.polis.service.shkalev;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Operation one node asks another node to apply locally. It is sent by a
+ * {@link Transport}, and the binary encoding is the one of the internal protocol:
+ * operation byte, key, end of a range, time to live and body, where absent
+ * byte fields are written as length -1.
+ */
+final class Call {
+    static final byte GET = 1;
+    static final byte PUT = 2;
+    static final byte DELETE = 3;
+    static final byte RANGE_DELETE = 4;
+    static final byte BATCH = 5;
+    static final byte MULTI_GET = 6;
+    private static final int ABSENT = -1;
+
+    private final byte op;
+    private final ByteBuffer key;
+    private final ByteBuffer end;
+    private final long ttlSeconds;
+    private final byte[] body;
+
+    private Call(final byte op,
+                 @Nullable final ByteBuffer key,
+                 @Nullable final ByteBuffer end,
+                 final long ttlSeconds,
+                 @Nullable final byte[] body) {
+        this.op = op;
+        this.key = key == null ? null : key.duplicate();
+        this.end = end == null ? null : end.duplicate();
+        this.ttlSeconds = ttlSeconds;
+        this.body = body;
+    }
+
+    static Call get(@NotNull final ByteBuffer key) {
+        return new Call(GET, key, null, ServiceUtils.NO_TTL, null);
+    }
+
+    static Call put(@NotNull final ByteBuffer key, @NotNull final byte[] value, final long ttlSeconds) {
+        return new Call(PUT, key, null, ttlSeconds, value);
+    }
+
+    static Call delete(@NotNull final ByteBuffer key) {
+        return new Call(DELETE, key, null, ServiceUtils.NO_TTL, null);
+    }
+
+    static Call rangeDelete(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) {
+        return new Call(RANGE_DELETE, from, to, ServiceUtils.NO_TTL, null);
+    }
+
+    static Call batch(@NotNull final byte[] body) {
+        return new Call(BATCH, null, null, ServiceUtils.NO_TTL, body);
+    }
+
+    static Call multiGet(@NotNull final byte[] body) {
+        return new Call(MULTI_GET, null, null, ServiceUtils.NO_TTL, body);
+    }
+
+    byte getOp() {
+        return op;
+    }
+
+    ByteBuffer getKey() {
+        return key.duplicate();
+    }
+
+    @Nullable
+    ByteBuffer getEnd() {
+        return end == null ? null : end.duplicate();
+    }
+
+    long getTtlSeconds() {
+        return ttlSeconds;
+    }
+
+    @Nullable
+    byte[] getBody() {
+        return body;
+    }
+
+    int size() {
+        return Byte.BYTES + size(key) + size(end) + Long.BYTES
+                + Integer.BYTES + (body == null ? 0 : body.length);
+    }
+
+    void write(@NotNull final ByteBuffer buffer) {
+        buffer.put(op);
+        write(buffer, key);
+        write(buffer, end);
+        buffer.putLong(ttlSeconds);
+        if (body == null) {
+            buffer.putInt(ABSENT);
+        } else {
+            buffer.putInt(body.length).put(body);
+        }
+    }
+
+    /**
+     * Reads a call written by {@link #write(ByteBuffer)}.
+     *
+     * @param buffer buffer positioned at the call
+     * @return call
+     * @throws IllegalArgumentException if the call is malformed
+     */
+    static Call read(@NotNull final ByteBuffer buffer) {
+        try {
+            final byte op = buffer.get();
+            if (op < GET || op > MULTI_GET) {
+                throw new IllegalArgumentException("Unknown operation " + op);
+            }
+            final ByteBuffer key = readBuffer(buffer);
+            final ByteBuffer end = readBuffer(buffer);
+            final long ttlSeconds = buffer.getLong();
+            final ByteBuffer body = readBuffer(buffer);
+            if (key == null && op <= RANGE_DELETE) {
+                throw new IllegalArgumentException("No key");
+            }
+            if (body == null && (op == PUT || op >= BATCH)) {
+                throw new IllegalArgumentException("No body");
+            }
+            return new Call(op, key, end, ttlSeconds, body == null ? null : toArray(body));
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated call", e);
+        }
+    }
+
+    private static int size(@Nullable final ByteBuffer buffer) {
+        return Integer.BYTES + (buffer == null ? 0 : buffer.remaining());
+    }
+
+    private static void write(@NotNull final ByteBuffer buffer, @Nullable final ByteBuffer field) {
+        if (field == null) {
+            buffer.putInt(ABSENT);
+        } else {
+            buffer.putInt(field.remaining()).put(field.duplicate());
+        }
+    }
+
+    @Nullable
+    private static ByteBuffer readBuffer(@NotNull final ByteBuffer buffer) {
+        final int size = buffer.getInt();
+        if (size == ABSENT) {
+            return null;
+        }
+        if (size < 0 || size > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        final ByteBuffer field = buffer.duplicate().limit(buffer.position() + size).slice();
+        buffer.position(buffer.position() + size);
+        return field;
+    }
+
+    private static byte[] toArray(@NotNull final ByteBuffer buffer) {
+        final byte[] array = new byte[buffer.remaining()];
+        buffer.get(array);
+        return array;
+    }
+}
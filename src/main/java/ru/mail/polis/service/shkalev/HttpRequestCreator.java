@@ -10,56 +10,109 @@ import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 
 public class HttpRequestCreator {
-    private final Replicas rf;
-    private final String key;
+    private final String path;
     private final byte[] body;
     private final int codeStatus;
     static final Duration TIME_OUT = Duration.ofSeconds(1);
 
-    HttpRequestCreator(@NotNull final Replicas rf, @NotNull final ByteBuffer key,
-                       @NotNull final Request request, final int codeStatus) {
-        this.key = StandardCharsets.UTF_8.decode(key).toString();
-        this.rf = rf;
-        this.body = request.getBody();
+    private HttpRequestCreator(@NotNull final String path, final byte[] body, final int codeStatus) {
+        this.path = path;
+        this.body = body;
         this.codeStatus = codeStatus;
+    }
+
+    /**
+     * Creates requests of the public API applying the call on other nodes.
+     *
+     * @param call call
+     * @return creator of the requests
+     */
+    static HttpRequestCreator of(@NotNull final Call call) {
+        switch (call.getOp()) {
+            case Call.GET:
+                return new HttpRequestCreator(entity(call.getKey()), null, Request.METHOD_GET);
+            case Call.PUT:
+                return new HttpRequestCreator(entity(call.getKey())
+                        + (call.getTtlSeconds() == ServiceUtils.NO_TTL ? "" : "&ttl=" + call.getTtlSeconds()),
+                        call.getBody(), Request.METHOD_PUT);
+            case Call.DELETE:
+                return new HttpRequestCreator(entity(call.getKey()), null, Request.METHOD_DELETE);
+            case Call.RANGE_DELETE:
+                final ByteBuffer end = call.getEnd();
+                return new HttpRequestCreator("/v0/entities?start=" + toString(call.getKey())
+                        + (end == null ? "" : "&end=" + toString(end)), null, Request.METHOD_DELETE);
+            case Call.BATCH:
+                return new HttpRequestCreator("/v0/batch", call.getBody(), Request.METHOD_POST);
+            case Call.MULTI_GET:
+                return new HttpRequestCreator("/v0/multiget", call.getBody(), Request.METHOD_POST);
+            default:
+                throw new UnsupportedOperationException("Unsupported operation " + call.getOp());
+        }
+    }
+
+    private static String entity(@NotNull final ByteBuffer key) {
+        return "/v0/entity?id=" + toString(key);
+    }
+
+    private static String toString(@NotNull final ByteBuffer key) {
+        return StandardCharsets.UTF_8.decode(key).toString();
+    }
+
+    String getPath() {
+        return path;
+    }
+
+    byte[] getBody() {
+        return body;
+    }
 
+    int getMethod() {
+        return codeStatus;
     }
 
-    HttpRequest create(@NotNull final Address address) {
+    HttpRequest create(@NotNull final Address address, @NotNull final Duration timeout) {
         switch (this.codeStatus) {
             case Request.METHOD_GET:
-                return get(address);
+                return get(address, timeout);
+            case Request.METHOD_POST:
+                return post(address, timeout);
             case Request.METHOD_PUT:
-                return put(address);
+                return put(address, timeout);
             case Request.METHOD_DELETE:
-                return delete(address);
+                return delete(address, timeout);
             default:
                 throw new UnsupportedOperationException("Unsupported code status");
         }
     }
 
-    private HttpRequest get(@NotNull final Address address) {
-        return defaultBuilder(address.toString())
+    private HttpRequest get(@NotNull final Address address, @NotNull final Duration timeout) {
+        return defaultBuilder(address.toString(), timeout)
                 .GET()
                 .build();
     }
 
-    private HttpRequest put(@NotNull final Address address) {
-        return defaultBuilder(address.toString())
+    private HttpRequest put(@NotNull final Address address, @NotNull final Duration timeout) {
+        return defaultBuilder(address.toString(), timeout)
                 .PUT(HttpRequest.BodyPublishers.ofByteArray(body))
                 .build();
     }
 
-    private HttpRequest delete(@NotNull final Address address) {
-        return defaultBuilder(address.toString())
+    private HttpRequest post(@NotNull final Address address, @NotNull final Duration timeout) {
+        return defaultBuilder(address.toString(), timeout)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+                .build();
+    }
+
+    private HttpRequest delete(@NotNull final Address address, @NotNull final Duration timeout) {
+        return defaultBuilder(address.toString(), timeout)
                 .DELETE()
                 .build();
     }
 
-    private HttpRequest.Builder defaultBuilder(@NotNull final String address) {
+    private HttpRequest.Builder defaultBuilder(@NotNull final String address, @NotNull final Duration timeout) {
         return HttpRequest.newBuilder()
-                .uri(URI.create(address + "/v0/entity?id=" + key + "&replicas=" + rf.toString()))
-                .timeout(TIME_OUT)
+                .uri(URI.create(address + path))
+                .timeout(timeout)
                 .headers(ServiceUtils.PROXY_HEADER, ServiceUtils.VALUE_PROXY_HEADER);
     }
 }
@@ -0,0 +1,43 @@
+package ru.mail.polis.service.shkalev;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import one.nio.http.Response;
+import org.jetbrains.annotations.NotNull;
+
+import java.net.http.HttpClient;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Transport sending calls as requests of the public HTTP API with {@link HttpClient}.
+ */
+final class HttpTransport implements Transport {
+    private final ExecutorService clientExecutor;
+    private final HttpClient client;
+    private final Duration timeout;
+
+    HttpTransport(@NotNull final TransportConfig config) {
+        this.clientExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                new ThreadFactoryBuilder().setNameFormat("asyncHttpClient").build());
+        this.client = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofMillis(config.connectTimeoutMillis()))
+                .executor(clientExecutor)
+                .build();
+        this.timeout = Duration.ofMillis(config.timeoutMillis());
+    }
+
+    @Override
+    public CompletableFuture<Response> send(@NotNull final Address node, @NotNull final Call call) {
+        return client.sendAsync(HttpRequestCreator.of(call).create(node, timeout),
+                HttpResponse.BodyHandlers.ofByteArray())
+                .thenApplyAsync(ServiceUtils::parse);
+    }
+
+    @Override
+    public void close() {
+        clientExecutor.shutdown();
+    }
+}
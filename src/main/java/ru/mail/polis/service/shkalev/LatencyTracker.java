@@ -0,0 +1,80 @@
+package ru.mail.polis.service.shkalev;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+/**
+ * Latencies of the latest replica reads. Gives the delay after which a read is
+ * hedged, the percentile of the samples is refreshed every {@link #REFRESH} reads.
+ * Latencies are measured by the clock of the tracker.
+ */
+final class LatencyTracker {
+    private static final int SAMPLES = 1024;
+    private static final int REFRESH = 64;
+    private final AtomicLongArray samples = new AtomicLongArray(SAMPLES);
+    private final AtomicLong count = new AtomicLong();
+    private final double percentile;
+    private final long maxNanos;
+    private final LongSupplier clock;
+    private volatile long delayNanos;
+
+    /**
+     * Creates the tracker measuring latencies with {@link System#nanoTime()}.
+     *
+     * @param percentile percentile of the latencies used as the delay, from 0 to 1
+     * @param maxNanos   delay until enough reads are sampled and upper bound of the delay
+     */
+    LatencyTracker(final double percentile, final long maxNanos) {
+        this(percentile, maxNanos, System::nanoTime);
+    }
+
+    /**
+     * Creates the tracker.
+     *
+     * @param percentile percentile of the latencies used as the delay, from 0 to 1
+     * @param maxNanos   delay until enough reads are sampled and upper bound of the delay
+     * @param clock      current time in nanoseconds
+     */
+    LatencyTracker(final double percentile, final long maxNanos, @NotNull final LongSupplier clock) {
+        this.percentile = percentile;
+        this.maxNanos = maxNanos;
+        this.clock = clock;
+        this.delayNanos = maxNanos;
+    }
+
+    /**
+     * Current time of the clock, the start of a read passed to {@link #recordSince(long)}.
+     */
+    long now() {
+        return clock.getAsLong();
+    }
+
+    void recordSince(final long start) {
+        record(clock.getAsLong() - start);
+    }
+
+    void record(final long nanos) {
+        final long n = count.getAndIncrement();
+        samples.set((int) (n % SAMPLES), nanos);
+        if ((n + 1) % REFRESH == 0) {
+            refresh((int) Math.min(n + 1, SAMPLES));
+        }
+    }
+
+    long delayNanos() {
+        return delayNanos;
+    }
+
+    private void refresh(final int size) {
+        final long[] sorted = new long[size];
+        for (int i = 0; i < size; i++) {
+            sorted[i] = samples.get(i);
+        }
+        Arrays.sort(sorted);
+        delayNanos = Math.min(maxNanos, sorted[Math.min(size - 1, (int) (size * percentile))]);
+    }
+}
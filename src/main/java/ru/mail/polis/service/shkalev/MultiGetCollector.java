@@ -0,0 +1,109 @@
+package ru.mail.polis.service.shkalev;
+
+import one.nio.http.Response;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.mail.polis.Record;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Merges answers of the replicas of a multi-get. A key is resolved to its newest
+ * version once {@code ack} of its replicas answered, and its value is streamed to
+ * the client right away, so records come in the order of resolution.
+ *
+ * <p>If some key can't get enough answers, the client gets 504 when nothing is
+ * streamed yet, otherwise the stream is closed without its last chunk.
+ */
+final class MultiGetCollector {
+    private static final Logger log = LoggerFactory.getLogger(MultiGetCollector.class);
+    private final StorageSession session;
+    private final List<ByteBuffer> keys;
+    private final int ack;
+    private final AtomicIntegerArray answers;
+    private final AtomicReferenceArray<MultiGets.Version> newest;
+    private final AtomicInteger unresolved;
+    private final AtomicInteger pending;
+    private boolean streaming;
+
+    MultiGetCollector(@NotNull final StorageSession session,
+                      @NotNull final List<ByteBuffer> keys,
+                      final int ack,
+                      final int nodes) {
+        this.session = session;
+        this.keys = keys;
+        this.ack = ack;
+        this.answers = new AtomicIntegerArray(keys.size());
+        this.newest = new AtomicReferenceArray<>(keys.size());
+        this.unresolved = new AtomicInteger(keys.size());
+        this.pending = new AtomicInteger(nodes);
+    }
+
+    /**
+     * Accepts the answer of a node.
+     *
+     * @param indices  indices of the keys sent to the node
+     * @param versions versions of the keys in the same order
+     */
+    void answer(@NotNull final List<Integer> indices, @NotNull final List<MultiGets.Version> versions) {
+        for (int i = 0; i < indices.size(); i++) {
+            final int index = indices.get(i);
+            final MultiGets.Version version = versions.get(i);
+            if (version != null) {
+                newest.accumulateAndGet(index, version, MultiGets.Version::newer);
+            }
+            if (answers.incrementAndGet(index) == ack) {
+                resolve(index);
+            }
+        }
+        answered();
+    }
+
+    void fail() {
+        answered();
+    }
+
+    private void answered() {
+        if (pending.decrementAndGet() == 0 && unresolved.get() > 0) {
+            abort();
+        }
+    }
+
+    private synchronized void resolve(final int index) {
+        try {
+            if (!streaming) {
+                session.open();
+                streaming = true;
+            }
+            final MultiGets.Version version = newest.get(index);
+            final ByteBuffer value = version == null ? null : version.getValue();
+            if (value != null) {
+                session.push(Record.of(keys.get(index).duplicate(), value));
+            }
+            if (unresolved.decrementAndGet() == 0) {
+                session.finish();
+            }
+        } catch (IOException e) {
+            log.error("IOException on multi-get streaming", e);
+            session.scheduleClose();
+        }
+    }
+
+    private synchronized void abort() {
+        if (streaming) {
+            session.scheduleClose();
+            return;
+        }
+        try {
+            session.sendResponse(new Response(ServiceUtils.NOT_ENOUGH_REPLICAS, Response.EMPTY));
+        } catch (IOException e) {
+            log.error("IOException on multi-get response", e);
+        }
+    }
+}
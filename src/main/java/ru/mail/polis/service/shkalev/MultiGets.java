@@ -0,0 +1,149 @@
+package ru.mail.polis.service.shkalev;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.dao.shkalev.Row;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bodies of a multi-get. The request is a list of ids separated by new lines, the
+ * answer of a replica holds a {@link Version} of every requested key in the order
+ * of the request: state byte, timestamp and, for a live value, its length and bytes.
+ */
+final class MultiGets {
+    private static final byte ABSENT = 0;
+    private static final byte REMOVED = 1;
+    private static final byte VALUE = 2;
+    private static final byte NEW_LINE = '\n';
+
+    private MultiGets() {
+    }
+
+    /**
+     * Latest version of a key known to a replica.
+     */
+    static final class Version {
+        private final long time;
+        private final ByteBuffer value;
+
+        Version(final long time, @Nullable final ByteBuffer value) {
+            this.time = time;
+            this.value = value;
+        }
+
+        static Version of(@NotNull final Row row) {
+            return new Version(row.getTime(), row.isDead() ? null : row.getValue());
+        }
+
+        long getTime() {
+            return time;
+        }
+
+        /**
+         * Value of the key.
+         *
+         * @return value or null if the key is removed
+         */
+        @Nullable
+        ByteBuffer getValue() {
+            return value == null ? null : value.duplicate();
+        }
+
+        static Version newer(@Nullable final Version a, @NotNull final Version b) {
+            return a == null || b.time > a.time ? b : a;
+        }
+    }
+
+    static List<ByteBuffer> parseKeys(@Nullable final byte[] body) {
+        final List<ByteBuffer> keys = new ArrayList<>();
+        if (body == null) {
+            return keys;
+        }
+        int start = 0;
+        for (int i = 0; i <= body.length; i++) {
+            if (i == body.length || body[i] == NEW_LINE) {
+                if (i > start) {
+                    keys.add(ByteBuffer.wrap(body, start, i - start).slice());
+                }
+                start = i + 1;
+            }
+        }
+        return keys;
+    }
+
+    static byte[] encodeKeys(@NotNull final List<ByteBuffer> keys) {
+        int size = 0;
+        for (final ByteBuffer key : keys) {
+            size += key.remaining() + 1;
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (final ByteBuffer key : keys) {
+            buffer.put(key.duplicate()).put(NEW_LINE);
+        }
+        return buffer.array();
+    }
+
+    static byte[] encodeVersions(@NotNull final List<Version> versions) {
+        int size = 0;
+        for (final Version version : versions) {
+            size += Byte.BYTES;
+            if (version != null) {
+                size += Long.BYTES + (version.value == null ? 0 : Integer.BYTES + version.value.remaining());
+            }
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (final Version version : versions) {
+            if (version == null) {
+                buffer.put(ABSENT);
+            } else if (version.value == null) {
+                buffer.put(REMOVED).putLong(version.time);
+            } else {
+                buffer.put(VALUE)
+                        .putLong(version.time)
+                        .putInt(version.value.remaining())
+                        .put(version.value.duplicate());
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Parses the answer of a replica.
+     *
+     * @param body  body of the answer
+     * @param count number of requested keys
+     * @return versions of the keys, null for the keys unknown to the replica
+     * @throws IllegalArgumentException if the body is malformed
+     */
+    static List<Version> parseVersions(@NotNull final byte[] body, final int count) {
+        final List<Version> versions = new ArrayList<>(count);
+        final ByteBuffer buffer = ByteBuffer.wrap(body);
+        try {
+            for (int i = 0; i < count; i++) {
+                final byte state = buffer.get();
+                if (state == ABSENT) {
+                    versions.add(null);
+                } else if (state == REMOVED) {
+                    versions.add(new Version(buffer.getLong(), null));
+                } else if (state == VALUE) {
+                    final long time = buffer.getLong();
+                    final int size = buffer.getInt();
+                    if (size < 0 || size > buffer.remaining()) {
+                        throw new BufferUnderflowException();
+                    }
+                    versions.add(new Version(time, buffer.duplicate().limit(buffer.position() + size).slice()));
+                    buffer.position(buffer.position() + size);
+                } else {
+                    throw new IllegalArgumentException("Unknown state " + state);
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated versions", e);
+        }
+        return versions;
+    }
+}
@@ -0,0 +1,85 @@
+package ru.mail.polis.service.shkalev;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import one.nio.http.HttpClient;
+import one.nio.http.HttpException;
+import one.nio.http.Request;
+import one.nio.http.Response;
+import one.nio.net.ConnectionString;
+import one.nio.pool.PoolException;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Transport sending calls as requests of the public HTTP API with one-nio
+ * {@link HttpClient}s. Every node has its own pool of persistent connections,
+ * a blocking call is made on a thread of the transport and its response is
+ * passed to the replicator as is, without copying.
+ */
+final class OneNioTransport implements Transport {
+    private static final String PROXY_HEADER = ServiceUtils.PROXY_HEADER + ": " + ServiceUtils.VALUE_PROXY_HEADER;
+    private final Map<Address, HttpClient> clients = new ConcurrentHashMap<>();
+    private final ExecutorService executor;
+    private final TransportConfig config;
+
+    /**
+     * Creates the transport.
+     *
+     * @param threads threads making calls, calls over this number wait in a queue
+     * @param config  pool size, keep-alive and timeouts of the connections to a node
+     */
+    OneNioTransport(final int threads, @NotNull final TransportConfig config) {
+        this.executor = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("oneNioClient-%d").build());
+        this.config = config;
+    }
+
+    @Override
+    public CompletableFuture<Response> send(@NotNull final Address node, @NotNull final Call call) {
+        final HttpRequestCreator request = HttpRequestCreator.of(call);
+        return CompletableFuture.supplyAsync(() -> invoke(client(node), request), executor);
+    }
+
+    private HttpClient client(@NotNull final Address node) {
+        return clients.computeIfAbsent(node, n -> new HttpClient(new ConnectionString(n.toString()
+                + "?connectTimeout=" + config.connectTimeoutMillis()
+                + "&timeout=" + config.timeoutMillis()
+                + "&clientMaxPoolSize=" + config.poolSize()
+                + "&keepalive=" + config.keepAlive())));
+    }
+
+    private static Response invoke(@NotNull final HttpClient client, @NotNull final HttpRequestCreator request) {
+        try {
+            switch (request.getMethod()) {
+                case Request.METHOD_GET:
+                    return client.get(request.getPath(), PROXY_HEADER);
+                case Request.METHOD_PUT:
+                    return client.put(request.getPath(), request.getBody(), PROXY_HEADER);
+                case Request.METHOD_POST:
+                    return client.post(request.getPath(), request.getBody(), PROXY_HEADER);
+                case Request.METHOD_DELETE:
+                    return client.delete(request.getPath(), PROXY_HEADER);
+                default:
+                    throw new UnsupportedOperationException("Unsupported method " + request.getMethod());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(e);
+        } catch (PoolException | IOException | HttpException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        clients.values().forEach(HttpClient::close);
+    }
+}
@@ -3,8 +3,11 @@ package ru.mail.polis.service.shkalev;
 import one.nio.http.HttpSession;
 import one.nio.http.Request;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.dao.shkalev.Mutation;
 
 import java.nio.ByteBuffer;
+import java.util.List;
 
 public interface Replicator {
 
@@ -12,8 +15,18 @@ public interface Replicator {
                     @NotNull final ByteBuffer key, final boolean isProxy, @NotNull final Replicas rf);
 
     void executePut(@NotNull final HttpSession session, @NotNull final Request request,
-                    @NotNull final ByteBuffer key, final boolean isProxy, @NotNull final Replicas rf);
+                    @NotNull final ByteBuffer key, final long ttlSeconds, final boolean isProxy,
+                    @NotNull final Replicas rf);
 
     void executeDelete(@NotNull final HttpSession session, @NotNull final Request request,
                        @NotNull final ByteBuffer key, final boolean isProxy, @NotNull final Replicas rf);
+
+    void executeRangeDelete(@NotNull final HttpSession session, @NotNull final String start,
+                            @Nullable final String end, final boolean isProxy, @NotNull final Replicas rf);
+
+    void executeMultiGet(@NotNull final StorageSession session, @NotNull final List<ByteBuffer> keys,
+                         final boolean isProxy, @NotNull final Replicas rf);
+
+    void executeBatch(@NotNull final HttpSession session, @NotNull final List<Mutation> batch,
+                      final boolean isProxy, @NotNull final Replicas rf);
 }
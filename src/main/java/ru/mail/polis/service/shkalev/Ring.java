@@ -28,9 +28,11 @@ public class Ring implements Topology<Address> {
         nodes = new Address[servers.size()];
         leftBorder = new int[countNodes];
         nodeIndexes = new int[countNodes];
-        myNode = new Address(me);
         servers.stream().map(Address::new).collect(Collectors.toList()).toArray(nodes);
         Arrays.sort(this.nodes);
+        // The node as the servers list it, with its rpc port
+        final Address address = new Address(me);
+        myNode = Arrays.stream(nodes).filter(address::equals).findAny().orElse(address);
         final int step = (int) (((long) Integer.MAX_VALUE - (long) Integer.MIN_VALUE + 1) / countNodes);
         for (int i = 0; i < leftBorder.length; i++) {
             leftBorder[i] = Integer.MIN_VALUE + i * step;
@@ -62,6 +64,11 @@ public class Ring implements Topology<Address> {
         return myNode.equals(node);
     }
 
+    @Override
+    public Address me() {
+        return myNode;
+    }
+
     @Override
     public Set<Address> all() {
         return Set.of(nodes);
@@ -0,0 +1,129 @@
+package ru.mail.polis.service.shkalev;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.function.Consumer;
+
+/**
+ * Persistent connection of the internal protocol. A frame is its length as an int
+ * and that many bytes, which start with the id of the request the frame belongs to,
+ * so requests are pipelined and answered in any order.
+ *
+ * <p>Frames are read by the selector thread and written by any thread, what is not
+ * written at once is queued and written when the socket becomes writable.
+ */
+final class RpcChannel implements Closeable {
+    static final int HEADER = Integer.BYTES + Long.BYTES;
+    private static final int MAX_FRAME = 64 * 1024 * 1024;
+    private static final int READ_BUFFER = 64 * 1024;
+    private final SocketChannel channel;
+    private final Queue<ByteBuffer> writes = new ArrayDeque<>();
+    private SelectionKey key;
+    private ByteBuffer in = ByteBuffer.allocate(READ_BUFFER);
+
+    RpcChannel(@NotNull final SocketChannel channel) throws IOException {
+        this.channel = channel;
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+    }
+
+    /**
+     * Registers the channel, must be called by the selector thread.
+     *
+     * @param selector   selector of the thread
+     * @param attachment attachment of the selection key
+     */
+    synchronized void register(@NotNull final Selector selector, @NotNull final Object attachment) throws IOException {
+        key = channel.register(selector, writes.isEmpty() ? SelectionKey.OP_READ
+                : SelectionKey.OP_READ | SelectionKey.OP_WRITE, attachment);
+    }
+
+    /**
+     * Allocates a frame and writes its header.
+     *
+     * @param id   id of the request
+     * @param size size of the frame content after the id
+     * @return frame to put the content to
+     */
+    static ByteBuffer frame(final long id, final int size) {
+        return ByteBuffer.allocate(HEADER + size)
+                .putInt(Long.BYTES + size)
+                .putLong(id);
+    }
+
+    /**
+     * Sends the frame, the frame must be filled up to its limit.
+     */
+    synchronized void send(@NotNull final ByteBuffer frame) throws IOException {
+        frame.flip();
+        if (writes.isEmpty()) {
+            channel.write(frame);
+            if (!frame.hasRemaining()) {
+                return;
+            }
+        }
+        writes.add(frame);
+        if (key != null && (key.interestOps() & SelectionKey.OP_WRITE) == 0) {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            key.selector().wakeup();
+        }
+    }
+
+    synchronized void write() throws IOException {
+        while (!writes.isEmpty()) {
+            final ByteBuffer frame = writes.peek();
+            channel.write(frame);
+            if (frame.hasRemaining()) {
+                return;
+            }
+            writes.poll();
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    /**
+     * Reads available bytes and passes complete frames, positioned after the length,
+     * to the consumer.
+     *
+     * @throws IOException if the channel is closed by the peer or a frame is malformed
+     */
+    void read(@NotNull final Consumer<ByteBuffer> frames) throws IOException {
+        if (channel.read(in) < 0) {
+            throw new IOException("Closed by peer");
+        }
+        in.flip();
+        while (in.remaining() >= Integer.BYTES) {
+            final int size = in.getInt(in.position());
+            if (size < Long.BYTES || size > MAX_FRAME) {
+                throw new IOException("Malformed frame of " + size + " bytes");
+            }
+            if (in.remaining() < Integer.BYTES + size) {
+                if (in.capacity() < Integer.BYTES + size) {
+                    in = ByteBuffer.allocate(Integer.BYTES + size).put(in).flip();
+                }
+                break;
+            }
+            final byte[] frame = new byte[size];
+            in.position(in.position() + Integer.BYTES);
+            in.get(frame);
+            frames.accept(ByteBuffer.wrap(frame));
+        }
+        in.compact();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (key != null) {
+            key.cancel();
+        }
+        channel.close();
+    }
+}
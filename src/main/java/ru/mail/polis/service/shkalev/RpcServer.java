@@ -0,0 +1,173 @@
+package ru.mail.polis.service.shkalev;
+
+import one.nio.http.Response;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+
+/**
+ * Server of the internal protocol. Calls are read by one selector thread and
+ * applied on the executor, a response frame holds the status code, the timestamp
+ * of the row and the body of the response.
+ */
+final class RpcServer implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(RpcServer.class);
+    private final int port;
+    private final Executor executor;
+    private final Function<Call, Response> handler;
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final Thread thread;
+    private volatile boolean stopped;
+
+    RpcServer(final int port,
+              @NotNull final Executor executor,
+              @NotNull final Function<Call, Response> handler) throws IOException {
+        this.port = port;
+        this.executor = executor;
+        this.handler = handler;
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        this.thread = new Thread(this::loop, "rpcServer");
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Binds the port and starts serving calls.
+     *
+     * @throws BindException if the port is already bound
+     */
+    void start() throws IOException {
+        try {
+            server.bind(new InetSocketAddress(port));
+        } catch (BindException e) {
+            final BindException bound = new BindException("Rpc port " + port + " is already bound");
+            bound.initCause(e);
+            throw bound;
+        }
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        thread.start();
+    }
+
+    private void loop() {
+        while (!stopped) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                log.error("IOException on rpc select", e);
+                return;
+            }
+            final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                final SelectionKey key = keys.next();
+                keys.remove();
+                if (key.isValid() && key.isAcceptable()) {
+                    accept();
+                } else if (key.isValid()) {
+                    process((RpcChannel) key.attachment(), key);
+                }
+            }
+        }
+    }
+
+    private void accept() {
+        try {
+            final SocketChannel socket = server.accept();
+            if (socket != null) {
+                final RpcChannel channel = new RpcChannel(socket);
+                channel.register(selector, channel);
+            }
+        } catch (IOException e) {
+            log.error("IOException on rpc accept", e);
+        }
+    }
+
+    private void process(@NotNull final RpcChannel channel, @NotNull final SelectionKey key) {
+        try {
+            if (key.isWritable()) {
+                channel.write();
+            }
+            if (key.isReadable()) {
+                channel.read(frame -> execute(channel, frame));
+            }
+        } catch (IOException | CancelledKeyException e) {
+            close(channel);
+        }
+    }
+
+    private void execute(@NotNull final RpcChannel channel, @NotNull final ByteBuffer frame) {
+        final long id = frame.getLong();
+        try {
+            executor.execute(() -> respond(channel, id, frame));
+        } catch (RejectedExecutionException e) {
+            log.error("Rpc call is rejected", e);
+            close(channel);
+        }
+    }
+
+    private void respond(@NotNull final RpcChannel channel, final long id, @NotNull final ByteBuffer frame) {
+        Response response;
+        try {
+            response = handler.apply(Call.read(frame));
+        } catch (IllegalArgumentException e) {
+            response = new Response(Response.BAD_REQUEST, Response.EMPTY);
+        }
+        final byte[] body = response.getBody() == null ? Response.EMPTY : response.getBody();
+        final ByteBuffer answer = RpcChannel.frame(id, Integer.BYTES + Long.BYTES + body.length)
+                .putInt(response.getStatus())
+                .putLong(ServiceUtils.getTimeStamp(response))
+                .put(body);
+        try {
+            channel.send(answer);
+        } catch (IOException e) {
+            close(channel);
+        }
+    }
+
+    private void close(@NotNull final RpcChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.error("IOException on rpc channel close", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (stopped) {
+            return;
+        }
+        stopped = true;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            for (final SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+            selector.close();
+            server.close();
+        } catch (IOException e) {
+            log.error("IOException on rpc server close", e);
+        }
+    }
+}
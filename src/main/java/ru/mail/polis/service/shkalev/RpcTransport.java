@@ -0,0 +1,344 @@
+package ru.mail.polis.service.shkalev;
+
+import one.nio.http.Response;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Transport of the internal protocol, see {@link RpcServer}. Every node gets one
+ * persistent connection which carries all calls to it, the connection is opened
+ * on the first call and opened again after it breaks.
+ *
+ * <p>Connections are opened by the selector thread, so no caller waits for a connect.
+ * A node which can't be connected is down for a backoff doubling with every failed
+ * attempt, calls to it fail at once until the backoff is over.
+ */
+final class RpcTransport implements Transport {
+    static final long MIN_BACKOFF_MILLIS = 100;
+    static final long MAX_BACKOFF_MILLIS = 5000;
+    private static final Logger log = LoggerFactory.getLogger(RpcTransport.class);
+    private final Map<Address, Peer> peers = new ConcurrentHashMap<>();
+    private final Queue<Connect> connects = new ConcurrentLinkedQueue<>();
+    private final AtomicLong ids = new AtomicLong();
+    private final Selector selector;
+    private final Thread thread;
+    private final int connectTimeoutMillis;
+    private final int timeoutMillis;
+    private volatile boolean stopped;
+
+    /**
+     * Connection to a node, the current one or the one being opened.
+     */
+    private final class Peer {
+        private final Address node;
+        private final AtomicReference<CompletableFuture<Connection>> connection = new AtomicReference<>();
+        private int failures;
+        private volatile long retryAt;
+
+        private Peer(@NotNull final Address node) {
+            this.node = node;
+        }
+
+        /**
+         * Gets the connection, one caller of those which find no connection opens it.
+         *
+         * @return the connection, completed exceptionally if the node is down
+         */
+        private CompletableFuture<Connection> connection() {
+            while (true) {
+                final CompletableFuture<Connection> current = connection.get();
+                if (current != null) {
+                    return current;
+                }
+                if (retryAt - System.nanoTime() > 0) {
+                    return CompletableFuture.failedFuture(new IOException("Node " + node + " is down"));
+                }
+                final CompletableFuture<Connection> opened = new CompletableFuture<>();
+                if (connection.compareAndSet(null, opened)) {
+                    open(opened);
+                    return opened;
+                }
+            }
+        }
+
+        private void open(@NotNull final CompletableFuture<Connection> opened) {
+            final SocketChannel socket;
+            try {
+                socket = SocketChannel.open();
+            } catch (IOException e) {
+                failed(opened, e);
+                opened.completeExceptionally(e);
+                return;
+            }
+            final Connect connect = new Connect(this, socket, opened);
+            CompletableFuture.delayedExecutor(connectTimeoutMillis, TimeUnit.MILLISECONDS).execute(
+                    () -> connect.fail(new IOException("Connect to " + node + " timed out")));
+            try {
+                final URI uri = URI.create(node.toString());
+                socket.configureBlocking(false);
+                if (node.getRpcPort() == Address.NO_RPC_PORT) {
+                    throw new IOException("Node " + node + " has no rpc port");
+                }
+                socket.connect(new InetSocketAddress(uri.getHost(), node.getRpcPort()));
+                connects.add(connect);
+                selector.wakeup();
+            } catch (IOException e) {
+                connect.fail(e);
+            }
+        }
+
+        private synchronized void connected() {
+            failures = 0;
+        }
+
+        private synchronized void failed(@NotNull final CompletableFuture<Connection> opened,
+                                         @NotNull final Throwable cause) {
+            if (opened.isDone()) {
+                return;
+            }
+            final long backoff = Math.min(MAX_BACKOFF_MILLIS,
+                    MIN_BACKOFF_MILLIS << Math.min(failures, Integer.SIZE));
+            failures++;
+            retryAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoff);
+            if (connection.compareAndSet(opened, null)) {
+                log.warn("Node {} is down for {} ms: {}", node, backoff, cause.toString());
+            }
+        }
+    }
+
+    /**
+     * Socket being connected by the selector thread.
+     */
+    private static final class Connect {
+        private final Peer peer;
+        private final SocketChannel socket;
+        private final CompletableFuture<Connection> opened;
+
+        private Connect(@NotNull final Peer peer,
+                        @NotNull final SocketChannel socket,
+                        @NotNull final CompletableFuture<Connection> opened) {
+            this.peer = peer;
+            this.socket = socket;
+            this.opened = opened;
+        }
+
+        /**
+         * Passes the connection to the calls waiting for it.
+         */
+        private void complete(@NotNull final Connection connection) {
+            peer.connected();
+            if (!opened.complete(connection)) {
+                // Timed out or the transport is closed
+                connection.close(new IOException("Connection to " + peer.node + " is abandoned"));
+            }
+        }
+
+        /**
+         * Marks the node down, so calls failing because of it see the node down.
+         */
+        private void fail(@NotNull final Throwable cause) {
+            if (opened.isDone()) {
+                return;
+            }
+            peer.failed(opened, cause);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                log.error("IOException on rpc socket close", e);
+            }
+            opened.completeExceptionally(cause);
+        }
+    }
+
+    private final class Connection {
+        private final Peer peer;
+        private final CompletableFuture<Connection> opened;
+        private final RpcChannel channel;
+        private final Map<Long, CompletableFuture<Response>> calls = new ConcurrentHashMap<>();
+        private volatile boolean closed;
+
+        private Connection(@NotNull final Connect connect) throws IOException {
+            this.peer = connect.peer;
+            this.opened = connect.opened;
+            this.channel = new RpcChannel(connect.socket);
+        }
+
+        private void answer(@NotNull final ByteBuffer frame) {
+            final CompletableFuture<Response> call = calls.remove(frame.getLong());
+            if (call == null) {
+                return;
+            }
+            final int status = frame.getInt();
+            final long time = frame.getLong();
+            final byte[] body = new byte[frame.remaining()];
+            frame.get(body);
+            try {
+                call.complete(ServiceUtils.response(status, time, body));
+            } catch (UnsupportedOperationException e) {
+                call.completeExceptionally(e);
+            }
+        }
+
+        private void call(@NotNull final Call call, @NotNull final CompletableFuture<Response> future) {
+            final long id = ids.incrementAndGet();
+            calls.put(id, future);
+            future.whenComplete((response, error) -> calls.remove(id));
+            final ByteBuffer frame = RpcChannel.frame(id, call.size());
+            call.write(frame);
+            try {
+                channel.send(frame);
+            } catch (IOException e) {
+                close(e);
+            }
+            if (closed) {
+                future.completeExceptionally(new IOException("Connection to " + peer.node + " is closed"));
+            }
+        }
+
+        private void close(@NotNull final IOException cause) {
+            closed = true;
+            peer.connection.compareAndSet(opened, null);
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.error("IOException on rpc channel close", e);
+            }
+            calls.values().forEach(call -> call.completeExceptionally(cause));
+            calls.clear();
+        }
+    }
+
+    RpcTransport(@NotNull final TransportConfig config) throws IOException {
+        this.connectTimeoutMillis = config.connectTimeoutMillis();
+        this.timeoutMillis = config.timeoutMillis();
+        this.selector = Selector.open();
+        this.thread = new Thread(this::loop, "rpcClient");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    @Override
+    public CompletableFuture<Response> send(@NotNull final Address node, @NotNull final Call call) {
+        final CompletableFuture<Response> future = new CompletableFuture<>();
+        if (stopped) {
+            future.completeExceptionally(new IOException("Transport is closed"));
+            return future;
+        }
+        peers.computeIfAbsent(node, Peer::new).connection().whenComplete((connection, error) -> {
+            if (error == null) {
+                connection.call(call, future);
+            } else {
+                future.completeExceptionally(error);
+            }
+        });
+        return future.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void loop() {
+        while (!stopped) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                log.error("IOException on rpc select", e);
+                return;
+            }
+            for (Connect connect = connects.poll(); connect != null; connect = connects.poll()) {
+                try {
+                    connect.socket.register(selector, SelectionKey.OP_CONNECT, connect);
+                } catch (IOException | CancelledKeyException e) {
+                    connect.fail(e);
+                }
+            }
+            final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                final SelectionKey key = keys.next();
+                keys.remove();
+                if (key.attachment() instanceof Connect) {
+                    finishConnect(key, (Connect) key.attachment());
+                } else {
+                    process(key, (Connection) key.attachment());
+                }
+            }
+        }
+    }
+
+    private void finishConnect(@NotNull final SelectionKey key, @NotNull final Connect connect) {
+        try {
+            if (!key.isValid() || !key.isConnectable() || !connect.socket.finishConnect()) {
+                return;
+            }
+            final Connection connection = new Connection(connect);
+            connection.channel.register(selector, connection);
+            connect.complete(connection);
+        } catch (IOException e) {
+            connect.fail(e);
+        } catch (CancelledKeyException e) {
+            connect.fail(new IOException(e));
+        }
+    }
+
+    private void process(@NotNull final SelectionKey key, @NotNull final Connection connection) {
+        try {
+            if (key.isValid() && key.isWritable()) {
+                connection.channel.write();
+            }
+            if (key.isValid() && key.isReadable()) {
+                connection.channel.read(connection::answer);
+            }
+        } catch (IOException e) {
+            connection.close(e);
+        } catch (CancelledKeyException e) {
+            connection.close(new IOException(e));
+        }
+    }
+
+    @Override
+    public void close() {
+        stopped = true;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        final IOException closed = new IOException("Transport is closed");
+        for (Connect connect = connects.poll(); connect != null; connect = connects.poll()) {
+            connect.fail(closed);
+        }
+        for (final SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connect) {
+                ((Connect) key.attachment()).fail(closed);
+            }
+        }
+        for (final Peer peer : peers.values()) {
+            final CompletableFuture<Connection> connection = peer.connection.get();
+            if (connection != null) {
+                connection.thenAccept(opened -> opened.close(closed));
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            log.error("IOException on rpc selector close", e);
+        }
+    }
+}
@@ -3,6 +3,7 @@ package ru.mail.polis.service.shkalev;
 import one.nio.http.Request;
 import one.nio.http.Response;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import ru.mail.polis.dao.shkalev.Row;
 
 import java.net.http.HttpResponse;
@@ -20,6 +21,7 @@ final class ServiceUtils {
     private static final int BAD_REQUEST = 400;
     private static final int INTERNAL_ERROR = 500;
     static final String NOT_ENOUGH_REPLICAS = "504 Not Enough Replicas";
+    static final long NO_TTL = 0;
 
     private ServiceUtils() {
     }
@@ -28,6 +30,24 @@ final class ServiceUtils {
         return request.getHeader(PROXY_HEADER) != null;
     }
 
+    /**
+     * Parses time to live of a value.
+     *
+     * @param ttl time to live in seconds or null
+     * @return time to live, {@link #NO_TTL} if it is absent or a negative number if it is malformed
+     */
+    static long parseTtl(@Nullable final String ttl) {
+        if (ttl == null) {
+            return NO_TTL;
+        }
+        try {
+            final long seconds = Long.parseLong(ttl);
+            return seconds > 0 ? seconds : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
     static long getTimeStamp(@NotNull final Response response) {
         final String timeHeader = response.getHeader(TIME_HEADER + SEP_HEADER);
         return timeHeader == null ? -1 : Long.parseLong(timeHeader);
@@ -73,8 +93,12 @@ final class ServiceUtils {
     }
 
     static Response parse(@NotNull final HttpResponse<byte[]> response) {
-        final Response result = new Response(statusOf(response.statusCode()), response.body());
-        result.addHeader(TIME_HEADER + SEP_HEADER + getTimeStamp(response));
+        return response(response.statusCode(), getTimeStamp(response), response.body());
+    }
+
+    static Response response(final int status, final long time, @NotNull final byte[] body) {
+        final Response result = new Response(statusOf(status), body);
+        result.addHeader(TIME_HEADER + SEP_HEADER + time);
         return result;
     }
 }
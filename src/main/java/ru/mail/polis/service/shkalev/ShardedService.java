@@ -17,11 +17,15 @@ import org.slf4j.LoggerFactory;
 import ru.mail.polis.Record;
 import ru.mail.polis.dao.DAO;
 import ru.mail.polis.dao.shkalev.AdvancedDAO;
+import ru.mail.polis.dao.shkalev.Mutation;
 import ru.mail.polis.service.Service;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Executor;
 
 public class ShardedService extends HttpServer implements Service {
@@ -29,9 +33,12 @@ public class ShardedService extends HttpServer implements Service {
     private final AdvancedDAO dao;
     private final Replicas quorum;
     private final Replicator replicator;
+    private final Transport transport;
+    private final RpcServer rpcServer;
 
     /**
-     * Async sharded Http Rest Service.
+     * Async sharded Http Rest Service, nodes talk with the internal binary protocol
+     * if every node of the topology has an rpc port and with pooled HTTP otherwise.
      *
      * @param port     port for HttpServer
      * @param dao      LSMDao
@@ -42,10 +49,140 @@ public class ShardedService extends HttpServer implements Service {
                           @NotNull final DAO dao,
                           @NotNull final Executor executor,
                           @NotNull final Topology<Address> nodes) throws IOException {
+        this(port, dao, executor, nodes, hasRpcPorts(nodes) ? TransportType.BINARY_RPC : TransportType.ONE_NIO_HTTP);
+    }
+
+    /**
+     * Async sharded Http Rest Service.
+     *
+     * @param port      port for HttpServer
+     * @param dao       LSMDao
+     * @param executor  executor for async working
+     * @param transport transport between nodes, the internal binary protocol listens
+     *                  on the rpc port of this node in the topology
+     * @throws IOException in init server
+     */
+    public ShardedService(final int port,
+                          @NotNull final DAO dao,
+                          @NotNull final Executor executor,
+                          @NotNull final Topology<Address> nodes,
+                          @NotNull final TransportType transport) throws IOException {
+        this(port, dao, executor, nodes, transport, true);
+    }
+
+    /**
+     * Async sharded Http Rest Service.
+     *
+     * @param port        port for HttpServer
+     * @param dao         LSMDao
+     * @param executor    executor for async working
+     * @param transport   transport between nodes, the internal binary protocol listens
+     *                    on the rpc port of this node in the topology
+     * @param hedgedReads whether a GET asks {@code ack} replicas and the others only if these are slow,
+     *                    or all {@code from} replicas at once
+     * @throws IOException in init server
+     * @throws IllegalArgumentException if the dao doesn't implement {@link AdvancedDAO}
+     *                                  or a node of the internal binary protocol has no rpc port
+     */
+    public ShardedService(final int port,
+                          @NotNull final DAO dao,
+                          @NotNull final Executor executor,
+                          @NotNull final Topology<Address> nodes,
+                          @NotNull final TransportType transport,
+                          final boolean hedgedReads) throws IOException {
+        this(port, dao, executor, nodes, TransportConfig.builder(transport).build(), hedgedReads);
+    }
+
+    /**
+     * Async sharded Http Rest Service.
+     *
+     * @param port        port for HttpServer
+     * @param dao         LSMDao
+     * @param executor    executor for async working
+     * @param transport   transport between nodes with its pool size, keep-alive and timeouts,
+     *                    the internal binary protocol listens on the rpc port of this node in the topology
+     * @param hedgedReads whether a GET asks {@code ack} replicas and the others only if these are slow,
+     *                    or all {@code from} replicas at once
+     * @throws IOException in init server
+     * @throws IllegalArgumentException if the dao doesn't implement {@link AdvancedDAO}
+     *                                  or a node of the internal binary protocol has no rpc port
+     */
+    public ShardedService(final int port,
+                          @NotNull final DAO dao,
+                          @NotNull final Executor executor,
+                          @NotNull final Topology<Address> nodes,
+                          @NotNull final TransportConfig transport,
+                          final boolean hedgedReads) throws IOException {
+        // The dao and the nodes are checked before the server binds its port
+        this(advanced(dao), port, executor, checked(nodes, transport.type()), transport, hedgedReads);
+    }
+
+    private ShardedService(@NotNull final AdvancedDAO dao,
+                           final int port,
+                           @NotNull final Executor executor,
+                           @NotNull final Topology<Address> nodes,
+                           @NotNull final TransportConfig transport,
+                           final boolean hedgedReads) throws IOException {
         super(getConfig(port));
-        this.dao = (AdvancedDAO) dao;
+        this.dao = dao;
         this.quorum = Replicas.quorum(nodes.size());
-        this.replicator = new AsyncReplicator(executor, nodes, this.dao);
+        this.transport = transport.type().create(nodes, transport);
+        final AsyncReplicator asyncReplicator = new AsyncReplicator(executor, nodes, this.dao, this.transport,
+                hedgedReads);
+        this.replicator = asyncReplicator;
+        this.rpcServer = transport.type() == TransportType.BINARY_RPC
+                ? new RpcServer(nodes.me().getRpcPort(), executor, asyncReplicator::handle)
+                : null;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (rpcServer != null) {
+            try {
+                rpcServer.start();
+            } catch (IOException e) {
+                rpcServer.close();
+                throw new UncheckedIOException("Can't start rpc server", e);
+            }
+        }
+        super.start();
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (rpcServer != null) {
+            rpcServer.close();
+        }
+        transport.close();
+        super.stop();
+    }
+
+    private static AdvancedDAO advanced(@NotNull final DAO dao) {
+        if (!(dao instanceof AdvancedDAO)) {
+            throw new IllegalArgumentException("Storage " + dao.getClass().getName()
+                    + " doesn't support batches, multi-gets and range deletions");
+        }
+        return (AdvancedDAO) dao;
+    }
+
+    private static boolean hasRpcPorts(@NotNull final Topology<Address> nodes) {
+        return nodes.all().stream().allMatch(node -> node.getRpcPort() != Address.NO_RPC_PORT);
+    }
+
+    private static Topology<Address> checked(@NotNull final Topology<Address> nodes,
+                                             @NotNull final TransportType transport) {
+        if (transport == TransportType.BINARY_RPC) {
+            for (final Address node : nodes.all()) {
+                if (node.getRpcPort() == Address.NO_RPC_PORT) {
+                    throw new IllegalArgumentException("Node " + node
+                            + " has no rpc port, set it as http://host:port?rpc=port");
+                }
+            }
+            if (nodes.me().getRpcPort() == Address.NO_RPC_PORT) {
+                throw new IllegalArgumentException("This node " + nodes.me() + " isn't in the topology");
+            }
+        }
+        return nodes;
     }
 
     private static HttpServerConfig getConfig(final int port) {
@@ -67,13 +204,15 @@ public class ShardedService extends HttpServer implements Service {
      * @param session  HttpSession
      * @param id       Record ID is equivalent to the key in dao.
      * @param replicas Кeplication factor.
+     * @param ttl      Time to live of the put value in seconds, the value never expires if absent.
      * @throws IOException where send in session.
      */
     @Path("/v0/entity")
     public void entity(@NotNull final Request request,
                        @NotNull final HttpSession session,
                        @Param("id") final String id,
-                       @Param("replicas") final String replicas) throws IOException {
+                       @Param("replicas") final String replicas,
+                       @Param("ttl") final String ttl) throws IOException {
         if (id == null || id.isEmpty()) {
             session.sendError(Response.BAD_REQUEST, "No Id");
             return;
@@ -84,13 +223,18 @@ public class ShardedService extends HttpServer implements Service {
             session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
             return;
         }
+        final long ttlSeconds = ServiceUtils.parseTtl(ttl);
+        if (ttlSeconds < ServiceUtils.NO_TTL) {
+            session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
+            return;
+        }
         final ByteBuffer key = ByteBuffer.wrap(id.getBytes(Charsets.UTF_8));
         switch (request.getMethod()) {
             case Request.METHOD_GET:
                 replicator.executeGet(session, request, key, isProxy, rf);
                 break;
             case Request.METHOD_PUT:
-                replicator.executePut(session, request, key, isProxy, rf);
+                replicator.executePut(session, request, key, ttlSeconds, isProxy, rf);
                 break;
             case Request.METHOD_DELETE:
                 replicator.executeDelete(session, request, key, isProxy, rf);
@@ -101,6 +245,64 @@ public class ShardedService extends HttpServer implements Service {
         }
     }
 
+    /**
+     * Resource for batches of upserts and removals, see {@link Batches} for the body.
+     *
+     * @param request  POST request with the batch in the body.
+     * @param session  HttpSession
+     * @param replicas Replication factor of every key of the batch.
+     * @throws IOException where send in session.
+     */
+    @Path("/v0/batch")
+    public void batch(@NotNull final Request request,
+                      @NotNull final HttpSession session,
+                      @Param("replicas") final String replicas) throws IOException {
+        if (request.getMethod() != Request.METHOD_POST) {
+            session.sendError(Response.METHOD_NOT_ALLOWED, "Method not allowed");
+            return;
+        }
+        final boolean isProxy = ServiceUtils.isProxied(request);
+        final Replicas rf = isProxy || replicas == null ? quorum : Replicas.parse(replicas);
+        if (rf.getAck() > rf.getFrom() || rf.getAck() <= 0) {
+            session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
+            return;
+        }
+        final List<Mutation> batch;
+        try {
+            batch = Batches.parse(request.getBody());
+        } catch (IllegalArgumentException e) {
+            session.sendError(Response.BAD_REQUEST, e.getMessage());
+            return;
+        }
+        replicator.executeBatch(session, batch, isProxy, rf);
+    }
+
+    /**
+     * Resource for reading many keys at once. The body holds ids separated by new lines,
+     * found values are streamed back in chunks like {@code /v0/entities} does.
+     *
+     * @param request  POST request with the ids in the body.
+     * @param session  HttpSession
+     * @param replicas Replication factor of every key.
+     * @throws IOException where send in session.
+     */
+    @Path("/v0/multiget")
+    public void multiGet(@NotNull final Request request,
+                         @NotNull final HttpSession session,
+                         @Param("replicas") final String replicas) throws IOException {
+        if (request.getMethod() != Request.METHOD_POST) {
+            session.sendError(Response.METHOD_NOT_ALLOWED, "Method not allowed");
+            return;
+        }
+        final boolean isProxy = ServiceUtils.isProxied(request);
+        final Replicas rf = isProxy || replicas == null ? quorum : Replicas.parse(replicas);
+        if (rf.getAck() > rf.getFrom() || rf.getAck() <= 0) {
+            session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
+            return;
+        }
+        replicator.executeMultiGet((StorageSession) session, MultiGets.parseKeys(request.getBody()), isProxy, rf);
+    }
+
     /**
      * Resource for getting status.
      *
@@ -114,26 +316,45 @@ public class ShardedService extends HttpServer implements Service {
         session.sendResponse(new Response(Response.OK, Response.EMPTY));
     }
 
+    /**
+     * Resource for storage metrics, one "name value" line per metric.
+     *
+     * @param request The request object in which the information is stored:
+     *                the type of request (PUT, GET, DELETE) and the request body.
+     * @param session HttpSession
+     * @throws IOException where send in session.
+     */
+    @Path("/v0/stats")
+    public void stats(@NotNull final Request request, @NotNull final HttpSession session) throws IOException {
+        final StringBuilder stats = new StringBuilder();
+        for (final Map.Entry<String, Long> metric : dao.stats().entrySet()) {
+            stats.append(metric.getKey()).append(' ').append(metric.getValue()).append('\n');
+        }
+        session.sendResponse(new Response(Response.OK, stats.toString().getBytes(Charsets.UTF_8)));
+    }
+
     @Override
     public HttpSession createSession(@NotNull final Socket socket) throws RejectedSessionException {
         return new StorageSession(socket, this);
     }
 
     /**
-     * Resource for range values.
+     * Resource for range values. DELETE removes the whole range on all nodes.
      *
-     * @param request The request object in which the information is stored:
-     *                the type of request (PUT, GET, DELETE) and the request body.
-     * @param session HttpSession.
-     * @param start   start key for range.
-     * @param end     end key for range.
+     * @param request  The request object in which the information is stored:
+     *                 the type of request (PUT, GET, DELETE) and the request body.
+     * @param session  HttpSession.
+     * @param start    start key for range.
+     * @param end      end key for range.
+     * @param replicas Replication factor of a range deletion.
      * @throws IOException where send in session.
      */
     @Path("/v0/entities")
     public void entities(@NotNull final Request request,
                          @NotNull final HttpSession session,
                          @Param("start") final String start,
-                         @Param("end") final String end) throws IOException {
+                         @Param("end") final String end,
+                         @Param("replicas") final String replicas) throws IOException {
         if (start == null || start.isEmpty()) {
             session.sendError(Response.BAD_REQUEST, "No start");
             return;
@@ -142,6 +363,16 @@ public class ShardedService extends HttpServer implements Service {
             session.sendError(Response.BAD_REQUEST, "end is empty");
             return;
         }
+        if (request.getMethod() == Request.METHOD_DELETE) {
+            final boolean isProxy = ServiceUtils.isProxied(request);
+            final Replicas rf = isProxy || replicas == null ? quorum : Replicas.parse(replicas);
+            if (rf.getAck() > rf.getFrom() || rf.getAck() <= 0) {
+                session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
+                return;
+            }
+            replicator.executeRangeDelete(session, start, end, isProxy, rf);
+            return;
+        }
         final ByteBuffer from = ByteBuffer.wrap(start.getBytes(Charsets.UTF_8));
         final ByteBuffer to = end == null ? null : ByteBuffer.wrap(end.getBytes(Charsets.UTF_8));
         try {
@@ -20,32 +20,59 @@ public class StorageSession extends HttpSession {
 
     void stream(@NotNull final Iterator<Record> iterator) throws IOException {
         chunks = new TransferChunks(iterator);
+        open();
+        next();
+    }
 
+    /**
+     * Starts a chunked response whose records are pushed one by one later.
+     */
+    synchronized void open() throws IOException {
         final Response response = new Response(Response.OK);
         response.addHeader("Transfer-Encoding: chunked");
         writeResponse(response, false);
+    }
 
-        next();
+    synchronized void push(@NotNull final Record record) throws IOException {
+        final byte[] data = TransferChunks.chunk(record);
+        write(data, 0, data.length);
     }
 
-    private void next() throws IOException {
+    /**
+     * Ends the chunked response started by {@link #open()}.
+     */
+    synchronized void finish() throws IOException {
+        final byte[] end = TransferChunks.end();
+        write(end, 0, end.length);
+        completed();
+    }
+
+    private synchronized void next() throws IOException {
+        if (chunks == null) {
+            return;
+        }
         while (chunks.hasNext() && queueHead == null) {
             final byte[] data = chunks.next();
             write(data, 0, data.length);
         }
 
         if (!chunks.hasNext()) {
-            final byte[] end = chunks.end();
+            final byte[] end = TransferChunks.end();
             write(end, 0, end.length);
+            chunks.close();
+            chunks = null;
+            completed();
+        }
+    }
 
-            server.incRequestsProcessed();
+    private void completed() throws IOException {
+        server.incRequestsProcessed();
 
-            if ((handling = pipeline.pollFirst()) != null) {
-                if (handling == FIN) {
-                    scheduleClose();
-                } else {
-                    server.handleRequest(handling, this);
-                }
+        if ((handling = pipeline.pollFirst()) != null) {
+            if (handling == FIN) {
+                scheduleClose();
+            } else {
+                server.handleRequest(handling, this);
             }
         }
     }
@@ -55,4 +82,15 @@ public class StorageSession extends HttpSession {
         super.processWrite();
         next();
     }
+
+    /**
+     * Closes the session, releasing the storage snapshot of an unfinished stream.
+     */
+    @Override
+    public synchronized void close() {
+        if (chunks != null) {
+            chunks.close();
+        }
+        super.close();
+    }
 }
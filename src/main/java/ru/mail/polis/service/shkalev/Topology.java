@@ -13,6 +13,8 @@ public interface Topology<T> {
 
     boolean isMe(@NotNull final T node);
 
+    T me();
+
     Set<T> all();
 
     int size();
@@ -2,13 +2,18 @@ package ru.mail.polis.service.shkalev;
 
 import com.google.common.base.Charsets;
 import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import ru.mail.polis.Record;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Iterator;
 
-public class TransferChunks {
+public class TransferChunks implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(TransferChunks.class);
     private final Iterator<Record> iterator;
     private static final byte[] SEPARATOR = "\r\n".getBytes(Charsets.UTF_8);
     private static final byte[] NEW_LINE = "\n".getBytes(Charsets.UTF_8);
@@ -30,7 +35,16 @@ public class TransferChunks {
      */
     public byte[] next() {
         assert hasNext();
-        final Record record = iterator.next();
+        return chunk(iterator.next());
+    }
+
+    /**
+     * Method for getting chunk of a record.
+     *
+     * @param record record.
+     * @return byte array of chunk.
+     */
+    static byte[] chunk(@NotNull final Record record) {
         final byte[] key = toArray(record.getKey());
         final byte[] value = toArray(record.getValue());
         final String length = Integer.toHexString(key.length
@@ -62,10 +76,24 @@ public class TransferChunks {
      *
      * @return byte array last chunk.
      */
-    byte[] end() {
+    static byte[] end() {
         return Arrays.copyOf(END, END.length);
     }
 
+    /**
+     * Closes the underlying iterator if it holds resources of the storage.
+     */
+    @Override
+    public void close() {
+        if (iterator instanceof Closeable) {
+            try {
+                ((Closeable) iterator).close();
+            } catch (IOException e) {
+                log.error("IOException during closing of records iterator", e);
+            }
+        }
+    }
+
     private static byte[] toArray(@NotNull final ByteBuffer byteBuffer) {
         final ByteBuffer copy = byteBuffer.duplicate();
         final byte[] array = new byte[copy.remaining()];
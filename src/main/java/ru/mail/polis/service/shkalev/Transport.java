@@ -0,0 +1,24 @@
+package ru.mail.polis.service.shkalev;
+
+import one.nio.http.Response;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Sends calls of the replicator to other nodes.
+ */
+interface Transport extends Closeable {
+    /**
+     * Sends the call to the node.
+     *
+     * @param node node applying the call
+     * @param call call
+     * @return response of the node, completed exceptionally if the node can't be reached in time
+     */
+    CompletableFuture<Response> send(@NotNull Address node, @NotNull Call call);
+
+    @Override
+    void close();
+}
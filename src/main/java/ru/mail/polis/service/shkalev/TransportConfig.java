@@ -0,0 +1,110 @@
+package ru.mail.polis.service.shkalev;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Settings of the transport nodes of a cluster use to talk with each other.
+ * Defaults give the internal binary protocol with requests timing out after a second.
+ */
+public final class TransportConfig {
+    private final TransportType type;
+    private final int poolSize;
+    private final boolean keepAlive;
+    private final int connectTimeoutMillis;
+    private final int timeoutMillis;
+
+    private TransportConfig(@NotNull final Builder builder) {
+        this.type = builder.type;
+        this.poolSize = builder.poolSize;
+        this.keepAlive = builder.keepAlive;
+        this.connectTimeoutMillis = builder.connectTimeoutMillis;
+        this.timeoutMillis = builder.timeoutMillis;
+    }
+
+    /**
+     * Starts settings with defaults.
+     *
+     * @param type transport
+     * @return builder of the settings
+     */
+    public static Builder builder(@NotNull final TransportType type) {
+        return new Builder(type);
+    }
+
+    TransportType type() {
+        return type;
+    }
+
+    int poolSize() {
+        return poolSize;
+    }
+
+    boolean keepAlive() {
+        return keepAlive;
+    }
+
+    int connectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    int timeoutMillis() {
+        return timeoutMillis;
+    }
+
+    public static final class Builder {
+        private final TransportType type;
+        private int poolSize = 8;
+        private boolean keepAlive = true;
+        private int connectTimeoutMillis = (int) HttpRequestCreator.TIME_OUT.toMillis();
+        private int timeoutMillis = (int) HttpRequestCreator.TIME_OUT.toMillis();
+
+        private Builder(@NotNull final TransportType type) {
+            this.type = type;
+        }
+
+        /**
+         * Number of pooled connections to every node, used by {@link TransportType#ONE_NIO_HTTP}.
+         */
+        public Builder poolSize(final int poolSize) {
+            if (poolSize < 1) {
+                throw new IllegalArgumentException("At least one connection is needed, got " + poolSize);
+            }
+            this.poolSize = poolSize;
+            return this;
+        }
+
+        /**
+         * Whether pooled connections are kept alive between requests, used by {@link TransportType#ONE_NIO_HTTP}.
+         */
+        public Builder keepAlive(final boolean keepAlive) {
+            this.keepAlive = keepAlive;
+            return this;
+        }
+
+        /**
+         * How long connecting to a node may take.
+         */
+        public Builder connectTimeoutMillis(final int connectTimeoutMillis) {
+            if (connectTimeoutMillis <= 0) {
+                throw new IllegalArgumentException("Timeout must be positive, got " + connectTimeoutMillis);
+            }
+            this.connectTimeoutMillis = connectTimeoutMillis;
+            return this;
+        }
+
+        /**
+         * How long a node may answer a request.
+         */
+        public Builder timeoutMillis(final int timeoutMillis) {
+            if (timeoutMillis <= 0) {
+                throw new IllegalArgumentException("Timeout must be positive, got " + timeoutMillis);
+            }
+            this.timeoutMillis = timeoutMillis;
+            return this;
+        }
+
+        public TransportConfig build() {
+            return new TransportConfig(this);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package ru.mail.polis.service.shkalev;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+
+/**
+ * Transport nodes of a cluster use to talk with each other.
+ */
+public enum TransportType {
+    /**
+     * Requests of the HTTP API sent by {@link java.net.http.HttpClient}.
+     */
+    JDK_HTTP,
+    /**
+     * Requests of the HTTP API sent by pooled one-nio {@link one.nio.http.HttpClient}s.
+     */
+    ONE_NIO_HTTP,
+    /**
+     * Internal binary protocol, see {@link RpcServer}.
+     */
+    BINARY_RPC;
+
+    Transport create(@NotNull final Topology<Address> nodes, @NotNull final TransportConfig config)
+            throws IOException {
+        switch (this) {
+            case JDK_HTTP:
+                return new HttpTransport(config);
+            case ONE_NIO_HTTP:
+                return new OneNioTransport(nodes.size() * config.poolSize(), config);
+            case BINARY_RPC:
+                return new RpcTransport(config);
+            default:
+                throw new UnsupportedOperationException("Unsupported transport " + this);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package ru.mail.polis.dao.shkalev;
+
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.TestBase;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of {@link BlockCache}: eviction within the size, blocks too large to
+ * cache and concurrent readers of many tables.
+ */
+class BlockCacheTest extends TestBase {
+    private static final int BLOCK = 1024;
+    private static final long MAX_BYTES = 256 * 1024;
+
+    @Test
+    void bounded() {
+        final BlockCache cache = new BlockCache(MAX_BYTES);
+        final int table = BlockCache.newTableId();
+        for (int i = 0; i < 1000; i++) {
+            cache.put(BlockCache.key(table, i), randomBuffer(BLOCK));
+            assertTrue(cache.sizeInBytes() <= MAX_BYTES, "Size " + cache.sizeInBytes());
+        }
+        // Latest blocks of every segment are kept
+        assertTrue(cache.sizeInBytes() > MAX_BYTES / 2, "Size " + cache.sizeInBytes());
+        assertNotNull(cache.get(BlockCache.key(table, 999)));
+        assertNull(cache.get(BlockCache.key(table, 0)));
+    }
+
+    @Test
+    void leastRecentlyUsed() {
+        final BlockCache cache = new BlockCache(MAX_BYTES);
+        final int table = BlockCache.newTableId();
+        final ByteBuffer first = randomBuffer(BLOCK);
+        cache.put(BlockCache.key(table, 0), first);
+        for (int i = 1; i < 1000; i++) {
+            // Reading keeps the block in its segment
+            assertEquals(first, cache.get(BlockCache.key(table, 0)));
+            cache.put(BlockCache.key(table, i), randomBuffer(BLOCK));
+        }
+        assertEquals(first, cache.get(BlockCache.key(table, 0)));
+    }
+
+    @Test
+    void copies() {
+        final BlockCache cache = new BlockCache(MAX_BYTES);
+        final long key = BlockCache.key(BlockCache.newTableId(), 0);
+        final ByteBuffer block = randomBuffer(BLOCK);
+        cache.put(key, block);
+        // Positions of readers don't affect the cached block
+        cache.get(key).position(BLOCK / 2);
+        block.position(BLOCK / 2);
+        assertEquals(BLOCK, cache.get(key).remaining());
+    }
+
+    @Test
+    void tooLarge() {
+        final BlockCache cache = new BlockCache(MAX_BYTES);
+        final long key = BlockCache.key(BlockCache.newTableId(), 0);
+        cache.put(key, randomBuffer((int) (MAX_BYTES / BlockCache.SEGMENTS)));
+        assertNull(cache.get(key));
+        assertEquals(0, cache.sizeInBytes());
+
+        final BlockCache disabled = new BlockCache(0);
+        disabled.put(key, randomBuffer(1));
+        assertNull(disabled.get(key));
+    }
+
+    @Test
+    void concurrent() throws Exception {
+        final BlockCache cache = new BlockCache(MAX_BYTES);
+        final int[] tables = {BlockCache.newTableId(), BlockCache.newTableId(), BlockCache.newTableId()};
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 20_000; i++) {
+                        final int table = tables[ThreadLocalRandom.current().nextInt(tables.length)];
+                        final int index = ThreadLocalRandom.current().nextInt(512);
+                        final long key = BlockCache.key(table, index);
+                        final ByteBuffer cached = cache.get(key);
+                        if (cached == null) {
+                            cache.put(key, block(table, index));
+                        } else {
+                            assertEquals(block(table, index), cached);
+                        }
+                    }
+                }));
+            }
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        }
+        assertTrue(cache.sizeInBytes() <= MAX_BYTES, "Size " + cache.sizeInBytes());
+    }
+
+    private static ByteBuffer block(final int table, final int index) {
+        final ByteBuffer block = ByteBuffer.allocate(BLOCK);
+        while (block.hasRemaining()) {
+            block.putInt(table).putInt(index);
+        }
+        return block.flip();
+    }
+}
@@ -0,0 +1,68 @@
+package ru.mail.polis.dao.shkalev;
+
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.TestBase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of {@link BlockCodec} implementations.
+ */
+class BlockCodecTest extends TestBase {
+    private static final ByteBuffer TEXT = ByteBuffer.wrap("key value ".repeat(400).getBytes(StandardCharsets.UTF_8));
+
+    @Test
+    void identity() throws IOException {
+        final BlockCodec codec = IdentityCodec.INSTANCE;
+        assertSame(TEXT, codec.compress(TEXT));
+        assertEquals(TEXT, codec.decompress(TEXT, TEXT.remaining()));
+    }
+
+    @Test
+    void deflateRoundTrip() throws IOException {
+        final BlockCodec codec = DeflateCodec.INSTANCE;
+        final ByteBuffer compressed = codec.compress(TEXT);
+        assertTrue(compressed.remaining() < TEXT.remaining() / 4, "Compressed to " + compressed.remaining());
+        assertEquals(TEXT, codec.decompress(compressed, TEXT.remaining()));
+        // The input is left as it was
+        assertEquals(0, TEXT.position());
+
+        final ByteBuffer empty = ByteBuffer.allocate(0);
+        assertEquals(empty, codec.decompress(codec.compress(empty), 0));
+    }
+
+    @Test
+    void incompressible() {
+        final ByteBuffer random = randomBuffer(FileTableWriter.BLOCK_SIZE);
+        // Stored as is, FileTable reads such block without the codec
+        assertSame(random, DeflateCodec.INSTANCE.compress(random));
+    }
+
+    @Test
+    void corrupted() {
+        final ByteBuffer compressed = DeflateCodec.INSTANCE.compress(TEXT);
+        final ByteBuffer garbage = ByteBuffer.allocate(compressed.remaining());
+        garbage.put(compressed.duplicate()).flip();
+        garbage.put(0, (byte) ~garbage.get(0));
+        assertThrows(IOException.class, () -> DeflateCodec.INSTANCE.decompress(garbage, TEXT.remaining()));
+
+        final ByteBuffer truncated = compressed.duplicate().limit(compressed.remaining() / 2);
+        assertThrows(IOException.class, () -> DeflateCodec.INSTANCE.decompress(truncated, TEXT.remaining()));
+    }
+
+    @Test
+    void byId() throws IOException {
+        assertSame(IdentityCodec.INSTANCE, BlockCodec.of(BlockCodec.NONE));
+        assertSame(DeflateCodec.INSTANCE, BlockCodec.of(BlockCodec.DEFLATE));
+        assertEquals(BlockCodec.DEFLATE, DeflateCodec.INSTANCE.id());
+        final IOException e = assertThrows(IOException.class, () -> BlockCodec.of(42));
+        assertEquals("Unknown block codec 42", e.getMessage());
+    }
+}
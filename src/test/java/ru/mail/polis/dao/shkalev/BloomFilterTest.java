@@ -0,0 +1,105 @@
+package ru.mail.polis.dao.shkalev;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of {@link BloomFilter} and of its use by file tables.
+ */
+class BloomFilterTest extends TestBase {
+    private static final int KEYS = 10_000;
+
+    @Test
+    void containsAllKeys() {
+        final List<ByteBuffer> keys = randomKeys();
+        final BloomFilter filter = serialized(BloomFilter.of(hashes(keys), keys.size()));
+        for (final ByteBuffer key : keys) {
+            assertTrue(filter.mightContain(key));
+        }
+    }
+
+    @Test
+    void rejectsMostAbsentKeys() {
+        final List<ByteBuffer> keys = randomKeys();
+        final BloomFilter filter = serialized(BloomFilter.of(hashes(keys), keys.size()));
+        int falsePositives = 0;
+        for (int i = 0; i < KEYS; i++) {
+            if (filter.mightContain(randomKeyBuffer())) {
+                falsePositives++;
+            }
+        }
+        // 10 bits per key give about 1% of false positives
+        assertTrue(falsePositives < KEYS * 3 / 100, "False positives: " + falsePositives);
+    }
+
+    @Test
+    void emptyFilterRejectsEverything() {
+        final BloomFilter filter = serialized(BloomFilter.of(new long[0], 0));
+        assertEquals(1, filter.words());
+        for (int i = 0; i < KEYS; i++) {
+            assertFalse(filter.mightContain(randomKeyBuffer()));
+        }
+    }
+
+    @Test
+    void tableSkipsAbsentKeys(@TempDir final File data) throws IOException {
+        final List<ByteBuffer> keys = randomKeys();
+        keys.sort(ByteBuffer::compareTo);
+        final List<Row> rows = new ArrayList<>();
+        for (final ByteBuffer key : keys) {
+            rows.add(Row.of(0, key, key, MySuperDAO.ALIVE, 1));
+        }
+        final File file = new File(data, MySuperDAO.PREFIX + 0 + MySuperDAO.SUFFIX);
+        FileTableWriter.write(file, rows.iterator(), RangeTombstones.EMPTY, IdentityCodec.INSTANCE);
+        final Table table = FileTable.open(file, 0, new MappedBudget(Long.MAX_VALUE), new BlockCache(0));
+        try {
+            for (final ByteBuffer key : keys) {
+                assertTrue(table.mightContain(key));
+                assertEquals(key, table.get(key).getValue());
+            }
+            int skipped = 0;
+            for (int i = 0; i < KEYS; i++) {
+                final ByteBuffer absent = randomKeyBuffer();
+                if (!table.mightContain(absent)) {
+                    skipped++;
+                }
+                assertNull(table.get(absent));
+            }
+            assertTrue(skipped > KEYS * 97 / 100, "Skipped: " + skipped);
+        } finally {
+            table.close();
+        }
+    }
+
+    private static List<ByteBuffer> randomKeys() {
+        final List<ByteBuffer> keys = new ArrayList<>(KEYS);
+        for (int i = 0; i < KEYS; i++) {
+            keys.add(randomKeyBuffer());
+        }
+        return keys;
+    }
+
+    private static long[] hashes(final List<ByteBuffer> keys) {
+        final long[] hashes = new long[keys.size()];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = BloomFilter.hash(keys.get(i));
+        }
+        return hashes;
+    }
+
+    private static BloomFilter serialized(final BloomFilter filter) {
+        return BloomFilter.read(filter.toByteBuffer(), filter.hashCount());
+    }
+}
@@ -0,0 +1,253 @@
+package ru.mail.polis.dao.shkalev;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of {@link CommitLog} and of the storage replaying it after a crash.
+ * A crash is simulated by copying the files of an open storage: the copy has
+ * only the bytes which reached the files, as after the process is killed.
+ */
+class CommitLogTest extends TestBase {
+    private static final int KEYS = 1000;
+    private static final int WRITERS = 4;
+
+    @Test
+    void replay(@TempDir final File data) throws IOException {
+        final List<Row> rows = new ArrayList<>();
+        final long time = Utils.currentTimeNanos();
+        rows.add(Row.of(0, buffer("alive"), buffer("value"), MySuperDAO.ALIVE, time));
+        rows.add(Row.of(0, buffer("dead"), MySuperDAO.TOMBSTONE, MySuperDAO.DEAD, time + 1));
+        rows.add(Row.expiring(0, buffer("expiring"), buffer("value"), time + 2, time + 3));
+        final CommitLog log = new CommitLog(data, 0, CommitLog.FsyncPolicy.ALWAYS);
+        for (final Row row : rows) {
+            log.sync(log.append(row));
+        }
+        log.sync(log.append(RangeTombstone.of(buffer("a"), buffer("b"), time + 4)));
+        log.sync(log.append(RangeTombstone.of(buffer("c"), null, time + 5)));
+        log.close();
+
+        final List<Row> replayed = new ArrayList<>();
+        final List<RangeTombstone> ranges = new ArrayList<>();
+        assertEquals(0, CommitLog.replay(data, 7, replayed::add, ranges::add));
+        assertEquals(rows.size(), replayed.size());
+        for (int i = 0; i < rows.size(); i++) {
+            final Row row = rows.get(i);
+            final Row replayedRow = replayed.get(i);
+            assertEquals(7, replayedRow.getIndex());
+            assertEquals(row.getKey(), replayedRow.getKey());
+            assertEquals(row.getValue(), replayedRow.getValue());
+            assertEquals(row.isDead(), replayedRow.isDead());
+            assertEquals(row.getTime(), replayedRow.getTime());
+            assertEquals(row.getExpiresAt(), replayedRow.getExpiresAt());
+        }
+        assertEquals(2, ranges.size());
+        assertEquals(buffer("b"), ranges.get(0).getTo());
+        assertEquals(time + 4, ranges.get(0).getTime());
+        assertEquals(buffer("c"), ranges.get(1).getFrom());
+        assertNull(ranges.get(1).getTo());
+    }
+
+    @Test
+    void noSegments(@TempDir final File data) throws IOException {
+        assertEquals(-1, CommitLog.replay(data, 0, row -> {
+            throw new AssertionError("Unexpected row");
+        }, range -> {
+            throw new AssertionError("Unexpected range");
+        }));
+    }
+
+    @Test
+    void crashWithAlways(@TempDir final File data) throws Exception {
+        crash(data, CommitLog.FsyncPolicy.ALWAYS);
+    }
+
+    @Test
+    void crashWithBatch(@TempDir final File data) throws Exception {
+        crash(data, CommitLog.FsyncPolicy.BATCH);
+    }
+
+    @Test
+    void crashWithPeriodic(@TempDir final File data) throws Exception {
+        crash(data, CommitLog.FsyncPolicy.PERIODIC);
+    }
+
+    /**
+     * A batch is logged as a whole, so every mutation of it survives a crash.
+     */
+    @Test
+    void crashAfterBatch(@TempDir final File root) throws IOException {
+        final File data = new File(root, "storage");
+        final File copy = new File(root, "crashed");
+        assertTrue(data.mkdir() && copy.mkdir());
+        final StorageConfig config = StorageConfig.builder(64 * 1024 * 1024)
+                .fsyncPolicy(CommitLog.FsyncPolicy.ALWAYS)
+                .build();
+        try (MySuperDAO dao = new MySuperDAO(data, config)) {
+            for (int i = 0; i < KEYS; i += 10) {
+                dao.upsert(key(i + 3), value(i + 3));
+            }
+            final List<Mutation> batch = new ArrayList<>();
+            for (int i = 0; i < KEYS; i++) {
+                batch.add(i % 10 == 3 ? Mutation.remove(key(i)) : Mutation.upsert(key(i), value(i)));
+            }
+            dao.apply(batch);
+            for (final File file : data.listFiles()) {
+                Files.copy(file.toPath(), new File(copy, file.getName()).toPath());
+            }
+        }
+
+        try (MySuperDAO recovered = new MySuperDAO(copy, config)) {
+            for (int i = 0; i < KEYS; i++) {
+                final ByteBuffer key = key(i);
+                if (i % 10 == 3) {
+                    assertThrows(NoSuchElementException.class, () -> recovered.get(key));
+                } else {
+                    assertEquals(value(i), recovered.get(key));
+                }
+            }
+        }
+    }
+
+    @Test
+    void tornTail(@TempDir final File data) throws IOException {
+        final File segment = writeSegment(data);
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.setLength(file.length() - 3);
+        }
+        assertReplayedBefore(data, KEYS - 1);
+    }
+
+    @Test
+    void corruptedRow(@TempDir final File data) throws IOException {
+        final File segment = writeSegment(data);
+        final byte[] bytes = Files.readAllBytes(segment.toPath());
+        // The last byte of the row in the middle is a part of its timestamp
+        final int rowSize = bytes.length / KEYS;
+        bytes[rowSize * (KEYS / 2 + 1) - 1] ^= 1;
+        Files.write(segment.toPath(), bytes);
+        assertReplayedBefore(data, KEYS / 2);
+    }
+
+    @Test
+    void appendAfterClose(@TempDir final File data) throws IOException {
+        final CommitLog log = new CommitLog(data, 0, CommitLog.FsyncPolicy.BATCH);
+        log.close();
+        assertThrows(IllegalStateException.class, () ->
+                log.append(Row.of(0, buffer("key"), buffer("value"), MySuperDAO.ALIVE, 0)));
+    }
+
+    /**
+     * Writes from several threads, copies the storage without closing it and
+     * opens the copy. Writes of {@link CommitLog.FsyncPolicy#PERIODIC} are
+     * forced a second later, so the copy is made after it.
+     */
+    private static void crash(final File root, final CommitLog.FsyncPolicy policy) throws Exception {
+        final File data = new File(root, "storage");
+        final File copy = new File(root, "crashed");
+        assertTrue(data.mkdir() && copy.mkdir());
+        final StorageConfig config = StorageConfig.builder(64 * 1024 * 1024)
+                .fsyncPolicy(policy)
+                .build();
+        final MySuperDAO dao = new MySuperDAO(data, config);
+        try {
+            final Thread[] writers = new Thread[WRITERS];
+            final List<Throwable> failures = new ArrayList<>();
+            for (int w = 0; w < WRITERS; w++) {
+                final int first = w;
+                writers[w] = new Thread(() -> {
+                    try {
+                        for (int i = first; i < KEYS; i += WRITERS) {
+                            dao.upsert(key(i), value(i));
+                            if (i % 10 == 3) {
+                                dao.remove(key(i));
+                            }
+                        }
+                    } catch (Throwable e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    }
+                });
+                writers[w].start();
+            }
+            for (final Thread writer : writers) {
+                writer.join();
+            }
+            assertTrue(failures.isEmpty(), failures.toString());
+            if (policy == CommitLog.FsyncPolicy.PERIODIC) {
+                Thread.sleep(1500);
+            }
+            final File[] files = data.listFiles();
+            assertTrue(files != null && files.length > 0);
+            for (final File file : files) {
+                Files.copy(file.toPath(), new File(copy, file.getName()).toPath());
+            }
+        } finally {
+            dao.close();
+        }
+
+        try (MySuperDAO recovered = new MySuperDAO(copy, config)) {
+            for (int i = 0; i < KEYS; i++) {
+                final ByteBuffer key = key(i);
+                if (i % 10 == 3) {
+                    assertThrows(NoSuchElementException.class, () -> recovered.get(key));
+                } else {
+                    assertEquals(value(i), recovered.get(key));
+                }
+            }
+        }
+    }
+
+    private static File writeSegment(final File data) throws IOException {
+        final CommitLog log = new CommitLog(data, 0, CommitLog.FsyncPolicy.ALWAYS);
+        for (int i = 0; i < KEYS; i++) {
+            log.sync(log.append(Row.of(0, key(i), value(i), MySuperDAO.ALIVE, i)));
+        }
+        log.close();
+        return new File(data, CommitLog.PREFIX + 0 + CommitLog.SUFFIX);
+    }
+
+    /**
+     * Replays the log and checks that exactly the rows before the damaged one are read.
+     */
+    private static void assertReplayedBefore(final File data, final int damaged) throws IOException {
+        final List<Row> replayed = new ArrayList<>();
+        CommitLog.replay(data, 0, replayed::add, range -> {
+            throw new AssertionError("Unexpected range");
+        });
+        assertEquals(damaged, replayed.size());
+        for (int i = 0; i < damaged; i++) {
+            assertEquals(key(i), replayed.get(i).getKey());
+            assertEquals(value(i), replayed.get(i).getValue());
+        }
+    }
+
+    private static ByteBuffer key(final int i) {
+        return buffer(String.format("key%05d", i));
+    }
+
+    private static ByteBuffer value(final int i) {
+        return buffer(String.format("value%05d", i));
+    }
+
+    private static ByteBuffer buffer(final String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,137 @@
+package ru.mail.polis.dao.shkalev;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of the storage opened after a crash in the middle of a compaction.
+ * The compaction is done here step by step as the storage does it.
+ */
+class CompactionRecoveryTest extends TestBase {
+    private static final int KEYS = 300;
+
+    @Test
+    void crashBeforeCommit(@TempDir final File data) throws IOException {
+        write(data);
+        final Manifest manifest = Manifest.open(data);
+        final NavigableMap<Integer, Table> run = open(data, manifest);
+        final int number = nextNumber(manifest);
+        Utils.compactFiles(data, run, number, IdentityCodec.INSTANCE, null, Long.MIN_VALUE);
+        close(run);
+        // The next compaction is interrupted while writing its file
+        final File partial = new File(data, MySuperDAO.PREFIX + (number + 1) + ".tmp");
+        assertTrue(partial.createNewFile());
+        assertTrue(Manifest.file(data, number).exists());
+
+        try (MySuperDAO dao = new MySuperDAO(data, StorageConfig.builder(1024 * 1024).build())) {
+            assertFalse(Manifest.file(data, number).exists());
+            assertFalse(partial.exists());
+            for (final Manifest.Entry entry : manifest.tables().values()) {
+                assertTrue(Manifest.file(data, entry.getFile()).exists());
+            }
+            assertRows(dao);
+        }
+    }
+
+    @Test
+    void crashAfterCommit(@TempDir final File data) throws IOException {
+        write(data);
+        final Manifest manifest = Manifest.open(data);
+        final NavigableMap<Integer, Table> run = open(data, manifest);
+        final Collection<Manifest.Entry> merged = manifest.tables().values();
+        final int number = nextNumber(manifest);
+        final File compacted = Utils.compactFiles(data, run, number, IdentityCodec.INSTANCE, null, Long.MIN_VALUE);
+        manifest.commit(Map.of(run.lastKey(), new Manifest.Entry(number, compacted.length())),
+                run.headMap(run.lastKey(), false).keySet());
+        // Merged tables are not cleared
+        close(run);
+
+        try (MySuperDAO dao = new MySuperDAO(data, StorageConfig.builder(1024 * 1024).build())) {
+            assertTrue(compacted.exists());
+            for (final Manifest.Entry entry : merged) {
+                assertFalse(Manifest.file(data, entry.getFile()).exists());
+            }
+            assertRows(dao);
+        }
+    }
+
+    /**
+     * Writes all keys and overwrites the even ones, so that the rows are spread
+     * over several tables.
+     */
+    private static void write(@NotNull final File data) throws IOException {
+        try (MySuperDAO dao = new MySuperDAO(data, StorageConfig.builder(16 * 1024).build())) {
+            for (int i = 0; i < KEYS; i++) {
+                dao.upsert(key(i), value(i, 1));
+            }
+            for (int i = 0; i < KEYS; i += 2) {
+                dao.upsert(key(i), value(i, 2));
+            }
+            dao.remove(key(1));
+        }
+    }
+
+    private static NavigableMap<Integer, Table> open(@NotNull final File data,
+                                                     @NotNull final Manifest manifest) {
+        final MappedBudget budget = new MappedBudget(Long.MAX_VALUE);
+        final BlockCache cache = new BlockCache(0);
+        final NavigableMap<Integer, Table> tables = new TreeMap<>();
+        for (final Map.Entry<Integer, Manifest.Entry> table : manifest.tables().entrySet()) {
+            final Manifest.Entry entry = table.getValue();
+            tables.put(table.getKey(), new FileTableHandle(Manifest.file(data, entry.getFile()),
+                    table.getKey(), entry.getSize(), budget, cache));
+        }
+        assertTrue(tables.size() >= 2, "Tables " + tables.keySet());
+        return tables;
+    }
+
+    private static int nextNumber(@NotNull final Manifest manifest) {
+        int number = 0;
+        for (final Map.Entry<Integer, Manifest.Entry> table : manifest.tables().entrySet()) {
+            number = Math.max(number, Math.max(table.getKey(), table.getValue().getFile()));
+        }
+        return number + 1;
+    }
+
+    private static void close(@NotNull final NavigableMap<Integer, Table> tables) throws IOException {
+        for (final Table table : tables.values()) {
+            table.close();
+        }
+    }
+
+    private static void assertRows(@NotNull final MySuperDAO dao) throws IOException {
+        for (int i = 0; i < KEYS; i++) {
+            final Row row = dao.getRow(key(i));
+            if (i == 1) {
+                assertTrue(row.isDead());
+            } else {
+                assertEquals(value(i, i % 2 == 0 ? 2 : 1), row.getValue());
+            }
+        }
+    }
+
+    private static ByteBuffer key(final int i) {
+        return ByteBuffer.wrap(String.format("key%05d", i).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static ByteBuffer value(final int i, final int round) {
+        final ByteBuffer value = ByteBuffer.allocate(100);
+        value.putInt(i).putInt(round).position(0);
+        return value;
+    }
+}
@@ -0,0 +1,235 @@
+package ru.mail.polis.dao.shkalev;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of the block format written by {@link FileTableWriter} and read by {@link FileTable}.
+ */
+class FileTableTest extends TestBase {
+    private static final int ROWS = 20_000;
+
+    @Test
+    void uncompressed(@TempDir final File data) throws IOException {
+        roundTrip(data, IdentityCodec.INSTANCE, Long.MAX_VALUE);
+    }
+
+    @Test
+    void compressed(@TempDir final File data) throws IOException {
+        roundTrip(data, DeflateCodec.INSTANCE, Long.MAX_VALUE);
+    }
+
+    @Test
+    void beyondMappedBudget(@TempDir final File data) throws IOException {
+        roundTrip(data, DeflateCodec.INSTANCE, 0);
+    }
+
+    @Test
+    void rowsLargerThanBlock(@TempDir final File data) throws IOException {
+        final List<Row> rows = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            rows.add(Row.of(0, key(i), randomBuffer(FileTableWriter.BLOCK_SIZE * (i + 1)), MySuperDAO.ALIVE, i));
+        }
+        final Table table = write(data, rows, DeflateCodec.INSTANCE, Long.MAX_VALUE);
+        try {
+            for (final Row row : rows) {
+                assertEquals(row.getValue(), table.get(row.getKey()).getValue());
+            }
+            assertRows(rows, table.iterator(MySuperDAO.LEAST_KEY));
+        } finally {
+            table.close();
+        }
+    }
+
+    @Test
+    void segments(@TempDir final File data) throws IOException {
+        final List<Row> rows = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            // Rows larger than a segment get segments of their own
+            final int length = i % 500 == 0 ? FileTableWriter.BLOCK_SIZE * 5 : 1 + i % 300;
+            rows.add(Row.of(0, key(i), randomBuffer(length), MySuperDAO.ALIVE, i));
+        }
+        final File file = new File(data, MySuperDAO.PREFIX + 0 + MySuperDAO.SUFFIX);
+        FileTableWriter.write(file, rows.iterator(), RangeTombstones.EMPTY, IdentityCodec.INSTANCE);
+        // Segments of a few blocks which end at no block boundary
+        final long maxSegment = FileTableWriter.BLOCK_SIZE * 3 + 100;
+        final FileTable table = new FileTable(file, 0, new MappedBudget(Long.MAX_VALUE), new BlockCache(0),
+                true, maxSegment);
+        try {
+            assertTrue(table.isMapped());
+            assertTrue(table.segmentCount() > table.sizeInBytes() / maxSegment / 2, "Segments " + table.segmentCount());
+            for (int i = 0; i < rows.size(); i++) {
+                final Row row = rows.get(i);
+                assertEquals(row.getValue(), table.get(row.getKey()).getValue());
+                if (i % 7 == 0) {
+                    // Iterators cross from segment to segment
+                    assertRows(rows.subList(i, rows.size()), table.iterator(row.getKey()));
+                }
+            }
+            assertNull(table.get(buffer("key00000100a")));
+            assertEquals(key(101), table.iterator(buffer("key00000100a")).next().getKey());
+        } finally {
+            table.close();
+        }
+    }
+
+    @Test
+    void absentKeys(@TempDir final File data) throws IOException {
+        final List<Row> rows = rows();
+        final Table table = write(data, rows, DeflateCodec.INSTANCE, Long.MAX_VALUE);
+        try {
+            assertNull(table.get(buffer("a")));
+            assertNull(table.get(buffer("key00000100a")));
+            assertNull(table.get(buffer("z")));
+            assertFalse(table.iterator(buffer("z")).hasNext());
+            final Iterator<Row> between = table.iterator(buffer("key00000100a"));
+            assertEquals(buffer("key00000101"), between.next().getKey());
+        } finally {
+            table.close();
+        }
+    }
+
+    @Test
+    void sharedPrefixes(@TempDir final File data) throws IOException {
+        final List<Row> rows = new ArrayList<>();
+        final String prefix = "users/profiles/" + "x".repeat(100) + "/";
+        for (int i = 0; i < 1000; i++) {
+            final ByteBuffer key = buffer(prefix + i / 10 + "/" + "y".repeat(i % 10));
+            rows.add(Row.of(0, key, buffer("v" + i), MySuperDAO.ALIVE, i));
+        }
+        rows.sort(Row::compareTo);
+        final Table table = write(data, rows, IdentityCodec.INSTANCE, Long.MAX_VALUE);
+        try {
+            // Keys share most of their bytes, so the file is much smaller than the keys
+            assertTrue(table.sizeInBytes() < rows.size() * prefix.length() / 4);
+            for (int i = 0; i < rows.size(); i++) {
+                final ByteBuffer key = rows.get(i).getKey();
+                assertEquals(rows.get(i).getValue(), table.get(key).getValue());
+                assertRows(rows.subList(i, rows.size()), table.iterator(key));
+            }
+        } finally {
+            table.close();
+        }
+    }
+
+    @Test
+    void seekBetweenPrefixedKeys(@TempDir final File data) throws IOException {
+        final List<Row> rows = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            rows.add(Row.of(0, key(i * 2), buffer("v" + i), MySuperDAO.ALIVE, i));
+        }
+        final Table table = write(data, rows, IdentityCodec.INSTANCE, Long.MAX_VALUE);
+        try {
+            for (int i = 0; i < rows.size(); i++) {
+                final ByteBuffer absent = key(i * 2 - 1);
+                assertNull(table.get(absent));
+                assertRows(rows.subList(i, rows.size()), table.iterator(absent));
+                // A key sharing the whole key of a row as its prefix
+                final ByteBuffer longer = buffer(String.format("key%08d", i * 2) + "0");
+                assertNull(table.get(longer));
+                assertRows(rows.subList(i + 1, rows.size()), table.iterator(longer));
+            }
+        } finally {
+            table.close();
+        }
+    }
+
+    @Test
+    void emptyTable(@TempDir final File data) throws IOException {
+        final Table table = write(data, List.of(), DeflateCodec.INSTANCE, Long.MAX_VALUE);
+        try {
+            assertNull(table.get(buffer("key")));
+            assertFalse(table.iterator(MySuperDAO.LEAST_KEY).hasNext());
+        } finally {
+            table.close();
+        }
+    }
+
+    @Test
+    void unsupportedVersion(@TempDir final File data) throws IOException {
+        final File file = new File(data, MySuperDAO.PREFIX + 0 + MySuperDAO.SUFFIX);
+        FileTableWriter.write(file, rows().iterator(), RangeTombstones.EMPTY, DeflateCodec.INSTANCE);
+        try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            final ByteBuffer version = ByteBuffer.allocate(Integer.BYTES).putInt(FileTable.VERSION + 1).flip();
+            fc.write(version, fc.size() - Integer.BYTES * 2);
+        }
+        final IOException e = assertThrows(IOException.class, () ->
+                FileTable.open(file, 0, new MappedBudget(Long.MAX_VALUE), new BlockCache(0)));
+        assertTrue(e.getMessage().contains("Unsupported file version"));
+    }
+
+    private static void roundTrip(final File data, final BlockCodec codec, final long mappedBytes) throws IOException {
+        final List<Row> rows = rows();
+        final Table table = write(data, rows, codec, mappedBytes);
+        try {
+            for (final Row row : rows) {
+                final Row found = table.get(row.getKey());
+                assertEquals(row.getKey(), found.getKey());
+                assertEquals(row.getValue(), found.getValue());
+                assertEquals(row.isDead(), found.isDead());
+                assertEquals(row.getTime(), found.getTime());
+            }
+            assertRows(rows, table.iterator(MySuperDAO.LEAST_KEY));
+            assertRows(rows.subList(ROWS / 2, ROWS), table.iterator(rows.get(ROWS / 2).getKey()));
+        } finally {
+            table.close();
+        }
+    }
+
+    private static Table write(final File data,
+                               final List<Row> rows,
+                               final BlockCodec codec,
+                               final long mappedBytes) throws IOException {
+        final File file = new File(data, MySuperDAO.PREFIX + 0 + MySuperDAO.SUFFIX);
+        FileTableWriter.write(file, rows.iterator(), RangeTombstones.EMPTY, codec);
+        return FileTable.open(file, 0, new MappedBudget(mappedBytes), new BlockCache(1024 * 1024));
+    }
+
+    private static void assertRows(final List<Row> expected, final Iterator<Row> actual) {
+        for (final Row row : expected) {
+            assertTrue(actual.hasNext());
+            final Row next = actual.next();
+            assertEquals(row.getKey(), next.getKey());
+            assertEquals(row.getValue(), next.getValue());
+        }
+        assertFalse(actual.hasNext());
+    }
+
+    private static List<Row> rows() {
+        final List<Row> rows = new ArrayList<>(ROWS);
+        final long time = Utils.currentTimeNanos();
+        for (int i = 0; i < ROWS; i++) {
+            if (i % 10 == 3) {
+                rows.add(Row.of(0, key(i), MySuperDAO.TOMBSTONE, MySuperDAO.DEAD, time - i));
+            } else {
+                rows.add(Row.of(0, key(i), randomBuffer(1 + i % 100), MySuperDAO.ALIVE, time + i));
+            }
+        }
+        return rows;
+    }
+
+    private static ByteBuffer key(final int i) {
+        return buffer(String.format("key%08d", i));
+    }
+
+    private static ByteBuffer buffer(final String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+    }
+}
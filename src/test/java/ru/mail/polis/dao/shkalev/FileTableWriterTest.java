@@ -0,0 +1,207 @@
+package ru.mail.polis.dao.shkalev;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of files written by {@link FileTableWriter}.
+ */
+class FileTableWriterTest extends TestBase {
+    private static final int ROWS = 5000;
+    private static final long TIME = 1_000_000_000L;
+
+    @Test
+    void layout(@TempDir final File data) throws IOException {
+        final File file = Manifest.file(data, 1);
+        FileTableWriter.write(file, rows(ROWS).iterator(), RangeTombstones.EMPTY, IdentityCodec.INSTANCE);
+        try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final ByteBuffer footer = read(fc, fc.size() - FileTable.FOOTER_SIZE, FileTable.FOOTER_SIZE);
+            final long indexOffset = footer.getLong();
+            final int blocks = footer.getInt();
+            assertEquals(ROWS, footer.getInt());
+            // Bloom filter hash functions and words
+            assertTrue(footer.getInt() > 0);
+            assertTrue(footer.getInt() > 0);
+            assertEquals(BlockCodec.NONE, footer.getInt());
+            assertEquals(TIME, footer.getLong());
+            assertEquals(0, footer.getInt());
+            assertEquals(FileTable.VERSION, footer.getInt());
+            assertEquals(FileTable.MAGIC, footer.getInt());
+
+            // Blocks follow each other up to the index and start with increasing keys
+            final ByteBuffer index = read(fc, indexOffset, (int) (fc.size() - FileTable.FOOTER_SIZE - indexOffset));
+            assertTrue(blocks > ROWS * 8 / FileTableWriter.BLOCK_SIZE, "Blocks " + blocks);
+            long offset = 0;
+            ByteBuffer previous = MySuperDAO.LEAST_KEY;
+            for (int i = 0; i < blocks; i++) {
+                final int keyLength = index.getInt();
+                final ByteBuffer key = index.slice().limit(keyLength);
+                index.position(index.position() + key.remaining());
+                assertTrue(key.compareTo(previous) > 0);
+                previous = key;
+                assertEquals(offset, index.getLong());
+                final int length = index.getInt();
+                assertEquals(length, index.getInt());
+                assertTrue(length < FileTableWriter.BLOCK_SIZE * 2, "Block of " + length);
+                offset += length;
+            }
+            assertEquals(indexOffset, offset);
+        }
+    }
+
+    @Test
+    void largerThanOutputBuffer(@TempDir final File data) throws IOException {
+        final List<Row> rows = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            // A value larger than the output buffer goes to the file past it
+            final int length = i == 1500 ? 3 * 1024 * 1024 : 1000;
+            rows.add(Row.of(1, key(i), randomBuffer(length), MySuperDAO.ALIVE, TIME + i));
+        }
+        final File file = Manifest.file(data, 1);
+        FileTableWriter.write(file, rows.iterator(), RangeTombstones.EMPTY, IdentityCodec.INSTANCE);
+        assertTrue(file.length() > 5 * 1024 * 1024);
+        assertRows(file, rows);
+    }
+
+    @Test
+    void rangesAndExpiringRows(@TempDir final File data) throws IOException {
+        final List<Row> rows = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            if (i % 3 == 0) {
+                rows.add(Row.of(1, key(i), MySuperDAO.TOMBSTONE, MySuperDAO.DEAD, TIME - i));
+            } else if (i % 3 == 1) {
+                rows.add(Row.expiring(1, key(i), value(i), TIME + i, TIME + i * 1000));
+            } else {
+                rows.add(Row.of(1, key(i), value(i), MySuperDAO.ALIVE, TIME + i));
+            }
+        }
+        final RangeTombstones ranges = RangeTombstones.of(List.of(
+                RangeTombstone.of(key(10), key(20), TIME + 5),
+                RangeTombstone.of(key(90), null, TIME + 6)));
+        final File file = Manifest.file(data, 1);
+        FileTableWriter.write(file, rows.iterator(), ranges, DeflateCodec.INSTANCE);
+
+        final Table table = open(file);
+        try {
+            for (final Row row : rows) {
+                final Row found = table.get(row.getKey());
+                assertEquals(row.isDead(), found.isDead());
+                assertEquals(row.getTime(), found.getTime());
+                assertEquals(row.getExpiresAt(), found.getExpiresAt());
+            }
+            assertEquals(TIME + 5, table.deletedAt(key(15)));
+            assertEquals(Long.MIN_VALUE, table.deletedAt(key(20)));
+            assertEquals(TIME + 6, table.deletedAt(key(1000)));
+            assertEquals(ranges.size(), table.rangeTombstones().size());
+        } finally {
+            table.close();
+        }
+    }
+
+    @Test
+    void reusedAfterFailure(@TempDir final File data) throws IOException {
+        final Iterator<Row> rows = rows(ROWS).iterator();
+        final Iterator<Row> failing = new Iterator<>() {
+            private int count;
+
+            @Override
+            public boolean hasNext() {
+                if (++count > ROWS / 2) {
+                    throw new IllegalStateException("Broken source");
+                }
+                return rows.hasNext();
+            }
+
+            @Override
+            public Row next() {
+                return rows.next();
+            }
+        };
+        assertThrows(IllegalStateException.class, () -> FileTableWriter.write(Manifest.file(data, 1), failing,
+                RangeTombstones.EMPTY, IdentityCodec.INSTANCE));
+
+        // The output buffer of the thread holds nothing of the failed file
+        final File file = Manifest.file(data, 2);
+        final List<Row> written = rows(100);
+        FileTableWriter.write(file, written.iterator(), RangeTombstones.EMPTY, IdentityCodec.INSTANCE);
+        assertRows(file, written);
+    }
+
+    @Test
+    void existingFile(@TempDir final File data) throws IOException {
+        final File file = Manifest.file(data, 1);
+        FileTableWriter.write(file, rows(10).iterator(), RangeTombstones.EMPTY, IdentityCodec.INSTANCE);
+        final long length = file.length();
+        assertThrows(FileAlreadyExistsException.class, () -> FileTableWriter.write(file, rows(20).iterator(),
+                RangeTombstones.EMPTY, IdentityCodec.INSTANCE));
+        assertEquals(length, file.length());
+    }
+
+    private static void assertRows(@NotNull final File file, @NotNull final List<Row> rows) throws IOException {
+        final Table table = open(file);
+        try {
+            final Iterator<Row> actual = table.iterator(MySuperDAO.LEAST_KEY);
+            for (final Row row : rows) {
+                final Row next = actual.next();
+                assertEquals(row.getKey(), next.getKey());
+                assertEquals(row.getValue(), next.getValue());
+                assertEquals(row.getTime(), next.getTime());
+            }
+            assertFalse(actual.hasNext());
+            assertThrows(NoSuchElementException.class, actual::next);
+            assertNull(table.get(key(rows.size())));
+        } finally {
+            table.close();
+        }
+    }
+
+    private static Table open(@NotNull final File file) throws IOException {
+        return FileTable.open(file, 1, new MappedBudget(Long.MAX_VALUE), new BlockCache(0));
+    }
+
+    private static ByteBuffer read(@NotNull final FileChannel fc,
+                                   final long position,
+                                   final int size) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(size);
+        while (buffer.hasRemaining()) {
+            fc.read(buffer, position + buffer.position());
+        }
+        return buffer.flip();
+    }
+
+    private static List<Row> rows(final int count) {
+        final List<Row> rows = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            rows.add(Row.of(1, key(i), value(i), MySuperDAO.ALIVE, TIME + i));
+        }
+        return rows;
+    }
+
+    private static ByteBuffer key(final int i) {
+        return ByteBuffer.wrap(String.format("key%08d", i).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static ByteBuffer value(final int i) {
+        return ByteBuffer.wrap(("value" + i).getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,150 @@
+package ru.mail.polis.dao.shkalev;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests that tables flushed in parallel are published in generation order.
+ */
+class FlushOrderTest extends TestBase {
+    private static final int KEYS = 100;
+    private static final long TIMEOUT_MILLIS = 10_000;
+
+    @Test
+    void newerTableWaitsForOlder(@TempDir final File data) throws Exception {
+        final GateCodec codec = new GateCodec();
+        final StorageConfig config = StorageConfig.builder(16 * 1024)
+                .flushers(2)
+                .codec(codec)
+                .build();
+        int round;
+        try (MySuperDAO dao = new MySuperDAO(data, config)) {
+            // The first flusher stops writing the older table
+            round = writeUntilQueued(dao, 0, 1);
+            assertTrue(codec.entered.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+            // The second flusher writes the newer table but can't publish it
+            round = writeUntilQueued(dao, round, 2);
+            await(() -> tableFiles(data) == 2 && otherFlushersIdle(codec.held.get()));
+            assertEquals(2, dao.flushQueueDepth());
+            assertEquals(Long.valueOf(2), dao.stats().get("flushQueueDepth"));
+            assertLatest(dao, round);
+
+            codec.opened.countDown();
+            await(() -> dao.flushQueueDepth() == 0);
+            assertLatest(dao, round);
+        }
+        try (MySuperDAO dao = new MySuperDAO(data, config)) {
+            assertLatest(dao, round);
+        }
+    }
+
+    /**
+     * Overwrites all keys with values of the next rounds until given number of
+     * tables waits for flush. Every round adds new keys, so that the memory table grows.
+     *
+     * @return the last written round
+     */
+    private static int writeUntilQueued(@NotNull final MySuperDAO dao,
+                                        final int from,
+                                        final int queued) throws IOException {
+        int round = from;
+        while (dao.flushQueueDepth() < queued) {
+            round++;
+            for (int i = 0; i < KEYS; i++) {
+                dao.upsert(key(i), value(round));
+                dao.upsert(key(round * KEYS + i), value(round));
+            }
+        }
+        return round;
+    }
+
+    private static void assertLatest(@NotNull final MySuperDAO dao, final int round) throws IOException {
+        for (int i = 0; i < KEYS; i++) {
+            assertEquals(value(round), dao.get(key(i)));
+        }
+    }
+
+    private static long tableFiles(@NotNull final File data) {
+        final File[] files = data.listFiles((dir, name) ->
+                name.startsWith(MySuperDAO.PREFIX) && name.endsWith(MySuperDAO.SUFFIX));
+        return files == null ? 0 : files.length;
+    }
+
+    /**
+     * Whether the flushers except the held one wait for the next table.
+     */
+    private static boolean otherFlushersIdle(@NotNull final Thread held) {
+        for (final Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread != held && thread.getName().startsWith("Flusher-")
+                    && thread.getState() != Thread.State.WAITING) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void await(@NotNull final BooleanSupplier condition) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "Timed out");
+            Thread.sleep(10);
+        }
+    }
+
+    private static ByteBuffer key(final int i) {
+        return ByteBuffer.wrap(String.format("key%05d", i).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static ByteBuffer value(final int round) {
+        return ByteBuffer.wrap(("value" + round).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Stores blocks as they are, holding the first thread which writes a block until opened.
+     */
+    private static final class GateCodec implements BlockCodec {
+        private final AtomicReference<Thread> held = new AtomicReference<>();
+        private final CountDownLatch entered = new CountDownLatch(1);
+        private final CountDownLatch opened = new CountDownLatch(1);
+
+        @Override
+        public int id() {
+            return NONE;
+        }
+
+        @NotNull
+        @Override
+        public ByteBuffer compress(@NotNull final ByteBuffer block) {
+            if (held.compareAndSet(null, Thread.currentThread())) {
+                entered.countDown();
+                try {
+                    opened.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return block;
+        }
+
+        @NotNull
+        @Override
+        public ByteBuffer decompress(@NotNull final ByteBuffer block, final int rawLength) {
+            return block;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package ru.mail.polis.dao.shkalev;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of {@link FrequencySketch}.
+ */
+class FrequencySketchTest {
+    private static final int KEYS = 1024;
+
+    @Test
+    void counts() {
+        final FrequencySketch sketch = new FrequencySketch(KEYS);
+        for (int i = 0; i < 5; i++) {
+            sketch.increment("hot");
+        }
+        sketch.increment("warm");
+        assertEquals(5, sketch.frequency("hot"));
+        assertEquals(1, sketch.frequency("warm"));
+        assertEquals(0, sketch.frequency("cold"));
+    }
+
+    @Test
+    void saturates() {
+        final FrequencySketch sketch = new FrequencySketch(KEYS);
+        for (int i = 0; i < 100; i++) {
+            sketch.increment("hot");
+        }
+        assertEquals(15, sketch.frequency("hot"));
+        // Neighbouring counters of the same longs are intact
+        assertEquals(0, sketch.frequency("cold"));
+    }
+
+    @Test
+    void fewCollisions() {
+        final FrequencySketch sketch = new FrequencySketch(KEYS);
+        for (int i = 0; i < KEYS; i++) {
+            sketch.increment(i);
+        }
+        int overestimated = 0;
+        for (int i = 0; i < KEYS; i++) {
+            final int frequency = sketch.frequency(i);
+            assertTrue(frequency >= 1);
+            if (frequency > 1) {
+                overestimated++;
+            }
+        }
+        assertTrue(overestimated < KEYS / 10, "Overestimated " + overestimated);
+    }
+
+    @Test
+    void aging() {
+        final FrequencySketch sketch = new FrequencySketch(16);
+        for (int i = 0; i < 8; i++) {
+            sketch.increment("old");
+        }
+        // Ten requests per expected key halve all counters
+        for (int i = 0; i < 160; i++) {
+            sketch.increment(i);
+        }
+        assertTrue(sketch.frequency("old") <= 4, "Frequency " + sketch.frequency("old"));
+    }
+}
@@ -0,0 +1,138 @@
+package ru.mail.polis.dao.shkalev;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of tombstones purged by compactions once the gc grace period passes.
+ */
+class GcGraceTest extends TestBase {
+    private static final int KEYS = 1000;
+
+    @Test
+    void keptWithinGcGrace(@TempDir final File data) throws IOException {
+        final StorageConfig config = StorageConfig.builder(64 * 1024).build();
+        writeAndRemove(data, config);
+        try (MySuperDAO dao = new MySuperDAO(data, config)) {
+            dao.compact();
+        }
+        assertEquals(KEYS / 2, tombstones(data));
+        try (MySuperDAO dao = new MySuperDAO(data, config)) {
+            assertRemoved(dao);
+        }
+    }
+
+    @Test
+    void purgedAfterGcGrace(@TempDir final File data) throws IOException {
+        final StorageConfig config = StorageConfig.builder(64 * 1024).gcGraceMillis(0).build();
+        writeAndRemove(data, config);
+        try (MySuperDAO dao = new MySuperDAO(data, config)) {
+            dao.compact();
+        }
+        assertEquals(0, tombstones(data));
+        try (MySuperDAO dao = new MySuperDAO(data, config)) {
+            assertRemoved(dao);
+        }
+    }
+
+    @Test
+    void keptAboveOlderTables(@TempDir final File data) throws IOException {
+        // The oldest table is much larger than the next ones, so they are merged without it
+        final StorageConfig config = StorageConfig.builder(32 * 1024).gcGraceMillis(0).build();
+        try (MySuperDAO dao = new MySuperDAO(data, config)) {
+            for (int i = 0; i < KEYS * 2; i++) {
+                dao.upsert(key(i), value(i));
+            }
+            dao.compact();
+        }
+        final int oldest = Manifest.open(data).tables().firstKey();
+        try (MySuperDAO dao = new MySuperDAO(data, config)) {
+            dao.remove(key(0));
+            for (int i = KEYS * 2; i < KEYS * 3; i++) {
+                dao.upsert(key(i), value(i));
+            }
+        }
+        final NavigableMap<Integer, Manifest.Entry> tables = Manifest.open(data).tables();
+        assertEquals(oldest, (int) tables.firstKey());
+        // The next tables are merged into a new file
+        final Map.Entry<Integer, Manifest.Entry> merged = tables.higherEntry(oldest);
+        assertTrue(merged.getValue().getFile() != merged.getKey(), "Tables " + tables.keySet());
+        assertEquals(1, tombstones(data));
+        try (MySuperDAO dao = new MySuperDAO(data, config)) {
+            assertTrue(dao.getRow(key(0)).isDead());
+            assertEquals(value(1), dao.get(key(1)));
+        }
+    }
+
+    private static void writeAndRemove(@NotNull final File data,
+                                       @NotNull final StorageConfig config) throws IOException {
+        try (MySuperDAO dao = new MySuperDAO(data, config)) {
+            for (int i = 0; i < KEYS; i++) {
+                dao.upsert(key(i), value(i));
+            }
+        }
+        try (MySuperDAO dao = new MySuperDAO(data, config)) {
+            for (int i = 0; i < KEYS; i += 2) {
+                dao.remove(key(i));
+            }
+        }
+    }
+
+    private static void assertRemoved(@NotNull final MySuperDAO dao) throws IOException {
+        for (int i = 0; i < KEYS; i++) {
+            final ByteBuffer key = key(i);
+            if (i % 2 == 0) {
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            } else {
+                assertEquals(value(i), dao.get(key));
+            }
+        }
+    }
+
+    /**
+     * Counts tombstones left in the tables of the storage.
+     */
+    private static int tombstones(@NotNull final File data) throws IOException {
+        int count = 0;
+        for (final Map.Entry<Integer, Manifest.Entry> entry : Manifest.open(data).tables().entrySet()) {
+            final Table table = FileTable.open(Manifest.file(data, entry.getValue().getFile()), entry.getKey(),
+                    new MappedBudget(Long.MAX_VALUE), new BlockCache(0));
+            try {
+                final Iterator<Row> rows = table.iterator(MySuperDAO.LEAST_KEY);
+                while (rows.hasNext()) {
+                    if (rows.next().isDead()) {
+                        count++;
+                    }
+                }
+            } finally {
+                table.close();
+            }
+        }
+        return count;
+    }
+
+    private static ByteBuffer key(final int i) {
+        return ByteBuffer.wrap(String.format("key%05d", i).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static ByteBuffer value(final int i) {
+        final ByteBuffer value = ByteBuffer.allocate(100);
+        value.putInt(i).position(0);
+        return value;
+    }
+}
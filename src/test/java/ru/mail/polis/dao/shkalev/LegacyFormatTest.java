@@ -0,0 +1,197 @@
+package ru.mail.polis.dao.shkalev;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.Record;
+import ru.mail.polis.TestBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Storages written before the block format are read, compacted into the
+ * current format and read again. Their files are built byte by byte here,
+ * as the writer only produces the current format.
+ */
+class LegacyFormatTest extends TestBase {
+    private static final int ROWS = 500;
+    private static final int OVERWRITTEN = 17;
+
+    @Test
+    void preBlock(@TempDir final File data) throws IOException {
+        check(data, false);
+    }
+
+    @Test
+    void preBlockFiltered(@TempDir final File data) throws IOException {
+        check(data, true);
+    }
+
+    @Test
+    void newerVersion(@TempDir final File data) throws IOException {
+        final File file = Manifest.file(data, 1);
+        FileTableWriter.write(file, rows(1).iterator(), RangeTombstones.EMPTY, IdentityCodec.INSTANCE);
+        try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            final ByteBuffer version = ByteBuffer.allocate(Integer.BYTES).putInt(FileTable.VERSION + 1).flip();
+            fc.write(version, fc.size() - Integer.BYTES * 2);
+        }
+        // Tables are opened on first access
+        try (MySuperDAO dao = open(data)) {
+            assertThrows(UncheckedIOException.class, () -> dao.get(key(0)));
+        }
+    }
+
+    /**
+     * Reads two tables of the format before blocks, the newer one overwrites and removes
+     * some keys of the older one, then compacts them and reads the result.
+     */
+    private static void check(final File data, final boolean filtered) throws IOException {
+        final List<Row> older = rows(1);
+        final List<Row> newer = new ArrayList<>();
+        final long time = older.get(older.size() - 1).getTime() + 1;
+        for (int i = 0; i < ROWS; i += OVERWRITTEN) {
+            newer.add(i % 2 == 0
+                    ? Row.of(2, key(i), value(i, 2), MySuperDAO.ALIVE, time + i)
+                    : Row.of(2, key(i), MySuperDAO.TOMBSTONE, MySuperDAO.DEAD, time + i));
+        }
+        write(data, 1, filtered, older);
+        write(data, 2, filtered, newer);
+        final Map<ByteBuffer, Row> latest = new TreeMap<>();
+        for (final Row row : older) {
+            latest.put(row.getKey(), row);
+        }
+        for (final Row row : newer) {
+            latest.put(row.getKey(), row);
+        }
+        try (MySuperDAO dao = open(data)) {
+            assertContents(dao, latest.values());
+            dao.compact();
+            assertContents(dao, latest.values());
+        }
+        try (MySuperDAO dao = open(data)) {
+            assertContents(dao, latest.values());
+        }
+    }
+
+    private static void assertContents(final MySuperDAO dao, final Collection<Row> latest) throws IOException {
+        final Iterator<Record> records = dao.iterator(MySuperDAO.LEAST_KEY);
+        for (final Row row : latest) {
+            final ByteBuffer key = row.getKey();
+            assertEquals(row.getTime(), dao.getRow(key).getTime());
+            if (row.isDead()) {
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+                continue;
+            }
+            assertEquals(row.getValue(), dao.get(key));
+            assertTrue(records.hasNext());
+            final Record record = records.next();
+            assertEquals(key, record.getKey());
+            assertEquals(row.getValue(), record.getValue());
+        }
+        assertFalse(records.hasNext());
+    }
+
+    private static MySuperDAO open(final File data) throws IOException {
+        return new MySuperDAO(data, StorageConfig.builder(1024 * 1024).build());
+    }
+
+    private static List<Row> rows(final int generation) {
+        final List<Row> rows = new ArrayList<>(ROWS);
+        final long time = Utils.currentTimeNanos() - ROWS * 2;
+        for (int i = 0; i < ROWS; i++) {
+            rows.add(i % 10 == 3
+                    ? Row.of(generation, key(i), MySuperDAO.TOMBSTONE, MySuperDAO.DEAD, time + i)
+                    : Row.of(generation, key(i), value(i, generation), MySuperDAO.ALIVE, time + i));
+        }
+        return rows;
+    }
+
+    private static ByteBuffer key(final int i) {
+        return ByteBuffer.wrap(String.format("key%05d", i).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static ByteBuffer value(final int i, final int generation) {
+        return ByteBuffer.wrap(("value" + generation + "-" + i + "-" + "x".repeat(i % 100))
+                .getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void write(final File data,
+                              final int generation,
+                              final boolean filtered,
+                              final List<Row> rows) throws IOException {
+        final ByteBuffer file = preBlock(rows, filtered);
+        final File to = Manifest.file(data, generation);
+        try (FileChannel fc = FileChannel.open(to.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            while (file.hasRemaining()) {
+                fc.write(file);
+            }
+        }
+    }
+
+    /**
+     * Rows (key length, key, status, value length and value of alive rows, time),
+     * offsets of the rows, optional bloom filter (words, amount of words, amount
+     * of hash functions), amount of rows and optional filter magic number.
+     */
+    private static ByteBuffer preBlock(final List<Row> rows, final boolean filtered) {
+        final ByteBuffer out = ByteBuffer.allocate(1024 * 1024);
+        final int[] offsets = new int[rows.size()];
+        for (int i = 0; i < rows.size(); i++) {
+            offsets[i] = out.position();
+            putUnprefixed(out, rows.get(i));
+        }
+        for (final int offset : offsets) {
+            out.putInt(offset);
+        }
+        if (filtered) {
+            final BloomFilter filter = filter(rows);
+            out.put(filter.toByteBuffer())
+                    .putInt(filter.words())
+                    .putInt(filter.hashCount())
+                    .putInt(rows.size())
+                    .putInt(BloomFilter.MAGIC);
+        } else {
+            out.putInt(rows.size());
+        }
+        return out.flip();
+    }
+
+    /**
+     * Key length, key, status, value length and value of alive rows, time.
+     */
+    private static void putUnprefixed(final ByteBuffer out, final Row row) {
+        out.putInt(row.getKey().remaining())
+                .put(row.getKey().duplicate())
+                .putInt(row.isDead() ? MySuperDAO.DEAD : MySuperDAO.ALIVE);
+        if (!row.isDead()) {
+            out.putInt(row.getValue().remaining())
+                    .put(row.getValue().duplicate());
+        }
+        out.putLong(row.getTime());
+    }
+
+    private static BloomFilter filter(final List<Row> rows) {
+        final long[] hashes = new long[rows.size()];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = BloomFilter.hash(rows.get(i).getKey());
+        }
+        return BloomFilter.of(hashes, hashes.length);
+    }
+}
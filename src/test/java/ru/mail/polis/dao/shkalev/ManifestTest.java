@@ -0,0 +1,149 @@
+package ru.mail.polis.dao.shkalev;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of {@link Manifest} and of the storage recovering its set of tables.
+ */
+class ManifestTest extends TestBase {
+    private static final int KEYS = 2000;
+
+    @Test
+    void commitAndReopen(@TempDir final File data) throws IOException {
+        final Manifest manifest = Manifest.open(data);
+        assertTrue(manifest.tables().isEmpty());
+        manifest.commit(Map.of(1, new Manifest.Entry(1, 100), 2, new Manifest.Entry(2, 200)), List.of());
+        // A compaction of both tables into a new file keeping the newest generation
+        manifest.commit(Map.of(2, new Manifest.Entry(3, 250)), List.of(1, 2));
+        createTables(data, 3);
+
+        final NavigableMap<Integer, Manifest.Entry> tables = Manifest.open(data).tables();
+        assertEquals(1, tables.size());
+        assertEquals(3, tables.get(2).getFile());
+        assertEquals(250, tables.get(2).getSize());
+    }
+
+    @Test
+    void deletesOrphans(@TempDir final File data) throws IOException {
+        final Manifest manifest = Manifest.open(data);
+        manifest.commit(Map.of(1, new Manifest.Entry(1, 100)), List.of());
+        createTables(data, 1, 2);
+        final File tmp = new File(data, Manifest.NAME + ".tmp");
+        assertTrue(tmp.createNewFile());
+
+        assertEquals(1, Manifest.open(data).tables().size());
+        assertTrue(Manifest.file(data, 1).exists());
+        assertFalse(Manifest.file(data, 2).exists());
+        assertFalse(tmp.exists());
+    }
+
+    @Test
+    void listsTablesWithoutManifest(@TempDir final File data) throws IOException {
+        createTables(data, 3, 7);
+        final NavigableMap<Integer, Manifest.Entry> tables = Manifest.open(data).tables();
+        assertEquals(2, tables.size());
+        assertEquals(7, tables.lastEntry().getValue().getFile());
+        assertTrue(new File(data, Manifest.NAME).exists());
+    }
+
+    @Test
+    void corrupted(@TempDir final File data) throws IOException {
+        Manifest.open(data).commit(Map.of(1, new Manifest.Entry(1, 100)), List.of());
+        final File file = new File(data, Manifest.NAME);
+        final byte[] bytes = Files.readAllBytes(file.toPath());
+        bytes[bytes.length - Integer.BYTES - 1] ^= 1;
+        Files.write(file.toPath(), bytes);
+        assertThrows(IOException.class, () -> Manifest.open(data));
+    }
+
+    @Test
+    void truncated(@TempDir final File data) throws IOException {
+        Manifest.open(data).commit(Map.of(1, new Manifest.Entry(1, 100)), List.of());
+        final File file = new File(data, Manifest.NAME);
+        final byte[] bytes = Files.readAllBytes(file.toPath());
+        Files.write(file.toPath(), Arrays.copyOf(bytes, bytes.length - 1));
+        assertThrows(IOException.class, () -> Manifest.open(data));
+    }
+
+    @Test
+    void unsupportedVersion(@TempDir final File data) throws IOException {
+        Manifest.open(data);
+        final File file = new File(data, Manifest.NAME);
+        final byte[] bytes = Files.readAllBytes(file.toPath());
+        ByteBuffer.wrap(bytes).putInt(Integer.BYTES, 2);
+        Files.write(file.toPath(), bytes);
+        final IOException e = assertThrows(IOException.class, () -> Manifest.open(data));
+        assertTrue(e.getMessage().contains("Unsupported manifest version"));
+    }
+
+    /**
+     * A compaction which wrote its table but crashed before the commit leaves
+     * the table out of the manifest, so it is dropped and the data is intact.
+     */
+    @Test
+    void interruptedCompaction(@TempDir final File data) throws IOException {
+        final StorageConfig config = StorageConfig.builder(64 * 1024).build();
+        try (MySuperDAO dao = new MySuperDAO(data, config)) {
+            for (int i = 0; i < KEYS; i++) {
+                dao.upsert(key(i), value(i, 1));
+            }
+        }
+        try (MySuperDAO dao = new MySuperDAO(data, config)) {
+            for (int i = 0; i < KEYS; i += 2) {
+                dao.upsert(key(i), value(i, 2));
+            }
+        }
+        final NavigableMap<Integer, Manifest.Entry> tables = Manifest.open(data).tables();
+        assertFalse(tables.isEmpty());
+        final int next = tables.values().stream().mapToInt(Manifest.Entry::getFile).max().getAsInt() + 1;
+        final File orphan = Manifest.file(data, next);
+        Files.copy(Manifest.file(data, tables.firstEntry().getValue().getFile()).toPath(), orphan.toPath());
+
+        try (MySuperDAO dao = new MySuperDAO(data, config)) {
+            assertFalse(orphan.exists());
+            for (int i = 0; i < KEYS; i++) {
+                assertEquals(value(i, i % 2 == 0 ? 2 : 1), dao.get(key(i)));
+            }
+            dao.compact();
+        }
+        try (MySuperDAO dao = new MySuperDAO(data, config)) {
+            for (int i = 0; i < KEYS; i++) {
+                assertEquals(value(i, i % 2 == 0 ? 2 : 1), dao.get(key(i)));
+            }
+        }
+    }
+
+    private static void createTables(final File data, final int... numbers) throws IOException {
+        for (final int number : numbers) {
+            final File file = Manifest.file(data, number);
+            if (!file.exists()) {
+                FileTableWriter.write(file, List.<Row>of().iterator(), RangeTombstones.EMPTY, IdentityCodec.INSTANCE);
+            }
+        }
+    }
+
+    private static ByteBuffer key(final int i) {
+        return ByteBuffer.wrap(String.format("key%05d", i).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static ByteBuffer value(final int i, final int round) {
+        return ByteBuffer.wrap(("value" + round + "-" + i + "x".repeat(100)).getBytes(StandardCharsets.UTF_8));
+    }
+}
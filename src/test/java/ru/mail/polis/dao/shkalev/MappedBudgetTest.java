@@ -0,0 +1,227 @@
+package ru.mail.polis.dao.shkalev;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.Record;
+import ru.mail.polis.TestBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of {@link MappedBudget} and of file tables demoted and promoted by it.
+ * Every table holds the same rows, so all files are of the same size and the
+ * budget is counted in files.
+ */
+class MappedBudgetTest extends TestBase {
+    private static final int ROWS = 1000;
+
+    @Test
+    void reserveAndFree() {
+        final MappedBudget budget = new MappedBudget(100);
+        assertTrue(budget.tryReserve(60));
+        assertFalse(budget.tryReserve(50));
+        assertTrue(budget.fits(40));
+        assertTrue(budget.reserve(40));
+        assertEquals(100, budget.mappedBytes());
+        // Nothing is registered to demote
+        assertFalse(budget.reserve(1));
+        budget.free(60);
+        assertEquals(40, budget.mappedBytes());
+        assertFalse(budget.reserve(101));
+        budget.free(40);
+        assertEquals(0, budget.mappedBytes());
+    }
+
+    @Test
+    void demotesLeastRecentlyUsed(@TempDir final File data) throws IOException {
+        final long size = write(data, 1).length();
+        final MappedBudget budget = new MappedBudget(size * 2 + size / 2);
+        final FileTableHandle first = handle(data, 1, budget);
+        final FileTableHandle second = handle(data, 2, budget);
+        read(first);
+        read(second);
+        read(first);
+        assertTrue(first.isMapped());
+        assertTrue(second.isMapped());
+        assertEquals(size * 2, budget.mappedBytes());
+
+        final FileTableHandle third = handle(data, 3, budget);
+        read(third);
+        assertTrue(third.isMapped());
+        assertTrue(first.isMapped());
+        assertFalse(second.isMapped());
+        assertEquals(size * 2, budget.mappedBytes());
+
+        // The demoted table is read with positional reads and doesn't demote others back
+        read(second);
+        assertFalse(second.isMapped());
+        assertTrue(first.isMapped());
+        assertTrue(third.isMapped());
+        close(first, second, third);
+        assertEquals(0, budget.mappedBytes());
+    }
+
+    @Test
+    void pinnedNotDemoted(@TempDir final File data) throws IOException {
+        final long size = write(data, 1).length();
+        final MappedBudget budget = new MappedBudget(size * 2 + size / 2);
+        final FileTableHandle first = handle(data, 1, budget);
+        final FileTableHandle second = handle(data, 2, budget);
+        read(first);
+        read(second);
+
+        // Readers iterate over both tables
+        assertTrue(first.retain());
+        assertTrue(second.retain());
+        final Iterator<Row> rows = first.iterator(MySuperDAO.LEAST_KEY);
+        final FileTableHandle third = handle(data, 3, budget);
+        read(third);
+        assertTrue(first.isMapped());
+        assertTrue(second.isMapped());
+        assertFalse(third.isMapped());
+        assertRows(rows);
+        first.release();
+        second.release();
+
+        // Room appears when a table is closed, the next reader maps the table again
+        first.close();
+        assertEquals(size, budget.mappedBytes());
+        read(third);
+        assertTrue(third.isMapped());
+        assertEquals(size * 2, budget.mappedBytes());
+        close(second, third);
+        assertEquals(0, budget.mappedBytes());
+    }
+
+    @Test
+    void unmapOnClose(@TempDir final File data) throws IOException {
+        final long size = write(data, 1).length();
+        final MappedBudget budget = new MappedBudget(Long.MAX_VALUE);
+        final FileTableHandle handle = handle(data, 1, budget);
+        // Tables are opened on first access
+        assertEquals(0, budget.mappedBytes());
+        read(handle);
+        assertEquals(size, budget.mappedBytes());
+
+        // A pinned table is unmapped when the reader releases it
+        assertTrue(handle.retain());
+        handle.close();
+        assertEquals(size, budget.mappedBytes());
+        assertRows(handle.iterator(MySuperDAO.LEAST_KEY));
+        handle.release();
+        assertEquals(0, budget.mappedBytes());
+        assertFalse(handle.retain());
+        assertFalse(handle.demote());
+    }
+
+    @Test
+    void concurrentReadsOverBudget(@TempDir final File data) throws Exception {
+        final StorageConfig config = StorageConfig.builder(32 * 1024)
+                .mappedBytes(48 * 1024)
+                .build();
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try (MySuperDAO dao = new MySuperDAO(data, config)) {
+            for (int i = 0; i < ROWS; i++) {
+                dao.upsert(key(i), value(i));
+            }
+            final AtomicBoolean written = new AtomicBoolean();
+            final List<Future<?>> readers = new ArrayList<>();
+            for (int r = 0; r < 3; r++) {
+                readers.add(executor.submit(() -> {
+                    while (!written.get()) {
+                        final int i = ThreadLocalRandom.current().nextInt(ROWS);
+                        assertEquals(value(i), dao.get(key(i)));
+                        final Iterator<Record> records = dao.iterator(key(i));
+                        assertEquals(key(i), records.next().getKey());
+                    }
+                    return null;
+                }));
+            }
+            // Flushes and compactions of overwritten rows open new tables and demote old ones
+            for (int round = 0; round < 20; round++) {
+                for (int i = 0; i < ROWS; i++) {
+                    dao.upsert(key(i), value(i));
+                }
+            }
+            written.set(true);
+            for (final Future<?> reader : readers) {
+                reader.get();
+            }
+            assertTrue(dao.mappedBytes() <= 48 * 1024, "Mapped " + dao.mappedBytes());
+        } finally {
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        }
+    }
+
+    private static FileTableHandle handle(final File data,
+                                          final int generation,
+                                          final MappedBudget budget) throws IOException {
+        final File file = Manifest.file(data, generation);
+        if (!file.exists()) {
+            write(data, generation);
+        }
+        return new FileTableHandle(file, generation, file.length(), budget, new BlockCache(0));
+    }
+
+    private static File write(final File data, final int generation) throws IOException {
+        final List<Row> rows = new ArrayList<>(ROWS);
+        for (int i = 0; i < ROWS; i++) {
+            rows.add(Row.of(generation, key(i), value(i), MySuperDAO.ALIVE, i));
+        }
+        final File file = Manifest.file(data, generation);
+        FileTableWriter.write(file, rows.iterator(), RangeTombstones.EMPTY, IdentityCodec.INSTANCE);
+        return file;
+    }
+
+    /**
+     * Reads a row pinning the table, as the storage does.
+     */
+    private static void read(final FileTableHandle handle) throws IOException {
+        assertTrue(handle.retain());
+        try {
+            assertEquals(value(ROWS / 2), handle.get(key(ROWS / 2)).getValue());
+        } finally {
+            handle.release();
+        }
+    }
+
+    private static void assertRows(final Iterator<Row> rows) {
+        for (int i = 0; i < ROWS; i++) {
+            final Row row = rows.next();
+            assertEquals(key(i), row.getKey());
+            assertEquals(value(i), row.getValue());
+        }
+        assertFalse(rows.hasNext());
+    }
+
+    private static void close(final FileTableHandle... handles) {
+        for (final FileTableHandle handle : handles) {
+            handle.close();
+        }
+    }
+
+    private static ByteBuffer key(final int i) {
+        return ByteBuffer.wrap(String.format("key%05d", i).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static ByteBuffer value(final int i) {
+        return ByteBuffer.wrap(("value" + i).getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,200 @@
+package ru.mail.polis.dao.shkalev;
+
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.TestBase;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of {@link OffHeapMemoryTable}: order of rows, tombstones, rows spread over
+ * several slabs, concurrent writers and readers, and freeing slabs by reference counts.
+ */
+class OffHeapMemoryTableTest extends TestBase {
+    private static final int KEYS = 10_000;
+    private final AtomicInteger fileIndex = new AtomicInteger(1);
+
+    @Test
+    void ordering() {
+        final OffHeapMemoryTable table = new OffHeapMemoryTable();
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            final ByteBuffer key = randomBuffer(1 + i % 32);
+            final ByteBuffer value = randomValueBuffer();
+            expected.put(key, value);
+            table.upsert(key, value, fileIndex);
+        }
+        assertRows(expected, table.iterator(MySuperDAO.LEAST_KEY));
+
+        final ByteBuffer from = expected.keySet().stream().skip(KEYS / 2).findFirst().orElseThrow();
+        assertRows(expected.tailMap(from, true), table.iterator(from));
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), table.get(entry.getKey()).getValue());
+        }
+        assertNull(table.get(ByteBuffer.allocate(64)));
+        table.close();
+    }
+
+    @Test
+    void tombstones() {
+        final OffHeapMemoryTable table = new OffHeapMemoryTable();
+        table.upsert(key(1), value(1), fileIndex);
+        table.remove(key(1), fileIndex);
+        table.remove(key(2), fileIndex);
+        assertTrue(table.get(key(1)).isDead());
+        assertTrue(table.get(key(2)).isDead());
+
+        final Iterator<Row> rows = table.iterator(MySuperDAO.LEAST_KEY);
+        assertEquals(key(1), rows.next().getKey());
+        assertTrue(rows.next().isDead());
+        assertFalse(rows.hasNext());
+
+        // An upsert after a removal revives the key
+        table.upsert(key(2), value(2), fileIndex);
+        assertFalse(table.get(key(2)).isDead());
+        assertEquals(value(2), table.get(key(2)).getValue());
+        table.close();
+    }
+
+    @Test
+    void overwrites() {
+        final OffHeapMemoryTable table = new OffHeapMemoryTable();
+        table.upsert(key(1), value(1), fileIndex);
+        final long size = table.sizeInBytes();
+        for (int i = 2; i <= 100; i++) {
+            table.upsert(key(1), value(i), fileIndex);
+        }
+        assertEquals(value(100), table.get(key(1)).getValue());
+        // Replaced records stay in the slabs and are counted
+        assertTrue(table.sizeInBytes() - size >= 99L * value(100).remaining(), "Size " + table.sizeInBytes());
+
+        table.clear();
+        assertNull(table.get(key(1)));
+        assertTrue(table.sizeInBytes() < size);
+        table.close();
+    }
+
+    @Test
+    void slabOverflow() {
+        final OffHeapMemoryTable table = new OffHeapMemoryTable();
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        // Rows of several slabs and rows larger than a slab
+        for (int i = 0; i < 3000; i++) {
+            final ByteBuffer value = randomBuffer(i % 1000 == 999 ? OffHeapMemoryTable.SLAB_SIZE * 2 : 1024);
+            expected.put(key(i), value);
+            table.upsert(key(i), value, fileIndex);
+        }
+        assertTrue(table.sizeInBytes() > 3 * OffHeapMemoryTable.SLAB_SIZE);
+        assertRows(expected, table.iterator(MySuperDAO.LEAST_KEY));
+        table.close();
+    }
+
+    @Test
+    void concurrentInsertAndIterate() throws Exception {
+        final OffHeapMemoryTable table = new OffHeapMemoryTable();
+        final int writers = 4;
+        final ExecutorService executor = Executors.newFixedThreadPool(writers + 1);
+        final AtomicBoolean written = new AtomicBoolean();
+        try {
+            final Future<Integer> reader = executor.submit(() -> {
+                int scans = 0;
+                while (!written.get()) {
+                    ByteBuffer previous = null;
+                    final Iterator<Row> rows = table.iterator(MySuperDAO.LEAST_KEY);
+                    while (rows.hasNext()) {
+                        final Row row = rows.next();
+                        assertTrue(previous == null || previous.compareTo(row.getKey()) < 0);
+                        assertEquals(valueOf(row.getKey()), row.getValue());
+                        previous = row.getKey();
+                    }
+                    scans++;
+                }
+                return scans;
+            });
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int w = 0; w < writers; w++) {
+                final int writer = w;
+                futures.add(executor.submit(() -> {
+                    for (int i = writer; i < KEYS; i += writers) {
+                        table.upsert(key(i), valueOf(key(i)), fileIndex);
+                        // Writers race for the same keys too
+                        table.upsert(key(KEYS + i % 100), valueOf(key(KEYS + i % 100)), fileIndex);
+                    }
+                }));
+            }
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+            written.set(true);
+            assertTrue(reader.get() > 0);
+        } finally {
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        }
+        int count = 0;
+        for (final Iterator<Row> rows = table.iterator(MySuperDAO.LEAST_KEY); rows.hasNext(); count++) {
+            final Row row = rows.next();
+            assertEquals(valueOf(row.getKey()), row.getValue());
+        }
+        assertEquals(KEYS + 100, count);
+        table.close();
+    }
+
+    @Test
+    void references() {
+        final OffHeapMemoryTable table = new OffHeapMemoryTable();
+        table.upsert(key(1), value(1), fileIndex);
+        assertTrue(table.retain());
+        // The pool drops the table, the reader still reads it
+        table.close();
+        table.close();
+        assertEquals(value(1), table.get(key(1)).getValue());
+        assertTrue(table.retain());
+        table.release();
+        assertEquals(value(1), table.get(key(1)).getValue());
+
+        // The last release frees the slabs and the table can't be pinned again
+        table.release();
+        assertFalse(table.retain());
+    }
+
+    private static void assertRows(final Map<ByteBuffer, ByteBuffer> expected, final Iterator<Row> rows) {
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            assertTrue(rows.hasNext());
+            final Row row = rows.next();
+            assertEquals(entry.getKey(), row.getKey());
+            assertEquals(entry.getValue(), row.getValue());
+        }
+        assertFalse(rows.hasNext());
+    }
+
+    private static ByteBuffer key(final int i) {
+        return ByteBuffer.wrap(String.format("key%06d", i).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static ByteBuffer value(final int i) {
+        return ByteBuffer.wrap(("value" + i).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static ByteBuffer valueOf(final ByteBuffer key) {
+        return ByteBuffer.wrap(("value of " + StandardCharsets.UTF_8.decode(key.duplicate())).getBytes(
+                StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,167 @@
+package ru.mail.polis.dao.shkalev;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.Record;
+import ru.mail.polis.TestBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of point lookups probing the memory table and the file tables from the
+ * newest to the oldest. Every storage session writes one more table on close.
+ */
+class PointLookupTest extends TestBase {
+    private static final int KEYS = 200;
+    private final StorageConfig config = StorageConfig.builder(1024 * 1024).build();
+
+    @Test
+    void newestTableWins(@TempDir final File data) throws IOException {
+        session(data, dao -> dao.upsert(key(1), value(1)));
+        session(data, dao -> dao.upsert(key(1), value(2)));
+        session(data, dao -> {
+            assertEquals(value(2), dao.get(key(1)));
+            dao.upsert(key(1), value(3));
+            assertEquals(value(3), dao.get(key(1)));
+        });
+        session(data, dao -> assertEquals(value(3), dao.get(key(1))));
+    }
+
+    @Test
+    void tombstones(@TempDir final File data) throws IOException {
+        session(data, dao -> {
+            dao.upsert(key(1), value(1));
+            dao.upsert(key(2), value(2));
+        });
+        session(data, dao -> dao.remove(key(1)));
+        session(data, dao -> {
+            assertTrue(dao.getRow(key(1)).isDead());
+            assertThrows(NoSuchElementException.class, () -> dao.get(key(1)));
+            dao.remove(key(2));
+            assertTrue(dao.getRow(key(2)).isDead());
+            // Never written
+            assertThrows(NoSuchElementException.class, () -> dao.getRow(key(3)));
+        });
+    }
+
+    @Test
+    void rangeShadowsOlderTables(@TempDir final File data) throws IOException {
+        session(data, dao -> {
+            for (int i = 0; i < 10; i++) {
+                dao.upsert(key(i), value(i));
+            }
+        });
+        session(data, dao -> {
+            dao.removeRange(key(2), key(6));
+            dao.upsert(key(3), value(30));
+        });
+        session(data, dao -> {
+            // Deleted in the newer table, the row of the older table is shadowed
+            final Row removed = dao.getRow(key(2));
+            assertTrue(removed.isDead());
+            // Written after the deletion
+            assertEquals(value(30), dao.get(key(3)));
+            // Tombstones of keys deleted by a range have the time of the deletion
+            assertTrue(dao.getRow(key(4)).isDead());
+            assertEquals(removed.getTime(), dao.getRow(key(4)).getTime());
+            assertEquals(value(6), dao.get(key(6)));
+
+            // Deletion in the memory table shadows rows of all tables
+            dao.removeRange(key(0), key(4));
+            assertTrue(dao.getRow(key(3)).isDead());
+            assertTrue(removed.getTime() < dao.getRow(key(0)).getTime());
+            dao.upsert(key(0), value(100));
+            assertEquals(value(100), dao.get(key(0)));
+        });
+    }
+
+    @Test
+    void rangeWithoutRows(@TempDir final File data) throws IOException {
+        session(data, dao -> dao.removeRange(key(10), key(20)));
+        session(data, dao -> {
+            // A key deleted by a range reads as a tombstone of the range
+            assertTrue(dao.getRow(key(15)).isDead());
+            assertThrows(NoSuchElementException.class, () -> dao.getRow(key(20)));
+        });
+    }
+
+    @Test
+    void matchesIterator(@TempDir final File data) throws IOException {
+        final Random random = new Random(42);
+        final NavigableMap<Integer, Integer> expected = new TreeMap<>();
+        for (int round = 0; round < 5; round++) {
+            session(data, dao -> {
+                for (int n = 0; n < KEYS; n++) {
+                    final int i = random.nextInt(KEYS);
+                    final int op = random.nextInt(10);
+                    if (op == 0) {
+                        dao.remove(key(i));
+                        expected.remove(i);
+                    } else if (op == 1) {
+                        final int to = Math.min(KEYS, i + random.nextInt(10));
+                        dao.removeRange(key(i), key(to));
+                        expected.subMap(i, to).clear();
+                    } else {
+                        final int v = random.nextInt();
+                        dao.upsert(key(i), value(v));
+                        expected.put(i, v);
+                    }
+                }
+                assertContents(dao, expected);
+            });
+        }
+        session(data, dao -> assertContents(dao, expected));
+    }
+
+    private static void assertContents(@NotNull final MySuperDAO dao,
+                                       @NotNull final NavigableMap<Integer, Integer> expected) throws IOException {
+        for (int i = 0; i < KEYS; i++) {
+            final Integer v = expected.get(i);
+            if (v == null) {
+                final ByteBuffer key = key(i);
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            } else {
+                assertEquals(value(v), dao.get(key(i)));
+            }
+        }
+        final Iterator<Record> records = dao.iterator(key(0));
+        for (final Integer i : expected.keySet()) {
+            final Record record = records.next();
+            assertEquals(key(i), record.getKey());
+            assertEquals(dao.get(key(i)), record.getValue());
+        }
+        assertFalse(records.hasNext());
+    }
+
+    private interface Session {
+        void run(@NotNull MySuperDAO dao) throws IOException;
+    }
+
+    private void session(@NotNull final File data, @NotNull final Session session) throws IOException {
+        try (MySuperDAO dao = new MySuperDAO(data, config)) {
+            session.run(dao);
+        }
+    }
+
+    private static ByteBuffer key(final int i) {
+        return ByteBuffer.wrap(String.format("key%05d", i).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static ByteBuffer value(final int i) {
+        return ByteBuffer.wrap(("value" + i).getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,278 @@
+package ru.mail.polis.dao.shkalev;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.Record;
+import ru.mail.polis.TestBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of {@link RangeTombstones} and of the storage deleting ranges of keys.
+ */
+class RangeTombstonesTest extends TestBase {
+    private static final int KEYS = 2000;
+
+    @Test
+    void boundsAndTimes() {
+        final RangeTombstones set = new RangeTombstones();
+        set.add(RangeTombstone.of(buffer("b"), buffer("d"), 10));
+        assertEquals(Long.MIN_VALUE, set.deletedAt(buffer("a")));
+        assertEquals(10, set.deletedAt(buffer("b")));
+        assertEquals(10, set.deletedAt(buffer("cz")));
+        assertEquals(Long.MIN_VALUE, set.deletedAt(buffer("d")));
+
+        // An older overlapping tombstone does not lower the time of the covered keys
+        set.add(RangeTombstone.of(buffer("c"), buffer("f"), 5));
+        assertEquals(10, set.deletedAt(buffer("c")));
+        assertEquals(5, set.deletedAt(buffer("e")));
+        assertEquals(Long.MIN_VALUE, set.deletedAt(buffer("f")));
+
+        set.add(RangeTombstone.of(buffer("x"), null, 20));
+        assertEquals(20, set.deletedAt(buffer("zzz")));
+        assertEquals(4, set.size());
+    }
+
+    @Test
+    void emptyRangeIgnored() {
+        final RangeTombstones set = new RangeTombstones();
+        set.add(RangeTombstone.of(buffer("b"), buffer("b"), 10));
+        set.add(RangeTombstone.of(buffer("c"), buffer("a"), 10));
+        assertTrue(set.isEmpty());
+        assertEquals(Long.MIN_VALUE, set.deletedAt(buffer("b")));
+        assertFalse(set.iterator().hasNext());
+    }
+
+    @Test
+    void fragments() {
+        final RangeTombstones set = RangeTombstones.of(List.of(
+                RangeTombstone.of(buffer("a"), buffer("c"), 1),
+                RangeTombstone.of(buffer("b"), buffer("d"), 2),
+                RangeTombstone.of(buffer("f"), null, 3)));
+        final Iterator<RangeTombstone> fragments = set.iterator();
+        assertFragment(fragments.next(), "a", "b", 1);
+        // Boundaries are not merged back, so the overlap is split where the older tombstone ends
+        assertFragment(fragments.next(), "b", "c", 2);
+        assertFragment(fragments.next(), "c", "d", 2);
+        assertFragment(fragments.next(), "f", null, 3);
+        assertFalse(fragments.hasNext());
+
+        // The fragments make the same set
+        final List<RangeTombstone> copy = new ArrayList<>();
+        set.forEach(copy::add);
+        final RangeTombstones rebuilt = RangeTombstones.of(copy);
+        for (final String key : List.of("a", "b", "c", "d", "e", "f", "g")) {
+            assertEquals(set.deletedAt(buffer(key)), rebuilt.deletedAt(buffer(key)));
+        }
+    }
+
+    @Test
+    void mergeAndPurge() {
+        final RangeTombstones older = RangeTombstones.of(List.of(RangeTombstone.of(buffer("a"), buffer("m"), 1)));
+        final RangeTombstones newer = RangeTombstones.of(List.of(RangeTombstone.of(buffer("k"), buffer("z"), 5)));
+        final RangeTombstones merged = RangeTombstones.merge(List.of(older, newer, RangeTombstones.EMPTY));
+        assertEquals(1, merged.deletedAt(buffer("b")));
+        assertEquals(5, merged.deletedAt(buffer("l")));
+        assertEquals(5, merged.deletedAt(buffer("y")));
+
+        final RangeTombstones purged = merged.purge(3);
+        assertEquals(Long.MIN_VALUE, purged.deletedAt(buffer("b")));
+        assertEquals(5, purged.deletedAt(buffer("l")));
+        assertSame(merged, merged.purge(0));
+        assertTrue(merged.purge(10).isEmpty());
+        assertSame(RangeTombstones.EMPTY, RangeTombstones.merge(List.of(RangeTombstones.EMPTY)));
+    }
+
+    @Test
+    void applyAndDrop() {
+        final RangeTombstones set = RangeTombstones.of(List.of(RangeTombstone.of(buffer("b"), buffer("d"), 10)));
+        final List<Row> rows = List.of(
+                Row.of(0, buffer("a"), buffer("1"), MySuperDAO.ALIVE, 5),
+                Row.of(0, buffer("b"), buffer("2"), MySuperDAO.ALIVE, 10),
+                Row.of(0, buffer("c"), buffer("3"), MySuperDAO.ALIVE, 11));
+        final Iterator<Row> applied = set.apply(rows.iterator());
+        assertFalse(applied.next().isDead());
+        final Row shadowed = applied.next();
+        assertTrue(shadowed.isDead());
+        assertEquals(10, shadowed.getTime());
+        assertFalse(applied.next().isDead());
+
+        final Iterator<Row> dropped = set.drop(rows.iterator());
+        assertEquals(buffer("a"), dropped.next().getKey());
+        assertEquals(buffer("c"), dropped.next().getKey());
+        assertFalse(dropped.hasNext());
+    }
+
+    @Test
+    void removeRange(@TempDir final File data) throws IOException {
+        final StorageConfig config = StorageConfig.builder(64 * 1024).build();
+        try (MySuperDAO dao = new MySuperDAO(data, config)) {
+            for (int i = 0; i < KEYS; i++) {
+                dao.upsert(key(i), value(i, 1));
+            }
+            // Deletes rows of the memory table and of the flushed tables
+            dao.removeRange(key(100), key(200));
+            dao.removeRange(key(KEYS - 100), null);
+            assertRemoved(dao);
+            // Rows written after the deletion are not shadowed
+            dao.upsert(key(150), value(150, 2));
+            dao.upsert(key(KEYS - 1), value(KEYS - 1, 2));
+            assertRemovedExceptRewritten(dao);
+        }
+        try (MySuperDAO dao = new MySuperDAO(data, config)) {
+            assertRemovedExceptRewritten(dao);
+            dao.compact();
+        }
+        try (MySuperDAO dao = new MySuperDAO(data, config)) {
+            assertRemovedExceptRewritten(dao);
+        }
+    }
+
+    @Test
+    void removeEmptyRange(@TempDir final File data) throws IOException {
+        try (MySuperDAO dao = new MySuperDAO(data, StorageConfig.builder(64 * 1024).build())) {
+            for (int i = 0; i < KEYS; i++) {
+                dao.upsert(key(i), value(i, 1));
+            }
+            dao.removeRange(key(200), key(100));
+            dao.removeRange(key(300), key(300));
+            for (int i = 0; i < KEYS; i++) {
+                assertEquals(value(i, 1), dao.get(key(i)));
+            }
+        }
+    }
+
+    @Test
+    void purgedAfterGcGrace(@TempDir final File data) throws IOException {
+        final StorageConfig config = StorageConfig.builder(64 * 1024).gcGraceMillis(0).build();
+        writeAndRemoveRange(data, config);
+        try (MySuperDAO dao = new MySuperDAO(data, config)) {
+            dao.compact();
+        }
+        assertEquals(0, rangeTombstones(data));
+        try (MySuperDAO dao = new MySuperDAO(data, config)) {
+            assertRemoved(dao);
+        }
+    }
+
+    @Test
+    void keptWithinGcGrace(@TempDir final File data) throws IOException {
+        final StorageConfig config = StorageConfig.builder(64 * 1024).build();
+        writeAndRemoveRange(data, config);
+        try (MySuperDAO dao = new MySuperDAO(data, config)) {
+            dao.compact();
+        }
+        assertEquals(2, rangeTombstones(data));
+        try (MySuperDAO dao = new MySuperDAO(data, config)) {
+            assertRemoved(dao);
+        }
+    }
+
+    private static void writeAndRemoveRange(final File data, final StorageConfig config) throws IOException {
+        try (MySuperDAO dao = new MySuperDAO(data, config)) {
+            for (int i = 0; i < KEYS; i++) {
+                dao.upsert(key(i), value(i, 1));
+            }
+        }
+        try (MySuperDAO dao = new MySuperDAO(data, config)) {
+            dao.removeRange(key(100), key(200));
+            dao.removeRange(key(KEYS - 100), null);
+        }
+    }
+
+    /**
+     * Counts range tombstones left in the tables of the storage.
+     */
+    private static int rangeTombstones(final File data) throws IOException {
+        int count = 0;
+        for (final Map.Entry<Integer, Manifest.Entry> entry : Manifest.open(data).tables().entrySet()) {
+            final Table table = FileTable.open(Manifest.file(data, entry.getValue().getFile()), entry.getKey(),
+                    new MappedBudget(Long.MAX_VALUE), new BlockCache(0));
+            try {
+                count += table.rangeTombstones().size();
+            } finally {
+                table.close();
+            }
+        }
+        return count;
+    }
+
+    private static void assertRemoved(final MySuperDAO dao) throws IOException {
+        for (int i = 0; i < KEYS; i++) {
+            final ByteBuffer key = key(i);
+            if (removed(i)) {
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            } else {
+                assertEquals(value(i, 1), dao.get(key));
+            }
+        }
+        final Iterator<Record> records = dao.iterator(key(0));
+        for (int i = 0; i < KEYS; i++) {
+            if (!removed(i)) {
+                assertEquals(key(i), records.next().getKey());
+            }
+        }
+        assertFalse(records.hasNext());
+    }
+
+    private static void assertRemovedExceptRewritten(final MySuperDAO dao) throws IOException {
+        for (int i = 0; i < KEYS; i++) {
+            final ByteBuffer key = key(i);
+            if (i == 150 || i == KEYS - 1) {
+                assertEquals(value(i, 2), dao.get(key));
+            } else if (removed(i)) {
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            } else {
+                assertEquals(value(i, 1), dao.get(key));
+            }
+        }
+        assertEquals(key(150), dao.iterator(key(100)).next().getKey());
+        final Iterator<Record> tail = dao.iterator(key(KEYS - 100));
+        assertEquals(key(KEYS - 1), tail.next().getKey());
+        assertFalse(tail.hasNext());
+    }
+
+    private static boolean removed(final int i) {
+        return i >= 100 && i < 200 || i >= KEYS - 100;
+    }
+
+    private static void assertFragment(final RangeTombstone fragment,
+                                       final String from,
+                                       final String to,
+                                       final long time) {
+        assertEquals(buffer(from), fragment.getFrom());
+        if (to == null) {
+            assertNull(fragment.getTo());
+        } else {
+            assertEquals(buffer(to), fragment.getTo());
+        }
+        assertEquals(time, fragment.getTime());
+    }
+
+    private static ByteBuffer key(final int i) {
+        return buffer(String.format("key%05d", i));
+    }
+
+    private static ByteBuffer value(final int i, final int round) {
+        return buffer("value" + round + "-" + i + "x".repeat(100));
+    }
+
+    private static ByteBuffer buffer(final String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+    }
+}
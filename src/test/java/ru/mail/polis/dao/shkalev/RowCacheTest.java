@@ -0,0 +1,250 @@
+package ru.mail.polis.dao.shkalev;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of {@link RowCache}: admission by frequency, eviction, invalidation by
+ * writes of the storage and rows read before a concurrent write.
+ * Every cached row here is of {@link #WEIGHT} bytes, so sizes are counted in rows.
+ */
+class RowCacheTest extends TestBase {
+    private static final int VALUE_LENGTH = 100;
+    private static final int WEIGHT = 8 + VALUE_LENGTH + 128;
+    private static final int CAPACITY = 10;
+
+    @Test
+    void hitsAndMisses() {
+        final RowCache cache = cache();
+        assertNull(cache.get(key(1)));
+        cache.put(row(1), cache.version(key(1)));
+        assertEquals(value(1), cache.get(key(1)).getValue());
+        assertEquals(1, cache.hits());
+        assertEquals(1, cache.misses());
+
+        // Tombstones are cached too
+        cache.put(Row.of(1, key(2), MySuperDAO.TOMBSTONE, MySuperDAO.DEAD, 1), cache.version(key(2)));
+        assertTrue(cache.get(key(2)).isDead());
+        assertEquals(WEIGHT * 2 - VALUE_LENGTH, cache.sizeInBytes());
+    }
+
+    @Test
+    void admission() {
+        final RowCache cache = cache();
+        for (int i = 0; i < CAPACITY; i++) {
+            request(cache, i, 5);
+        }
+        assertEquals(WEIGHT * CAPACITY, cache.sizeInBytes());
+
+        // A key requested once doesn't replace keys requested more often
+        request(cache, 100, 1);
+        assertNull(cache.get(key(100)));
+        for (int i = 0; i < CAPACITY; i++) {
+            assertNotNull(cache.get(key(i)));
+        }
+
+        // A key requested more often than an unreferenced row replaces it
+        request(cache, 101, 10);
+        assertNotNull(cache.get(key(101)));
+        int cached = 0;
+        for (int i = 0; i < CAPACITY; i++) {
+            if (cache.get(key(i)) != null) {
+                cached++;
+            }
+        }
+        assertEquals(CAPACITY - 1, cached);
+        assertEquals(WEIGHT * CAPACITY, cache.sizeInBytes());
+    }
+
+    @Test
+    void referencedRowsSurvive() {
+        final RowCache cache = cache();
+        for (int i = 0; i < CAPACITY; i++) {
+            request(cache, i, 2);
+        }
+        // Hits give the first rows of the clock another chance
+        for (int i = 0; i < CAPACITY / 2; i++) {
+            assertNotNull(cache.get(key(i)));
+        }
+        request(cache, 100, 5);
+        assertNotNull(cache.get(key(100)));
+        for (int i = 0; i < CAPACITY / 2; i++) {
+            assertNotNull(cache.get(key(i)));
+        }
+        assertNull(cache.get(key(CAPACITY / 2)));
+    }
+
+    @Test
+    void oversized() {
+        final RowCache cache = cache();
+        final Row large = Row.of(1, key(1), randomBuffer(WEIGHT * CAPACITY), MySuperDAO.ALIVE, 1);
+        cache.put(large, cache.version(key(1)));
+        assertNull(cache.get(key(1)));
+        assertEquals(0, cache.sizeInBytes());
+    }
+
+    @Test
+    void invalidation() {
+        final RowCache cache = cache();
+        for (int i = 0; i < 6; i++) {
+            cache.put(row(i), cache.version(key(i)));
+        }
+        cache.invalidate(key(0));
+        assertNull(cache.get(key(0)));
+
+        cache.invalidateRange(key(1), key(3));
+        assertNull(cache.get(key(1)));
+        assertNull(cache.get(key(2)));
+        assertNotNull(cache.get(key(3)));
+
+        cache.invalidateRange(key(4), null);
+        assertNull(cache.get(key(4)));
+        assertNull(cache.get(key(5)));
+        assertEquals(WEIGHT, cache.sizeInBytes());
+    }
+
+    @Test
+    void rowReadBeforeWrite() {
+        final RowCache cache = cache();
+        // A reader looks the row up, a writer stores a newer one meanwhile
+        final long version = cache.version(key(1));
+        cache.invalidate(key(1));
+        cache.put(row(1), version);
+        assertNull(cache.get(key(1)));
+
+        // Any key may be in the deleted range
+        final long before = cache.version(key(2));
+        cache.invalidateRange(key(100), key(200));
+        cache.put(row(2), before);
+        assertNull(cache.get(key(2)));
+
+        cache.put(row(2), cache.version(key(2)));
+        assertNotNull(cache.get(key(2)));
+    }
+
+    @Test
+    void storageWrites(@TempDir final File data) throws IOException {
+        final StorageConfig config = StorageConfig.builder(1024 * 1024)
+                .rowCacheBytes(1024 * 1024)
+                .build();
+        try (MySuperDAO dao = new MySuperDAO(data, config)) {
+            for (int i = 0; i < 10; i++) {
+                dao.upsert(key(i), value(i));
+                assertEquals(value(i), dao.get(key(i)));
+            }
+            dao.upsert(key(1), value(100));
+            assertEquals(value(100), dao.get(key(1)));
+            dao.remove(key(2));
+            assertThrows(NoSuchElementException.class, () -> dao.get(key(2)));
+            dao.removeRange(key(3), key(6));
+            for (int i = 3; i < 6; i++) {
+                final ByteBuffer key = key(i);
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            }
+            assertEquals(value(6), dao.get(key(6)));
+            dao.upsert(key(2), value(2));
+            assertEquals(value(2), dao.get(key(2)));
+        }
+    }
+
+    @Test
+    void writesRacingWithFlushes(@TempDir final File data) throws Exception {
+        final StorageConfig config = StorageConfig.builder(16 * 1024)
+                .rowCacheBytes(64 * 1024)
+                .flushers(2)
+                .build();
+        final int writers = 2;
+        final int keys = 4;
+        final ExecutorService executor = Executors.newFixedThreadPool(writers + 2);
+        try (MySuperDAO dao = new MySuperDAO(data, config)) {
+            final AtomicBoolean written = new AtomicBoolean();
+            final List<Future<?>> readers = new ArrayList<>();
+            for (int r = 0; r < 2; r++) {
+                readers.add(executor.submit(() -> {
+                    // Readers fill the cache with rows which writes make stale
+                    while (!written.get()) {
+                        try {
+                            dao.get(key(ThreadLocalRandom.current().nextInt(keys * writers)));
+                        } catch (NoSuchElementException e) {
+                            // Not written yet
+                        }
+                    }
+                    return null;
+                }));
+            }
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int w = 0; w < writers; w++) {
+                final int writer = w;
+                futures.add(executor.submit(() -> {
+                    // Every writer owns its keys and reads its own writes
+                    for (int n = 0; n < 5000; n++) {
+                        for (int k = writer * keys; k < (writer + 1) * keys; k++) {
+                            dao.upsert(key(k), value(n));
+                            assertEquals(value(n), dao.get(key(k)));
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+            written.set(true);
+            for (final Future<?> reader : readers) {
+                reader.get();
+            }
+        } finally {
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        }
+    }
+
+    private static RowCache cache() {
+        return new RowCache(WEIGHT * CAPACITY, CAPACITY);
+    }
+
+    /**
+     * Requests the key given times and caches the row read after the misses.
+     */
+    private static void request(final RowCache cache, final int i, final int times) {
+        for (int n = 0; n < times; n++) {
+            cache.get(key(i));
+        }
+        cache.put(row(i), cache.version(key(i)));
+    }
+
+    private static Row row(final int i) {
+        return Row.of(1, key(i), value(i), MySuperDAO.ALIVE, i);
+    }
+
+    private static ByteBuffer key(final int i) {
+        return ByteBuffer.wrap(String.format("key%05d", i).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static ByteBuffer value(final int i) {
+        final ByteBuffer value = ByteBuffer.allocate(VALUE_LENGTH);
+        value.putInt(i).position(0);
+        return value;
+    }
+}
@@ -0,0 +1,123 @@
+package ru.mail.polis.dao.shkalev;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of tables selected by {@link SizeTieredStrategy}. Tables are numbered
+ * from 1 in the order of given sizes.
+ */
+class SizeTieredStrategyTest {
+    private static final long MIN_TABLE_SIZE = 100;
+    private final CompactionStrategy strategy = new SizeTieredStrategy(MIN_TABLE_SIZE);
+
+    @Test
+    void tooFewTables() {
+        assertTrue(select(1000, 1000, 1000).isEmpty());
+        assertTrue(select(1000, 1000, 1000, 10_000).isEmpty());
+    }
+
+    @Test
+    void similarTables() {
+        assertEquals(List.of(1, 2, 3, 4), select(1000, 1100, 900, 1000));
+    }
+
+    @Test
+    void dissimilarNeighbours() {
+        assertEquals(List.of(2, 3, 4, 5), select(10_000, 1000, 1100, 900, 1000, 50_000));
+        // A table out of the tier splits the run
+        assertTrue(select(1000, 1000, 10_000, 1000, 1000).isEmpty());
+    }
+
+    @Test
+    void smallTablesInOneTier() {
+        assertEquals(List.of(1, 2, 3, 4), select(1, 50, 99, 10));
+    }
+
+    @Test
+    void smallestTier() {
+        assertEquals(List.of(1, 2, 3, 4), select(1000, 1000, 1000, 1000, 100_000, 100_000, 100_000, 100_000));
+        assertEquals(List.of(5, 6, 7, 8), select(100_000, 100_000, 100_000, 100_000, 1000, 1000, 1000, 1000));
+    }
+
+    @Test
+    void boundedRun() {
+        final long[] sizes = new long[64];
+        Arrays.fill(sizes, 1000);
+        assertEquals(generations(1, 32), select(sizes));
+        // The rest of a cut run is smaller, so it goes first
+        assertEquals(generations(33, 40), select(Arrays.copyOf(sizes, 40)));
+    }
+
+    private static List<Integer> generations(final int first, final int last) {
+        return IntStream.rangeClosed(first, last).boxed().collect(Collectors.toList());
+    }
+
+    private List<Integer> select(final long... sizes) {
+        final NavigableMap<Integer, Table> tables = new TreeMap<>();
+        for (int i = 0; i < sizes.length; i++) {
+            tables.put(i + 1, new SizedTable(sizes[i]));
+        }
+        return strategy.select(tables);
+    }
+
+    /**
+     * Table of given size without rows.
+     */
+    private static final class SizedTable implements Table {
+        private final long size;
+
+        SizedTable(final long size) {
+            this.size = size;
+        }
+
+        @NotNull
+        @Override
+        public Iterator<Row> iterator(@NotNull final ByteBuffer from) {
+            return Collections.emptyIterator();
+        }
+
+        @Nullable
+        @Override
+        public Row get(@NotNull final ByteBuffer key) {
+            return null;
+        }
+
+        @Override
+        public void upsert(@NotNull final ByteBuffer key,
+                           @NotNull final ByteBuffer value,
+                           @NotNull final AtomicInteger fileIndex) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void remove(@NotNull final ByteBuffer key, @NotNull final AtomicInteger fileIndex) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void clear() {
+            // Nothing to clear
+        }
+
+        @Override
+        public long sizeInBytes() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package ru.mail.polis.dao.shkalev;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of file tables pinned by {@link TableSnapshot} while a compaction
+ * replaces them.
+ */
+class TableSnapshotTest extends TestBase {
+    private static final int ROWS = 1000;
+    private final MappedBudget budget = new MappedBudget(Long.MAX_VALUE);
+    private final BlockCache cache = new BlockCache(0);
+
+    @Test
+    void deletedAfterRelease(@TempDir final File data) throws IOException {
+        final AtomicReference<NavigableMap<Integer, Table>> live =
+                new AtomicReference<>(tables(handle(data, 1), handle(data, 2)));
+        final TableSnapshot snapshot = TableSnapshot.pin(live::get);
+        final CloseableIterator<Row> rows = snapshot.iterator(live.get().get(1).iterator(MySuperDAO.LEAST_KEY));
+        assertEquals(key(0), rows.next().getKey());
+
+        // The compaction publishes the merged table and clears the merged ones
+        final NavigableMap<Integer, Table> merged = live.get();
+        Utils.compactFiles(data, merged, 3, IdentityCodec.INSTANCE, null, Long.MIN_VALUE);
+        live.set(new TreeMap<>(Map.of(2, handle(data, 3))));
+        for (final Table table : merged.values()) {
+            table.clear();
+        }
+        assertTrue(Manifest.file(data, 1).exists());
+        assertTrue(Manifest.file(data, 2).exists());
+        assertTrue(merged.get(1).retain());
+        merged.get(1).release();
+
+        // The reader goes on over the replaced tables
+        for (int i = 1; i < ROWS; i++) {
+            assertEquals(key(i), rows.next().getKey());
+        }
+        assertFalse(rows.hasNext());
+        assertFalse(Manifest.file(data, 1).exists());
+        assertFalse(Manifest.file(data, 2).exists());
+        assertFalse(merged.get(1).retain());
+        assertTrue(Manifest.file(data, 3).exists());
+    }
+
+    @Test
+    void closedIterator(@TempDir final File data) throws IOException {
+        final Table table = handle(data, 1);
+        final TableSnapshot snapshot = TableSnapshot.pin(() -> tables(table));
+        final CloseableIterator<Row> rows = snapshot.iterator(table.iterator(MySuperDAO.LEAST_KEY));
+        table.clear();
+        assertTrue(rows.hasNext());
+        rows.close();
+        assertFalse(rows.hasNext());
+        assertFalse(Manifest.file(data, 1).exists());
+        // Released once
+        snapshot.release();
+        assertFalse(table.retain());
+    }
+
+    @Test
+    void pinsNewerSet(@TempDir final File data) throws IOException {
+        final Table kept = handle(data, 1);
+        final Table replaced = handle(data, 2);
+        replaced.clear();
+        assertFalse(Manifest.file(data, 2).exists());
+
+        // The first set read is stale, its pinned tables are released
+        final NavigableMap<Integer, Table> stale = tables(kept, replaced);
+        final NavigableMap<Integer, Table> current = tables(kept);
+        final AtomicInteger reads = new AtomicInteger();
+        final TableSnapshot snapshot = TableSnapshot.pin(() -> reads.getAndIncrement() == 0 ? stale : current);
+        assertSame(current, snapshot.tables());
+        assertEquals(2, reads.get());
+
+        kept.clear();
+        assertTrue(Manifest.file(data, 1).exists());
+        snapshot.release();
+        assertFalse(Manifest.file(data, 1).exists());
+    }
+
+    private FileTableHandle handle(@NotNull final File data, final int generation) throws IOException {
+        final File file = Manifest.file(data, generation);
+        if (!file.exists()) {
+            final List<Row> rows = new ArrayList<>(ROWS);
+            for (int i = 0; i < ROWS; i++) {
+                rows.add(Row.of(generation, key(i), value(generation), MySuperDAO.ALIVE, i));
+            }
+            FileTableWriter.write(file, rows.iterator(), RangeTombstones.EMPTY, IdentityCodec.INSTANCE);
+        }
+        return new FileTableHandle(file, generation, file.length(), budget, cache);
+    }
+
+    private static NavigableMap<Integer, Table> tables(@NotNull final Table... tables) {
+        final NavigableMap<Integer, Table> map = new TreeMap<>();
+        for (int i = 0; i < tables.length; i++) {
+            map.put(i + 1, tables[i]);
+        }
+        return map;
+    }
+
+    private static ByteBuffer key(final int i) {
+        return ByteBuffer.wrap(String.format("key%05d", i).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static ByteBuffer value(final int generation) {
+        return ByteBuffer.wrap(("value" + generation).getBytes(StandardCharsets.UTF_8));
+    }
+}
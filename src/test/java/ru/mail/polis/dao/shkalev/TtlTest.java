@@ -0,0 +1,141 @@
+package ru.mail.polis.dao.shkalev;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.Record;
+import ru.mail.polis.TestBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of values written with a time to live.
+ */
+class TtlTest extends TestBase {
+    private static final int KEYS = 2000;
+    private static final long TTL_MILLIS = 500;
+    private static final long EXPIRED_MILLIS = TTL_MILLIS * 2;
+
+    @Test
+    void expiresInMemory(@TempDir final File data) throws Exception {
+        try (MySuperDAO dao = open(data)) {
+            dao.upsert(key(0), value(0, 1), TTL_MILLIS);
+            dao.upsert(key(1), value(1, 1));
+            assertEquals(value(0, 1), dao.get(key(0)));
+            final Row row = dao.getRow(key(0));
+            assertTrue(row.getExpiresAt() > row.getTime());
+
+            Thread.sleep(EXPIRED_MILLIS);
+            assertThrows(NoSuchElementException.class, () -> dao.get(key(0)));
+            assertEquals(value(1, 1), dao.get(key(1)));
+            final Iterator<Record> records = dao.iterator(key(0));
+            assertEquals(key(1), records.next().getKey());
+            assertFalse(records.hasNext());
+        }
+    }
+
+    @Test
+    void expiresAfterFlush(@TempDir final File data) throws Exception {
+        try (MySuperDAO dao = open(data)) {
+            for (int i = 0; i < KEYS; i++) {
+                if (i % 2 == 0) {
+                    dao.upsert(key(i), value(i, 1), TTL_MILLIS);
+                } else {
+                    dao.upsert(key(i), value(i, 1));
+                }
+            }
+        }
+        try (MySuperDAO dao = open(data)) {
+            Thread.sleep(EXPIRED_MILLIS);
+            assertExpired(dao, 1);
+        }
+    }
+
+    /**
+     * A time to live which overflows the timestamp never expires instead of expiring at once.
+     */
+    @Test
+    void longTtlDoesNotExpire(@TempDir final File data) throws Exception {
+        try (MySuperDAO dao = open(data)) {
+            dao.upsert(key(0), value(0, 1), Long.MAX_VALUE);
+            dao.upsert(key(1), value(1, 1), TimeUnit.DAYS.toMillis(365));
+        }
+        try (MySuperDAO dao = open(data)) {
+            assertEquals(Row.NEVER, dao.getRow(key(0)).getExpiresAt());
+            assertEquals(value(0, 1), dao.get(key(0)));
+            assertEquals(value(1, 1), dao.get(key(1)));
+        }
+    }
+
+    /**
+     * An expired value is compacted into a tombstone, so the older value it
+     * overwrote is not read again.
+     */
+    @Test
+    void shadowsOlderValue(@TempDir final File data) throws Exception {
+        try (MySuperDAO dao = open(data)) {
+            for (int i = 0; i < KEYS; i++) {
+                dao.upsert(key(i), value(i, 0));
+            }
+        }
+        try (MySuperDAO dao = open(data)) {
+            for (int i = 0; i < KEYS; i++) {
+                if (i % 2 == 0) {
+                    dao.upsert(key(i), value(i, 1), TTL_MILLIS);
+                } else {
+                    dao.upsert(key(i), value(i, 1));
+                }
+            }
+        }
+        Thread.sleep(EXPIRED_MILLIS);
+        try (MySuperDAO dao = open(data)) {
+            assertExpired(dao, 1);
+            dao.compact();
+        }
+        try (MySuperDAO dao = open(data)) {
+            assertExpired(dao, 1);
+        }
+    }
+
+    private static void assertExpired(final MySuperDAO dao, final int round) throws IOException {
+        for (int i = 0; i < KEYS; i++) {
+            final ByteBuffer key = key(i);
+            if (i % 2 == 0) {
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            } else {
+                assertEquals(value(i, round), dao.get(key));
+            }
+        }
+        final Iterator<Record> records = dao.iterator(key(0));
+        for (int i = 1; i < KEYS; i += 2) {
+            assertEquals(key(i), records.next().getKey());
+        }
+        assertFalse(records.hasNext());
+    }
+
+    private static MySuperDAO open(final File data) throws IOException {
+        return new MySuperDAO(data, StorageConfig.builder(64 * 1024).build());
+    }
+
+    private static ByteBuffer key(final int i) {
+        return buffer(String.format("key%05d", i));
+    }
+
+    private static ByteBuffer value(final int i, final int round) {
+        return buffer("value" + round + "-" + i + "x".repeat(100));
+    }
+
+    private static ByteBuffer buffer(final String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+    }
+}
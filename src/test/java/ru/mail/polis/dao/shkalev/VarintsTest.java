@@ -0,0 +1,88 @@
+package ru.mail.polis.dao.shkalev;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests of {@link Varints}.
+ */
+class VarintsTest {
+    private static final long[] EDGES = {
+            0, 1, 127, 128, 16_383, 16_384, Integer.MAX_VALUE, 1L << 35, Long.MAX_VALUE, -1, Long.MIN_VALUE
+    };
+
+    @Test
+    void roundTrip() {
+        for (final long value : EDGES) {
+            assertRoundTrip(value);
+        }
+        for (int i = 0; i < 10_000; i++) {
+            assertRoundTrip(ThreadLocalRandom.current().nextLong() >>> ThreadLocalRandom.current().nextInt(64));
+        }
+    }
+
+    @Test
+    void sizes() {
+        assertEquals(1, Varints.size(0));
+        assertEquals(1, Varints.size(127));
+        assertEquals(2, Varints.size(128));
+        assertEquals(3, Varints.size(16_384));
+        assertEquals(5, Varints.size(Integer.MAX_VALUE));
+        assertEquals(9, Varints.size(Long.MAX_VALUE));
+        assertEquals(10, Varints.size(-1));
+    }
+
+    @Test
+    void zigzag() {
+        assertEquals(0, Varints.zigzag(0));
+        assertEquals(1, Varints.zigzag(-1));
+        assertEquals(2, Varints.zigzag(1));
+        assertEquals(3, Varints.zigzag(-2));
+        for (final long value : EDGES) {
+            assertEquals(value, Varints.unzigzag(Varints.zigzag(value)));
+        }
+        // Small differences of either sign take a single byte
+        assertEquals(1, Varints.size(Varints.zigzag(-63)));
+        assertEquals(1, Varints.size(Varints.zigzag(63)));
+    }
+
+    @Test
+    void sequence() {
+        final ByteBuffer buffer = ByteBuffer.allocate(EDGES.length * 10);
+        for (final long value : EDGES) {
+            Varints.put(buffer, value);
+        }
+        buffer.flip();
+        for (final long value : EDGES) {
+            assertEquals(value, Varints.getLong(buffer));
+        }
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    void truncated() {
+        final ByteBuffer buffer = ByteBuffer.allocate(10);
+        Varints.put(buffer, 300);
+        buffer.flip().limit(1);
+        assertThrows(BufferUnderflowException.class, () -> Varints.getLong(buffer));
+    }
+
+    private static void assertRoundTrip(final long value) {
+        final ByteBuffer buffer = ByteBuffer.allocate(10);
+        Varints.put(buffer, value);
+        assertEquals(Varints.size(value), buffer.position());
+        buffer.flip();
+        assertEquals(value, Varints.getLong(buffer));
+        assertFalse(buffer.hasRemaining());
+        if (value == (int) value && value >= 0) {
+            assertEquals((int) value, Varints.getInt(buffer.rewind()));
+        }
+    }
+}
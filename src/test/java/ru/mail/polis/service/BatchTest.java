@@ -0,0 +1,187 @@
+package ru.mail.polis.service;
+
+import one.nio.http.Response;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.Files;
+import ru.mail.polis.dao.DAO;
+import ru.mail.polis.dao.DAOFactory;
+
+import java.io.File;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+/**
+ * Tests of {@code /v0/batch} on a three node cluster.
+ */
+class BatchTest extends ClusterTestBase {
+    private static final Duration TIMEOUT = Duration.ofMinutes(1);
+    private static final int KEYS = 30;
+    private static final byte UPSERT = 1;
+    private static final byte REMOVE = 0;
+    private File data0;
+    private File data1;
+    private File data2;
+    private DAO dao0;
+    private DAO dao1;
+    private DAO dao2;
+    private Service storage0;
+    private Service storage1;
+    private Service storage2;
+
+    @BeforeEach
+    void beforeEach() throws Exception {
+        final int port0 = randomPort();
+        final int port1 = randomPort();
+        final int port2 = randomPort();
+        endpoints = new LinkedHashSet<>(Arrays.asList(endpoint(port0), endpoint(port1), endpoint(port2)));
+        data0 = Files.createTempDirectory();
+        data1 = Files.createTempDirectory();
+        data2 = Files.createTempDirectory();
+        dao0 = DAOFactory.create(data0);
+        dao1 = DAOFactory.create(data1);
+        dao2 = DAOFactory.create(data2);
+        storage0 = ServiceFactory.create(port0, dao0, endpoints);
+        storage0.start();
+        storage1 = ServiceFactory.create(port1, dao1, endpoints);
+        storage1.start();
+        storage2 = ServiceFactory.create(port2, dao2, endpoints);
+        start(2, storage2);
+    }
+
+    @AfterEach
+    void afterEach() throws IOException {
+        stop(0, storage0);
+        dao0.close();
+        Files.recursiveDelete(data0);
+        stop(1, storage1);
+        dao1.close();
+        Files.recursiveDelete(data1);
+        stop(2, storage2);
+        dao2.close();
+        Files.recursiveDelete(data2);
+        endpoints = Collections.emptySet();
+    }
+
+    @Test
+    void upsertAndRemove() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String prefix = randomId();
+            final byte[][] values = new byte[KEYS][];
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(body);
+            for (int i = 0; i < KEYS; i++) {
+                values[i] = randomValue();
+                putUpsert(out, prefix + i, values[i]);
+            }
+            assertEquals(201, batch(0, body.toByteArray(), 3, 3).getStatus());
+            for (int i = 0; i < KEYS; i++) {
+                final Response response = get(i % 3, prefix + i, 3, 3);
+                assertEquals(200, response.getStatus());
+                assertArrayEquals(values[i], response.getBody());
+            }
+
+            // Removals and upserts of one batch
+            body.reset();
+            for (int i = 0; i < KEYS; i += 2) {
+                putRemove(out, prefix + i);
+                values[i + 1] = randomValue();
+                putUpsert(out, prefix + (i + 1), values[i + 1]);
+            }
+            assertEquals(201, batch(1, body.toByteArray(), 2, 3).getStatus());
+            for (int i = 0; i < KEYS; i++) {
+                final Response response = get(i % 3, prefix + i, 2, 3);
+                if (i % 2 == 0) {
+                    assertEquals(404, response.getStatus());
+                } else {
+                    assertEquals(200, response.getStatus());
+                    assertArrayEquals(values[i], response.getBody());
+                }
+            }
+        });
+    }
+
+    @Test
+    void emptyBatch() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            assertEquals(201, batch(0, new byte[0], 2, 3).getStatus());
+        });
+    }
+
+    @Test
+    void malformed() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String key = randomId();
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(body);
+            putUpsert(out, key, randomValue());
+            final byte[] truncated = Arrays.copyOf(body.toByteArray(), body.size() - 1);
+            assertEquals(400, batch(0, truncated, 2, 3).getStatus());
+
+            final byte[] unknown = body.toByteArray();
+            unknown[0] = 7;
+            assertEquals(400, batch(0, unknown, 2, 3).getStatus());
+
+            // Nothing of a rejected batch is applied
+            assertEquals(404, get(0, key, 2, 3).getStatus());
+        });
+    }
+
+    @Test
+    void badRF() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            assertEquals(400, batch(0, new byte[0], 0, 3).getStatus());
+            assertEquals(400, batch(0, new byte[0], 4, 3).getStatus());
+        });
+    }
+
+    @Test
+    void unreachableRF() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            stop(0, storage0);
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(body);
+            for (int i = 0; i < KEYS; i++) {
+                putUpsert(out, randomId(), randomValue());
+            }
+            assertEquals(504, batch(1, body.toByteArray(), 3, 3).getStatus());
+            assertEquals(201, batch(1, body.toByteArray(), 2, 3).getStatus());
+        });
+    }
+
+    private static void putUpsert(
+            final DataOutputStream out,
+            final String key,
+            final byte[] value) throws IOException {
+        putKey(out, UPSERT, key);
+        out.writeInt(value.length);
+        out.write(value);
+    }
+
+    private static void putRemove(
+            final DataOutputStream out,
+            final String key) throws IOException {
+        putKey(out, REMOVE, key);
+    }
+
+    private static void putKey(
+            final DataOutputStream out,
+            final byte operation,
+            final String key) throws IOException {
+        final byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        out.writeByte(operation);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
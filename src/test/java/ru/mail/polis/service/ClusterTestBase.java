@@ -21,6 +21,7 @@ import one.nio.http.HttpClient;
 import one.nio.http.Response;
 import one.nio.net.ConnectionString;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import ru.mail.polis.TestBase;
 
 import java.time.Duration;
@@ -132,4 +133,40 @@ abstract class ClusterTestBase extends TestBase {
             final int from) throws Exception {
         return client(node).put(path(key, ack, from), data);
     }
+
+    Response upsert(
+            final int node,
+            @NotNull final String key,
+            @NotNull final byte[] data,
+            @NotNull final String ttl,
+            final int ack,
+            final int from) throws Exception {
+        return client(node).put(path(key, ack, from) + "&ttl=" + ttl, data);
+    }
+
+    Response deleteRange(
+            final int node,
+            @NotNull final String start,
+            @Nullable final String end,
+            final int ack,
+            final int from) throws Exception {
+        return client(node).delete("/v0/entities?start=" + start + (end != null ? "&end=" + end : "")
+                + "&replicas=" + ack + "/" + from);
+    }
+
+    Response batch(
+            final int node,
+            @NotNull final byte[] body,
+            final int ack,
+            final int from) throws Exception {
+        return client(node).post("/v0/batch?replicas=" + ack + "/" + from, body);
+    }
+
+    Response multiGet(
+            final int node,
+            @NotNull final byte[] ids,
+            final int ack,
+            final int from) throws Exception {
+        return client(node).post("/v0/multiget?replicas=" + ack + "/" + from, ids);
+    }
 }
@@ -0,0 +1,121 @@
+package ru.mail.polis.service;
+
+import one.nio.http.Response;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.Files;
+import ru.mail.polis.dao.DAO;
+import ru.mail.polis.dao.DAOFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+/**
+ * Tests of PUT with a time to live on a three node cluster.
+ */
+class ExpiringUpsertTest extends ClusterTestBase {
+    private static final Duration TIMEOUT = Duration.ofMinutes(1);
+    private File data0;
+    private File data1;
+    private File data2;
+    private DAO dao0;
+    private DAO dao1;
+    private DAO dao2;
+    private Service storage0;
+    private Service storage1;
+    private Service storage2;
+
+    @BeforeEach
+    void beforeEach() throws Exception {
+        final int port0 = randomPort();
+        final int port1 = randomPort();
+        final int port2 = randomPort();
+        endpoints = new LinkedHashSet<>(Arrays.asList(endpoint(port0), endpoint(port1), endpoint(port2)));
+        data0 = Files.createTempDirectory();
+        data1 = Files.createTempDirectory();
+        data2 = Files.createTempDirectory();
+        dao0 = DAOFactory.create(data0);
+        dao1 = DAOFactory.create(data1);
+        dao2 = DAOFactory.create(data2);
+        storage0 = ServiceFactory.create(port0, dao0, endpoints);
+        storage0.start();
+        storage1 = ServiceFactory.create(port1, dao1, endpoints);
+        storage1.start();
+        storage2 = ServiceFactory.create(port2, dao2, endpoints);
+        start(2, storage2);
+    }
+
+    @AfterEach
+    void afterEach() throws IOException {
+        stop(0, storage0);
+        dao0.close();
+        Files.recursiveDelete(data0);
+        stop(1, storage1);
+        dao1.close();
+        Files.recursiveDelete(data1);
+        stop(2, storage2);
+        dao2.close();
+        Files.recursiveDelete(data2);
+        endpoints = Collections.emptySet();
+    }
+
+    @Test
+    void expires() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String key = randomId();
+            final byte[] value = randomValue();
+            assertEquals(201, upsert(0, key, value, "1", 3, 3).getStatus());
+            final Response response = get(1, key, 3, 3);
+            assertEquals(200, response.getStatus());
+            assertArrayEquals(value, response.getBody());
+
+            Thread.sleep(TimeUnit.SECONDS.toMillis(2));
+            assertEquals(404, get(2, key, 3, 3).getStatus());
+            assertEquals(404, get(0, key, 1, 3).getStatus());
+        });
+    }
+
+    @Test
+    void overwriteWithoutTtl() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String key = randomId();
+            final byte[] value = randomValue();
+            assertEquals(201, upsert(0, key, randomValue(), "1", 2, 3).getStatus());
+            assertEquals(201, upsert(1, key, value, 2, 3).getStatus());
+
+            Thread.sleep(TimeUnit.SECONDS.toMillis(2));
+            final Response response = get(2, key, 2, 3);
+            assertEquals(200, response.getStatus());
+            assertArrayEquals(value, response.getBody());
+        });
+    }
+
+    @Test
+    void badTtl() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String key = randomId();
+            assertEquals(400, upsert(0, key, randomValue(), "-5", 2, 3).getStatus());
+            assertEquals(400, upsert(0, key, randomValue(), "0", 2, 3).getStatus());
+            assertEquals(400, upsert(0, key, randomValue(), "abc", 2, 3).getStatus());
+            assertEquals(404, get(0, key, 2, 3).getStatus());
+        });
+    }
+
+    @Test
+    void unreachableRF() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            stop(0, storage0);
+            assertEquals(504, upsert(1, randomId(), randomValue(), "60", 3, 3).getStatus());
+        });
+    }
+}
@@ -0,0 +1,148 @@
+package ru.mail.polis.service;
+
+import one.nio.http.Response;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.Files;
+import ru.mail.polis.dao.DAO;
+import ru.mail.polis.dao.DAOFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of {@code /v0/multiget} on a three node cluster.
+ */
+class MultiGetTest extends ClusterTestBase {
+    private static final Duration TIMEOUT = Duration.ofMinutes(1);
+    private static final int KEYS = 30;
+    private File data0;
+    private File data1;
+    private File data2;
+    private DAO dao0;
+    private DAO dao1;
+    private DAO dao2;
+    private Service storage0;
+    private Service storage1;
+    private Service storage2;
+
+    @BeforeEach
+    void beforeEach() throws Exception {
+        final int port0 = randomPort();
+        final int port1 = randomPort();
+        final int port2 = randomPort();
+        endpoints = new LinkedHashSet<>(Arrays.asList(endpoint(port0), endpoint(port1), endpoint(port2)));
+        data0 = Files.createTempDirectory();
+        data1 = Files.createTempDirectory();
+        data2 = Files.createTempDirectory();
+        dao0 = DAOFactory.create(data0);
+        dao1 = DAOFactory.create(data1);
+        dao2 = DAOFactory.create(data2);
+        storage0 = ServiceFactory.create(port0, dao0, endpoints);
+        storage0.start();
+        storage1 = ServiceFactory.create(port1, dao1, endpoints);
+        storage1.start();
+        storage2 = ServiceFactory.create(port2, dao2, endpoints);
+        start(2, storage2);
+    }
+
+    @AfterEach
+    void afterEach() throws IOException {
+        stop(0, storage0);
+        dao0.close();
+        Files.recursiveDelete(data0);
+        stop(1, storage1);
+        dao1.close();
+        Files.recursiveDelete(data1);
+        stop(2, storage2);
+        dao2.close();
+        Files.recursiveDelete(data2);
+        endpoints = Collections.emptySet();
+    }
+
+    @Test
+    void multiGet() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String prefix = randomId();
+            final List<String> chunks = new ArrayList<>();
+            final StringBuilder ids = new StringBuilder();
+            for (int i = 0; i < KEYS; i++) {
+                final String key = String.format("%s-%02d", prefix, i);
+                final String value = "value-" + randomId();
+                assertEquals(201, upsert(i % 3, key, value.getBytes(StandardCharsets.UTF_8), 3, 3).getStatus());
+                if (i % 5 == 0) {
+                    assertEquals(202, delete(i % 3, key, 3, 3).getStatus());
+                } else {
+                    chunks.add(key + '\n' + value);
+                }
+                ids.append(key).append('\n');
+            }
+            // Absent keys are skipped
+            ids.append(prefix).append("-absent");
+
+            for (int node = 0; node < 3; node++) {
+                final Response response = multiGet(node, ids.toString().getBytes(StandardCharsets.UTF_8), 2, 3);
+                assertEquals(200, response.getStatus());
+                assertChunks(chunks, response.getBody());
+            }
+        });
+    }
+
+    @Test
+    void absentKeys() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String ids = randomId() + '\n' + randomId();
+            final Response response = multiGet(0, ids.getBytes(StandardCharsets.UTF_8), 2, 3);
+            assertEquals(200, response.getStatus());
+            assertEquals(0, response.getBody().length);
+            assertEquals(200, multiGet(1, new byte[0], 2, 3).getStatus());
+        });
+    }
+
+    @Test
+    void badRF() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final byte[] ids = randomId().getBytes(StandardCharsets.UTF_8);
+            assertEquals(400, multiGet(0, ids, 0, 3).getStatus());
+            assertEquals(400, multiGet(0, ids, 4, 3).getStatus());
+        });
+    }
+
+    @Test
+    void unreachableRF() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String key = randomId();
+            final byte[] value = randomId().getBytes(StandardCharsets.UTF_8);
+            assertEquals(201, upsert(1, key, value, 3, 3).getStatus());
+            stop(0, storage0);
+            final byte[] ids = key.getBytes(StandardCharsets.UTF_8);
+            assertEquals(504, multiGet(1, ids, 3, 3).getStatus());
+            assertEquals(200, multiGet(1, ids, 2, 3).getStatus());
+        });
+    }
+
+    /**
+     * Records are streamed in the order their replicas answer, so only the set of chunks is checked.
+     */
+    private static void assertChunks(final List<String> chunks, final byte[] body) {
+        final String received = new String(body, StandardCharsets.UTF_8);
+        int length = 0;
+        for (final String chunk : chunks) {
+            assertTrue(received.contains(chunk), chunk);
+            length += chunk.length();
+        }
+        assertEquals(length, received.length());
+    }
+}
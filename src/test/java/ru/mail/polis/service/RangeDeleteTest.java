@@ -0,0 +1,156 @@
+package ru.mail.polis.service;
+
+import one.nio.http.Response;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.Files;
+import ru.mail.polis.dao.DAO;
+import ru.mail.polis.dao.DAOFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+/**
+ * Tests of DELETE on {@code /v0/entities} of a three node cluster.
+ */
+class RangeDeleteTest extends ClusterTestBase {
+    private static final Duration TIMEOUT = Duration.ofMinutes(1);
+    private static final int KEYS = 10;
+    private File data0;
+    private File data1;
+    private File data2;
+    private DAO dao0;
+    private DAO dao1;
+    private DAO dao2;
+    private Service storage0;
+    private Service storage1;
+    private Service storage2;
+
+    @BeforeEach
+    void beforeEach() throws Exception {
+        final int port0 = randomPort();
+        final int port1 = randomPort();
+        final int port2 = randomPort();
+        endpoints = new LinkedHashSet<>(Arrays.asList(endpoint(port0), endpoint(port1), endpoint(port2)));
+        data0 = Files.createTempDirectory();
+        data1 = Files.createTempDirectory();
+        data2 = Files.createTempDirectory();
+        dao0 = DAOFactory.create(data0);
+        dao1 = DAOFactory.create(data1);
+        dao2 = DAOFactory.create(data2);
+        storage0 = ServiceFactory.create(port0, dao0, endpoints);
+        storage0.start();
+        storage1 = ServiceFactory.create(port1, dao1, endpoints);
+        storage1.start();
+        storage2 = ServiceFactory.create(port2, dao2, endpoints);
+        start(2, storage2);
+    }
+
+    @AfterEach
+    void afterEach() throws IOException {
+        stop(0, storage0);
+        dao0.close();
+        Files.recursiveDelete(data0);
+        stop(1, storage1);
+        dao1.close();
+        Files.recursiveDelete(data1);
+        stop(2, storage2);
+        dao2.close();
+        Files.recursiveDelete(data2);
+        endpoints = Collections.emptySet();
+    }
+
+    @Test
+    void deleteRange() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String prefix = randomId();
+            final byte[][] values = upsertKeys(prefix);
+
+            assertEquals(202, deleteRange(0, prefix + 2, prefix + 5, 3, 3).getStatus());
+
+            // Every node has dropped the range, the keys around it are intact
+            for (int i = 0; i < KEYS; i++) {
+                final Response response = get(i % 3, prefix + i, 3, 3);
+                if (i >= 2 && i < 5) {
+                    assertEquals(404, response.getStatus());
+                } else {
+                    assertEquals(200, response.getStatus());
+                    assertArrayEquals(values[i], response.getBody());
+                }
+            }
+        });
+    }
+
+    @Test
+    void deleteTail() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String prefix = randomId();
+            final byte[][] values = upsertKeys(prefix);
+
+            assertEquals(202, deleteRange(1, prefix + 7, null, 2, 3).getStatus());
+
+            for (int i = 0; i < KEYS; i++) {
+                final Response response = get(i % 3, prefix + i, 2, 3);
+                if (i >= 7) {
+                    assertEquals(404, response.getStatus());
+                } else {
+                    assertEquals(200, response.getStatus());
+                    assertArrayEquals(values[i], response.getBody());
+                }
+            }
+        });
+    }
+
+    @Test
+    void upsertAfterDelete() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String prefix = randomId();
+            upsertKeys(prefix);
+            assertEquals(202, deleteRange(2, prefix + 0, prefix + KEYS, 3, 3).getStatus());
+
+            final byte[] value = randomValue();
+            assertEquals(201, upsert(0, prefix + 3, value, 3, 3).getStatus());
+            final Response response = get(1, prefix + 3, 3, 3);
+            assertEquals(200, response.getStatus());
+            assertArrayEquals(value, response.getBody());
+            assertEquals(404, get(1, prefix + 4, 3, 3).getStatus());
+        });
+    }
+
+    @Test
+    void badRequest() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            assertEquals(400, deleteRange(0, "", randomId(), 2, 3).getStatus());
+            assertEquals(400, deleteRange(0, randomId(), "", 2, 3).getStatus());
+            assertEquals(400, deleteRange(0, randomId(), null, 0, 3).getStatus());
+            assertEquals(400, deleteRange(0, randomId(), null, 4, 3).getStatus());
+        });
+    }
+
+    @Test
+    void unreachableRF() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            stop(0, storage0);
+            assertEquals(504, deleteRange(1, randomId(), null, 3, 3).getStatus());
+            assertEquals(202, deleteRange(1, randomId(), null, 2, 3).getStatus());
+        });
+    }
+
+    private byte[][] upsertKeys(final String prefix) throws Exception {
+        final byte[][] values = new byte[KEYS][];
+        for (int i = 0; i < KEYS; i++) {
+            values[i] = randomValue();
+            assertEquals(201, upsert(i % 3, prefix + i, values[i], 3, 3).getStatus());
+        }
+        return values;
+    }
+}
@@ -0,0 +1,68 @@
+package ru.mail.polis.service.shkalev;
+
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.shkalev.Mutation;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of the body of batch requests, see {@link Batches}.
+ */
+class BatchesTest extends TestBase {
+    @Test
+    void roundTrip() {
+        final List<Mutation> batch = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            batch.add(i % 3 == 0
+                    ? Mutation.remove(randomKeyBuffer())
+                    : Mutation.upsert(randomKeyBuffer(), randomBuffer(1 + i)));
+        }
+        // An empty value is not a removal
+        batch.add(Mutation.upsert(randomKeyBuffer(), ByteBuffer.allocate(0)));
+
+        final List<Mutation> parsed = Batches.parse(Batches.encode(batch));
+        assertEquals(batch.size(), parsed.size());
+        for (int i = 0; i < batch.size(); i++) {
+            assertEquals(batch.get(i).getKey(), parsed.get(i).getKey());
+            assertEquals(batch.get(i).isRemove(), parsed.get(i).isRemove());
+            assertEquals(batch.get(i).getValue(), parsed.get(i).getValue());
+        }
+    }
+
+    @Test
+    void empty() {
+        assertTrue(Batches.parse(null).isEmpty());
+        assertTrue(Batches.parse(new byte[0]).isEmpty());
+    }
+
+    @Test
+    void truncated() {
+        final byte[] body = Batches.encode(List.of(
+                Mutation.upsert(randomKeyBuffer(), randomValueBuffer()),
+                Mutation.remove(randomKeyBuffer())));
+        for (final int length : new int[]{1, 3, Byte.BYTES + Integer.BYTES + KEY_LENGTH + 2, body.length - 1}) {
+            assertThrows(IllegalArgumentException.class, () -> Batches.parse(Arrays.copyOf(body, length)));
+        }
+    }
+
+    @Test
+    void malformed() {
+        final byte[] unknown = Batches.encode(List.of(Mutation.remove(randomKeyBuffer())));
+        unknown[0] = 7;
+        assertThrows(IllegalArgumentException.class, () -> Batches.parse(unknown));
+
+        final byte[] negative = ByteBuffer.allocate(Byte.BYTES + Integer.BYTES)
+                .put(Batches.REMOVE)
+                .putInt(-1)
+                .array();
+        assertThrows(IllegalArgumentException.class, () -> Batches.parse(negative));
+    }
+}
@@ -0,0 +1,231 @@
+package ru.mail.polis.service.shkalev;
+
+import one.nio.http.HttpSession;
+import one.nio.http.Request;
+import one.nio.http.Response;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.DAOFactory;
+import ru.mail.polis.dao.shkalev.AdvancedDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of hedged reads of {@link AsyncReplicator} and of {@link LatencyTracker}.
+ * The replicator is the first of three nodes, the other two answer through a fake
+ * transport after a configured delay with a value newer than the local one. Every
+ * answer advances the fake clock of the tracker by {@link #REMOTE_NANOS}, so the
+ * sampled latencies don't depend on the speed of the machine.
+ */
+class HedgedReadTest extends TestBase {
+    private static final String ME = "http://localhost:1";
+    private static final List<String> OTHERS = List.of("http://localhost:2", "http://localhost:3");
+    private static final long FAST_MICROS = 1000;
+    private static final long NEVER_MICROS = TimeUnit.HOURS.toMicros(1);
+    private static final long REMOTE_NANOS = TimeUnit.HOURS.toNanos(1);
+    private static final int READS = 300;
+    private static final byte[] REMOTE = "remote".getBytes(StandardCharsets.UTF_8);
+    private final Map<String, Long> delays = new ConcurrentHashMap<>();
+    private final Set<String> down = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger sends = new AtomicInteger();
+    private final AtomicLong clock = new AtomicLong();
+    private ScheduledExecutorService timer;
+    private ExecutorService executor;
+
+    /**
+     * Transport answering the calls of the replicator on a timer.
+     */
+    private final class FakeTransport implements Transport {
+        @Override
+        public CompletableFuture<Response> send(@NotNull final Address node, @NotNull final Call call) {
+            sends.incrementAndGet();
+            final CompletableFuture<Response> future = new CompletableFuture<>();
+            if (down.contains(node.toString())) {
+                timer.schedule(() -> future.completeExceptionally(new IOException("Node is down")),
+                        1, TimeUnit.MILLISECONDS);
+                return future;
+            }
+            timer.schedule(() -> {
+                clock.addAndGet(REMOTE_NANOS);
+                future.complete(ServiceUtils.response(200, Long.MAX_VALUE / 2, REMOTE));
+            }, delays.getOrDefault(node.toString(), FAST_MICROS), TimeUnit.MICROSECONDS);
+            return future;
+        }
+
+        @Override
+        public void close() {
+            // Nothing to release
+        }
+    }
+
+    /**
+     * Session which keeps the response instead of writing it to a socket.
+     */
+    private static final class ResponseSession extends HttpSession {
+        private final CompletableFuture<Response> response = new CompletableFuture<>();
+
+        private ResponseSession() {
+            super(null, null);
+        }
+
+        @Override
+        public synchronized void sendResponse(final Response response) {
+            this.response.complete(response);
+        }
+    }
+
+    @BeforeEach
+    void beforeEach() {
+        timer = Executors.newScheduledThreadPool(2);
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @AfterEach
+    void afterEach() {
+        timer.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    @Test
+    void fastReplicas(@TempDir final File data) throws Exception {
+        try (AdvancedDAO dao = dao(data)) {
+            final LatencyTracker latency = new LatencyTracker(0.95, Long.MAX_VALUE, clock::get);
+            final AsyncReplicator replicator = replicator(dao, latency);
+            for (int i = 0; i < READS; i++) {
+                final Response response = read(replicator, Replicas.parse("2/3"));
+                assertEquals(200, response.getStatus());
+                assertArrayEquals(REMOTE, response.getBody());
+            }
+            // Replicas answer before the hedge delay, so the third one is never asked
+            assertEquals(REMOTE_NANOS, latency.delayNanos());
+            assertEquals(READS, sends.get());
+        }
+    }
+
+    @Test
+    void remoteLatenciesOnly(@TempDir final File data) throws Exception {
+        try (AdvancedDAO dao = dao(data)) {
+            // Samples of local reads would be the lowest
+            final LatencyTracker latency = new LatencyTracker(0.25, Long.MAX_VALUE, clock::get);
+            final AsyncReplicator replicator = replicator(dao, latency);
+            for (int i = 0; i < READS; i++) {
+                assertEquals(200, read(replicator, Replicas.parse("2/3")).getStatus());
+            }
+            assertEquals(REMOTE_NANOS, latency.delayNanos());
+        }
+    }
+
+    @Test
+    void slowReplica(@TempDir final File data) throws Exception {
+        try (AdvancedDAO dao = dao(data)) {
+            // Reads are hedged after a millisecond at most
+            final LatencyTracker latency = new LatencyTracker(0.95, TimeUnit.MILLISECONDS.toNanos(1), clock::get);
+            final AsyncReplicator replicator = replicator(dao, latency);
+            for (final String node : OTHERS) {
+                // The replica doesn't answer while the read lasts
+                delays.put(node, NEVER_MICROS);
+                final Response response = read(replicator, Replicas.parse("2/3"));
+                assertEquals(200, response.getStatus());
+                assertArrayEquals(REMOTE, response.getBody());
+                delays.clear();
+            }
+            // The slow replica is asked first by one of the reads at least
+            assertTrue(sends.get() >= 3, "Remote calls: " + sends.get());
+        }
+    }
+
+    @Test
+    void replicaDown(@TempDir final File data) throws Exception {
+        try (AdvancedDAO dao = dao(data)) {
+            final AsyncReplicator replicator = replicator(dao);
+            down.add(OTHERS.get(0));
+            final Response response = read(replicator, Replicas.parse("2/3"));
+            assertEquals(200, response.getStatus());
+            assertArrayEquals(REMOTE, response.getBody());
+
+            down.add(OTHERS.get(1));
+            assertEquals(504, read(replicator, Replicas.parse("2/3")).getStatus());
+            assertEquals(200, read(replicator, Replicas.parse("1/3")).getStatus());
+        }
+    }
+
+    @Test
+    void latencyTrackerClock() {
+        final AtomicLong now = new AtomicLong(100);
+        final LatencyTracker tracker = new LatencyTracker(0.5, 1000, now::get);
+        for (int i = 1; i <= 64; i++) {
+            final long start = tracker.now();
+            now.addAndGet(i);
+            tracker.recordSince(start);
+        }
+        assertEquals(33, tracker.delayNanos());
+    }
+
+    @Test
+    void latencyTracker() {
+        final LatencyTracker tracker = new LatencyTracker(0.95, 1000);
+        assertEquals(1000, tracker.delayNanos());
+        for (int i = 1; i < 64; i++) {
+            tracker.record(i);
+        }
+        // The delay is refreshed once enough reads are sampled
+        assertEquals(1000, tracker.delayNanos());
+        tracker.record(64);
+        assertEquals(61, tracker.delayNanos());
+
+        for (int i = 0; i < 2048; i++) {
+            tracker.record(10_000);
+        }
+        assertEquals(1000, tracker.delayNanos());
+    }
+
+    private static AdvancedDAO dao(final File data) throws IOException {
+        final AdvancedDAO dao = (AdvancedDAO) DAOFactory.create(data);
+        dao.upsert(key(), ByteBuffer.wrap("local".getBytes(StandardCharsets.UTF_8)));
+        return dao;
+    }
+
+    private AsyncReplicator replicator(final AdvancedDAO dao) {
+        return replicator(dao, new LatencyTracker(0.95, TimeUnit.SECONDS.toNanos(1)));
+    }
+
+    private AsyncReplicator replicator(final AdvancedDAO dao, final LatencyTracker latency) {
+        final Set<String> nodes = new LinkedHashSet<>();
+        nodes.add(ME);
+        nodes.addAll(OTHERS);
+        return new AsyncReplicator(executor, new Ring(nodes, ME, 3), dao, new FakeTransport(), true, latency);
+    }
+
+    private static Response read(final AsyncReplicator replicator, final Replicas rf) throws Exception {
+        final ResponseSession session = new ResponseSession();
+        replicator.executeGet(session, new Request(Request.METHOD_GET, "/v0/entity?id=key", true), key(), false, rf);
+        return session.response.get(5, TimeUnit.SECONDS);
+    }
+
+    private static ByteBuffer key() {
+        return ByteBuffer.wrap("key".getBytes(StandardCharsets.UTF_8));
+    }
+}
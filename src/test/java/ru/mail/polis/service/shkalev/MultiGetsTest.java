@@ -0,0 +1,93 @@
+package ru.mail.polis.service.shkalev;
+
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.TestBase;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of the bodies of multi-get requests and answers, see {@link MultiGets}.
+ */
+class MultiGetsTest extends TestBase {
+    @Test
+    void keys() {
+        final List<ByteBuffer> keys = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            keys.add(buffer(randomId()));
+        }
+        assertEquals(keys, MultiGets.parseKeys(MultiGets.encodeKeys(keys)));
+
+        // Empty lines are skipped and the last id needs no new line
+        assertEquals(List.of(buffer("a"), buffer("bc")), MultiGets.parseKeys(bytes("\n\na\n\nbc")));
+        assertTrue(MultiGets.parseKeys(null).isEmpty());
+        assertTrue(MultiGets.parseKeys(bytes("\n")).isEmpty());
+    }
+
+    @Test
+    void versions() {
+        final List<MultiGets.Version> versions = Arrays.asList(
+                new MultiGets.Version(1, randomValueBuffer()),
+                null,
+                new MultiGets.Version(Long.MAX_VALUE, null),
+                new MultiGets.Version(-1, ByteBuffer.allocate(0)));
+        final List<MultiGets.Version> parsed = MultiGets.parseVersions(MultiGets.encodeVersions(versions),
+                versions.size());
+        assertEquals(versions.size(), parsed.size());
+        for (int i = 0; i < versions.size(); i++) {
+            final MultiGets.Version version = versions.get(i);
+            if (version == null) {
+                assertNull(parsed.get(i));
+            } else {
+                assertEquals(version.getTime(), parsed.get(i).getTime());
+                assertEquals(version.getValue(), parsed.get(i).getValue());
+            }
+        }
+    }
+
+    @Test
+    void newer() {
+        final MultiGets.Version older = new MultiGets.Version(1, buffer("old"));
+        final MultiGets.Version removed = new MultiGets.Version(2, null);
+        assertSame(older, MultiGets.Version.newer(null, older));
+        assertSame(removed, MultiGets.Version.newer(older, removed));
+        assertSame(removed, MultiGets.Version.newer(removed, older));
+    }
+
+    @Test
+    void truncated() {
+        final byte[] body = MultiGets.encodeVersions(List.of(
+                new MultiGets.Version(1, randomValueBuffer()),
+                new MultiGets.Version(2, null)));
+        for (final int length : new int[]{0, 5, Byte.BYTES + Long.BYTES + Integer.BYTES + 1, body.length - 1}) {
+            assertThrows(IllegalArgumentException.class,
+                    () -> MultiGets.parseVersions(Arrays.copyOf(body, length), 2));
+        }
+        // A replica answering fewer keys than requested
+        assertThrows(IllegalArgumentException.class, () -> MultiGets.parseVersions(body, 3));
+    }
+
+    @Test
+    void unknownState() {
+        final byte[] body = MultiGets.encodeVersions(List.of(new MultiGets.Version(1, null)));
+        body[0] = 7;
+        assertThrows(IllegalArgumentException.class, () -> MultiGets.parseVersions(body, 1));
+    }
+
+    private static byte[] bytes(final String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static ByteBuffer buffer(final String s) {
+        return ByteBuffer.wrap(bytes(s));
+    }
+}
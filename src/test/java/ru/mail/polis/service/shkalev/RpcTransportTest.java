@@ -0,0 +1,240 @@
+package ru.mail.polis.service.shkalev;
+
+import one.nio.http.Response;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.TestBase;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of the internal protocol, {@link RpcTransport} calling an {@link RpcServer}.
+ * The server answers a get with the key, a put with the value and the time to live
+ * as the timestamp, and a delete only after the transport gives up waiting.
+ */
+class RpcTransportTest extends TestBase {
+    private static final long TIME = 42;
+    private int port;
+    private int rpcPort;
+    private Address node;
+    private ExecutorService executor;
+    private RpcServer server;
+    private RpcTransport transport;
+
+    @BeforeEach
+    void beforeEach() throws IOException {
+        port = randomPort();
+        rpcPort = randomPort();
+        node = new Address(endpoint(port) + "?rpc=" + rpcPort);
+        executor = Executors.newFixedThreadPool(4);
+        server = new RpcServer(rpcPort, executor, RpcTransportTest::handle);
+        server.start();
+        transport = new RpcTransport(TransportConfig.builder(TransportType.BINARY_RPC).build());
+    }
+
+    @AfterEach
+    void afterEach() throws InterruptedException {
+        transport.close();
+        server.close();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void pipelinedGets() throws Exception {
+        final List<CompletableFuture<Response>> futures = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            futures.add(transport.send(node, Call.get(buffer("key" + i))));
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            final Response response = futures.get(i).get();
+            assertEquals(200, response.getStatus());
+            assertArrayEquals(bytes("key" + i), response.getBody());
+            assertEquals(TIME, ServiceUtils.getTimeStamp(response));
+        }
+    }
+
+    @Test
+    void largeBody() throws Exception {
+        final byte[] value = randomBuffer(3 * 1024 * 1024).array();
+        final Response response = transport.send(node, Call.put(buffer("key"), value, 7)).get();
+        assertEquals(201, response.getStatus());
+        assertArrayEquals(value, response.getBody());
+        assertEquals(7, ServiceUtils.getTimeStamp(response));
+    }
+
+    @Test
+    void timeout() throws Exception {
+        final ExecutionException e = assertThrows(ExecutionException.class,
+                () -> transport.send(node, Call.delete(buffer("key"))).get());
+        assertTrue(e.getCause() instanceof TimeoutException);
+        // The late answer is dropped and the connection is still usable
+        Thread.sleep(1000);
+        assertArrayEquals(bytes("after"), transport.send(node, Call.get(buffer("after"))).get().getBody());
+    }
+
+    @Test
+    void reconnect() throws Exception {
+        assertEquals(200, transport.send(node, Call.get(buffer("before"))).get().getStatus());
+        server.close();
+        Thread.sleep(100);
+        assertThrows(ExecutionException.class, () -> transport.send(node, Call.get(buffer("down"))).get());
+
+        server = new RpcServer(rpcPort, executor, RpcTransportTest::handle);
+        server.start();
+        // The node may be down after the failed call
+        Thread.sleep(RpcTransport.MIN_BACKOFF_MILLIS * 2);
+        assertArrayEquals(bytes("again"), transport.send(node, Call.get(buffer("again"))).get().getBody());
+    }
+
+    @Test
+    void downNodeBackoff() throws Exception {
+        server.close();
+        final ExecutionException refused = assertThrows(ExecutionException.class,
+                () -> transport.send(node, Call.get(buffer("refused"))).get());
+        assertTrue(refused.getCause() instanceof IOException);
+
+        // Calls fail without connecting until the backoff is over
+        final ExecutionException down = assertThrows(ExecutionException.class,
+                () -> transport.send(node, Call.get(buffer("down"))).get());
+        assertEquals("Node " + node + " is down", down.getCause().getMessage());
+
+        server = new RpcServer(rpcPort, executor, RpcTransportTest::handle);
+        server.start();
+        Thread.sleep(RpcTransport.MIN_BACKOFF_MILLIS * 2);
+        assertArrayEquals(bytes("up"), transport.send(node, Call.get(buffer("up"))).get().getBody());
+    }
+
+    @Test
+    void concurrentConnect() throws Exception {
+        // Calls racing for the first connection are all answered by it
+        final List<CompletableFuture<Response>> futures = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            final String key = "key" + i;
+            futures.add(CompletableFuture.supplyAsync(() -> transport.send(node, Call.get(buffer(key))), executor)
+                    .thenCompose(response -> response));
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            assertArrayEquals(bytes("key" + i), futures.get(i).get().getBody());
+        }
+    }
+
+    @Test
+    void portBound() throws IOException {
+        final RpcServer second = new RpcServer(rpcPort, executor, RpcTransportTest::handle);
+        final BindException e = assertThrows(BindException.class, second::start);
+        assertEquals("Rpc port " + rpcPort + " is already bound", e.getMessage());
+        second.close();
+    }
+
+    @Test
+    void noRpcPort() {
+        final Address http = new Address(endpoint(port));
+        assertEquals(Address.NO_RPC_PORT, http.getRpcPort());
+        final ExecutionException e = assertThrows(ExecutionException.class,
+                () -> transport.send(http, Call.get(buffer("key"))).get());
+        assertEquals("Node " + http + " has no rpc port", e.getCause().getMessage());
+    }
+
+    @Test
+    void address() {
+        // The rpc port doesn't identify the node
+        assertEquals(rpcPort, node.getRpcPort());
+        assertEquals(new Address(endpoint(port)), node);
+        assertEquals(endpoint(port), node.toString());
+        final Ring ring = new Ring(Set.of(node.toString() + "?rpc=" + rpcPort), endpoint(port), 1);
+        assertEquals(rpcPort, ring.me().getRpcPort());
+    }
+
+    @Test
+    void codec() {
+        final List<Call> calls = List.of(
+                Call.get(buffer("key")),
+                Call.put(buffer("key"), bytes("value"), 60),
+                Call.delete(buffer("key")),
+                Call.rangeDelete(buffer("a"), buffer("b")),
+                Call.rangeDelete(buffer("a"), null),
+                Call.batch(new byte[0]),
+                Call.multiGet(bytes("a\nb")));
+        for (final Call call : calls) {
+            final Call read = Call.read(encode(call));
+            assertEquals(call.getOp(), read.getOp());
+            if (call.getOp() <= Call.RANGE_DELETE) {
+                assertEquals(call.getKey(), read.getKey());
+            }
+            assertEquals(call.getEnd(), read.getEnd());
+            assertEquals(call.getTtlSeconds(), read.getTtlSeconds());
+            assertArrayEquals(call.getBody(), read.getBody());
+        }
+        assertNull(Call.read(encode(Call.rangeDelete(buffer("a"), null))).getEnd());
+    }
+
+    @Test
+    void malformedCall() {
+        final ByteBuffer put = encode(Call.put(buffer("key"), bytes("value"), 60));
+        assertThrows(IllegalArgumentException.class,
+                () -> Call.read(put.duplicate().limit(put.limit() - 1)));
+
+        final ByteBuffer unknown = encode(Call.get(buffer("key")));
+        unknown.put(0, (byte) 0);
+        assertThrows(IllegalArgumentException.class, () -> Call.read(unknown));
+
+        // A get without a key
+        final ByteBuffer keyless = encode(Call.batch(new byte[0]));
+        keyless.put(0, Call.GET);
+        assertThrows(IllegalArgumentException.class, () -> Call.read(keyless));
+    }
+
+    private static Response handle(final Call call) {
+        switch (call.getOp()) {
+            case Call.PUT:
+                return ServiceUtils.response(201, call.getTtlSeconds(), call.getBody());
+            case Call.DELETE:
+                try {
+                    Thread.sleep(HttpRequestCreator.TIME_OUT.toMillis() * 3 / 2);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return ServiceUtils.response(202, TIME, Response.EMPTY);
+            default:
+                final ByteBuffer key = call.getKey();
+                final byte[] body = new byte[key.remaining()];
+                key.get(body);
+                return ServiceUtils.response(200, TIME, body);
+        }
+    }
+
+    private static ByteBuffer encode(final Call call) {
+        final ByteBuffer buffer = ByteBuffer.allocate(call.size());
+        call.write(buffer);
+        assertEquals(0, buffer.remaining());
+        return buffer.flip();
+    }
+
+    private static byte[] bytes(final String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static ByteBuffer buffer(final String s) {
+        return ByteBuffer.wrap(bytes(s));
+    }
+}